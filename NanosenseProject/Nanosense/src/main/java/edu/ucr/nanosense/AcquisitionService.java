@@ -0,0 +1,1726 @@
+package edu.ucr.nanosense;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ioio.lib.api.AnalogInput;
+import ioio.lib.api.DigitalInput;
+import ioio.lib.api.DigitalOutput;
+import ioio.lib.api.SpiMaster;
+import ioio.lib.api.Uart;
+import ioio.lib.api.exception.ConnectionLostException;
+import ioio.lib.util.BaseIOIOLooper;
+import ioio.lib.util.IOIOLooper;
+import ioio.lib.util.android.IOIOService;
+
+/**
+ * AcquisitionService owns the IOIO connections and the {@link edu.ucr.nanosense.SampleStore}s.
+ * It runs in the foreground so acquisition is not interrupted when the activity is rotated or
+ * backgrounded. {@link edu.ucr.nanosense.NanoSenseActivity} and its fragments bind to it and only
+ * display the data.
+ *
+ * Each connected board gets its own {@link Looper} thread and calibration. Their frames are
+ * timestamped from a common monotonic clock and merged in time order by a
+ * {@link edu.ucr.nanosense.FrameMerger} before they are stored.
+ */
+public class AcquisitionService extends IOIOService implements FrameMerger.OnMergedFrameListener,
+        RoverTelemetryReader.OnTelemetryListener, CycleScheduler.OnPhaseListener {
+
+    private static final String TAG = "AcquisitionService";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    /** SharedPreferences for persisting the matched rheostat taps. */
+    private static final String PREFS_CALIBRATION = "calibration";
+    private static final String PREF_TAP = "tap_";
+    private static final String PREF_TAP_TIME = "tap_time_";
+    /** SharedPreferences for acquisition settings that persist across launches. */
+    private static final String PREFS_ACQUISITION = "acquisition";
+    private static final String PREF_CHANNEL_MASK = "channel_mask";
+
+    /** Number of merged frames between logging the merge counters. */
+    private static final int MERGE_LOG_INTERVAL = 1000;
+    /** Number of polls between logging the time taken to read the nano sensors. */
+    private static final int POLL_LOG_INTERVAL = 100;
+
+    /**
+     * Size of the frames passed to the {@link edu.ucr.nanosense.FrameMerger}. The raw readings
+     * followed by the compensated nano sensor resistances.
+     */
+    private static final int MERGED_FRAME_SIZE = Constants.Device.NUM_SENSORS +
+            Constants.Device.NUM_PINS_NANOSENSOR;
+
+    /** Constants for device initialization progress. */
+    public static final int INITIALIZE_SPI = 0;
+    public static final int INITIALIZE_MUX = 1;
+    public static final int INITIALIZE_ADC = 2;
+    public static final int INITIALIZE_UART = 3;
+    public static final int INITIALIZE_RHEOSTAT = 4;
+
+    /**
+     * Raw sensor readings. Channels are the nano sensors followed by the thermistor, humidity and
+     * temperature. See the SENSOR_INDEX constants in {@link edu.ucr.nanosense.Constants}.
+     */
+    private final SampleStore mSampleStore = new SampleStore(Constants.Device.NUM_SENSORS);
+    /** Nano sensor resistances compensated for temperature and humidity drift. */
+    private final SampleStore mCompensatedStore =
+            new SampleStore(Constants.Device.NUM_PINS_NANOSENSOR);
+    /**
+     * Rover position, heading, battery and status on the same time base as the sensor readings.
+     * See the TELEMETRY_INDEX constants in {@link Constants.Rover}.
+     */
+    private final SampleStore mTelemetryStore =
+            new SampleStore(Constants.Rover.NUM_TELEMETRY_CHANNELS);
+    /**
+     * A sample at each pump phase boundary with the phase and cycle. See the PHASE_INDEX
+     * constants in {@link Constants.Pump}.
+     */
+    private final SampleStore mPhaseStore = new SampleStore(Constants.Pump.NUM_PHASE_CHANNELS);
+    /**
+     * Mean, variance, min, max and slope of the raw readings and compensated resistances over
+     * the last second, minute and hour.
+     */
+    private final RollingStatistics mStatistics = new RollingStatistics(MERGED_FRAME_SIZE);
+    /** The most recent raw readings for the graph, kept off the heap. */
+    private final LiveRing mLiveRing = new LiveRing(Constants.Storage.LIVE_WINDOW_CAPACITY,
+            Constants.Device.NUM_SENSORS);
+
+    private final FrameMerger mFrameMerger = new FrameMerger(Constants.Device.MAX_BOARDS,
+            MERGED_FRAME_SIZE, 2 * Constants.Options.DEFAULT_POLLING_RATE, this);
+
+    /** Boards seen so far. The index is the source in the merged stores. */
+    private final ArrayList<Board> mBoards = new ArrayList<Board>();
+
+    private volatile int mPollingRate = Constants.Options.DEFAULT_POLLING_RATE;
+    /**
+     * Bit per nano sensor channel that is polled. Channels that aren't polled are stored as NaN.
+     * Separate from the channels the graph shows.
+     */
+    private volatile int mChannelMask = Constants.Device.CHANNEL_MASK_ALL;
+    /** True to vary each board's polling interval with how fast its sensors change. */
+    private volatile boolean mAdaptivePolling = false;
+    /** Steers the rover from the accelerometer. Null when accelerometer control is off. */
+    private DriveController mDriveController;
+    /** Writer for the most recently connected rover, or null. Guarded by mBoards. */
+    private RoverCommandWriter mRoverCommandWriter;
+    /** Pump mode protocol. Phase durations in ms, and no cycles when not in pump mode. */
+    private final long[] mPumpDurations = new long[3];
+    private int mPumpCycles = 0;
+    /** Runs the pump mode cycles. Null when not running. Guarded by mBoards. */
+    private CycleScheduler mCycleScheduler;
+    /** Pump and valve outputs of the most recently connected board, or null. Guarded by mBoards. */
+    private DigitalOutput mPumpOutput;
+    private DigitalOutput mValveOutput;
+    /** Serves queries over the stores and sessions. Null when not serving. */
+    private QueryServer mQueryServer;
+    /** Searches the recorded sessions. Created on first use. */
+    private SessionArchive mSessionArchive;
+    /** Streams the live frames to subscribers on the device. Null if it can't bind. */
+    private LivePublisher mLivePublisher;
+    /** Chunks waiting to be uploaded, and the thread uploading them. Null when not uploading. */
+    private volatile UploadJournal mUploadJournal;
+    private Uploader mUploader;
+    private int mServerPort = Constants.Options.DEFAULT_SERVER_PORT;
+    private String mServerIp = Constants.Options.DEFAULT_SERVER_IP;
+
+    private volatile boolean mStarted = false;
+    /** Incremented on each start. Boards re-initialize when it doesn't match their session. */
+    private volatile int mSession = 0;
+    /** Monotonic time in ms that the session started. All frame times are relative to it. */
+    private volatile long mSessionStartTime;
+
+    /** Records the frames of the current session. Null when not started. */
+    private SessionWriter mSessionWriter;
+    /** Replays a session or generates synthetic frames. Null when neither is running. */
+    private volatile FrameSource mFrameSource;
+    /** The session being replayed, or null if the frame source isn't a replay. */
+    private volatile File mReplayFile;
+
+    /** Handler for running on the main thread. */
+    private Handler mHandler;
+
+    private final IBinder mBinder = new AcquisitionBinder();
+
+    private volatile OnAcquisitionListener mOnAcquisitionListener;
+
+/***************************************************************************************************
+ *
+ * OnAcquisitionListener Callback Interface
+ *
+ **************************************************************************************************/
+
+    /**
+     * Callbacks for the bound UI. These are called from the Looper thread so implementations
+     * should post any UI changes to the UI thread.
+     */
+    public interface OnAcquisitionListener {
+        public void onDeviceProgress(int progress);
+        public void onDeviceInitialized();
+        public void onSensorProgress(int sensorNum);
+        public void onSensorsMatched();
+        public void onFrame(long time, double[] frame);
+        public void onFrameSourceFinished(long framesProduced, double framesPerSecond);
+    }
+
+    public void setOnAcquisitionListener(OnAcquisitionListener onAcquisitionListener) {
+        mOnAcquisitionListener = onAcquisitionListener;
+    }
+
+/***************************************************************************************************
+ *
+ * Service Lifecycle
+ *
+ **************************************************************************************************/
+
+    /**
+     * Binder returned to the activity so it can get a reference to the service.
+     */
+    public class AcquisitionBinder extends Binder {
+        public AcquisitionService getService() {
+            return AcquisitionService.this;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+        mChannelMask = getSharedPreferences(PREFS_ACQUISITION, Context.MODE_PRIVATE)
+                .getInt(PREF_CHANNEL_MASK, Constants.Device.CHANNEL_MASK_ALL);
+        restartLivePublisher();
+    }
+
+    @Override
+    public void onStart(Intent intent, int startId) {
+        super.onStart(intent, startId);
+        /** Run in the foreground so the connection isn't killed when the activity is hidden. */
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, NanoSenseActivity.class), 0);
+        Notification notification = new Notification.Builder(this)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.notification_acquisition))
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentIntent(pendingIntent)
+                .setOngoing(true)
+                .getNotification();
+        startForeground(NOTIFICATION_ID, notification);
+    }
+
+    @Override
+    public void onDestroy() {
+        setAccelerometerControl(false, 0, 0, 0);
+        setQueryServerEnabled(false);
+        setUploadEnabled(false);
+        synchronized (this) {
+            if (mLivePublisher != null) {
+                mLivePublisher.cancel();
+                mLivePublisher = null;
+            }
+        }
+        stopForeground(true);
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+/***************************************************************************************************
+ *
+ * AcquisitionService Methods
+ *
+ **************************************************************************************************/
+
+    public SampleStore getSampleStore() {
+        return mSampleStore;
+    }
+
+    public SampleStore getCompensatedStore() {
+        return mCompensatedStore;
+    }
+
+    public SampleStore getTelemetryStore() {
+        return mTelemetryStore;
+    }
+
+    public SampleStore getPhaseStore() {
+        return mPhaseStore;
+    }
+
+    /**
+     * @return The rolling statistics of the channels of the merged frames: the raw readings
+     * followed by the compensated nano sensor resistances.
+     */
+    public RollingStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    public LiveRing getLiveRing() {
+        return mLiveRing;
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Starts or stops polling. Starting begins a new session which clears the stores and requires
+     * each board's sensors to be validated or matched again.
+     */
+    public void setStarted(boolean started) {
+        if (started) {
+            stopFrameSource();
+            /** The last run's final idle phase is tagged before the stores are cleared. */
+            stopCycles();
+            synchronized (mFrameMerger) {
+                mFrameMerger.clear();
+                clearStores();
+                openSessionWriter();
+            }
+            mSessionStartTime = SystemClock.elapsedRealtime();
+            ++mSession;
+            startCycles();
+        } else {
+            stopCycles();
+            synchronized (mFrameMerger) {
+                closeSessionWriter();
+            }
+            logStorageStats();
+        }
+        mStarted = started;
+    }
+
+    private void clearStores() {
+        mSampleStore.clear();
+        mCompensatedStore.clear();
+        mTelemetryStore.clear();
+        mPhaseStore.clear();
+        mStatistics.clear();
+        mLiveRing.clear();
+    }
+
+    /**
+     * Starts recording the session to a new file. Acquisition continues without recording if the
+     * file can't be created.
+     */
+    private void openSessionWriter() {
+        File file = new File(getSessionDirectory(), "session_" + System.currentTimeMillis() +
+                Constants.Session.FILE_EXTENSION);
+        try {
+            mSessionWriter = new SessionWriter(file, MERGED_FRAME_SIZE);
+            mSessionWriter.setUploadJournal(mUploadJournal);
+            Log.d(TAG, "Recording session to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            mSessionWriter = null;
+        }
+    }
+
+    private void closeSessionWriter() {
+        if (mSessionWriter != null) {
+            try {
+                mSessionWriter.close();
+                Log.d(TAG, "Recorded " + mSessionWriter.getFramesWritten() + " frames");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mSessionWriter = null;
+        }
+    }
+
+    private File getSessionDirectory() {
+        return new File(getExternalFilesDir(null), Constants.Session.DIRECTORY);
+    }
+
+    /**
+     * @return The archive for searching across the recorded sessions. Its indexes are kept
+     * outside the session directory so they aren't listed as sessions.
+     */
+    public synchronized SessionArchive getSessionArchive() {
+        if (mSessionArchive == null) {
+            mSessionArchive = new SessionArchive(getSessionDirectory(),
+                    new File(getExternalFilesDir(null), Constants.Session.INDEX_DIRECTORY));
+        }
+        return mSessionArchive;
+    }
+
+    /**
+     * @return The recorded sessions, newest first.
+     */
+    public File[] getSessionFiles() {
+        File[] files = getSessionDirectory().listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, Collections.reverseOrder());
+        return files;
+    }
+
+    /**
+     * Replays a recorded session through the stores and the graph. The stores are cleared first.
+     *
+     * @param file The session to replay.
+     * @param speed Multiple of real time, or {@link Constants.Session#REPLAY_SPEED_MAX}.
+     * @return False if acquisition is started or the file isn't a session from this version.
+     */
+    public boolean startReplay(File file, double speed) {
+        if (mStarted) {
+            return false;
+        }
+        try {
+            SessionReader sessionReader = new SessionReader(file);
+            int numChannels = sessionReader.getNumChannels();
+            sessionReader.close();
+            if (numChannels != MERGED_FRAME_SIZE) {
+                Log.d(TAG, "Session has " + numChannels + " channels, expected " +
+                        MERGED_FRAME_SIZE);
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        startFrameSource(new SessionReplayer(file, speed, mFrameSourceListener,
+                mFrameSourceListener));
+        mReplayFile = file;
+        return true;
+    }
+
+    /**
+     * Stress tests the stores and the graph with synthetic frames. The stores are cleared first.
+     *
+     * @param rate Frames per second.
+     * @return False if acquisition is started.
+     */
+    public boolean startSynthetic(int rate) {
+        if (mStarted) {
+            return false;
+        }
+        double eventProbability = Constants.Synthetic.EVENTS_PER_MINUTE / (60.0 * rate);
+        startFrameSource(new SyntheticGenerator(MERGED_FRAME_SIZE, rate,
+                Constants.Synthetic.NOISE, eventProbability, Constants.Synthetic.EVENT_AMPLITUDE,
+                Constants.Synthetic.DURATION_SECONDS, mFrameSourceListener, mFrameSourceListener));
+        return true;
+    }
+
+    private void startFrameSource(FrameSource frameSource) {
+        stopFrameSource();
+        clearStores();
+        mReplayFile = null;
+        mFrameSource = frameSource;
+        frameSource.start();
+    }
+
+    /**
+     * Stops a replay or synthetic generator if one is running.
+     */
+    public void stopFrameSource() {
+        FrameSource frameSource = mFrameSource;
+        if (frameSource != null) {
+            frameSource.cancel();
+            try {
+                frameSource.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public boolean isFrameSourceRunning() {
+        return mFrameSource != null;
+    }
+
+    /**
+     * Passes the frames from a {@link edu.ucr.nanosense.FrameSource} to the pipeline.
+     */
+    private final FrameSourceListener mFrameSourceListener = new FrameSourceListener();
+
+    private class FrameSourceListener implements FrameMerger.OnMergedFrameListener,
+            FrameSource.OnFrameSourceFinishedListener {
+        @Override
+        public void onMergedFrame(int source, long time, double[] frame) {
+            publish(source, time, frame);
+        }
+
+        @Override
+        public void onFrameSourceFinished(long framesProduced, double framesPerSecond) {
+            mFrameSource = null;
+            logStorageStats();
+            File replayFile = mReplayFile;
+            if (replayFile != null) {
+                logAdaptivePollingEvaluation(replayFile);
+            }
+            notifyFrameSourceFinished(framesProduced, framesPerSecond);
+        }
+    }
+
+    /**
+     * Logs the compression ratio of the session's sealed chunks. With
+     * {@link Constants.Storage#LOG_BENCHMARKS} set, also benchmarks their decode throughput and
+     * the frame codec against CSV off the main thread, as they read the whole session.
+     */
+    private void logStorageStats() {
+        Log.d(TAG, "Stored " + mSampleStore.size() + " frames, " +
+                mSampleStore.getNumChunks() + " chunks, compression ratio: " +
+                mSampleStore.getCompressionRatio() + " (" +
+                mSampleStore.getCompressedBytes() + " of " +
+                mSampleStore.getUncompressedBytes() + " bytes)");
+        if (!Constants.Storage.LOG_BENCHMARKS) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Decode throughput: " + mSampleStore.benchmarkDecode() + " values/s");
+                FrameCodec.Benchmark benchmark = FrameCodec.benchmark(mSampleStore,
+                        Constants.Wire.BENCHMARK_FRAMES);
+                if (benchmark != null) {
+                    Log.d(TAG, "Frame codec vs CSV: " + benchmark);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Logs how many frames and bytes a replayed session would have taken with fixed-rate and
+     * adaptive polling at the current polling rate. Runs off the main thread.
+     */
+    private void logAdaptivePollingEvaluation(final File file) {
+        final int pollingRate = mPollingRate;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AdaptivePoller.Evaluation evaluation =
+                            AdaptivePoller.evaluate(file, pollingRate);
+                    Log.d(TAG, "Adaptive polling at " + pollingRate + "ms on " + file.getName() +
+                            ": " + evaluation);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+    }
+
+    public void setOptions(int pollingRate, String serverIp, int serverPort) {
+        mPollingRate = pollingRate;
+        updateMaxMergeDelay();
+        boolean endpointChanged = !serverIp.equals(mServerIp) || serverPort != mServerPort;
+        mServerIp = serverIp;
+        mServerPort = serverPort;
+        if (endpointChanged) {
+            restartUploader();
+        }
+    }
+
+    /**
+     * Serves the live frames on {@link Constants.Options#LIVE_PUBLISHER_PORT} of every interface,
+     * so dashboards on the network can subscribe. See {@link edu.ucr.nanosense.LivePublisher}.
+     * The configured server IP and port are where the {@link edu.ucr.nanosense.Uploader} sends to,
+     * so the publisher has its own port rather than binding the upload server's address.
+     */
+    private synchronized void restartLivePublisher() {
+        if (mLivePublisher != null) {
+            mLivePublisher.cancel();
+            mLivePublisher = null;
+        }
+        try {
+            mLivePublisher = new LivePublisher(Constants.Options.LIVE_PUBLISHER_IP,
+                    Constants.Options.LIVE_PUBLISHER_PORT, mLiveRing);
+            mLivePublisher.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts or stops uploading the recorded sessions to the server IP and port. Chunks are kept
+     * in an {@link edu.ucr.nanosense.UploadJournal} until the
+     * {@link edu.ucr.nanosense.Uploader} has sent them, so sessions recorded while offline are
+     * uploaded once the server can be reached. Takes effect from the next session.
+     */
+    public synchronized void setUploadEnabled(boolean enabled) {
+        if (enabled == (mUploadJournal != null)) {
+            return;
+        }
+        if (enabled) {
+            try {
+                mUploadJournal = new UploadJournal(new File(getExternalFilesDir(null),
+                        Constants.Upload.DIRECTORY));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            restartUploader();
+        } else {
+            mUploader.cancel();
+            mUploader = null;
+            try {
+                mUploadJournal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mUploadJournal = null;
+        }
+    }
+
+    public synchronized boolean isUploadEnabled() {
+        return mUploadJournal != null;
+    }
+
+    /**
+     * @return The bytes recorded but not yet uploaded, or 0 when not uploading.
+     */
+    public synchronized long getPendingUploadBytes() {
+        return mUploadJournal != null ? mUploadJournal.getPendingBytes() : 0;
+    }
+
+    private synchronized void restartUploader() {
+        if (mUploadJournal == null) {
+            return;
+        }
+        if (mUploader != null) {
+            mUploader.cancel();
+        }
+        mUploader = new Uploader(mUploadJournal, mServerIp, mServerPort);
+        mUploader.start();
+    }
+
+    /**
+     * @return The lag and throughput of each live subscriber.
+     */
+    public synchronized List<LivePublisher.Metrics> getLiveSubscriberMetrics() {
+        return mLivePublisher != null ? mLivePublisher.getMetrics() :
+                new ArrayList<LivePublisher.Metrics>();
+    }
+
+    /**
+     * Sets which nano sensor channels are polled. The boards skip the mux, rheostat and ADC round
+     * trips for the others from their next poll.
+     *
+     * @param channelMask Bit i set to poll channel i. At least one channel must be set.
+     */
+    public void setChannelMask(int channelMask) {
+        channelMask &= Constants.Device.CHANNEL_MASK_ALL;
+        if (channelMask == 0) {
+            return;
+        }
+        mChannelMask = channelMask;
+        getSharedPreferences(PREFS_ACQUISITION, Context.MODE_PRIVATE).edit()
+                .putInt(PREF_CHANNEL_MASK, channelMask).commit();
+    }
+
+    public int getChannelMask() {
+        return mChannelMask;
+    }
+
+    /**
+     * Sets whether the boards vary their polling interval between
+     * {@link AdaptivePoller#getMinInterval(int)} and {@link AdaptivePoller#getMaxInterval(int)} of
+     * the polling rate, polling faster while the sensors are changing.
+     */
+    public void setAdaptivePolling(boolean adaptivePolling) {
+        mAdaptivePolling = adaptivePolling;
+        updateMaxMergeDelay();
+    }
+
+    public boolean isAdaptivePolling() {
+        return mAdaptivePolling;
+    }
+
+    /**
+     * Turns steering the rover by tilting the device on or off. Accelerometer events go to a
+     * {@link edu.ucr.nanosense.DriveController} which sends wheel commands at a fixed rate to the
+     * most recently connected rover.
+     *
+     * @param x The neutral acceleration along x from {@link SettingsActivity#EXTRA_ACCEL_X}.
+     * @param y The neutral acceleration along y from {@link SettingsActivity#EXTRA_ACCEL_Y}.
+     * @param z The neutral acceleration along z from {@link SettingsActivity#EXTRA_ACCEL_Z}.
+     */
+    public void setAccelerometerControl(boolean enabled, float x, float y, float z) {
+        SensorManager sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        synchronized (mBoards) {
+            if (mDriveController != null) {
+                sensorManager.unregisterListener(mDriveController);
+                mDriveController.cancel();
+                mDriveController = null;
+            }
+            if (enabled) {
+                mDriveController = new DriveController(x, y, z);
+                mDriveController.setWriter(mRoverCommandWriter);
+                mDriveController.start();
+                sensorManager.registerListener(mDriveController,
+                        sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER),
+                        SensorManager.SENSOR_DELAY_GAME);
+            }
+        }
+    }
+
+    public boolean isAccelerometerControl() {
+        synchronized (mBoards) {
+            return mDriveController != null;
+        }
+    }
+
+    /**
+     * Starts or stops serving range queries over the stores and recorded sessions on
+     * {@link Constants.Options#QUERY_SERVER_PORT}. See {@link edu.ucr.nanosense.QueryServer}.
+     */
+    public synchronized void setQueryServerEnabled(boolean enabled) {
+        if (enabled == (mQueryServer != null)) {
+            return;
+        }
+        if (enabled) {
+            try {
+                mQueryServer = new QueryServer(Constants.Options.QUERY_SERVER_PORT,
+                        getSessionDirectory(), getSessionArchive());
+                mQueryServer.addStore("raw", mSampleStore);
+                mQueryServer.addStore("compensated", mCompensatedStore);
+                mQueryServer.addStore("telemetry", mTelemetryStore);
+                mQueryServer.addStore("phase", mPhaseStore);
+                mQueryServer.setStatistics(mStatistics);
+                mQueryServer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                mQueryServer = null;
+            }
+        } else {
+            mQueryServer.cancel();
+            mQueryServer = null;
+        }
+    }
+
+    public synchronized boolean isQueryServerEnabled() {
+        return mQueryServer != null;
+    }
+
+    /**
+     * Sets the protocol run in pump mode when a session starts: a baseline, an exposure to the gas
+     * and a purge, repeated for a number of cycles.
+     *
+     * @param cycles The number of cycles, or 0 to not run the pump.
+     */
+    public void setPumpProtocol(int baselineSeconds, int exposureSeconds, int purgeSeconds,
+                                int cycles) {
+        synchronized (mBoards) {
+            mPumpDurations[0] = baselineSeconds * 1000L;
+            mPumpDurations[1] = exposureSeconds * 1000L;
+            mPumpDurations[2] = purgeSeconds * 1000L;
+            mPumpCycles = cycles;
+        }
+    }
+
+    private void startCycles() {
+        stopCycles();
+        synchronized (mBoards) {
+            if (mPumpCycles <= 0) {
+                return;
+            }
+            int[] phases = {Constants.Pump.PHASE_BASELINE, Constants.Pump.PHASE_EXPOSURE,
+                    Constants.Pump.PHASE_PURGE};
+            mCycleScheduler = new CycleScheduler(phases, mPumpDurations, mPumpCycles, this);
+            mCycleScheduler.start();
+        }
+    }
+
+    /**
+     * Cancels the run and waits for its final idle phase, so it can't turn the outputs off or tag
+     * the phase after the next run has started.
+     */
+    private void stopCycles() {
+        CycleScheduler scheduler;
+        synchronized (mBoards) {
+            scheduler = mCycleScheduler;
+            mCycleScheduler = null;
+        }
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.cancel();
+        /** Not under mBoards, which the scheduler's listener takes. */
+        try {
+            scheduler.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sets the pump and valve for the phase, then tags the phase at the current session time.
+     */
+    @Override
+    public void onPhase(int cycle, int phase) {
+        int outputs = CycleScheduler.getOutputs(phase);
+        synchronized (mBoards) {
+            try {
+                if (mPumpOutput != null) {
+                    mPumpOutput.write((outputs & Constants.Pump.OUTPUT_PUMP) != 0);
+                    mValveOutput.write((outputs & Constants.Pump.OUTPUT_VALVE) != 0);
+                }
+            } catch (ConnectionLostException e) {
+                e.printStackTrace();
+            }
+        }
+        double[] tag = new double[Constants.Pump.NUM_PHASE_CHANNELS];
+        tag[Constants.Pump.PHASE_INDEX_PHASE] = phase;
+        tag[Constants.Pump.PHASE_INDEX_CYCLE] = cycle;
+        synchronized (mPhaseStore) {
+            mPhaseStore.append(0, SystemClock.elapsedRealtime() - mSessionStartTime, tag, 0);
+        }
+        Log.d(TAG, "Cycle " + cycle + " phase " + phase);
+    }
+
+    /**
+     * Replaces the pump and valve outputs when a board connects or disconnects. A board only
+     * clears the outputs if they are still its own.
+     */
+    private void setPumpOutputs(DigitalOutput oldPumpOutput, DigitalOutput pumpOutput,
+                                DigitalOutput valveOutput) {
+        synchronized (mBoards) {
+            if (oldPumpOutput != null && mPumpOutput != oldPumpOutput) {
+                return;
+            }
+            mPumpOutput = pumpOutput;
+            mValveOutput = valveOutput;
+        }
+    }
+
+    /**
+     * Replaces the rover's command writer when a board connects or disconnects. A board only
+     * clears the writer if it is still its own.
+     */
+    private void setRoverCommandWriter(RoverCommandWriter oldWriter, RoverCommandWriter writer) {
+        synchronized (mBoards) {
+            if (oldWriter != null && mRoverCommandWriter != oldWriter) {
+                return;
+            }
+            mRoverCommandWriter = writer;
+            if (mDriveController != null) {
+                mDriveController.setWriter(writer);
+            }
+        }
+    }
+
+    /**
+     * The merger waits up to two of the longest polling intervals for a board before forcing
+     * frames out.
+     */
+    private void updateMaxMergeDelay() {
+        int pollingRate = mPollingRate;
+        mFrameMerger.setMaxDelay(2 * (mAdaptivePolling ?
+                AdaptivePoller.getMaxInterval(pollingRate) : pollingRate));
+    }
+
+    public int getPollingRate() {
+        return mPollingRate;
+    }
+
+    public String getServerIp() {
+        return mServerIp;
+    }
+
+    public int getServerPort() {
+        return mServerPort;
+    }
+
+    public int getNumBoards() {
+        synchronized (mBoards) {
+            return mBoards.size();
+        }
+    }
+
+    /**
+     * Gets the board for a connection, creating it the first time the connection is seen so a
+     * board keeps its index and calibration across reconnects.
+     *
+     * @return The board or null if {@link Constants.Device#MAX_BOARDS} are already in use.
+     */
+    private Board getBoard(String connectionId) {
+        synchronized (mBoards) {
+            for (Board board : mBoards) {
+                if (board.mConnectionId.equals(connectionId)) {
+                    return board;
+                }
+            }
+            if (mBoards.size() == Constants.Device.MAX_BOARDS) {
+                return null;
+            }
+            Board board = new Board(mBoards.size(), connectionId);
+            mBoards.add(board);
+            return board;
+        }
+    }
+
+    /**
+     * Called by the {@link edu.ucr.nanosense.FrameMerger} in time order from the Looper threads.
+     */
+    @Override
+    public void onMergedFrame(int source, long time, double[] frame) {
+        publish(source, time, frame);
+        long framesMerged = mFrameMerger.getFramesMerged();
+        if (framesMerged % MERGE_LOG_INTERVAL == 0) {
+            Log.d(TAG, "Merged: " + framesMerged + " Forced: " + mFrameMerger.getFramesForced() +
+                    " Late: " + mFrameMerger.getFramesLate());
+        }
+    }
+
+    /**
+     * Passes a frame to everything after acquisition: the session recording, the stores, the live
+     * window and the listener. Frames from the boards and from replays both come through here.
+     *
+     * @param frame The raw readings followed by the compensated nano sensor resistances.
+     */
+    private void publish(int source, long time, double[] frame) {
+        if (mSessionWriter != null) {
+            try {
+                mSessionWriter.append(source, time, frame, 0);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeSessionWriter();
+            }
+        }
+        mSampleStore.append(source, time, frame, 0);
+        mCompensatedStore.append(source, time, frame, Constants.Device.NUM_SENSORS);
+        mStatistics.append(time, frame, 0);
+        mLiveRing.append(source, time, frame, 0);
+        notifyFrame(time, frame);
+    }
+
+    /**
+     * Stores a telemetry sample from the rover at the current session time, so it lines up with
+     * the frames polled at the same moment. Samples outside a session are dropped.
+     */
+    @Override
+    public void onTelemetry(int source, double[] sample) {
+        if (!mStarted) {
+            return;
+        }
+        /** Take the time under the store's lock so times from different boards stay in order. */
+        synchronized (mTelemetryStore) {
+            mTelemetryStore.append(source, SystemClock.elapsedRealtime() - mSessionStartTime,
+                    sample, 0);
+        }
+    }
+
+    private void notifyDeviceProgress(int progress) {
+        if (mOnAcquisitionListener != null) {
+            mOnAcquisitionListener.onDeviceProgress(progress);
+        }
+    }
+
+    private void notifyDeviceInitialized() {
+        if (mOnAcquisitionListener != null) {
+            mOnAcquisitionListener.onDeviceInitialized();
+        }
+    }
+
+    private void notifySensorProgress(int sensorNum) {
+        if (mOnAcquisitionListener != null) {
+            mOnAcquisitionListener.onSensorProgress(sensorNum);
+        }
+    }
+
+    private void notifySensorsMatched() {
+        if (mOnAcquisitionListener != null) {
+            mOnAcquisitionListener.onSensorsMatched();
+        }
+    }
+
+    private void notifyFrame(long time, double[] frame) {
+        if (mOnAcquisitionListener != null) {
+            mOnAcquisitionListener.onFrame(time, frame);
+        }
+    }
+
+    private void notifyFrameSourceFinished(long framesProduced, double framesPerSecond) {
+        if (mOnAcquisitionListener != null) {
+            mOnAcquisitionListener.onFrameSourceFinished(framesProduced, framesPerSecond);
+        }
+    }
+
+    @Override
+    public IOIOLooper createIOIOLooper(String connectionType, Object extra) {
+        Board board = getBoard(connectionType + ":" + extra);
+        if (board == null) {
+            Log.d(TAG, "Too many boards, ignoring " + connectionType);
+            return null;
+        }
+        return new Looper(board);
+    }
+
+/***************************************************************************************************
+ *
+ * Board
+ *
+ **************************************************************************************************/
+
+    /**
+     * Board holds the state of one sensor board that has to survive reconnects: its index in the
+     * merged stores and its calibration. It is only used from the board's Looper thread.
+     */
+    private class Board {
+        private final int mIndex;
+        /** Identifies the connection, used as the key for the saved taps. */
+        private final String mConnectionId;
+
+        private byte[] mInitialResistances = new byte[Constants.Device.NUM_PINS_NANOSENSOR];
+        /** System time each tap in {@link #mInitialResistances} was matched, 0 if never matched. */
+        private long[] mMatchedTimes = new long[Constants.Device.NUM_PINS_NANOSENSOR];
+        /** True if every channel has a saved tap that can be validated instead of re-matched. */
+        private boolean mHasSavedTaps = false;
+
+        private DriftCompensator mDriftCompensator =
+                new DriftCompensator(Constants.Device.NUM_PINS_NANOSENSOR);
+        /** Chooses the interval until the next poll when adaptive polling is on. */
+        private AdaptivePoller mAdaptivePoller = new AdaptivePoller(
+                Constants.Device.NUM_PINS_NANOSENSOR, Constants.Options.DEFAULT_POLLING_RATE);
+
+        /** The session the taps were last validated or matched for. */
+        private int mSession = 0;
+        /** Set when the board reconnects during a session so the taps are validated. */
+        private boolean mReconnected = false;
+        /** Monotonic time in ms the last sensor reading was taken. */
+        private long mPolledTime = 0;
+        /** Time spent reading the nano sensors since the last poll time log. */
+        private long mPollNanos = 0;
+        private int mPolls = 0;
+
+        public Board(int index, String connectionId) {
+            mIndex = index;
+            mConnectionId = connectionId;
+            loadTaps();
+            /** Use the board's own calibration if there is one. */
+            File calibration = new File(getExternalFilesDir(null), mIndex + "_" +
+                    Constants.Compensation.CALIBRATION_FILE);
+            if (!calibration.exists()) {
+                calibration = new File(getExternalFilesDir(null),
+                        Constants.Compensation.CALIBRATION_FILE);
+            }
+            if (mDriftCompensator.load(calibration)) {
+                Log.d(TAG, "Loaded calibration from " + calibration.getAbsolutePath() +
+                        ", skipped " + mDriftCompensator.getSkippedLines() + " lines");
+            } else {
+                Log.d(TAG, "No calibration file, drift compensation disabled.");
+            }
+        }
+
+        /**
+         * Loads the taps saved by {@link #saveTaps()}.
+         */
+        private void loadTaps() {
+            SharedPreferences preferences = getSharedPreferences(PREFS_CALIBRATION,
+                    Context.MODE_PRIVATE);
+            mHasSavedTaps = true;
+            for (int i = 0; i < Constants.Device.NUM_PINS_NANOSENSOR; ++i) {
+                mInitialResistances[i] = (byte) preferences.getInt(getTapKey(i), 0);
+                mMatchedTimes[i] = preferences.getLong(getTapTimeKey(i), 0);
+                if (mMatchedTimes[i] == 0) {
+                    mHasSavedTaps = false;
+                }
+            }
+        }
+
+        /**
+         * Saves the matched taps and the time they were matched so they can be reused.
+         */
+        private void saveTaps() {
+            SharedPreferences.Editor editor = getSharedPreferences(PREFS_CALIBRATION,
+                    Context.MODE_PRIVATE).edit();
+            for (int i = 0; i < Constants.Device.NUM_PINS_NANOSENSOR; ++i) {
+                editor.putInt(getTapKey(i), mInitialResistances[i] & 0xFF);
+                editor.putLong(getTapTimeKey(i), mMatchedTimes[i]);
+            }
+            editor.commit();
+            mHasSavedTaps = true;
+        }
+
+        private String getTapKey(int channel) {
+            return PREF_TAP + mConnectionId + "_" + channel;
+        }
+
+        private String getTapTimeKey(int channel) {
+            return PREF_TAP_TIME + mConnectionId + "_" + channel;
+        }
+    }
+
+/***************************************************************************************************
+ *
+ * IOIOLooper
+ *
+ **************************************************************************************************/
+
+    /**
+     * Looper should be strictly for communication with the device since the connection
+     * can be broken and the looper can be recreated at any time. All data values should
+     * be managed by the Service.
+     */
+    class Looper extends BaseIOIOLooper {
+
+        private final Board mBoard;
+        private final byte[] mInitialResistances;
+
+        /** LED on IOIO. Turns on when connected **/
+        private DigitalOutput mLed;
+        /** DigitalOutput pins for MUX select **/
+        private DigitalOutput[] mMuxPins = new DigitalOutput[Constants.Device.NUM_PINS_MUX];
+        /** SPI interface for communicating with the digital rheostat **/
+        private AnalogInput[] mAnalogPins = new AnalogInput[Constants.Device.NUM_PINS_ANALOG];
+        private SpiMaster mSpi;
+
+        private Uart mRoverUart;
+        private InputStream mRoverRx;
+        private OutputStream mRoverTx;
+        /** Writes the motor commands to {@link #mRoverTx} off the Looper thread. */
+        private RoverCommandWriter mRoverCommandWriter;
+        /** Reads the rover's telemetry from {@link #mRoverRx} off the Looper thread. */
+        private RoverTelemetryReader mRoverTelemetryReader;
+        /** Pump and gas valve in pump mode **/
+        private DigitalOutput mPumpOutput;
+        private DigitalOutput mValveOutput;
+
+        private byte rheostatVal = 0;
+
+        /** Reused frame buffer for the raw readings followed by the compensated resistances. */
+        private double[] mFrame = new double[MERGED_FRAME_SIZE];
+        /** Reused output buffer for the drift compensated resistances. */
+        private double[] mCompensatedResistances = new double[Constants.Device.NUM_PINS_NANOSENSOR];
+        /** Reused buffer for the nano sensor readings. */
+        private double[] mSensorResistances = new double[Constants.Device.NUM_PINS_NANOSENSOR];
+        /** The channels polled in order, compacted from {@link #mPollMask}. */
+        private int[] mPollChannels = new int[0];
+        private int mPollMask = 0;
+
+        public Looper(Board board) {
+            mBoard = board;
+            mInitialResistances = board.mInitialResistances;
+        }
+
+        /**
+         * setup is called every time the device is connected or when the Looper is recreated.
+         * It opens and initializes the proper digital pins, analog pins, and communication
+         * protocols that the IOIO will use with the sensor device.
+         *
+         * @throws ConnectionLostException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup() throws ConnectionLostException, InterruptedException {
+            /** If we were already polling, validate the taps before resuming. */
+            mBoard.mReconnected = mBoard.mSession == mSession;
+            /** Turn on LED when connected **/
+            mLed = ioio_.openDigitalOutput(Constants.Device.PIN_LED, true);
+            mLed.write(false);
+            /** Initialize input/output pins **/
+            // TODO: For some reason SPI won't initialize properly until unplugging and replugging. It's not properly reading back.
+            notifyDeviceProgress(INITIALIZE_SPI);
+            initializeSpi();
+            notifyDeviceProgress(INITIALIZE_MUX);
+            initializeMux();
+            notifyDeviceProgress(INITIALIZE_ADC);
+            initializeAnalog();
+            notifyDeviceProgress(INITIALIZE_UART);
+            initializeUart();
+            initializePump();
+            notifyDeviceProgress(INITIALIZE_RHEOSTAT);
+            initializeRheostat();
+            notifyDeviceInitialized();
+        }
+
+        /**
+         * The AD5271BRMZ-100-ND needs to be sent an initial command to allow writing to the RDAC
+         * register and setting the wiper resistance.
+         *
+         * @throws ConnectionLostException
+         * @throws InterruptedException
+         */
+        private void initializeRheostat() throws ConnectionLostException, InterruptedException {
+            /** This needs to be run on the main thread otherwise the connection is lost. Usually
+             * longer operations such as SPI or Uart transmissions have to be run on a separate
+             * thread. **/
+             mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "Initializing Rheostat...");
+                    byte[] bytesToSend = {Constants.Commands.RHEOSTAT_INIT_UPPER,
+                            Constants.Commands.RHEOSTAT_INIT_LOWER};
+                    try {
+                        /** Initializes the RDAC register */
+                        mSpi.writeRead(bytesToSend, bytesToSend.length, bytesToSend.length, null, 0);
+                        /**
+                         * Write the initialize command again. The rheostat has a shift register
+                         * DIN->SDO so that we should get back the rheostat command.
+                         */
+                        byte[] bytesReceived = new byte[2];
+                        while (bytesReceived[0] != Constants.Commands.RHEOSTAT_INIT_UPPER ||
+                                bytesReceived[1] != Constants.Commands.RHEOSTAT_INIT_LOWER) {
+                            mSpi.writeRead(bytesToSend, bytesToSend.length, bytesToSend.length, bytesReceived, 2);
+                            Log.d(TAG, "Bytes received: " + bytesReceived[0] + "," + bytesReceived[1]);
+                        }
+                        Log.d(TAG, "Rheostat Initialized");
+                    } catch (ConnectionLostException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Initializes the MUX pins to be DigitalOutput for controlling the MUX and sets the MUX to
+         * 0.
+         *
+         * @throws ConnectionLostException
+         */
+        private void initializeMux() throws ConnectionLostException {
+            for (int i = Constants.Device.PIN_MUX_SEL0; i <= Constants.Device.PIN_MUX_SEL3; ++i) {
+                mMuxPins[i - Constants.Device.PIN_MUX_SEL0] = ioio_.openDigitalOutput(i);
+                mMuxPins[i - Constants.Device.PIN_MUX_SEL0].write(false);
+            }
+        }
+
+        /**
+         * Initializes the Analog input pins for reading the sensors.
+         * @throws ConnectionLostException
+         */
+        private void initializeAnalog() throws ConnectionLostException {
+            for (int i = Constants.Device.PIN_ADC0; i <= Constants.Device.PIN_ADC3; ++i) {
+                mAnalogPins[i - Constants.Device.PIN_ADC0] = ioio_.openAnalogInput(i);
+            }
+        }
+
+        /**
+         * Initializes the SPI connection for communicating with the rheostat
+         *
+         * For the AD5271BRMZ-100-ND rheostat the SPI protocol is the following:
+         *  CPOL = 0
+         *  CPHA = 1 (Falling Edge Sync)
+         *  MSB first
+         *  Supports up to 50MHz rate.
+         * @throws ConnectionLostException
+         */
+        private void initializeSpi() throws ConnectionLostException {
+            // TODO: Try increasing the rate?
+            mSpi = ioio_.openSpiMaster(
+                    new DigitalInput.Spec(Constants.Device.PIN_SPI_MISO,
+                            DigitalInput.Spec.Mode.PULL_UP),
+                    new DigitalOutput.Spec(Constants.Device.PIN_SPI_MOSI),
+                    new DigitalOutput.Spec(Constants.Device.PIN_SPI_CLK),
+                    new DigitalOutput.Spec[] { new DigitalOutput.Spec(Constants.Device.PIN_SPI_SS)},
+                    new SpiMaster.Config(SpiMaster.Rate.RATE_125K, false, true));
+        }
+
+        /**
+         * Sets the MUX select pins depending on the desired output. Simple bit-wise AND with the
+         * pin to know which digital pins to open.
+         * @param pin Pin to select (0-15)
+         * @throws ConnectionLostException
+         */
+        private void setMux(byte pin) throws ConnectionLostException {
+            for (byte i = 0; i < Constants.Device.NUM_PINS_MUX; ++i) {
+                byte bitMask = (byte) (1 << i);
+                mMuxPins[i].write((pin & bitMask) > 0);
+            }
+        }
+
+        /**
+         * Sets the resistance of the rheostat to the specified tap/bit resistance and then reads
+         * it back to make sure it was set properly.
+         *
+         * For the AD5271BRMZ-100-ND rheostat, the range is from 0-100k with 255 taps.
+         * The command protocol for the D5271BRMZ-100-ND is as follows. See datasheet for more info.
+         * D - data, x - don't care
+         * Write resistance: xx00 01DD DDDD DDxx
+         * Read resistance: xx00 10xx xxxx xxxx
+         *
+         * @param bitResistance
+         */
+        private synchronized void writeRheostat(byte bitResistance) throws ConnectionLostException,
+                InterruptedException {
+            byte upper = (byte) (Constants.Commands.RHEOSTAT_WRITE | (bitResistance >> 6));
+            byte lower = (byte) (bitResistance << 2);
+            byte[] bytesToSend = {upper, lower};
+            if (Constants.Device.LOG_POLLS) {
+                Log.d(TAG, "SPI Send: " + upper + ", " + lower);
+                Log.d(TAG, "Writing rheostat: " + bitResistance);
+            }
+            mSpi.writeRead(bytesToSend, bytesToSend.length, bytesToSend.length, null, 0);
+        }
+
+        /**
+         * Reads the resistance set from the RDAC register of the divider. This is used to check
+         * that the potentiometer is indeed set to the correct resistance before taking the ADC
+         * reading.
+         *
+         * The RDAC register should be read before performing calculations to determine the sensor
+         * resistance. This fixes the issue with the delay between sending the SPI command to write
+         * and reading the ADC since the SPI read in {@link Looper#writeRheostat(byte)} is
+         * asynchronous. This results in reading the ADC before the SPI is actually set using
+         * different values for the calculation than what the bridge is actually set at.
+         *
+         * Calculating the read value:
+         * C = command bits; D = data bits
+         * Response from rheostat is 2 bytes. 00[C3:C0][D9:D0].
+         * Upper byte is 00[C3:C0] [D9:D6] so drop the command and shift [D9:D6] to the proper
+         * position .
+         * Lower byte is [D5:D0] but since it's an 8-bit Rheostat the lower 2 bits are garbage
+         * and dropped.
+         * See data sheet on AD5271 for more details.
+         * http://www.analog.com/static/imported-files/data_sheets/AD5270_5271.pdf
+         *
+         * @return Returns the bit resistance of the rheostat (0-255) corresponding to 0-100kOhms
+         */
+        private synchronized int readRheostat() throws ConnectionLostException, InterruptedException {
+            byte[] upperArray = {Constants.Commands.RHEOSTAT_READ_UPPER};
+            byte[] lowerArray = {Constants.Commands.RHEOSTAT_READ_LOWER};
+            byte[] bytesReceived = new byte[1];
+            if (Constants.Device.LOG_POLLS) {
+                Log.d(TAG, "Reading Rheostat RDAC Register");
+            }
+            // TODO: For some reason the first time reading from RDAC doesn't give a response...
+            /** Read/write one byte at a time since we're getting back a 16-bit response **/
+            mSpi.writeRead(upperArray, upperArray.length, upperArray.length, bytesReceived, 1);
+            int upperInt = bytesReceived[0] & 0xFF;
+            mSpi.writeRead(lowerArray, lowerArray.length, lowerArray.length, bytesReceived, 1);
+            int lowerInt = bytesReceived[0] & 0xFF;
+            if (Constants.Device.LOG_POLLS) {
+                Log.d(TAG, "Upper byte" + upperInt);
+                Log.d(TAG, "Lower byte" + lowerInt);
+            }
+            int readVal = ((upperInt & 0x03) << 6 | (lowerInt >> 2));
+            return readVal;
+        }
+
+        /**
+         * writeReadRheostat is a blocking function. It writes the value to the rheostat and then
+         * reads it back to verify that it has been set before returning.
+         */
+        private void writeReadRheostat(byte bitResistance) throws ConnectionLostException,
+                InterruptedException{
+            writeRheostat(bitResistance);
+            /** Block until rheostat is set */
+            long readSendTime = System.currentTimeMillis();
+            int readResistance = readRheostat();
+            int intResistance = bitResistance & 0xFF;
+            while(readResistance != intResistance) {
+                /** If we've blocked for more than a second the packet probably dropped. */
+                if (System.currentTimeMillis() - readSendTime >
+                        Constants.Device.SPI_WRITE_READ_TIMEOUT) {
+                    writeRheostat(bitResistance);
+                    readResistance = readRheostat();
+                }
+            }
+        }
+
+        /**
+         * matchResistance attempts to match the resistance of the rheostat to the nano sensor for
+         * the specified pin. This is done by checking the output voltage and attempting to get it as
+         * close as possible to 1/2 of the input voltage. Since the voltage value from analogRead gives
+         * a value between 0 and 1, it multiplies by 1023 since it's a 10-bit ADC and tries to match it
+         * to 512.
+         *
+         * The matching is done using a recursive binary search algorithm.
+         *
+         * For the AD5271BRMZ-100-ND rheostat, the range is from 0-100kOhms with 255 taps
+         *
+         * @param pin Pin to read voltage from/match.
+         * @param low Low value of the resistance.
+         * @param high High bit value of the resistance.
+         *
+         * @return byte The bit value of the divider
+         */
+        private byte matchResistance(int low, int high) throws ConnectionLostException,
+                InterruptedException {
+            int mid = (low + high) / 2;
+            if (low > high) {
+                return (byte) mid;
+            }
+
+            /** Write the new value **/
+            writeReadRheostat((byte) mid);
+            /** IMPORTANT: Read the bitVoltage rather than the actual voltage. This assumes that the
+             * reference voltage is the same as the bridge input voltage. The bridge voltage should
+             * be the same though since otherwise there is risk of frying the pin in the event that
+             * the nano sensors connection is broken. **/
+            int bitVoltage = (int) (mAnalogPins[Constants.Device.ADC_NANO_SENSOR].read() *
+                    Constants.Device.MAX_BIT_VOLTAGE);
+            Log.d(TAG, "Bit Voltage: " + bitVoltage);
+            if (bitVoltage < Constants.Device.MID_BIT_VOLTAGE) {
+                Log.d(TAG, "Less than");
+                return matchResistance(low, mid - 1);
+            } else if (bitVoltage > Constants.Device.MID_BIT_VOLTAGE) {
+                Log.d(TAG, "Greater than");
+                return matchResistance(mid + 1, high);
+            } else {
+                return (byte) mid;
+            }
+        }
+
+        /**
+         * Calculates the resistance values of the sensor, and attempts to match the resistance.
+         * Resistances are then stored in {@link this#mInitialResistances}
+         */
+        private void matchResistances() throws ConnectionLostException, InterruptedException {
+            for (int i = 0; i < Constants.Device.NUM_PINS_NANOSENSOR; ++i) {
+                notifySensorProgress(i);
+                setMux((byte) i);
+                mInitialResistances[i] = matchResistance(0, Constants.Device.MAX_BIT_RESISTANCE);
+                mBoard.mMatchedTimes[i] = System.currentTimeMillis();
+            }
+            mBoard.saveTaps();
+            notifySensorsMatched();
+        }
+
+        /**
+         * Fast alternative to {@link #matchResistances()} when there are saved taps. Each channel
+         * is set to its saved tap and only re-matched if the divider voltage is no longer within
+         * {@link Constants.Device#MATCH_TOLERANCE_BIT_VOLTAGE} of mid-scale.
+         */
+        private void validateResistances() throws ConnectionLostException, InterruptedException {
+            long startTime = System.currentTimeMillis();
+            int numMatched = 0;
+            for (int i = 0; i < Constants.Device.NUM_PINS_NANOSENSOR; ++i) {
+                setMux((byte) i);
+                writeReadRheostat(mInitialResistances[i]);
+                int bitVoltage = (int) (mAnalogPins[Constants.Device.ADC_NANO_SENSOR].read() *
+                        Constants.Device.MAX_BIT_VOLTAGE);
+                if (Math.abs(bitVoltage - Constants.Device.MID_BIT_VOLTAGE) >
+                        Constants.Device.MATCH_TOLERANCE_BIT_VOLTAGE) {
+                    Log.d(TAG, "Sensor " + i + " out of tolerance: " + bitVoltage);
+                    notifySensorProgress(i);
+                    mInitialResistances[i] = matchResistance(0,
+                            Constants.Device.MAX_BIT_RESISTANCE);
+                    mBoard.mMatchedTimes[i] = System.currentTimeMillis();
+                    ++numMatched;
+                }
+            }
+            if (numMatched > 0) {
+                mBoard.saveTaps();
+                notifySensorsMatched();
+            }
+            Log.d(TAG, "Validated taps in " + (System.currentTimeMillis() - startTime) +
+                    "ms, re-matched " + numMatched + " sensors");
+        }
+
+        private void initializeUart() throws ConnectionLostException, InterruptedException {
+            mRoverUart = ioio_.openUart(Constants.Device.PIN_ROVER_RX,
+                    Constants.Device.PIN_ROVER_TX,
+                    Constants.Device.UART_RATE,
+                    Uart.Parity.NONE,
+                    Uart.StopBits.ONE);
+            mRoverRx = mRoverUart.getInputStream();
+            mRoverTx = mRoverUart.getOutputStream();
+            mRoverCommandWriter = new RoverCommandWriter(mRoverTx);
+            mRoverCommandWriter.start();
+            setRoverCommandWriter(null, mRoverCommandWriter);
+            mRoverTelemetryReader = new RoverTelemetryReader(mRoverRx, mBoard.mIndex,
+                    AcquisitionService.this);
+            mRoverTelemetryReader.start();
+        }
+
+        /**
+         * Opens the pump and valve outputs off, and makes them the ones the pump mode cycles
+         * drive.
+         */
+        private void initializePump() throws ConnectionLostException {
+            mPumpOutput = ioio_.openDigitalOutput(Constants.Device.PIN_PUMP, false);
+            mValveOutput = ioio_.openDigitalOutput(Constants.Device.PIN_VALVE, false);
+            setPumpOutputs(null, mPumpOutput, mValveOutput);
+        }
+
+        /**
+         * Queues a stop for the rover. Returns without waiting for the UART.
+         */
+        public void stopMovement() {
+            if (mRoverCommandWriter != null) {
+                mRoverCommandWriter.stopMovement();
+            }
+        }
+
+        /**
+         * Queues the speed of each wheel for the rover, replacing a previous target that hasn't
+         * been sent. Returns without waiting for the UART.
+         */
+        public void setWheels(double leftWheel, double rightWheel) {
+            if (mRoverCommandWriter != null) {
+                mRoverCommandWriter.setWheels(leftWheel, rightWheel);
+            }
+        }
+
+        /**
+         * Helper function for converting read voltage to sensor resistance. The voltage bridge has
+         * the rheostat as R1 and the sensor as R2.
+         *
+         * @param readVoltage The read voltage in volts.
+         * @param bitResistance The resistance of the nano sensor in kOhms.
+         */
+        private double voltageToResistance(double readVoltage, byte bitResistance) {
+            /**
+             * Divider resistance in kOhms.
+             */
+            int intResistance = bitResistance & 0xFF;
+            double dividerResistance = (double) intResistance / Constants.Device.MAX_BIT_RESISTANCE
+                    * Constants.Device.RHEOSTAT_RESISTANCE_MAX + Constants.Device.RHEOSTAT_RESISTANCE_NOMINAL;
+            double sensorResistance = readVoltage * dividerResistance /
+                    (Constants.Device.VOLTAGE_REFERENCE - readVoltage);
+            if (Constants.Device.LOG_POLLS) {
+                Log.d(TAG, "Sensor Resistance: " + sensorResistance);
+            }
+            return sensorResistance;
+        }
+
+        /**
+         * Rebuilds the list of channels to poll when the channel mask changes.
+         */
+        private void updatePollChannels() {
+            int channelMask = mChannelMask;
+            if (channelMask == mPollMask) {
+                return;
+            }
+            int[] pollChannels = new int[Integer.bitCount(channelMask)];
+            for (int i = 0, j = 0; i < Constants.Device.NUM_PINS_NANOSENSOR; ++i) {
+                if ((channelMask & (1 << i)) != 0) {
+                    pollChannels[j++] = i;
+                }
+            }
+            mPollChannels = pollChannels;
+            mPollMask = channelMask;
+            /** Channels that aren't polled stay NaN so they aren't mistaken for readings. */
+            for (int i = 0; i < Constants.Device.NUM_PINS_NANOSENSOR; ++i) {
+                if ((channelMask & (1 << i)) == 0) {
+                    mSensorResistances[i] = Double.NaN;
+                }
+            }
+            mBoard.mPollNanos = 0;
+            mBoard.mPolls = 0;
+            Log.d(TAG, "Board " + mBoard.mIndex + " polling " + pollChannels.length + " of " +
+                    Constants.Device.NUM_PINS_NANOSENSOR + " channels");
+        }
+
+        /**
+         * Reads the nano sensors in the channel mask and returns their value in kOhms. Channels
+         * that aren't in the mask are NaN.
+         *
+         * @return double[] The nano sensor's resistance in kOhms.
+         * @throws ConnectionLostException
+         */
+        private double[] readNanoSensors() throws ConnectionLostException, InterruptedException {
+            updatePollChannels();
+            long start = System.nanoTime();
+            double[] sensorResistances = mSensorResistances;
+            int[] pollChannels = mPollChannels;
+            for (int j = 0; j < pollChannels.length; ++j) {
+                int i = pollChannels[j];
+                /**
+                 * Set the MUX, set the matching resistance, then read the voltage.
+                 */
+                setMux((byte) i);
+                writeReadRheostat(mInitialResistances[i]);
+                /**
+                 * ADC0 is connected to the nano sensor and MUX.
+                 */
+                double readVoltage = (double) mAnalogPins[Constants.Device.ADC_NANO_SENSOR]
+                        .getVoltage();
+                sensorResistances[i] = voltageToResistance(readVoltage, mInitialResistances[i]);
+            }
+            mBoard.mPollNanos += System.nanoTime() - start;
+            if (++mBoard.mPolls == POLL_LOG_INTERVAL) {
+                long pollMicros = mBoard.mPollNanos / mBoard.mPolls / 1000;
+                Log.d(TAG, "Board " + mBoard.mIndex + " read " + mPollChannels.length +
+                        " channels in " + pollMicros + "us/poll, " +
+                        pollMicros / mPollChannels.length + "us/channel");
+                mBoard.mPollNanos = 0;
+                mBoard.mPolls = 0;
+            }
+            return sensorResistances;
+        }
+
+        /**
+         * readTemperature reads the TMP36 temperature sensor's voltage and calculates the
+         * corresponding temperature in Celcius.
+         * @return The read temperature in Celcius.
+         * @throws ConnectionLostException
+         * @throws InterruptedException
+         */
+        private double readTemperature() throws ConnectionLostException, InterruptedException {
+            double readVoltage = (double) mAnalogPins[Constants.Device.ADC_TEMPERATURE]
+                    .getVoltage();
+            double tempCelcius = (readVoltage + Constants.Temperature.VOLTAGE_OFFSET)
+                    * Constants.Temperature.TEMPERATURE_SCALE +
+                    Constants.Temperature.TEMPERATURE_OFFSET;
+            if (Constants.Device.LOG_POLLS) {
+                Log.d(TAG, "Temperature (C): " + tempCelcius);
+            }
+            return tempCelcius;
+        }
+
+        /**
+         * Read humidity reads the HIH-4030 humidity sensor's voltage and calculates the
+         * corresponding relative humidity based on the voltage and the temperature.
+         * @param tempCelcius The temperature in Celcius.
+         * @return double The relative humidity percentage.
+         */
+
+        private double readHumidity(double tempCelcius) throws ConnectionLostException,
+                InterruptedException {
+            double readVoltage = (double) mAnalogPins[Constants.Device.ADC_HUMIDITY].getVoltage();
+            double humidityPercentage = (readVoltage / Constants.Device.VOLTAGE_REFERENCE -
+                    Constants.Humidity.VOLTAGE_OFFSET) / Constants.Humidity.VOLTAGE_SCALE;
+            double relativeHumidity = humidityPercentage / (Constants.Humidity.TEMPERATURE_OFFSET +
+                    Constants.Humidity.TEMPERATURE_SCALE * tempCelcius);
+            if (relativeHumidity > 100) {
+                relativeHumidity = 100;
+            } else if (relativeHumidity < 0) {
+                relativeHumidity = 0;
+            }
+            return relativeHumidity;
+        }
+
+        /**
+         * Reads the thermistor and calculates the temperature. The thermistor is in series
+         * with a 10kOhm resistor setup as a voltage bridge with 3.3V input.
+         * 3.3V----/\/\/\/\----Vout----/\/\/\/\----GND
+         *        Thermistor           10kOhms
+         *
+         * @return The temperature based on the resistance of the thermistor in Celcius
+         * @throws ConnectionLostException
+         * @throws InterruptedException
+         */
+        private double readThermistor() throws ConnectionLostException, InterruptedException {
+            double readVoltage = (double) mAnalogPins[Constants.Device.ADC_THERMISTOR].getVoltage();
+            /** Calculate resistance of thermistor. Simple voltage bridge with R1 as thermistor and
+             * R2 as 10kOhms
+             */
+            double thermistorResistance = Constants.Thermistor.DIVIDER_RESISTANCE *
+                    Constants.Device.VOLTAGE_REFERENCE / readVoltage -
+                    Constants.Thermistor.DIVIDER_RESISTANCE;
+            double tempCelcius = Constants.Thermistor.TEMPERATURE_SCALE * thermistorResistance +
+                    Constants.Thermistor.TEMPERATURE_OFFSET;
+            return tempCelcius;
+        }
+
+        @Override
+        public void loop() throws ConnectionLostException, InterruptedException {
+            if (mStarted) {
+                int session = mSession;
+                if (mBoard.mSession != session) {
+                    if (mBoard.mHasSavedTaps) {
+                        validateResistances();
+                    } else {
+                        matchResistances();
+                    }
+                    mBoard.mSession = session;
+                    mBoard.mReconnected = false;
+                    mBoard.mPolledTime = 0;
+                    mBoard.mAdaptivePoller.setPollingRate(mPollingRate);
+                    mBoard.mAdaptivePoller.reset();
+                    benchmarkCompensation();
+                    mFrameMerger.setActive(mBoard.mIndex, true);
+                } else if (mBoard.mReconnected) {
+                    /**
+                     * Resume on the same time base. Frame times come from the session's monotonic
+                     * clock so the time spent disconnected is kept, and the gap is marked.
+                     */
+                    validateResistances();
+                    mSampleStore.markGap(mBoard.mIndex);
+                    mCompensatedStore.markGap(mBoard.mIndex);
+                    mTelemetryStore.markGap(mBoard.mIndex);
+                    mLiveRing.markGap(mBoard.mIndex);
+                    mBoard.mAdaptivePoller.reset();
+                    mBoard.mReconnected = false;
+                    mFrameMerger.setActive(mBoard.mIndex, true);
+                } else {
+                    // TODO: Use try catch, and if disconnected, stop polling.
+                    long elapsedTime = SystemClock.elapsedRealtime() - mBoard.mPolledTime;
+                    boolean adaptivePolling = mAdaptivePolling;
+                    int interval = adaptivePolling ? mBoard.mAdaptivePoller.getInterval() :
+                            mPollingRate;
+                    if (elapsedTime >= interval) {
+                        /** Read sensor values */
+                        mBoard.mPolledTime = SystemClock.elapsedRealtime();
+                        long time = mBoard.mPolledTime - mSessionStartTime;
+                        double[] sensorResistances = readNanoSensors();
+                        double tempCelcius = readTemperature();
+                        double relativeHumidity = readHumidity(tempCelcius);
+                        double thermistorCelcius = readThermistor();
+                        if (adaptivePolling) {
+                            mBoard.mAdaptivePoller.update(time, sensorResistances);
+                        }
+                        mBoard.mDriftCompensator.compensate(sensorResistances, tempCelcius,
+                                relativeHumidity, mCompensatedResistances);
+
+                        /** Queue the frame to be merged with the other boards. */
+                        System.arraycopy(sensorResistances, 0, mFrame, 0, sensorResistances.length);
+                        mFrame[Constants.Thermistor.SENSOR_INDEX] = thermistorCelcius;
+                        mFrame[Constants.Humidity.SENSOR_INDEX] = relativeHumidity;
+                        mFrame[Constants.Temperature.SENSOR_INDEX] = tempCelcius;
+                        System.arraycopy(mCompensatedResistances, 0, mFrame,
+                                Constants.Device.NUM_SENSORS, mCompensatedResistances.length);
+                        synchronized (mFrameMerger) {
+                            /** Drop frames from a previous session. */
+                            if (session == mSession) {
+                                mFrameMerger.offer(mBoard.mIndex, time, mFrame,
+                                        SystemClock.elapsedRealtime() - mSessionStartTime);
+                            }
+                        }
+
+                        Log.d(TAG, "Board " + mBoard.mIndex + " Latency: " + elapsedTime + "ms");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Checks that the compensation can keep up with
+         * {@link Constants.Compensation#BENCHMARK_RATE} times the polling rate and logs the result.
+         */
+        private void benchmarkCompensation() {
+            double requiredRate = Constants.Compensation.BENCHMARK_RATE * 1000.0 / mPollingRate;
+            double measuredRate = mBoard.mDriftCompensator.benchmark(
+                    Constants.Compensation.BENCHMARK_FRAMES);
+            Log.d(TAG, "Board " + mBoard.mIndex + " compensation throughput: " + measuredRate +
+                    " frames/s, required: " + requiredRate + " frames/s");
+        }
+
+        @Override
+        public void disconnected() {
+            /** Don't hold up the other boards while this one is disconnected. */
+            mFrameMerger.setActive(mBoard.mIndex, false);
+            if (mRoverCommandWriter != null) {
+                setRoverCommandWriter(mRoverCommandWriter, null);
+                mRoverCommandWriter.cancel();
+                mRoverCommandWriter = null;
+            }
+            if (mRoverTelemetryReader != null) {
+                mRoverTelemetryReader.cancel();
+                mRoverTelemetryReader = null;
+            }
+            if (mPumpOutput != null) {
+                setPumpOutputs(mPumpOutput, null, null);
+                mPumpOutput = null;
+                mValveOutput = null;
+            }
+        }
+    }
+
+}
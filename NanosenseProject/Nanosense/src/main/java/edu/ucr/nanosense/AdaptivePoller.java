@@ -0,0 +1,264 @@
+package edu.ucr.nanosense;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * AdaptivePoller chooses the interval until a board's next poll from how fast the nano sensors
+ * are changing. When any channel changes faster than {@link Constants.Options#ADAPTIVE_THRESHOLD}
+ * of its value per second, for example on the rising edge of an exposure, the interval drops to
+ * the minimum. The change is measured against a reference frame at least
+ * {@link Constants.Options#ADAPTIVE_WINDOW} ms old rather than the previous frame, so the noise
+ * between polls isn't mistaken for an event when polling fast. While every channel changes at
+ * less than half the threshold the interval backs off by
+ * {@link Constants.Options#ADAPTIVE_BACKOFF} per poll up to the maximum, so a flat baseline isn't
+ * oversampled.
+ *
+ * Frames carry their own time and {@link edu.ucr.nanosense.CompressedChunk} encodes the times as
+ * delta-of-deltas, so the stores and session files handle the variable rate without changes.
+ * {@link #evaluate(java.io.File, int)} replays a recorded session through the poller to compare
+ * the stored size with fixed-rate polling.
+ */
+public class AdaptivePoller {
+
+    private final int mNumChannels;
+
+    private int mMinInterval;
+    private int mMaxInterval;
+    /** Interval until the next poll in ms. */
+    private double mInterval;
+
+    /** The reference frame's time and values. */
+    private long mReferenceTime = -1;
+    private final double[] mReferenceValues;
+
+    /** Fastest relative change per second seen in the last frame. */
+    private double mRateOfChange = 0;
+
+    /**
+     * @param numChannels The number of channels to watch, from the start of each frame.
+     * @param pollingRate The nominal polling interval in ms the bounds are based on.
+     */
+    public AdaptivePoller(int numChannels, int pollingRate) {
+        mNumChannels = numChannels;
+        mReferenceValues = new double[numChannels];
+        setPollingRate(pollingRate);
+    }
+
+    /**
+     * Sets the bounds of the interval from the nominal polling interval. The interval starts at
+     * the nominal one.
+     */
+    public void setPollingRate(int pollingRate) {
+        mMinInterval = getMinInterval(pollingRate);
+        mMaxInterval = getMaxInterval(pollingRate);
+        mInterval = pollingRate;
+    }
+
+    /**
+     * @return The shortest interval in ms the poller will use for a nominal polling interval.
+     */
+    public static int getMinInterval(int pollingRate) {
+        return Math.max(Constants.Options.ADAPTIVE_MIN_POLLING_RATE,
+                pollingRate / Constants.Options.ADAPTIVE_SPEEDUP);
+    }
+
+    /**
+     * @return The longest interval in ms the poller will use for a nominal polling interval.
+     */
+    public static int getMaxInterval(int pollingRate) {
+        return pollingRate * Constants.Options.ADAPTIVE_SLOWDOWN;
+    }
+
+    /**
+     * Forgets the reference frame so the next one isn't compared across a gap.
+     */
+    public void reset() {
+        mReferenceTime = -1;
+    }
+
+    /**
+     * Updates the interval with a new frame.
+     *
+     * @param time The time of the frame in ms.
+     * @param frame The values. Channels that weren't polled are NaN and are ignored.
+     * @return The interval in ms until the next poll.
+     */
+    public int update(long time, double[] frame) {
+        double rate = 0;
+        long elapsed = time - mReferenceTime;
+        if (mReferenceTime >= 0) {
+            /** Spread the change over at least the window so noise doesn't dominate. */
+            double seconds = Math.max(elapsed, Constants.Options.ADAPTIVE_WINDOW) / 1000.0;
+            for (int i = 0; i < mNumChannels; ++i) {
+                double reference = mReferenceValues[i];
+                double change = Math.abs(frame[i] - reference) / Math.abs(reference) / seconds;
+                /** NaN and infinite changes come from channels that weren't polled or are 0. */
+                if (change > rate && !Double.isInfinite(change)) {
+                    rate = change;
+                }
+            }
+        }
+        if (mReferenceTime < 0 || elapsed >= Constants.Options.ADAPTIVE_WINDOW) {
+            mReferenceTime = time;
+            System.arraycopy(frame, 0, mReferenceValues, 0, mNumChannels);
+        }
+        mRateOfChange = rate;
+
+        if (rate >= Constants.Options.ADAPTIVE_THRESHOLD) {
+            mInterval = mMinInterval;
+        } else if (rate < Constants.Options.ADAPTIVE_THRESHOLD / 2) {
+            mInterval = Math.min(mInterval * Constants.Options.ADAPTIVE_BACKOFF, mMaxInterval);
+        }
+        return getInterval();
+    }
+
+    /**
+     * @return The interval in ms until the next poll.
+     */
+    public int getInterval() {
+        return (int) mInterval;
+    }
+
+    public double getRateOfChange() {
+        return mRateOfChange;
+    }
+
+/***************************************************************************************************
+ *
+ * Evaluation
+ *
+ **************************************************************************************************/
+
+    /**
+     * The frames and compressed bytes a session would have taken with fixed-rate and adaptive
+     * polling.
+     */
+    public static class Evaluation {
+        public long mFixedFrames;
+        public long mFixedBytes;
+        public long mAdaptiveFrames;
+        public long mAdaptiveBytes;
+
+        /**
+         * @return The fraction of the fixed-rate bytes adaptive polling saves.
+         */
+        public double getBytesSaved() {
+            return mFixedBytes > 0 ? 1 - (double) mAdaptiveBytes / mFixedBytes : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Fixed: " + mFixedFrames + " frames, " + mFixedBytes + " bytes. Adaptive: " +
+                    mAdaptiveFrames + " frames, " + mAdaptiveBytes + " bytes. Saved: " +
+                    Math.round(getBytesSaved() * 100) + "%";
+        }
+    }
+
+    /**
+     * Resamples a recorded session as if each board had been polled at a fixed interval and with
+     * an AdaptivePoller, and compresses both to compare their size. A poll takes the first
+     * recorded frame at or after it was due, so the session should be recorded at least as fast
+     * as the minimum interval.
+     *
+     * @param file The recorded session.
+     * @param pollingRate The fixed polling interval in ms, also the adaptive nominal interval.
+     */
+    public static Evaluation evaluate(File file, int pollingRate) throws IOException {
+        SessionReader reader = new SessionReader(file);
+        Evaluation evaluation = new Evaluation();
+        try {
+            int numChannels = reader.getNumChannels();
+            int numWatched = Math.min(numChannels, Constants.Device.NUM_PINS_NANOSENSOR);
+            ChunkCounter fixed = new ChunkCounter(numChannels);
+            ChunkCounter adaptive = new ChunkCounter(numChannels);
+            AdaptivePoller[] pollers = new AdaptivePoller[Constants.Device.MAX_BOARDS];
+            long[] fixedDue = new long[Constants.Device.MAX_BOARDS];
+            long[] adaptiveDue = new long[Constants.Device.MAX_BOARDS];
+            for (int i = 0; i < pollers.length; ++i) {
+                pollers[i] = new AdaptivePoller(numWatched, pollingRate);
+                fixedDue[i] = Long.MIN_VALUE;
+                adaptiveDue[i] = Long.MIN_VALUE;
+            }
+            double[] frame = new double[numChannels];
+            CompressedChunk chunk;
+            while ((chunk = reader.nextChunk()) != null) {
+                CompressedChunk.TimeReader timeReader = chunk.newTimeReader();
+                CompressedChunk.SourceReader sourceReader = chunk.newSourceReader();
+                CompressedChunk.ValueReader[] valueReaders =
+                        new CompressedChunk.ValueReader[numChannels];
+                for (int i = 0; i < numChannels; ++i) {
+                    valueReaders[i] = chunk.newValueReader(i);
+                }
+                for (int j = 0; j < chunk.getNumFrames(); ++j) {
+                    long time = timeReader.next();
+                    int source = sourceReader.next();
+                    for (int i = 0; i < numChannels; ++i) {
+                        frame[i] = valueReaders[i].next();
+                    }
+                    if (source >= pollers.length) {
+                        continue;
+                    }
+                    if (time >= fixedDue[source]) {
+                        fixed.append(source, time, frame);
+                        fixedDue[source] = time + pollingRate;
+                    }
+                    if (time >= adaptiveDue[source]) {
+                        adaptive.append(source, time, frame);
+                        adaptiveDue[source] = time + pollers[source].update(time, frame);
+                    }
+                }
+            }
+            fixed.flush();
+            adaptive.flush();
+            evaluation.mFixedFrames = fixed.mFrames;
+            evaluation.mFixedBytes = fixed.mBytes;
+            evaluation.mAdaptiveFrames = adaptive.mFrames;
+            evaluation.mAdaptiveBytes = adaptive.mBytes;
+        } finally {
+            reader.close();
+        }
+        return evaluation;
+    }
+
+    /**
+     * Buffers frames into chunks and counts the compressed size, as a
+     * {@link edu.ucr.nanosense.SessionWriter} would write them.
+     */
+    private static class ChunkCounter {
+        private final int mNumChannels;
+        private final long[] mTimes = new long[Constants.Storage.CHUNK_SIZE];
+        private final byte[] mSources = new byte[Constants.Storage.CHUNK_SIZE];
+        private final double[][] mValues;
+        private int mNumBuffered = 0;
+
+        private long mFrames = 0;
+        private long mBytes = 0;
+
+        public ChunkCounter(int numChannels) {
+            mNumChannels = numChannels;
+            mValues = new double[numChannels][Constants.Storage.CHUNK_SIZE];
+        }
+
+        public void append(int source, long time, double[] frame) {
+            mTimes[mNumBuffered] = time;
+            mSources[mNumBuffered] = (byte) source;
+            for (int i = 0; i < mNumChannels; ++i) {
+                mValues[i][mNumBuffered] = frame[i];
+            }
+            ++mFrames;
+            if (++mNumBuffered == Constants.Storage.CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            if (mNumBuffered == 0) {
+                return;
+            }
+            mBytes += CompressedChunk.encode(mTimes, mSources, mValues, 0, mNumBuffered)
+                    .getSizeBytes();
+            mNumBuffered = 0;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package edu.ucr.nanosense;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * BatchReprocessor recomputes the compensated resistances of recorded sessions with a new
+ * calibration, so a change to the drift model can be applied to every historical session. It
+ * has no UI and can be run from {@link #main(String[])}.
+ *
+ * The sessions hold the raw resistances, temperature and humidity already converted from the
+ * voltages, so these are kept and each frame's compensated channels are recomputed from them with
+ * a {@link edu.ucr.nanosense.DriftCompensator} loaded the same way as a board's: the board's own
+ * calibration file if there is one, else the shared one.
+ *
+ * The chunks of all the sessions are split across a pool of worker threads, each of which
+ * decodes a chunk, recompensates it and encodes it again. One thread reads the chunks and writes
+ * the results in order, keeping up to {@link #CHUNKS_IN_FLIGHT_PER_THREAD} chunks per worker in
+ * flight across session boundaries so the workers are never left waiting for the next session.
+ * Each session is written to the output directory under the same name and start time, replacing
+ * the old output only once it is complete. The throughput of each session and of the whole batch
+ * is reported.
+ *
+ * Nothing it runs uses the Android APIs, so it runs on a workstation JVM. From the module
+ * directory, compile it and the classes it uses against the SDK's android.jar, then run it
+ * without android.jar:
+ *
+ * <pre>
+ * javac -cp $ANDROID_HOME/platforms/android-19/android.jar -sourcepath src/main/java \
+ *     -d build/reprocessor src/main/java/edu/ucr/nanosense/BatchReprocessor.java
+ * java -cp build/reprocessor edu.ucr.nanosense.BatchReprocessor sessions out calibration
+ * </pre>
+ */
+public class BatchReprocessor {
+
+    /** Chunks queued per worker, so a worker always has the next chunk ready. */
+    private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 4;
+
+    private static final int NUM_RAW_CHANNELS = Constants.Device.NUM_SENSORS;
+    private static final int NUM_COMPENSATED_CHANNELS = Constants.Device.NUM_PINS_NANOSENSOR;
+    private static final int NUM_CHANNELS = NUM_RAW_CHANNELS + NUM_COMPENSATED_CHANNELS;
+
+    private final File mCalibrationDirectory;
+    private final int mNumThreads;
+
+    /** Each worker's compensators by board and buffers, loaded on its first chunk. */
+    private final ThreadLocal<Worker> mWorkers = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    /**
+     * Sizes and time of reprocessing a session, or the whole batch.
+     */
+    public static class Report {
+        public String mName;
+        public int mSessions;
+        /** Sessions skipped because they couldn't be read or reprocessed. */
+        public int mSkipped;
+        public long mChunks;
+        public long mFrames;
+        public long mBytesIn;
+        public long mBytesOut;
+        public long mElapsedNanos;
+
+        public double getFramesPerSecond() {
+            return mElapsedNanos > 0 ? mFrames * 1e9 / mElapsedNanos : 0;
+        }
+
+        /**
+         * @return The session bytes read per second, in MB/s.
+         */
+        public double getThroughput() {
+            return mElapsedNanos > 0 ? mBytesIn * 1e3 / mElapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + (mSessions > 1 ? mSessions + " sessions, " : "") +
+                    (mSkipped > 0 ? mSkipped + " skipped, " : "") + mChunks +
+                    " chunks, " + mFrames + " frames, " + mBytesIn + " bytes in, " + mBytesOut +
+                    " bytes out in " + mElapsedNanos / 1000000 + "ms, " +
+                    (long) getFramesPerSecond() + " frames/s, " + getThroughput() + " MB/s";
+        }
+    }
+
+    /**
+     * @param calibrationDirectory The directory with the calibration files, named as in the app's
+     * external files directory.
+     * @param numThreads The number of worker threads, usually the number of cores.
+     */
+    public BatchReprocessor(File calibrationDirectory, int numThreads) {
+        mCalibrationDirectory = calibrationDirectory;
+        mNumThreads = numThreads;
+    }
+
+    /**
+     * Reprocesses the sessions into the output directory. A session that can't be read, wasn't
+     * recorded with compensated channels, or fails part way through, is reported and skipped, and
+     * its partial output removed. The other sessions are still reprocessed.
+     *
+     * @param fileReports Receives the report of each session as it is finished, or null.
+     * @return The report of the whole batch.
+     */
+    public Report reprocess(File[] sessions, File outputDirectory, List<Report> fileReports)
+            throws IOException, InterruptedException {
+        if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+            throw new IOException("Can't create " + outputDirectory.getAbsolutePath());
+        }
+        Report total = new Report();
+        total.mName = "Total on " + mNumThreads + " threads";
+        long startTime = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(mNumThreads);
+        /** Chunks being reprocessed in the order they are written, each session then its end. */
+        Deque<Pending> inFlight = new ArrayDeque<Pending>();
+        /** Sessions not yet finished or skipped, removed if the batch stops early. */
+        List<Output> outputs = new ArrayList<Output>();
+        int maxInFlight = mNumThreads * CHUNKS_IN_FLIGHT_PER_THREAD;
+        try {
+            for (File session : sessions) {
+                SessionReader reader;
+                try {
+                    reader = new SessionReader(session);
+                } catch (IOException e) {
+                    skip(session.getName(), e, total);
+                    continue;
+                }
+                Output output = null;
+                try {
+                    if (reader.getNumChannels() != NUM_CHANNELS) {
+                        skip(session.getName(), new IOException(reader.getNumChannels() +
+                                " channels"), total);
+                        continue;
+                    }
+                    output = new Output(session, outputDirectory, reader.getStartTime());
+                    outputs.add(output);
+                    CompressedChunk chunk;
+                    while ((chunk = reader.nextChunk()) != null) {
+                        inFlight.addLast(new Pending(output, pool.submit(newTask(chunk))));
+                        ++output.mReport.mChunks;
+                        while (inFlight.size() > maxInFlight) {
+                            writeNext(inFlight, outputs, fileReports, total);
+                        }
+                    }
+                    inFlight.addLast(new Pending(output, null));
+                } catch (IOException e) {
+                    /** The chunks already queued are dropped as they come up. */
+                    if (output == null) {
+                        skip(session.getName(), e, total);
+                    } else {
+                        fail(output, e, outputs, total);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writeNext(inFlight, outputs, fileReports, total);
+            }
+        } finally {
+            pool.shutdownNow();
+            for (Output output : outputs) {
+                output.abort();
+            }
+        }
+        total.mElapsedNanos = System.nanoTime() - startTime;
+        return total;
+    }
+
+    /**
+     * A chunk being reprocessed for a session, or the end of the session if the future is null.
+     */
+    private static class Pending {
+        final Output mOutput;
+        final Future<CompressedChunk> mFuture;
+
+        Pending(Output output, Future<CompressedChunk> future) {
+            mOutput = output;
+            mFuture = future;
+        }
+    }
+
+    /**
+     * Writes the oldest chunk in flight to its session, or finishes the session if it was the
+     * last. A session that fails is skipped and the rest of its chunks dropped.
+     */
+    private static void writeNext(Deque<Pending> inFlight, List<Output> outputs,
+                                  List<Report> fileReports, Report total)
+            throws InterruptedException {
+        Pending pending = inFlight.removeFirst();
+        Output output = pending.mOutput;
+        if (output.mFailed) {
+            if (pending.mFuture != null) {
+                pending.mFuture.cancel(false);
+            }
+            return;
+        }
+        try {
+            if (pending.mFuture != null) {
+                output.mWriter.appendChunk(pending.mFuture.get());
+                return;
+            }
+            Report report = output.finish();
+            outputs.remove(output);
+            ++total.mSessions;
+            total.mChunks += report.mChunks;
+            total.mFrames += report.mFrames;
+            total.mBytesIn += report.mBytesIn;
+            total.mBytesOut += report.mBytesOut;
+            if (fileReports != null) {
+                fileReports.add(report);
+            }
+        } catch (ExecutionException e) {
+            fail(output, e.getCause(), outputs, total);
+        } catch (IOException e) {
+            fail(output, e, outputs, total);
+        }
+    }
+
+    private static void fail(Output output, Throwable cause, List<Output> outputs, Report total) {
+        output.mFailed = true;
+        output.abort();
+        outputs.remove(output);
+        skip(output.mReport.mName, cause, total);
+    }
+
+    private static void skip(String name, Throwable cause, Report total) {
+        System.err.println("Skipping " + name + ": " + cause);
+        ++total.mSkipped;
+    }
+
+    private Callable<CompressedChunk> newTask(final CompressedChunk chunk) {
+        return new Callable<CompressedChunk>() {
+            @Override
+            public CompressedChunk call() {
+                return mWorkers.get().reprocess(chunk);
+            }
+        };
+    }
+
+    /**
+     * The session being written, to a temporary file until it is complete.
+     */
+    private static class Output {
+        final File mFile;
+        final File mTempFile;
+        final SessionWriter mWriter;
+        final Report mReport = new Report();
+        final long mStartTime = System.nanoTime();
+        /** Set when the session is skipped, so the rest of its chunks are dropped. */
+        boolean mFailed = false;
+
+        Output(File session, File outputDirectory, long startTime) throws IOException {
+            mFile = new File(outputDirectory, session.getName());
+            mTempFile = new File(outputDirectory, session.getName() + ".tmp");
+            mWriter = new SessionWriter(mTempFile, NUM_CHANNELS, startTime);
+            mReport.mName = session.getName();
+            mReport.mSessions = 1;
+            mReport.mBytesIn = session.length();
+        }
+
+        Report finish() throws IOException {
+            mWriter.close();
+            if (mFile.exists() && !mFile.delete() || !mTempFile.renameTo(mFile)) {
+                throw new IOException("Can't replace " + mFile.getAbsolutePath());
+            }
+            mReport.mFrames = mWriter.getFramesWritten();
+            mReport.mBytesOut = mFile.length();
+            mReport.mElapsedNanos = System.nanoTime() - mStartTime;
+            return mReport;
+        }
+
+        /**
+         * Removes the temporary file of a session that wasn't finished.
+         */
+        void abort() {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mTempFile.delete();
+        }
+    }
+
+    /**
+     * A worker thread's compensators and decode buffers, so chunks are reprocessed without
+     * sharing state between threads.
+     */
+    private class Worker {
+        private final DriftCompensator[] mCompensators =
+                new DriftCompensator[Constants.Device.MAX_BOARDS];
+        private final DriftCompensator mDefaultCompensator =
+                new DriftCompensator(NUM_COMPENSATED_CHANNELS);
+        private final long[] mTimes = new long[Constants.Storage.CHUNK_SIZE];
+        private final byte[] mSources = new byte[Constants.Storage.CHUNK_SIZE];
+        private final double[][] mValues = new double[NUM_CHANNELS][Constants.Storage.CHUNK_SIZE];
+        private final double[] mRaw = new double[NUM_COMPENSATED_CHANNELS];
+        private final double[] mCompensated = new double[NUM_COMPENSATED_CHANNELS];
+
+        Worker() {
+            mDefaultCompensator.load(new File(mCalibrationDirectory,
+                    Constants.Compensation.CALIBRATION_FILE));
+            for (int i = 0; i < mCompensators.length; ++i) {
+                File boardCalibration = new File(mCalibrationDirectory, i + "_" +
+                        Constants.Compensation.CALIBRATION_FILE);
+                if (boardCalibration.exists()) {
+                    mCompensators[i] = new DriftCompensator(NUM_COMPENSATED_CHANNELS);
+                    mCompensators[i].load(boardCalibration);
+                } else {
+                    mCompensators[i] = mDefaultCompensator;
+                }
+            }
+        }
+
+        CompressedChunk reprocess(CompressedChunk chunk) {
+            int numFrames = chunk.getNumFrames();
+            long[] times = numFrames <= mTimes.length ? mTimes : new long[numFrames];
+            byte[] sources = numFrames <= mSources.length ? mSources : new byte[numFrames];
+            double[][] values = mValues;
+            if (numFrames > values[0].length) {
+                values = new double[NUM_CHANNELS][numFrames];
+            }
+            CompressedChunk.TimeReader timeReader = chunk.newTimeReader();
+            CompressedChunk.SourceReader sourceReader = chunk.newSourceReader();
+            for (int i = 0; i < numFrames; ++i) {
+                times[i] = timeReader.next();
+                sources[i] = (byte) sourceReader.next();
+            }
+            for (int channel = 0; channel < NUM_RAW_CHANNELS; ++channel) {
+                CompressedChunk.ValueReader valueReader = chunk.newValueReader(channel);
+                double[] column = values[channel];
+                for (int i = 0; i < numFrames; ++i) {
+                    column[i] = valueReader.next();
+                }
+            }
+
+            double[] temperatures = values[Constants.Temperature.SENSOR_INDEX];
+            double[] humidities = values[Constants.Humidity.SENSOR_INDEX];
+            for (int i = 0; i < numFrames; ++i) {
+                int source = sources[i] & 0xFF;
+                DriftCompensator compensator = source < mCompensators.length ?
+                        mCompensators[source] : mDefaultCompensator;
+                for (int channel = 0; channel < NUM_COMPENSATED_CHANNELS; ++channel) {
+                    mRaw[channel] = values[channel][i];
+                }
+                compensator.compensate(mRaw, temperatures[i], humidities[i], mCompensated);
+                for (int channel = 0; channel < NUM_COMPENSATED_CHANNELS; ++channel) {
+                    values[NUM_RAW_CHANNELS + channel][i] = mCompensated[channel];
+                }
+            }
+            return CompressedChunk.encode(times, sources, values, 0, numFrames);
+        }
+    }
+
+    /**
+     * Reprocesses every session in a directory and prints the reports.
+     *
+     * Usage: BatchReprocessor [sessions directory] [output directory] [calibration directory]
+     * [threads, default the number of cores]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: BatchReprocessor <sessions> <output> <calibration> " +
+                    "[threads]");
+            System.exit(1);
+        }
+        int numThreads = args.length > 3 ? Integer.parseInt(args[3]) :
+                Runtime.getRuntime().availableProcessors();
+        File[] files = new File(args[0]).listFiles();
+        List<File> sessions = new ArrayList<File>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().endsWith(Constants.Session.FILE_EXTENSION)) {
+                    sessions.add(file);
+                }
+            }
+        }
+        BatchReprocessor reprocessor = new BatchReprocessor(new File(args[2]), numThreads);
+        List<Report> fileReports = new ArrayList<Report>();
+        Report total = reprocessor.reprocess(sessions.toArray(new File[sessions.size()]),
+                new File(args[1]), fileReports);
+        for (Report report : fileReports) {
+            System.out.println(report);
+        }
+        System.out.println(total);
+    }
+}
@@ -0,0 +1,649 @@
+package edu.ucr.nanosense;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * CompressedChunk is a sealed block of frames from a {@link edu.ucr.nanosense.SampleStore}
+ * compressed the same way as Facebook's Gorilla time series database. Each column is its own bit
+ * stream so a single channel can be decoded without touching the others:
+ *
+ * Times - The first time, then the delta of deltas in variable length buckets. Frames that are
+ * polled at a fixed rate mostly take 1 bit.
+ * Sources - 1 bit if the board is the same as the previous frame, otherwise 1 + 8 bits.
+ * Values - The first value, then the XOR with the previous value. Slowly changing readings share
+ * the sign, exponent and upper mantissa bits so only the changed bits in the middle are stored.
+ *
+ * The chunk also keeps the first/last time and the min/max of each channel so readers can skip it
+ * without decoding.
+ */
+public class CompressedChunk {
+
+    private final int mNumFrames;
+    private final long mFirstTime;
+    private final long mLastTime;
+
+    private final long[] mTimeBits;
+    private final long[] mSourceBits;
+    /** Bit stream for each channel. */
+    private final long[][] mValueBits;
+
+    private final double[] mMaxValues;
+    private final double[] mMinValues;
+
+    private CompressedChunk(int numFrames, long firstTime, long lastTime, long[] timeBits,
+                            long[] sourceBits, long[][] valueBits, double[] maxValues,
+                            double[] minValues) {
+        mNumFrames = numFrames;
+        mFirstTime = firstTime;
+        mLastTime = lastTime;
+        mTimeBits = timeBits;
+        mSourceBits = sourceBits;
+        mValueBits = valueBits;
+        mMaxValues = maxValues;
+        mMinValues = minValues;
+    }
+
+    /**
+     * Compresses the frames [start, start + count) of the given columns.
+     *
+     * @param times The time of each frame.
+     * @param sources The board of each frame.
+     * @param values The values indexed by [channel][frame].
+     * @param start The index of the first frame.
+     * @param count The number of frames, at least 1.
+     */
+    public static CompressedChunk encode(long[] times, byte[] sources, double[][] values,
+                                         int start, int count) {
+        int numChannels = values.length;
+        int end = start + count;
+
+        BitWriter timeWriter = new BitWriter(count);
+        TimeEncoder timeEncoder = new TimeEncoder(timeWriter);
+        BitWriter sourceWriter = new BitWriter(count / 64 + 1);
+        int previousSource = -1;
+        for (int i = start; i < end; ++i) {
+            timeEncoder.write(times[i]);
+            int source = sources[i] & 0xFF;
+            if (source == previousSource) {
+                sourceWriter.writeBit(0);
+            } else {
+                sourceWriter.writeBit(1);
+                sourceWriter.writeBits(source, 8);
+                previousSource = source;
+            }
+        }
+
+        long[][] valueBits = new long[numChannels][];
+        double[] maxValues = new double[numChannels];
+        double[] minValues = new double[numChannels];
+        for (int channel = 0; channel < numChannels; ++channel) {
+            double[] column = values[channel];
+            BitWriter valueWriter = new BitWriter(count);
+            ValueEncoder valueEncoder = new ValueEncoder(valueWriter);
+            double max = Double.NEGATIVE_INFINITY;
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = start; i < end; ++i) {
+                double value = column[i];
+                valueEncoder.write(value);
+                if (value > max) {
+                    max = value;
+                }
+                if (value < min) {
+                    min = value;
+                }
+            }
+            valueBits[channel] = valueWriter.toArray();
+            maxValues[channel] = max;
+            minValues[channel] = min;
+        }
+
+        return new CompressedChunk(count, times[start], times[end - 1], timeWriter.toArray(),
+                sourceWriter.toArray(), valueBits, maxValues, minValues);
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    public int getNumChannels() {
+        return mValueBits.length;
+    }
+
+    public long getFirstTime() {
+        return mFirstTime;
+    }
+
+    public long getLastTime() {
+        return mLastTime;
+    }
+
+    public double getMax(int channel) {
+        return mMaxValues[channel];
+    }
+
+    public double getMin(int channel) {
+        return mMinValues[channel];
+    }
+
+    /**
+     * @return The size of the compressed bit streams in bytes.
+     */
+    public int getSizeBytes() {
+        int words = mTimeBits.length + mSourceBits.length;
+        for (long[] bits : mValueBits) {
+            words += bits.length;
+        }
+        return words * 8;
+    }
+
+    public TimeReader newTimeReader() {
+        return new TimeReader(mTimeBits);
+    }
+
+    public SourceReader newSourceReader() {
+        return new SourceReader(mSourceBits);
+    }
+
+    public ValueReader newValueReader(int channel) {
+        return new ValueReader(mValueBits[channel]);
+    }
+
+    /**
+     * Random access to a single time. Decodes from the start of the chunk, use a
+     * {@link TimeReader} for sequential reads.
+     */
+    public long getTime(int index) {
+        TimeReader reader = newTimeReader();
+        reader.skip(index);
+        return reader.next();
+    }
+
+    public int getSource(int index) {
+        SourceReader reader = newSourceReader();
+        reader.skip(index);
+        return reader.next();
+    }
+
+    public double getValue(int channel, int index) {
+        ValueReader reader = newValueReader(channel);
+        reader.skip(index);
+        return reader.next();
+    }
+
+    /**
+     * Writes the chunk so it can be read back with {@link #readFrom(java.io.DataInputStream)}.
+     * The header with the frame count, times and min/max comes first so a reader can skip the
+     * chunk without decoding it.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        int numChannels = mValueBits.length;
+        out.writeInt(mNumFrames);
+        out.writeInt(numChannels);
+        out.writeLong(mFirstTime);
+        out.writeLong(mLastTime);
+        for (int i = 0; i < numChannels; ++i) {
+            out.writeDouble(mMinValues[i]);
+            out.writeDouble(mMaxValues[i]);
+        }
+        writeBits(out, mTimeBits);
+        writeBits(out, mSourceBits);
+        for (long[] bits : mValueBits) {
+            writeBits(out, bits);
+        }
+    }
+
+    /**
+     * Reads a chunk written by {@link #writeTo(java.io.DataOutputStream)}.
+     */
+    public static CompressedChunk readFrom(DataInputStream in) throws IOException {
+        int numFrames = in.readInt();
+        int numChannels = in.readInt();
+        long firstTime = in.readLong();
+        long lastTime = in.readLong();
+        double[] minValues = new double[numChannels];
+        double[] maxValues = new double[numChannels];
+        for (int i = 0; i < numChannels; ++i) {
+            minValues[i] = in.readDouble();
+            maxValues[i] = in.readDouble();
+        }
+        long[] timeBits = readBits(in);
+        long[] sourceBits = readBits(in);
+        long[][] valueBits = new long[numChannels][];
+        for (int i = 0; i < numChannels; ++i) {
+            valueBits[i] = readBits(in);
+        }
+        return new CompressedChunk(numFrames, firstTime, lastTime, timeBits, sourceBits,
+                valueBits, maxValues, minValues);
+    }
+
+    /**
+     * Reads the times, sources and a single channel of a chunk written by
+     * {@link #writeTo(java.io.DataOutputStream)}, for scans of one channel. The bit streams of the
+     * other channels are skipped without being copied, so only the channel can be read.
+     *
+     * @param bytes Holds the whole chunk.
+     */
+    static CompressedChunk readChannel(byte[] bytes, int offset, int length, int channel) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        int numFrames = buffer.getInt();
+        int numChannels = buffer.getInt();
+        long firstTime = buffer.getLong();
+        long lastTime = buffer.getLong();
+        double[] minValues = new double[numChannels];
+        double[] maxValues = new double[numChannels];
+        for (int i = 0; i < numChannels; ++i) {
+            minValues[i] = buffer.getDouble();
+            maxValues[i] = buffer.getDouble();
+        }
+        long[] timeBits = readBits(buffer);
+        long[] sourceBits = readBits(buffer);
+        long[][] valueBits = new long[numChannels][];
+        for (int i = 0; i < numChannels; ++i) {
+            if (i == channel) {
+                valueBits[i] = readBits(buffer);
+            } else {
+                int words = buffer.getInt();
+                buffer.position(buffer.position() + words * 8);
+                valueBits[i] = new long[0];
+            }
+        }
+        return new CompressedChunk(numFrames, firstTime, lastTime, timeBits, sourceBits,
+                valueBits, maxValues, minValues);
+    }
+
+    /**
+     * The header of a chunk written by {@link #writeTo(java.io.DataOutputStream)}, read without
+     * the bit streams so the chunk can be indexed without being decoded.
+     */
+    static class Header {
+        int mNumFrames;
+        int mNumChannels;
+        long mFirstTime;
+        long mLastTime;
+        double[] mMinValues;
+        double[] mMaxValues;
+        /** Bytes the whole chunk takes, the header and the bit streams. */
+        int mLength;
+
+        /**
+         * Reads the header and skips the bit streams after it.
+         */
+        static Header read(DataInputStream in) throws IOException {
+            Header header = new Header();
+            header.mNumFrames = in.readInt();
+            header.mNumChannels = in.readInt();
+            header.mFirstTime = in.readLong();
+            header.mLastTime = in.readLong();
+            header.mMinValues = new double[header.mNumChannels];
+            header.mMaxValues = new double[header.mNumChannels];
+            for (int i = 0; i < header.mNumChannels; ++i) {
+                header.mMinValues[i] = in.readDouble();
+                header.mMaxValues[i] = in.readDouble();
+            }
+            /** The times, the sources, then each channel. */
+            long length = 24 + 16 * header.mNumChannels;
+            for (int i = 0; i < header.mNumChannels + 2; ++i) {
+                int words = in.readInt();
+                skipFully(in, words * 8L);
+                length += 4 + words * 8L;
+            }
+            header.mLength = (int) length;
+            return header;
+        }
+    }
+
+    /**
+     * Skips bytes of the stream, throwing an EOFException if it ends first.
+     */
+    static void skipFully(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static long[] readBits(ByteBuffer buffer) {
+        long[] bits = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(bits);
+        buffer.position(buffer.position() + bits.length * 8);
+        return bits;
+    }
+
+    private static void writeBits(DataOutputStream out, long[] bits) throws IOException {
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    private static long[] readBits(DataInputStream in) throws IOException {
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = in.readLong();
+        }
+        return bits;
+    }
+
+/***************************************************************************************************
+ *
+ * Encoders
+ *
+ **************************************************************************************************/
+
+    /**
+     * Delta of delta encoding with the buckets from the Gorilla paper, as two's complement. The
+     * last bucket uses the full 64 bits since there is no block start time to bound the deltas.
+     */
+    private static class TimeEncoder {
+        private final BitWriter mWriter;
+        private int mCount = 0;
+        private long mPreviousTime;
+        private long mPreviousDelta;
+
+        public TimeEncoder(BitWriter writer) {
+            mWriter = writer;
+        }
+
+        public void write(long time) {
+            if (mCount == 0) {
+                mWriter.writeBits(time, 64);
+            } else {
+                long delta = time - mPreviousTime;
+                long deltaOfDelta = delta - mPreviousDelta;
+                if (deltaOfDelta == 0) {
+                    mWriter.writeBit(0);
+                } else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+                    mWriter.writeBits(0x2, 2);
+                    mWriter.writeBits(deltaOfDelta, 7);
+                } else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+                    mWriter.writeBits(0x6, 3);
+                    mWriter.writeBits(deltaOfDelta, 9);
+                } else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+                    mWriter.writeBits(0xE, 4);
+                    mWriter.writeBits(deltaOfDelta, 12);
+                } else {
+                    mWriter.writeBits(0xF, 4);
+                    mWriter.writeBits(deltaOfDelta, 64);
+                }
+                mPreviousDelta = delta;
+            }
+            mPreviousTime = time;
+            ++mCount;
+        }
+    }
+
+    /**
+     * XOR encoding from the Gorilla paper. A 0 bit means the value repeated. Otherwise the XOR
+     * either fits in the previous leading/trailing zero window (10 + bits) or a new window is
+     * written (11 + 5 bits of leading zeros + 6 bits of length - 1 + bits).
+     */
+    private static class ValueEncoder {
+        private final BitWriter mWriter;
+        private boolean mFirst = true;
+        private long mPreviousBits;
+        private int mPreviousLeading = Integer.MAX_VALUE;
+        private int mPreviousTrailing = 0;
+
+        public ValueEncoder(BitWriter writer) {
+            mWriter = writer;
+        }
+
+        public void write(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if (mFirst) {
+                mWriter.writeBits(bits, 64);
+                mFirst = false;
+            } else {
+                long xor = bits ^ mPreviousBits;
+                if (xor == 0) {
+                    mWriter.writeBit(0);
+                } else {
+                    int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                    int trailing = Long.numberOfTrailingZeros(xor);
+                    if (leading >= mPreviousLeading && trailing >= mPreviousTrailing) {
+                        mWriter.writeBits(0x2, 2);
+                        mWriter.writeBits(xor >>> mPreviousTrailing,
+                                64 - mPreviousLeading - mPreviousTrailing);
+                    } else {
+                        int length = 64 - leading - trailing;
+                        mWriter.writeBits(0x3, 2);
+                        mWriter.writeBits(leading, 5);
+                        mWriter.writeBits(length - 1, 6);
+                        mWriter.writeBits(xor >>> trailing, length);
+                        mPreviousLeading = leading;
+                        mPreviousTrailing = trailing;
+                    }
+                }
+            }
+            mPreviousBits = bits;
+        }
+    }
+
+/***************************************************************************************************
+ *
+ * Readers
+ *
+ **************************************************************************************************/
+
+    /**
+     * Streams the times of the chunk in order.
+     */
+    public static class TimeReader {
+        private final BitReader mReader;
+        private boolean mFirst = true;
+        private long mTime;
+        private long mDelta;
+
+        private TimeReader(long[] bits) {
+            mReader = new BitReader(bits);
+        }
+
+        public long next() {
+            if (mFirst) {
+                mTime = mReader.readBits(64);
+                mFirst = false;
+                return mTime;
+            }
+            long deltaOfDelta;
+            if (mReader.readBit() == 0) {
+                deltaOfDelta = 0;
+            } else if (mReader.readBit() == 0) {
+                deltaOfDelta = mReader.readSignedBits(7);
+            } else if (mReader.readBit() == 0) {
+                deltaOfDelta = mReader.readSignedBits(9);
+            } else if (mReader.readBit() == 0) {
+                deltaOfDelta = mReader.readSignedBits(12);
+            } else {
+                deltaOfDelta = mReader.readBits(64);
+            }
+            mDelta += deltaOfDelta;
+            mTime += mDelta;
+            return mTime;
+        }
+
+        public void skip(int count) {
+            for (int i = 0; i < count; ++i) {
+                next();
+            }
+        }
+    }
+
+    /**
+     * Streams the source boards of the chunk in order.
+     */
+    public static class SourceReader {
+        private final BitReader mReader;
+        private int mSource = 0;
+
+        private SourceReader(long[] bits) {
+            mReader = new BitReader(bits);
+        }
+
+        public int next() {
+            if (mReader.readBit() != 0) {
+                mSource = (int) mReader.readBits(8);
+            }
+            return mSource;
+        }
+
+        public void skip(int count) {
+            for (int i = 0; i < count; ++i) {
+                next();
+            }
+        }
+    }
+
+    /**
+     * Streams the values of one channel of the chunk in order.
+     */
+    public static class ValueReader {
+        private final BitReader mReader;
+        private boolean mFirst = true;
+        private long mBits;
+        private int mLeading;
+        private int mTrailing;
+
+        private ValueReader(long[] bits) {
+            mReader = new BitReader(bits);
+        }
+
+        public double next() {
+            if (mFirst) {
+                mBits = mReader.readBits(64);
+                mFirst = false;
+            } else if (mReader.readBit() != 0) {
+                if (mReader.readBit() != 0) {
+                    mLeading = (int) mReader.readBits(5);
+                    int length = (int) mReader.readBits(6) + 1;
+                    mTrailing = 64 - mLeading - length;
+                }
+                long xor = mReader.readBits(64 - mLeading - mTrailing) << mTrailing;
+                mBits ^= xor;
+            }
+            return Double.longBitsToDouble(mBits);
+        }
+
+        public void skip(int count) {
+            for (int i = 0; i < count; ++i) {
+                next();
+            }
+        }
+    }
+
+/***************************************************************************************************
+ *
+ * Bit Streams
+ *
+ **************************************************************************************************/
+
+    /**
+     * Writes bits most significant first into a growable array of longs.
+     */
+    private static class BitWriter {
+        private long[] mWords;
+        /** Number of bits written. */
+        private long mPosition = 0;
+
+        public BitWriter(int initialWords) {
+            mWords = new long[Math.max(initialWords, 1)];
+        }
+
+        public void writeBit(int bit) {
+            writeBits(bit, 1);
+        }
+
+        /**
+         * Writes the lowest numBits bits of value.
+         */
+        public void writeBits(long value, int numBits) {
+            if (numBits == 0) {
+                return;
+            }
+            if (numBits < 64) {
+                value &= (1L << numBits) - 1;
+            }
+            int word = (int) (mPosition >>> 6);
+            int used = (int) (mPosition & 63);
+            if (word + 1 >= mWords.length) {
+                long[] words = new long[mWords.length * 2 + 2];
+                System.arraycopy(mWords, 0, words, 0, mWords.length);
+                mWords = words;
+            }
+            int free = 64 - used;
+            if (numBits <= free) {
+                mWords[word] |= value << (free - numBits);
+            } else {
+                int overflow = numBits - free;
+                mWords[word] |= value >>> overflow;
+                mWords[word + 1] |= value << (64 - overflow);
+            }
+            mPosition += numBits;
+        }
+
+        /**
+         * @return The written words, trimmed to the number of bits written.
+         */
+        public long[] toArray() {
+            int numWords = (int) ((mPosition + 63) >>> 6);
+            long[] words = new long[numWords];
+            System.arraycopy(mWords, 0, words, 0, numWords);
+            return words;
+        }
+    }
+
+    /**
+     * Reads bits written by a {@link BitWriter}.
+     */
+    private static class BitReader {
+        private final long[] mWords;
+        private long mPosition = 0;
+
+        public BitReader(long[] words) {
+            mWords = words;
+        }
+
+        public int readBit() {
+            int word = (int) (mPosition >>> 6);
+            int bit = 63 - (int) (mPosition & 63);
+            ++mPosition;
+            return (int) (mWords[word] >>> bit) & 1;
+        }
+
+        public long readBits(int numBits) {
+            if (numBits == 0) {
+                return 0;
+            }
+            int word = (int) (mPosition >>> 6);
+            int used = (int) (mPosition & 63);
+            int free = 64 - used;
+            long value;
+            if (numBits <= free) {
+                value = mWords[word] << used >>> (64 - numBits);
+            } else {
+                int overflow = numBits - free;
+                value = (mWords[word] << used >>> (64 - numBits)) |
+                        (mWords[word + 1] >>> (64 - overflow));
+            }
+            mPosition += numBits;
+            return value;
+        }
+
+        /**
+         * Reads numBits bits as a two's complement number.
+         */
+        public long readSignedBits(int numBits) {
+            long value = readBits(numBits);
+            return value << (64 - numBits) >> (64 - numBits);
+        }
+    }
+}
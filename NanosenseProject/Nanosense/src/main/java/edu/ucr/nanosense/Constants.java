@@ -15,7 +15,28 @@ public class Constants {
         public static final int DEFAULT_POLLING_RATE = 100;
         public static final int DEFAULT_SERVER_PORT = 8080;
         public static final int DEFAULT_BASELINE_DURATION = 600;
+        public static final int DEFAULT_EXPOSURE_DURATION = 60;
+        public static final int DEFAULT_PURGE_DURATION = 600;
+        public static final int DEFAULT_CYCLES = 1;
         public static final String DEFAULT_SERVER_IP = "127.0.0.1";
+        /** Port the {@link edu.ucr.nanosense.QueryServer} listens on. */
+        public static final int QUERY_SERVER_PORT = 8765;
+        /**
+         * Address and port the {@link edu.ucr.nanosense.LivePublisher} listens on. All
+         * interfaces, so dashboards on other machines can subscribe.
+         */
+        public static final String LIVE_PUBLISHER_IP = "0.0.0.0";
+        public static final int LIVE_PUBLISHER_PORT = 8766;
+        /** Adaptive polling bounds relative to the polling rate, and the shortest interval in ms. */
+        public static final int ADAPTIVE_SPEEDUP = 4;
+        public static final int ADAPTIVE_SLOWDOWN = 10;
+        public static final int ADAPTIVE_MIN_POLLING_RATE = 20;
+        /** Relative change per second of any nano sensor that switches to the fastest rate. */
+        public static final double ADAPTIVE_THRESHOLD = 0.01;
+        /** Shortest time in ms the rate of change is measured over. */
+        public static final int ADAPTIVE_WINDOW = 1000;
+        /** Factor the interval grows by on each quiet poll. */
+        public static final double ADAPTIVE_BACKOFF = 1.25;
     }
 
     public class Commands {
@@ -26,6 +47,59 @@ public class Constants {
         public static final byte RHEOSTAT_INIT_LOWER = 0x02;
     }
 
+    /**
+     * Constants for the rover's motor controller. Each command is the left wheel's direction and
+     * speed followed by the right wheel's.
+     */
+    public class Rover {
+        public static final int COMMAND_SIZE = 4;
+        public static final byte COMMAND_LEFT_FORWARD = (byte) 0xC1;
+        public static final byte COMMAND_LEFT_REVERSE = (byte) 0xC2;
+        public static final byte COMMAND_RIGHT_FORWARD = (byte) 0xC5;
+        public static final byte COMMAND_RIGHT_REVERSE = (byte) 0xC6;
+
+        /** Wheel speed when driving straight. */
+        public static final int DRIVE_SPEED = 0x20;
+        /** Interval in ms between wheel commands from the accelerometer. */
+        public static final int DRIVE_INTERVAL = 50;
+        /** Time constant in ms of the accelerometer low-pass filter. */
+        public static final int DRIVE_FILTER_TIME_CONSTANT = 100;
+        /** Time in ms without accelerometer events before the rover is stopped. */
+        public static final int DRIVE_TIMEOUT = 500;
+        /** Forward tilt in m/s^2 from neutral to start driving, and to keep driving. */
+        public static final double DRIVE_ENTER_TILT = 3;
+        public static final double DRIVE_EXIT_TILT = 2;
+        /** Sideways tilt in m/s^2 from neutral to start turning, and to keep turning. */
+        public static final double TURN_ENTER_TILT = 1;
+        public static final double TURN_EXIT_TILT = 0.5;
+        /** Sideways tilt as a fraction of gravity for the sharpest turn. */
+        public static final double TURN_FULL_TILT = 1.25;
+        public static final double GRAVITY = 9.8;
+
+        /**
+         * Telemetry frames from the rover are TELEMETRY_FRAME_SIZE bytes: the sync byte, the left
+         * and right encoder counts as wrapping 16 bit big endian values, the battery voltage in
+         * mV as an unsigned 16 bit big endian value, a status byte, and a checksum of the low 7
+         * bits of the sum of the bytes before it.
+         */
+        public static final byte TELEMETRY_SYNC = (byte) 0xA5;
+        public static final int TELEMETRY_FRAME_SIZE = 9;
+        /** Size of the buffer the UART is read into. */
+        public static final int TELEMETRY_BUFFER_SIZE = 1024;
+        /** Encoder counts per meter travelled by a wheel. */
+        public static final double TICKS_PER_METER = 1000;
+        /** Distance between the wheels in meters. */
+        public static final double WHEEL_BASE = 0.2;
+
+        /** Channels of the telemetry samples. */
+        public static final int TELEMETRY_INDEX_X = 0;
+        public static final int TELEMETRY_INDEX_Y = 1;
+        public static final int TELEMETRY_INDEX_HEADING = 2;
+        public static final int TELEMETRY_INDEX_BATTERY = 3;
+        public static final int TELEMETRY_INDEX_STATUS = 4;
+        public static final int NUM_TELEMETRY_CHANNELS = 5;
+    }
+
     /**
      * Constants used for device properties.
      */
@@ -41,6 +115,9 @@ public class Constants {
         /** Rover TX/RX pins **/
         public static final int PIN_ROVER_RX = 5;
         public static final int PIN_ROVER_TX = 6;
+        /** Pump and gas valve outputs in pump mode **/
+        public static final int PIN_PUMP = 7;
+        public static final int PIN_VALVE = 8;
         /** SPI pin numbers **/
         public static final int PIN_SPI_MISO = 9;
         public static final int PIN_SPI_SS = 10;
@@ -71,9 +148,18 @@ public class Constants {
 
         /** 14 gas sensors **/
         public static final int NUM_PINS_NANOSENSOR = 14;
+        /** Channel mask with every nano sensor polled. */
+        public static final int CHANNEL_MASK_ALL = (1 << NUM_PINS_NANOSENSOR) - 1;
 
         /** 10-Bit ADC 2^10 - 1 = 1023**/
         public static final int MAX_BIT_VOLTAGE = 1023;
+        /** Bit voltage of a matched divider (1/2 of the input voltage). */
+        public static final int MID_BIT_VOLTAGE = 512;
+        /**
+         * Max distance from {@link #MID_BIT_VOLTAGE} for a saved tap to still be considered
+         * matched when resuming.
+         */
+        public static final int MATCH_TOLERANCE_BIT_VOLTAGE = 32;
         public static final int MAX_BIT_RESISTANCE = 255;
 
         /** Reference voltage used for the analog read **/
@@ -90,8 +176,16 @@ public class Constants {
         /** Number of sensors (14 nanosensors, 1 thermistor, 1 temp, 1 humidity **/
         public static final int NUM_SENSORS = 17;
 
+        /** Max number of boards connected at once. */
+        public static final int MAX_BOARDS = 4;
+
         /** Write read timeout before resending in ms */
         public static final long SPI_WRITE_READ_TIMEOUT = 1000;
+        /**
+         * Set to log the SPI commands, rheostat reads and readings of every poll. They are several
+         * lines per polled channel, so only for debugging the bridge.
+         */
+        public static final boolean LOG_POLLS = false;
     }
 
     public class Temperature {
@@ -115,6 +209,20 @@ public class Constants {
 
         /** Max resistance in kOhms **/
         public static final int MAX_RESISTANCE = 100;
+        /** Number of frames averaged for each frame time log. */
+        public static final int FRAME_TIME_LOG_INTERVAL = 300;
+        /**
+         * Time in ms shown by the strip chart while auto-scaling. Halved until the live window
+         * holds it once the window is full.
+         */
+        public static final long STRIP_CHART_SPAN = Storage.LIVE_WINDOW_MINUTES * 60000L;
+        /** Smallest time window in ms that can be zoomed to. */
+        public static final long MIN_WINDOW_X_MS = 1000;
+        /**
+         * Most grid steps the auto-scaled value window is divided into. Its edges are snapped out
+         * to a step of 1, 2 or 5 times a power of 10.
+         */
+        public static final int AUTO_SCALE_STEPS = 4;
     }
 
     public class Humidity {
@@ -132,4 +240,155 @@ public class Constants {
         public static final double TEMPERATURE_OFFSET = -507.59;
         public static final double TEMPERATURE_SCALE = 115.6;
     }
+
+    /**
+     * Constants used by {@link edu.ucr.nanosense.DriftCompensator}.
+     */
+    public class Compensation {
+        /** Calibration file name in the app's external files directory. */
+        public static final String CALIBRATION_FILE = "calibration.csv";
+        public static final double DEFAULT_REFERENCE_TEMPERATURE = 25.0;
+        public static final double DEFAULT_REFERENCE_HUMIDITY = 50.0;
+        /** Multiple of the polling rate the compensation must be able to sustain. */
+        public static final int BENCHMARK_RATE = 10;
+        /** Number of frames run when benchmarking. */
+        public static final int BENCHMARK_FRAMES = 10000;
+    }
+
+    /**
+     * Constants for the in memory sample storage.
+     */
+    public class Storage {
+        /** Number of frames in each chunk. Full chunks are compressed. */
+        public static final int CHUNK_SIZE = 1024;
+        /** Number of frames in each block of the extent index. Must divide CHUNK_SIZE. */
+        public static final int EXTENT_BLOCK_SIZE = 64;
+        /** Length of the live window shown by the graph. */
+        public static final int LIVE_WINDOW_MINUTES = 10;
+        /**
+         * Frames in the live window at the default polling rate with every board connected. At
+         * faster rates it holds less, and the graph shortens its strip chart to the frames held.
+         */
+        public static final int LIVE_WINDOW_CAPACITY = LIVE_WINDOW_MINUTES * 60000 /
+                Options.DEFAULT_POLLING_RATE * Device.MAX_BOARDS;
+        /**
+         * Set to run the decode and frame codec benchmarks when a session stops. They decode the
+         * whole session, so they are only for profiling builds.
+         */
+        public static final boolean LOG_BENCHMARKS = false;
+    }
+
+    /**
+     * Constants for the exposure cycles in pump mode.
+     */
+    public class Pump {
+        /** Phases of a cycle. The pump draws clean air except during exposure. */
+        public static final int PHASE_IDLE = 0;
+        public static final int PHASE_BASELINE = 1;
+        public static final int PHASE_EXPOSURE = 2;
+        public static final int PHASE_PURGE = 3;
+
+        /** Output bits set in each phase. */
+        public static final int OUTPUT_PUMP = 1;
+        public static final int OUTPUT_VALVE = 2;
+
+        /** Time in ms before a phase boundary the scheduler stops sleeping and spins. */
+        public static final int SPIN_THRESHOLD = 3;
+
+        /** Channels of the phase tags. */
+        public static final int PHASE_INDEX_PHASE = 0;
+        public static final int PHASE_INDEX_CYCLE = 1;
+        public static final int NUM_PHASE_CHANNELS = 2;
+    }
+
+    /**
+     * Constants for recording and replaying sessions.
+     */
+    public class Session {
+        /** Directory in the app's external files directory that sessions are recorded to. */
+        public static final String DIRECTORY = "sessions";
+        public static final String FILE_EXTENSION = ".nss";
+        /** "NSES" */
+        public static final int MAGIC = 0x4E534553;
+        public static final int VERSION = 1;
+        /** Directory in the app's external files directory the session indexes are kept in. */
+        public static final String INDEX_DIRECTORY = "index";
+        public static final String INDEX_EXTENSION = ".idx";
+        /** "NSIX" */
+        public static final int INDEX_MAGIC = 0x4E534958;
+        public static final int INDEX_VERSION = 2;
+        /** Replay speed that replays frames as fast as they can be read. */
+        public static final double REPLAY_SPEED_MAX = 0;
+    }
+
+    /**
+     * Constants for the upload journal and the uploader.
+     */
+    public class Upload {
+        /** Directory in the app's external files directory the journal is kept in. */
+        public static final String DIRECTORY = "upload";
+        public static final String SEGMENT_EXTENSION = ".jrn";
+        /** Size in bytes a segment grows to before a new one is started. */
+        public static final int SEGMENT_SIZE = 1 << 20;
+        /** Most bytes kept in the journal. The oldest segments are dropped past it. */
+        public static final long MAX_JOURNAL_BYTES = 64L << 20;
+        /** Most records waiting for the journal's writer thread. Records past it are dropped. */
+        public static final int QUEUE_SIZE = 64;
+        /** Most bytes sent in one request. */
+        public static final int BATCH_SIZE = 1 << 20;
+        /** Time in ms to wait before retrying after a failed upload, doubling up to the max. */
+        public static final int RETRY_MIN_DELAY = 1000;
+        public static final int RETRY_MAX_DELAY = 60000;
+        public static final int CONNECT_TIMEOUT = 5000;
+        public static final int READ_TIMEOUT = 30000;
+    }
+
+    /**
+     * Constants for the sliding windows of {@link edu.ucr.nanosense.RollingStatistics}.
+     */
+    public class Statistics {
+        public static final int WINDOW_SECOND = 0;
+        public static final int WINDOW_MINUTE = 1;
+        public static final int WINDOW_HOUR = 2;
+        public static final int NUM_WINDOWS = 3;
+
+        /** Length of each window in ms. */
+        public static final long SECOND_DURATION = 1000;
+        public static final long MINUTE_DURATION = 60000;
+        public static final long HOUR_DURATION = 3600000;
+
+        /**
+         * Buckets each window is divided into. The window slides a bucket at a time. Must divide
+         * each duration.
+         */
+        public static final int NUM_BUCKETS = 50;
+    }
+
+    /**
+     * Constants for the binary frame format of {@link edu.ucr.nanosense.FrameCodec}.
+     */
+    public class Wire {
+        /** "NSWF" */
+        public static final int MAGIC = 0x4E535746;
+        public static final int VERSION = 1;
+        /** Values are sent as fixed point with 3 decimal places, as printed by Data. */
+        public static final int FIXED_POINT_SCALE = 1000;
+        /** Frames between key frames, which a decoder can start from. */
+        public static final int KEY_FRAME_INTERVAL = 256;
+        /** Number of frames run when benchmarking. */
+        public static final int BENCHMARK_FRAMES = 10000;
+    }
+
+    /**
+     * Constants for the {@link edu.ucr.nanosense.SyntheticGenerator} stress test.
+     */
+    public class Synthetic {
+        public static final int DURATION_SECONDS = 60;
+        /** Standard deviation of the noise in kOhms. */
+        public static final double NOISE = 0.5;
+        /** Average number of events injected per minute. */
+        public static final double EVENTS_PER_MINUTE = 2;
+        /** Peak change of the channels in an event in kOhms. */
+        public static final double EVENT_AMPLITUDE = 10;
+    }
 }
@@ -0,0 +1,160 @@
+package edu.ucr.nanosense;
+
+import android.util.Log;
+
+/**
+ * CycleScheduler runs a pump mode protocol: a list of phases, each held for its duration, repeated
+ * for a number of cycles and followed by {@link Constants.Pump#PHASE_IDLE}.
+ *
+ * Each boundary is an absolute time from the start of the run on the monotonic clock, so the time
+ * the listener takes doesn't push the later phases back. The thread sleeps until
+ * {@link Constants.Pump#SPIN_THRESHOLD} ms before a boundary and spins for the rest, since a sleep
+ * alone can wake several ms late. The jitter, from the boundary to when the listener returns, is
+ * logged after each cycle and for the whole run.
+ */
+public class CycleScheduler extends Thread {
+
+    private static final String TAG = "CycleScheduler";
+
+    /**
+     * Called from the scheduler thread at each phase boundary. Implementations should only set
+     * the outputs and record the phase, since the time taken counts as jitter.
+     */
+    public interface OnPhaseListener {
+        /**
+         * @param cycle The cycle starting at 0, or the number of cycles for the final idle phase.
+         * @param phase One of the PHASE constants in {@link Constants.Pump}.
+         */
+        public void onPhase(int cycle, int phase);
+    }
+
+    private final int[] mPhases;
+    private final long[] mDurations;
+    private final int mCycles;
+    private final OnPhaseListener mOnPhaseListener;
+
+    /** Jitter in ns of the run and of the current cycle. */
+    private final JitterStatistics mRunJitter = new JitterStatistics();
+    private final JitterStatistics mCycleJitter = new JitterStatistics();
+
+    /**
+     * @param phases The phases of a cycle.
+     * @param durations The duration of each phase in ms.
+     * @param cycles The number of times to run the phases.
+     */
+    public CycleScheduler(int[] phases, long[] durations, int cycles,
+                          OnPhaseListener onPhaseListener) {
+        super(TAG);
+        mPhases = phases.clone();
+        mDurations = durations.clone();
+        mCycles = cycles;
+        mOnPhaseListener = onPhaseListener;
+        setPriority(MAX_PRIORITY);
+    }
+
+    /**
+     * @return The {@link Constants.Pump} OUTPUT bits set during a phase.
+     */
+    public static int getOutputs(int phase) {
+        switch (phase) {
+            case Constants.Pump.PHASE_BASELINE:
+            case Constants.Pump.PHASE_PURGE:
+                return Constants.Pump.OUTPUT_PUMP;
+            case Constants.Pump.PHASE_EXPOSURE:
+                return Constants.Pump.OUTPUT_PUMP | Constants.Pump.OUTPUT_VALVE;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Stops the run. The listener is called with {@link Constants.Pump#PHASE_IDLE}.
+     */
+    public void cancel() {
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        long boundary = System.nanoTime();
+        try {
+            for (int cycle = 0; cycle < mCycles; ++cycle) {
+                mCycleJitter.clear();
+                for (int i = 0; i < mPhases.length; ++i) {
+                    waitUntil(boundary);
+                    mOnPhaseListener.onPhase(cycle, mPhases[i]);
+                    recordJitter(System.nanoTime() - boundary);
+                    boundary += mDurations[i] * 1000000L;
+                }
+                Log.d(TAG, "Cycle " + cycle + " jitter " + mCycleJitter);
+            }
+            waitUntil(boundary);
+            mOnPhaseListener.onPhase(mCycles, Constants.Pump.PHASE_IDLE);
+            recordJitter(System.nanoTime() - boundary);
+            Log.d(TAG, "Run of " + mCycles + " cycles jitter " + mRunJitter);
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Cycles cancelled. Jitter " + mRunJitter);
+            mOnPhaseListener.onPhase(mCycles, Constants.Pump.PHASE_IDLE);
+        }
+    }
+
+    /**
+     * Sleeps until shortly before the time, then spins until it.
+     */
+    private void waitUntil(long time) throws InterruptedException {
+        long spinNanos = Constants.Pump.SPIN_THRESHOLD * 1000000L;
+        long remaining = time - System.nanoTime();
+        while (remaining > spinNanos) {
+            Thread.sleep((remaining - spinNanos) / 1000000);
+            remaining = time - System.nanoTime();
+        }
+        while (System.nanoTime() < time) {
+            if (isInterrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private void recordJitter(long jitter) {
+        mCycleJitter.add(jitter);
+        mRunJitter.add(jitter);
+    }
+
+    /**
+     * Mean, standard deviation and max of the jitter in ns.
+     */
+    private static class JitterStatistics {
+        private int mCount = 0;
+        private double mSum = 0;
+        private double mSumSquares = 0;
+        private long mMax = 0;
+
+        public void add(long jitter) {
+            ++mCount;
+            mSum += jitter;
+            mSumSquares += (double) jitter * jitter;
+            if (jitter > mMax) {
+                mMax = jitter;
+            }
+        }
+
+        public void clear() {
+            mCount = 0;
+            mSum = 0;
+            mSumSquares = 0;
+            mMax = 0;
+        }
+
+        @Override
+        public String toString() {
+            if (mCount == 0) {
+                return "none";
+            }
+            double mean = mSum / mCount;
+            double deviation = Math.sqrt(Math.max(mSumSquares / mCount - mean * mean, 0));
+            return "mean " + Math.round(mean / 1000) + "us, deviation " +
+                    Math.round(deviation / 1000) + "us, max " + mMax / 1000 + "us over " +
+                    mCount + " transitions";
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package edu.ucr.nanosense;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * DriftCompensator corrects the nano sensor resistances for temperature and humidity drift. Each
+ * channel has its own linear model relative to a reference temperature and humidity:
+ *
+ * R_comp = R_raw / (1 + alpha * (T - T_ref) + beta * (RH - RH_ref))
+ *
+ * The coefficients are loaded from a calibration file with the following comma delimited lines.
+ * Lines starting with # are ignored and channels that are not listed are left uncompensated.
+ * reference,<T_ref (C)>,<RH_ref (%)>
+ * <channel>,<alpha (1/C)>,<beta (1/%RH)>
+ */
+public class DriftCompensator {
+
+    private static final String KEY_REFERENCE = "reference";
+    private static final String COMMENT_PREFIX = "#";
+    private static final String DELIMITER = ",";
+
+    /** Number of channels that are compensated. */
+    private final int mNumChannels;
+
+    /** Per channel temperature coefficients (1/C) */
+    private final double[] mTemperatureCoefficients;
+    /** Per channel humidity coefficients (1/%RH) */
+    private final double[] mHumidityCoefficients;
+
+    private double mReferenceTemperature = Constants.Compensation.DEFAULT_REFERENCE_TEMPERATURE;
+    private double mReferenceHumidity = Constants.Compensation.DEFAULT_REFERENCE_HUMIDITY;
+
+    /** Lines of the last calibration file loaded that couldn't be parsed. */
+    private int mSkippedLines = 0;
+
+    /**
+     * Creates a compensator with all coefficients set to 0 (no compensation).
+     *
+     * @param numChannels The number of channels in each frame.
+     */
+    public DriftCompensator(int numChannels) {
+        mNumChannels = numChannels;
+        mTemperatureCoefficients = new double[numChannels];
+        mHumidityCoefficients = new double[numChannels];
+    }
+
+    /**
+     * Loads the reference values and coefficients from the calibration file. If the file does not
+     * exist the current coefficients are kept. Nothing is logged, so the compensator can also be
+     * used off the device, as by {@link edu.ucr.nanosense.BatchReprocessor}.
+     *
+     * @param calibrationFile The calibration file to parse.
+     * @return True if the file was read.
+     */
+    public boolean load(File calibrationFile) {
+        if (calibrationFile == null || !calibrationFile.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        mSkippedLines = 0;
+        try {
+            reader = new BufferedReader(new FileReader(calibrationFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseLine(line.trim());
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void parseLine(String line) {
+        if (line.length() == 0 || line.startsWith(COMMENT_PREFIX)) {
+            return;
+        }
+        String[] fields = line.split(DELIMITER);
+        if (fields.length != 3) {
+            ++mSkippedLines;
+            return;
+        }
+        try {
+            double first = Double.parseDouble(fields[1].trim());
+            double second = Double.parseDouble(fields[2].trim());
+            if (KEY_REFERENCE.equals(fields[0].trim())) {
+                mReferenceTemperature = first;
+                mReferenceHumidity = second;
+            } else {
+                int channel = Integer.parseInt(fields[0].trim());
+                if (channel >= 0 && channel < mNumChannels) {
+                    mTemperatureCoefficients[channel] = first;
+                    mHumidityCoefficients[channel] = second;
+                }
+            }
+        } catch (NumberFormatException e) {
+            ++mSkippedLines;
+        }
+    }
+
+    /**
+     * Compensates a whole frame of resistances for the given temperature and humidity.
+     *
+     * @param raw The raw resistances in kOhms.
+     * @param temperature The temperature in Celcius the frame was taken at.
+     * @param humidity The relative humidity the frame was taken at.
+     * @param compensated Output array for the compensated resistances. May be the same as raw.
+     */
+    public void compensate(double[] raw, double temperature, double humidity,
+                           double[] compensated) {
+        double deltaTemperature = temperature - mReferenceTemperature;
+        double deltaHumidity = humidity - mReferenceHumidity;
+        double[] alpha = mTemperatureCoefficients;
+        double[] beta = mHumidityCoefficients;
+        for (int i = 0; i < mNumChannels; ++i) {
+            compensated[i] = raw[i] / (1.0 + alpha[i] * deltaTemperature +
+                    beta[i] * deltaHumidity);
+        }
+    }
+
+    /**
+     * Runs the compensation on synthetic frames back to back to measure the throughput.
+     *
+     * @param numFrames Number of frames to compensate.
+     * @return The number of frames compensated per second.
+     */
+    public double benchmark(int numFrames) {
+        double[] raw = new double[mNumChannels];
+        double[] compensated = new double[mNumChannels];
+        for (int i = 0; i < mNumChannels; ++i) {
+            raw[i] = Constants.Device.RHEOSTAT_RESISTANCE_MAX / 2;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < numFrames; ++i) {
+            compensate(raw, mReferenceTemperature + (i % 10), mReferenceHumidity, compensated);
+        }
+        long elapsed = System.nanoTime() - start;
+        return elapsed > 0 ? numFrames * 1e9 / elapsed : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return The number of lines of the last calibration file loaded that couldn't be parsed.
+     */
+    public int getSkippedLines() {
+        return mSkippedLines;
+    }
+}
@@ -0,0 +1,240 @@
+package edu.ucr.nanosense;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.util.Log;
+
+/**
+ * DriveController steers the rover by tilting the device. Accelerometer events are low-pass
+ * filtered against the neutral tilt from {@link edu.ucr.nanosense.SettingsActivity}, and the rover
+ * drives once the forward tilt passes {@link Constants.Rover#DRIVE_ENTER_TILT} and keeps driving
+ * until it falls below {@link Constants.Rover#DRIVE_EXIT_TILT}, with the same hysteresis for
+ * turning, so noise around a threshold doesn't toggle the motors.
+ *
+ * The sensor can deliver events far faster than the rover needs them. The controller's own thread
+ * sends the target every {@link Constants.Rover#DRIVE_INTERVAL} ms, and only when it has changed,
+ * to a {@link edu.ucr.nanosense.RoverCommandWriter}. If the events stop for
+ * {@link Constants.Rover#DRIVE_TIMEOUT} ms the rover is stopped. The latency from the event that
+ * changed the target to the command being queued is logged every {@link #LOG_INTERVAL} commands,
+ * and the writer logs the latency from there to the UART.
+ */
+public class DriveController extends Thread implements SensorEventListener {
+
+    private static final String TAG = "DriveController";
+
+    /** Number of commands sent between logging the latency. */
+    private static final int LOG_INTERVAL = 100;
+
+    private final float[] mNeutral = new float[3];
+
+    /** Filter and target state, guarded by this. */
+    private final double[] mFiltered = new double[3];
+    private long mLastEventNanos = -1;
+    private boolean mDriving = false;
+    private boolean mTurning = false;
+    private int mTargetLeft = 0;
+    private int mTargetRight = 0;
+    /** Arrival time of the event that last changed the target. */
+    private long mTargetChangedNanos;
+    private RoverCommandWriter mWriter;
+    /** True when the writer changed, so the target is sent even if it hasn't. */
+    private boolean mWriterChanged = false;
+    private boolean mRunning = true;
+
+    /** The last command sent. Only used on the controller thread. */
+    private boolean mHasSent = false;
+    private int mSentLeft;
+    private int mSentRight;
+
+    /** Statistics since the last log. Only used on the controller thread. */
+    private int mCommandsSent = 0;
+    private long mLatencySum = 0;
+    private long mLatencyMax = 0;
+
+    /**
+     * @param x The neutral acceleration along x, the forward tilt.
+     * @param y The neutral acceleration along y, the sideways tilt.
+     * @param z The neutral acceleration along z.
+     */
+    public DriveController(float x, float y, float z) {
+        super(TAG);
+        mNeutral[0] = x;
+        mNeutral[1] = y;
+        mNeutral[2] = z;
+    }
+
+    /**
+     * Sets the writer the commands are sent to, or null if the rover isn't connected.
+     */
+    public synchronized void setWriter(RoverCommandWriter writer) {
+        mWriter = writer;
+        mWriterChanged = true;
+    }
+
+    /**
+     * Stops the thread and the rover.
+     */
+    public synchronized void cancel() {
+        mRunning = false;
+        if (mWriter != null) {
+            mWriter.stopMovement();
+        }
+        notify();
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if (event.sensor.getType() != Sensor.TYPE_ACCELEROMETER) {
+            return;
+        }
+        /**
+         * The event timestamps aren't on the same clock on every device, so the filter and the
+         * latency use the arrival time.
+         */
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (mLastEventNanos < 0) {
+                for (int i = 0; i < 3; ++i) {
+                    mFiltered[i] = event.values[i] - mNeutral[i];
+                }
+            } else {
+                double dt = (now - mLastEventNanos) / 1e6;
+                double alpha = dt / (Constants.Rover.DRIVE_FILTER_TIME_CONSTANT + dt);
+                for (int i = 0; i < 3; ++i) {
+                    mFiltered[i] += alpha * (event.values[i] - mNeutral[i] - mFiltered[i]);
+                }
+            }
+            mLastEventNanos = now;
+            updateTarget(now);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+
+    }
+
+    /**
+     * Updates the wheel speeds from the filtered tilt. Must hold this.
+     */
+    private void updateTarget(long now) {
+        double deltaX = mFiltered[0];
+        double deltaY = mFiltered[1];
+        mDriving = Math.abs(deltaX) > (mDriving ?
+                Constants.Rover.DRIVE_EXIT_TILT : Constants.Rover.DRIVE_ENTER_TILT);
+        mTurning = Math.abs(deltaY) > (mTurning ?
+                Constants.Rover.TURN_EXIT_TILT : Constants.Rover.TURN_ENTER_TILT);
+
+        int left = 0;
+        int right = 0;
+        if (mDriving) {
+            double turnRatio = deltaY / Constants.Rover.GRAVITY / Constants.Rover.TURN_FULL_TILT;
+            turnRatio = Math.max(-1, Math.min(1, turnRatio));
+            double leftWheel = Constants.Rover.DRIVE_SPEED;
+            double rightWheel = Constants.Rover.DRIVE_SPEED;
+            if (mTurning) {
+                if (turnRatio < 0) {
+                    leftWheel = Constants.Rover.DRIVE_SPEED * (2 * turnRatio + 1);
+                } else if (turnRatio > 0) {
+                    rightWheel = Constants.Rover.DRIVE_SPEED * (-2 * turnRatio + 1);
+                }
+            }
+            /** Positive x drives in reverse. */
+            if (deltaX > 0) {
+                leftWheel = -leftWheel;
+                rightWheel = -rightWheel;
+            }
+            /** The wheel speeds are sent as whole numbers. */
+            left = (int) leftWheel;
+            right = (int) rightWheel;
+        }
+        if (left != mTargetLeft || right != mTargetRight) {
+            mTargetLeft = left;
+            mTargetRight = right;
+            mTargetChangedNanos = now;
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextTime = System.nanoTime();
+        try {
+            while (true) {
+                RoverCommandWriter writer;
+                int left;
+                int right;
+                long changedNanos;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    while (mRunning && now < nextTime) {
+                        long waitNanos = nextTime - now;
+                        wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        now = System.nanoTime();
+                    }
+                    if (!mRunning) {
+                        break;
+                    }
+                    if (mLastEventNanos >= 0 && now - mLastEventNanos >
+                            Constants.Rover.DRIVE_TIMEOUT * 1000000L) {
+                        /** The sensor has stopped, so stop rather than drive on a stale tilt. */
+                        mLastEventNanos = -1;
+                        mDriving = false;
+                        mTurning = false;
+                        if (mTargetLeft != 0 || mTargetRight != 0) {
+                            mTargetLeft = 0;
+                            mTargetRight = 0;
+                            mTargetChangedNanos = now;
+                        }
+                    }
+                    writer = mWriter;
+                    if (mWriterChanged) {
+                        /** The rover may be a new one that hasn't been sent the target. */
+                        mWriterChanged = false;
+                        mHasSent = false;
+                        mTargetChangedNanos = now;
+                    }
+                    left = mTargetLeft;
+                    right = mTargetRight;
+                    changedNanos = mTargetChangedNanos;
+                }
+                /** Keep to a fixed rate rather than drifting by the time each tick takes. */
+                nextTime += Constants.Rover.DRIVE_INTERVAL * 1000000L;
+                long now = System.nanoTime();
+                if (nextTime < now) {
+                    nextTime = now;
+                }
+
+                if (writer == null || (mHasSent && left == mSentLeft && right == mSentRight)) {
+                    continue;
+                }
+                if (left == 0 && right == 0) {
+                    writer.stopMovement();
+                } else {
+                    writer.setWheels(left, right);
+                }
+                mHasSent = true;
+                mSentLeft = left;
+                mSentRight = right;
+                recordSent((now - changedNanos) / 1000);
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Drive controller interrupted");
+        }
+    }
+
+    private void recordSent(long latency) {
+        ++mCommandsSent;
+        mLatencySum += latency;
+        if (latency > mLatencyMax) {
+            mLatencyMax = latency;
+        }
+        if (mCommandsSent == LOG_INTERVAL) {
+            Log.d(TAG, "Tilt to command latency average " + mLatencySum / mCommandsSent +
+                    "us max " + mLatencyMax + "us over " + mCommandsSent + " commands");
+            mCommandsSent = 0;
+            mLatencySum = 0;
+            mLatencyMax = 0;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package edu.ucr.nanosense;
+
+import java.util.Arrays;
+
+/**
+ * ExtentIndex answers the min and max of each channel over any range of blocks in logarithmic
+ * time. It is a segment tree per channel over the min and max of each block of
+ * {@link Constants.Storage#EXTENT_BLOCK_SIZE} frames, used by the
+ * {@link edu.ucr.nanosense.SampleStore} to auto-scale a zoomed window without reading its frames.
+ *
+ * Blocks are only appended. There is a single writer and any number of readers. Appending a block
+ * only changes the nodes that cover it, which a query for the blocks before it never reads, and
+ * the trees are replaced rather than resized so readers don't need to lock.
+ */
+public class ExtentIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int mNumChannels;
+
+    /**
+     * Trees indexed by [channel][node]. Node 1 is the root, the children of node i are 2i and
+     * 2i + 1, and block i is the leaf capacity + i.
+     */
+    private volatile Trees mTrees;
+    /** Number of blocks appended. Written last so readers only query complete blocks. */
+    private volatile int mNumBlocks = 0;
+
+    private static class Trees {
+        private final int mCapacity;
+        private final double[][] mMin;
+        private final double[][] mMax;
+
+        public Trees(int capacity, int numChannels) {
+            mCapacity = capacity;
+            mMin = new double[numChannels][2 * capacity];
+            mMax = new double[numChannels][2 * capacity];
+            for (int i = 0; i < numChannels; ++i) {
+                Arrays.fill(mMin[i], Double.POSITIVE_INFINITY);
+                Arrays.fill(mMax[i], Double.NEGATIVE_INFINITY);
+            }
+        }
+    }
+
+    public ExtentIndex(int numChannels) {
+        mNumChannels = numChannels;
+        mTrees = new Trees(INITIAL_CAPACITY, numChannels);
+    }
+
+    /**
+     * Appends the extents of the next block.
+     *
+     * @param min The min of each channel in the block.
+     * @param max The max of each channel in the block.
+     */
+    public void append(double[] min, double[] max) {
+        int block = mNumBlocks;
+        Trees trees = mTrees;
+        if (block == trees.mCapacity) {
+            trees = grow(trees);
+        }
+        for (int i = 0; i < mNumChannels; ++i) {
+            double[] treeMin = trees.mMin[i];
+            double[] treeMax = trees.mMax[i];
+            int node = trees.mCapacity + block;
+            treeMin[node] = min[i];
+            treeMax[node] = max[i];
+            for (node >>>= 1; node > 0; node >>>= 1) {
+                treeMin[node] = Math.min(treeMin[2 * node], treeMin[2 * node + 1]);
+                treeMax[node] = Math.max(treeMax[2 * node], treeMax[2 * node + 1]);
+            }
+        }
+        mNumBlocks = block + 1;
+    }
+
+    /**
+     * Doubles the capacity. The leaves are copied and the inner nodes rebuilt before the new trees
+     * are published.
+     */
+    private Trees grow(Trees trees) {
+        int capacity = trees.mCapacity;
+        Trees newTrees = new Trees(capacity * 2, mNumChannels);
+        for (int i = 0; i < mNumChannels; ++i) {
+            double[] treeMin = newTrees.mMin[i];
+            double[] treeMax = newTrees.mMax[i];
+            System.arraycopy(trees.mMin[i], capacity, treeMin, 2 * capacity, capacity);
+            System.arraycopy(trees.mMax[i], capacity, treeMax, 2 * capacity, capacity);
+            for (int node = 2 * capacity - 1; node > 0; --node) {
+                treeMin[node] = Math.min(treeMin[2 * node], treeMin[2 * node + 1]);
+                treeMax[node] = Math.max(treeMax[2 * node], treeMax[2 * node + 1]);
+            }
+        }
+        mTrees = newTrees;
+        return newTrees;
+    }
+
+    /**
+     * Removes all blocks. New trees are allocated so readers holding the old ones are not
+     * affected.
+     */
+    public void clear() {
+        mNumBlocks = 0;
+        mTrees = new Trees(INITIAL_CAPACITY, mNumChannels);
+    }
+
+    public int getNumBlocks() {
+        return mNumBlocks;
+    }
+
+    /**
+     * Widens the extents to include the blocks [start, end) of a channel.
+     *
+     * @param extents The min and max so far, updated in place.
+     */
+    public void include(int channel, int start, int end, double[] extents) {
+        /** The blocks are read before the trees so the trees always hold them. */
+        end = Math.min(end, mNumBlocks);
+        Trees trees = mTrees;
+        double[] treeMin = trees.mMin[channel];
+        double[] treeMax = trees.mMax[channel];
+        double min = extents[0];
+        double max = extents[1];
+        int low = trees.mCapacity + Math.max(start, 0);
+        int high = trees.mCapacity + end;
+        while (low < high) {
+            if ((low & 1) == 1) {
+                min = Math.min(min, treeMin[low]);
+                max = Math.max(max, treeMax[low]);
+                ++low;
+            }
+            if ((high & 1) == 1) {
+                --high;
+                min = Math.min(min, treeMin[high]);
+                max = Math.max(max, treeMax[high]);
+            }
+            low >>>= 1;
+            high >>>= 1;
+        }
+        extents[0] = min;
+        extents[1] = max;
+    }
+}
@@ -0,0 +1,400 @@
+package edu.ucr.nanosense;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+
+/**
+ * FrameCodec is the binary format for sending or exporting frames of the
+ * {@link Constants.Device#NUM_SENSORS} raw sensor channels, in place of the CSV text of
+ * {@link edu.ucr.nanosense.Data#toString()} which repeats the time for every channel.
+ *
+ * A stream starts with a header:
+ * [magic (int)][version (byte)][numChannels (byte)][fixed point scale (int)]
+ * followed by frames:
+ * [flags (byte)][source (byte)][time][channel mask][value]*
+ *
+ * The time, mask and values are varints, with signed numbers zigzag encoded. Bit i of the mask is
+ * set if channel i has a value, so NaN channels, like those that aren't polled, take no bytes.
+ * Values are fixed point, rounded to 1 / {@link Constants.Wire#FIXED_POINT_SCALE}. Every
+ * {@link Constants.Wire#KEY_FRAME_INTERVAL} frames is a key frame with the flag
+ * {@link #FLAG_KEY_FRAME}, which has the absolute time and values. Other frames have the change
+ * from the previous frame, which for slowly changing readings is 1 or 2 bytes a channel.
+ *
+ * The {@link Encoder} and {@link Decoder} keep the previous frame and work on buffers the caller
+ * reuses, so they don't allocate per frame.
+ */
+public class FrameCodec {
+
+    public static final int NUM_CHANNELS = Constants.Device.NUM_SENSORS;
+    public static final int HEADER_SIZE = 10;
+    /** Most bytes a frame can take. */
+    public static final int MAX_FRAME_SIZE = 2 + 10 + 3 + NUM_CHANNELS * 10;
+
+    /** The frame has absolute values and can be decoded on its own. */
+    public static final int FLAG_KEY_FRAME = 1;
+    /** Frames were lost before the frame. */
+    public static final int FLAG_GAP = 2;
+
+    /** Larger values can't be sent in fixed point and are sent as missing. */
+    private static final double MAX_VALUE = 1e12;
+
+    /**
+     * Writes the stream header.
+     *
+     * @return The position after the header.
+     */
+    public static int writeHeader(byte[] buffer, int position) {
+        position = writeInt(buffer, position, Constants.Wire.MAGIC);
+        buffer[position++] = (byte) Constants.Wire.VERSION;
+        buffer[position++] = (byte) NUM_CHANNELS;
+        return writeInt(buffer, position, Constants.Wire.FIXED_POINT_SCALE);
+    }
+
+    /**
+     * Checks the stream header matches this version of the format.
+     *
+     * @return The position after the header.
+     */
+    public static int readHeader(byte[] buffer, int position) throws IOException {
+        if (readInt(buffer, position) != Constants.Wire.MAGIC) {
+            throw new IOException("Not a frame stream");
+        }
+        int version = buffer[position + 4];
+        int numChannels = buffer[position + 5];
+        int scale = readInt(buffer, position + 6);
+        if (version != Constants.Wire.VERSION || numChannels != NUM_CHANNELS ||
+                scale != Constants.Wire.FIXED_POINT_SCALE) {
+            throw new IOException("Unsupported frame stream version " + version + " with " +
+                    numChannels + " channels, scale " + scale);
+        }
+        return position + HEADER_SIZE;
+    }
+
+    private static int writeInt(byte[] buffer, int position, int value) {
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static int readInt(byte[] buffer, int position) {
+        return (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16 |
+                (buffer[position + 2] & 0xFF) << 8 | (buffer[position + 3] & 0xFF);
+    }
+
+    private static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static int writeSigned(byte[] buffer, int position, long value) {
+        return writeVarint(buffer, position, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes frames, each as the change from the previous one.
+     */
+    public static class Encoder {
+        private final long[] mValues = new long[NUM_CHANNELS];
+        private long mTime;
+        private int mFramesSinceKeyFrame = Constants.Wire.KEY_FRAME_INTERVAL;
+
+        /**
+         * Makes the next frame a key frame, as when starting a new stream.
+         */
+        public void reset() {
+            mFramesSinceKeyFrame = Constants.Wire.KEY_FRAME_INTERVAL;
+        }
+
+        /**
+         * Writes a frame. The buffer must have {@link #MAX_FRAME_SIZE} bytes free.
+         *
+         * @param frame The values. Channels are read starting at offset.
+         * @return The position after the frame.
+         */
+        public int encode(int source, long time, boolean gap, double[] frame, int offset,
+                          byte[] buffer, int position) {
+            boolean keyFrame = mFramesSinceKeyFrame >= Constants.Wire.KEY_FRAME_INTERVAL;
+            mFramesSinceKeyFrame = keyFrame ? 1 : mFramesSinceKeyFrame + 1;
+            buffer[position++] = (byte) ((keyFrame ? FLAG_KEY_FRAME : 0) | (gap ? FLAG_GAP : 0));
+            buffer[position++] = (byte) source;
+            position = writeSigned(buffer, position, keyFrame ? time : time - mTime);
+            mTime = time;
+
+            int mask = 0;
+            for (int i = 0; i < NUM_CHANNELS; ++i) {
+                double value = frame[offset + i];
+                if (!Double.isNaN(value) && Math.abs(value) <= MAX_VALUE) {
+                    mask |= 1 << i;
+                }
+            }
+            position = writeVarint(buffer, position, mask);
+            for (int i = 0; i < NUM_CHANNELS; ++i) {
+                if ((mask & 1 << i) != 0) {
+                    long value = Math.round(frame[offset + i] * Constants.Wire.FIXED_POINT_SCALE);
+                    position = writeSigned(buffer, position, keyFrame ? value : value - mValues[i]);
+                    mValues[i] = value;
+                }
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Reads frames written by an {@link Encoder}, starting from a key frame.
+     */
+    public static class Decoder {
+        /** Values of the previous frame, and of the frame being read until it is complete. */
+        private final long[] mValues = new long[NUM_CHANNELS];
+        private final long[] mNextValues = new long[NUM_CHANNELS];
+        private boolean mHasKeyFrame = false;
+        private long mTime;
+        private int mSource;
+        private boolean mGap;
+
+        /** Position in the buffer while reading a frame, or -1 if it ran past the limit. */
+        private int mPosition;
+        private int mLimit;
+
+        /**
+         * Waits for the next key frame, as when joining a stream.
+         */
+        public void reset() {
+            mHasKeyFrame = false;
+        }
+
+        /**
+         * Reads a frame. Frames before the first key frame are skipped.
+         *
+         * @param limit The end of the bytes in the buffer.
+         * @param frame Set to the values, NaN for channels without one. Written starting at offset.
+         * @return The position after the frame, or -1 if the frame isn't complete before the limit,
+         * in which case nothing is read.
+         */
+        public int decode(byte[] buffer, int position, int limit, double[] frame, int offset)
+                throws IOException {
+            if (limit - position < 2) {
+                return -1;
+            }
+            int flags = buffer[position];
+            boolean keyFrame = (flags & FLAG_KEY_FRAME) != 0;
+            mPosition = position + 2;
+            mLimit = limit;
+            long time = readSigned(buffer);
+            int mask = (int) readVarint(buffer);
+            if (mask >>> NUM_CHANNELS != 0 && mPosition >= 0) {
+                throw new IOException("Invalid channel mask " + mask);
+            }
+            for (int i = 0; i < NUM_CHANNELS; ++i) {
+                if ((mask & 1 << i) != 0) {
+                    long value = readSigned(buffer);
+                    mNextValues[i] = keyFrame ? value : mValues[i] + value;
+                } else {
+                    mNextValues[i] = mValues[i];
+                }
+            }
+            if (mPosition < 0) {
+                return -1;
+            }
+            if (keyFrame) {
+                mHasKeyFrame = true;
+            } else if (!mHasKeyFrame) {
+                return mPosition;
+            }
+
+            mTime = keyFrame ? time : mTime + time;
+            mSource = buffer[position + 1] & 0xFF;
+            mGap = (flags & FLAG_GAP) != 0;
+            for (int i = 0; i < NUM_CHANNELS; ++i) {
+                mValues[i] = mNextValues[i];
+                frame[offset + i] = (mask & 1 << i) != 0 ?
+                        (double) mValues[i] / Constants.Wire.FIXED_POINT_SCALE : Double.NaN;
+            }
+            return mPosition;
+        }
+
+        private long readVarint(byte[] buffer) {
+            long value = 0;
+            for (int shift = 0; shift < 64 && mPosition >= 0; shift += 7) {
+                if (mPosition >= mLimit) {
+                    mPosition = -1;
+                    break;
+                }
+                int b = buffer[mPosition++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return value;
+        }
+
+        private long readSigned(byte[] buffer) {
+            long value = readVarint(buffer);
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * @return True if a frame has been read, so the getters and the values are valid.
+         */
+        public boolean hasFrame() {
+            return mHasKeyFrame;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public int getSource() {
+            return mSource;
+        }
+
+        public boolean isGap() {
+            return mGap;
+        }
+    }
+
+/***************************************************************************************************
+ *
+ * Benchmark
+ *
+ **************************************************************************************************/
+
+    /**
+     * Sizes and times of encoding the same frames with the codec and as CSV.
+     */
+    public static class Benchmark {
+        public int mNumFrames;
+        public long mBinaryBytes;
+        public long mCsvBytes;
+        public long mEncodeNanos;
+        public long mDecodeNanos;
+        public long mCsvEncodeNanos;
+        public long mCsvDecodeNanos;
+        /** Largest difference between a value and its decoded value. */
+        public double mMaxError;
+
+        @Override
+        public String toString() {
+            return mNumFrames + " frames, binary: " + mBinaryBytes + " bytes (" +
+                    mBinaryBytes / Math.max(mNumFrames, 1) + "/frame), encode " +
+                    mEncodeNanos / 1000 + "us, decode " + mDecodeNanos / 1000 + "us; CSV: " +
+                    mCsvBytes + " bytes (" + mCsvBytes / Math.max(mNumFrames, 1) +
+                    "/frame), encode " + mCsvEncodeNanos / 1000 + "us, decode " +
+                    mCsvDecodeNanos / 1000 + "us; size ratio " +
+                    (double) mCsvBytes / Math.max(mBinaryBytes, 1) + ", max error " + mMaxError;
+        }
+    }
+
+    /**
+     * Encodes and decodes the newest frames of the store with the codec, and as the CSV lines
+     * "[time],[value],[time],[value],..." of {@link edu.ucr.nanosense.Data#toString()}.
+     *
+     * @param store A store of {@link #NUM_CHANNELS} raw sensor channels.
+     * @param numFrames Most frames to run.
+     * @return The results, or null if the store is empty.
+     */
+    public static Benchmark benchmark(SampleStore store, int numFrames) {
+        int end = store.size();
+        int start = Math.max(end - numFrames, 0);
+        int count = end - start;
+        if (count == 0 || store.getNumChannels() != NUM_CHANNELS) {
+            return null;
+        }
+        long[] times = new long[count];
+        int[] sources = new int[count];
+        double[] values = new double[count * NUM_CHANNELS];
+        for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+            SampleStore.Cursor cursor = store.cursor(channel, start, end);
+            for (int i = 0; i < count && cursor.next(); ++i) {
+                times[i] = cursor.getTime();
+                sources[i] = cursor.getSource();
+                values[i * NUM_CHANNELS + channel] = cursor.getValue();
+            }
+        }
+        Benchmark benchmark = new Benchmark();
+        benchmark.mNumFrames = count;
+
+        byte[] buffer = new byte[HEADER_SIZE + count * MAX_FRAME_SIZE];
+        long startTime = System.nanoTime();
+        Encoder encoder = new Encoder();
+        int position = writeHeader(buffer, 0);
+        for (int i = 0; i < count; ++i) {
+            position = encoder.encode(sources[i], times[i], false, values, i * NUM_CHANNELS,
+                    buffer, position);
+        }
+        benchmark.mEncodeNanos = System.nanoTime() - startTime;
+        benchmark.mBinaryBytes = position;
+
+        int limit = position;
+        double[] frame = new double[NUM_CHANNELS];
+        startTime = System.nanoTime();
+        Decoder decoder = new Decoder();
+        try {
+            position = readHeader(buffer, 0);
+            for (int i = 0; i < count; ++i) {
+                position = decoder.decode(buffer, position, limit, frame, 0);
+                for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+                    double error = Math.abs(frame[channel] - values[i * NUM_CHANNELS + channel]);
+                    if (error > benchmark.mMaxError) {
+                        benchmark.mMaxError = error;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        benchmark.mDecodeNanos = System.nanoTime() - startTime;
+
+        /** Data's format is shared with the UI thread, so use an identical one. */
+        DecimalFormat format = new DecimalFormat(Data.DECIMAL_FORMAT_REGEX);
+        StringBuilder csv = new StringBuilder();
+        startTime = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+                if (channel > 0) {
+                    csv.append(',');
+                }
+                csv.append(times[i]).append(',')
+                        .append(format.format(values[i * NUM_CHANNELS + channel]));
+            }
+            csv.append('\n');
+        }
+        benchmark.mCsvEncodeNanos = System.nanoTime() - startTime;
+        benchmark.mCsvBytes = csv.length();
+
+        startTime = System.nanoTime();
+        String text = csv.toString();
+        double sum = 0;
+        int fieldStart = 0;
+        boolean isValue = false;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == ',' || c == '\n') {
+                String field = text.substring(fieldStart, i);
+                if (isValue) {
+                    try {
+                        sum += Double.parseDouble(field);
+                    } catch (NumberFormatException e) {
+                        /** NaN is printed as a symbol Double doesn't parse. */
+                    }
+                } else {
+                    sum += Long.parseLong(field);
+                }
+                isValue = !isValue;
+                fieldStart = i + 1;
+            }
+        }
+        benchmark.mCsvDecodeNanos = System.nanoTime() - startTime;
+        /** Use the sum so the parsing isn't optimized away. */
+        if (sum == Double.MIN_VALUE) {
+            ++benchmark.mCsvDecodeNanos;
+        }
+        return benchmark;
+    }
+}
@@ -0,0 +1,204 @@
+package edu.ucr.nanosense;
+
+/**
+ * FrameMerger merges the frames from several boards into a single stream ordered by time. Each
+ * board (source) has its own queue and the frames are released with a k-way merge: the oldest
+ * queued frame is only released once every active source has a frame queued, so a frame from a
+ * slower board can't arrive after a newer one has been released. If a source falls more than the
+ * max delay behind, frames are released without waiting for it.
+ *
+ * All times must come from the same monotonic time base.
+ */
+public class FrameMerger {
+
+    /** Number of frames queued per source before the oldest is forced out. */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /**
+     * Callback for the frames released in time order.
+     */
+    public interface OnMergedFrameListener {
+        public void onMergedFrame(int source, long time, double[] frame);
+    }
+
+    private final int mFrameSize;
+    private final int mMaxSources;
+    private final OnMergedFrameListener mOnMergedFrameListener;
+
+    /** Circular queue per source. Times are [source][slot], frames [source][slot * frameSize]. */
+    private final long[][] mQueueTimes;
+    private final double[][] mQueueFrames;
+    private final int[] mQueueHeads;
+    private final int[] mQueueCounts;
+    private final boolean[] mActive;
+
+    /** Reused buffer for the released frame. */
+    private final double[] mOutFrame;
+
+    private long mMaxDelay;
+
+    /** Time of the last released frame. Released times never go backwards. */
+    private long mLastReleasedTime = Long.MIN_VALUE;
+
+    private long mFramesMerged = 0;
+    private long mFramesForced = 0;
+    private long mFramesLate = 0;
+
+    /**
+     * @param maxSources Max number of boards.
+     * @param frameSize Number of values in each frame.
+     * @param maxDelay Max time in ms to wait for a lagging source.
+     * @param onMergedFrameListener Called with each frame in time order.
+     */
+    public FrameMerger(int maxSources, int frameSize, long maxDelay,
+                       OnMergedFrameListener onMergedFrameListener) {
+        mMaxSources = maxSources;
+        mFrameSize = frameSize;
+        mMaxDelay = maxDelay;
+        mOnMergedFrameListener = onMergedFrameListener;
+        mQueueTimes = new long[maxSources][QUEUE_CAPACITY];
+        mQueueFrames = new double[maxSources][QUEUE_CAPACITY * frameSize];
+        mQueueHeads = new int[maxSources];
+        mQueueCounts = new int[maxSources];
+        mActive = new boolean[maxSources];
+        mOutFrame = new double[frameSize];
+    }
+
+    public synchronized void setMaxDelay(long maxDelay) {
+        mMaxDelay = maxDelay;
+    }
+
+    public int getMaxSources() {
+        return mMaxSources;
+    }
+
+    /**
+     * Sets whether a source is connected. Inactive sources are not waited on and their queued
+     * frames are released.
+     */
+    public synchronized void setActive(int source, boolean active) {
+        mActive[source] = active;
+        if (!active) {
+            release(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Queues a frame. The frame is copied so the caller may reuse it.
+     *
+     * @param source The board the frame is from.
+     * @param time The time of the frame in ms.
+     * @param frame The values of the frame.
+     * @param now The current time in ms used to check for lagging sources.
+     */
+    public synchronized void offer(int source, long time, double[] frame, long now) {
+        if (mQueueCounts[source] == QUEUE_CAPACITY) {
+            /** Queue is full, another source is holding up the merge. */
+            releaseOldest();
+            ++mFramesForced;
+        }
+        int slot = (mQueueHeads[source] + mQueueCounts[source]) % QUEUE_CAPACITY;
+        mQueueTimes[source][slot] = time;
+        System.arraycopy(frame, 0, mQueueFrames[source], slot * mFrameSize, mFrameSize);
+        ++mQueueCounts[source];
+        release(now);
+    }
+
+    /**
+     * Releases frames in time order while every active source has a queued frame or the oldest
+     * frame is older than the max delay.
+     */
+    private void release(long now) {
+        while (true) {
+            int oldest = findOldest();
+            if (oldest < 0) {
+                return;
+            }
+            long oldestTime = mQueueTimes[oldest][mQueueHeads[oldest]];
+            if (!allActiveQueued() && now - oldestTime < mMaxDelay) {
+                return;
+            }
+            releaseHead(oldest);
+        }
+    }
+
+    private void releaseOldest() {
+        int oldest = findOldest();
+        if (oldest >= 0) {
+            releaseHead(oldest);
+        }
+    }
+
+    /**
+     * @return The source with the oldest queued frame or -1 if all queues are empty.
+     */
+    private int findOldest() {
+        int oldest = -1;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < mMaxSources; ++i) {
+            if (mQueueCounts[i] > 0) {
+                long time = mQueueTimes[i][mQueueHeads[i]];
+                if (time < oldestTime) {
+                    oldestTime = time;
+                    oldest = i;
+                }
+            }
+        }
+        return oldest;
+    }
+
+    private boolean allActiveQueued() {
+        for (int i = 0; i < mMaxSources; ++i) {
+            if (mActive[i] && mQueueCounts[i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseHead(int source) {
+        int head = mQueueHeads[source];
+        System.arraycopy(mQueueFrames[source], head * mFrameSize, mOutFrame, 0, mFrameSize);
+        long time = mQueueTimes[source][head];
+        if (time < mLastReleasedTime) {
+            /** A lagging source was skipped over, keep the output sorted. */
+            time = mLastReleasedTime;
+            ++mFramesLate;
+        }
+        mLastReleasedTime = time;
+        mQueueHeads[source] = (head + 1) % QUEUE_CAPACITY;
+        --mQueueCounts[source];
+        ++mFramesMerged;
+        mOnMergedFrameListener.onMergedFrame(source, time, mOutFrame);
+    }
+
+    /**
+     * Drops all queued frames.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mMaxSources; ++i) {
+            mQueueHeads[i] = 0;
+            mQueueCounts[i] = 0;
+        }
+        mLastReleasedTime = Long.MIN_VALUE;
+    }
+
+    public synchronized long getFramesMerged() {
+        return mFramesMerged;
+    }
+
+    /**
+     * @return Number of frames released early because a source's queue was full.
+     */
+    public synchronized long getFramesForced() {
+        return mFramesForced;
+    }
+
+    /**
+     * @return Number of frames that arrived after newer frames were released and were clamped to
+     * the last released time.
+     */
+    public synchronized long getFramesLate() {
+        return mFramesLate;
+    }
+}
@@ -0,0 +1,56 @@
+package edu.ucr.nanosense;
+
+/**
+ * FrameSource is a thread that produces frames without a board, such as a
+ * {@link edu.ucr.nanosense.SessionReplayer} or a {@link edu.ucr.nanosense.SyntheticGenerator}.
+ * Frames are passed to the same {@link edu.ucr.nanosense.FrameMerger.OnMergedFrameListener} the
+ * boards feed.
+ */
+public abstract class FrameSource extends Thread {
+
+    /**
+     * Callback for when the source stops producing frames.
+     */
+    public interface OnFrameSourceFinishedListener {
+        /**
+         * @param framesProduced The number of frames passed on.
+         * @param framesPerSecond The average number of frames passed on per second.
+         */
+        public void onFrameSourceFinished(long framesProduced, double framesPerSecond);
+    }
+
+    protected final FrameMerger.OnMergedFrameListener mOnMergedFrameListener;
+    private final OnFrameSourceFinishedListener mOnFrameSourceFinishedListener;
+
+    private volatile boolean mRunning = true;
+
+    /**
+     * @param name The name of the thread.
+     * @param onMergedFrameListener Receives the frames.
+     * @param onFrameSourceFinishedListener Called on this thread when the source stops.
+     */
+    protected FrameSource(String name, FrameMerger.OnMergedFrameListener onMergedFrameListener,
+                          OnFrameSourceFinishedListener onFrameSourceFinishedListener) {
+        super(name);
+        mOnMergedFrameListener = onMergedFrameListener;
+        mOnFrameSourceFinishedListener = onFrameSourceFinishedListener;
+    }
+
+    /**
+     * Stops the source after the current frame.
+     */
+    public void cancel() {
+        mRunning = false;
+        interrupt();
+    }
+
+    protected boolean isRunning() {
+        return mRunning;
+    }
+
+    protected void notifyFinished(long framesProduced, double framesPerSecond) {
+        if (mOnFrameSourceFinishedListener != null) {
+            mOnFrameSourceFinishedListener.onFrameSourceFinished(framesProduced, framesPerSecond);
+        }
+    }
+}
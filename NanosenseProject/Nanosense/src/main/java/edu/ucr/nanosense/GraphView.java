@@ -1,6 +1,7 @@
 package edu.ucr.nanosense;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -14,7 +15,6 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 import java.text.DecimalFormat;
-import java.util.ArrayList;
 
 /**
  * Written by Albert Chen
@@ -38,6 +38,17 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
 
     /** Constant {@link android.graphics.Paint} for the Axis */
     private static final Paint AXIS_PAINT = new Paint(Color.BLACK);
+    /** Constant {@link android.graphics.Paint} for the gridlines */
+    private static final Paint GRID_PAINT = new Paint();
+    static {
+        GRID_PAINT.setColor(Color.LTGRAY);
+    }
+    /** Constant {@link android.graphics.Paint} for the axis labels */
+    private static final Paint LABEL_PAINT = new Paint(Color.BLACK);
+    static {
+        LABEL_PAINT.setTextSize(32);
+    }
+    private static final DecimalFormat LABEL_FORMAT = new DecimalFormat("0.00");
 
     private static final int AXIS_PADDING_VERTICAL = 30;
     private static final int AXIS_PADDING_HORIZONTAL = 80;
@@ -56,10 +67,59 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
     private double mWindowXMin = 0;
     private double mWindowXMax = 0;
 
+    /** True while the time window follows the newest frames. */
     private boolean mIsZoomExtent = true;
+    /** True while the value window is fitted to the frames in the time window. */
+    private boolean mIsAutoScaleY = true;
+    /** Min and max returned by {@link SampleStore#getExtents}. */
+    private final double[] mExtents = new double[2];
+    /**
+     * Frame time in ms each auto-scaled value window was last changed at, or Long.MAX_VALUE to
+     * fit it afresh.
+     */
+    private final long[] mAutoScaleTimes = new long[Constants.Graph.NUM_VIEW_MODES];
+
+    /** Cached axes, gridlines and labels, drawn under the data. */
+    private Bitmap mStaticLayer;
+    private Canvas mStaticCanvas;
+    private volatile boolean mIsStaticLayerCached = true;
+    /** Set when the surface changes so the static layer is redrawn. */
+    private volatile boolean mIsStaticLayerStale = true;
+    /** The view mode and labels (min Y, max Y, min X, max X in hundredths) last cached. */
+    private int mStaticLayerViewMode = -1;
+    private long[] mStaticLayerLabels = new long[4];
+
+    /** Incremental chart of the live window used while auto-scaling. */
+    private final StripChart mStripChart = new StripChart();
+    /**
+     * Channels and colors passed to the strip chart, rebuilt only when the view mode or the
+     * visible pins change.
+     */
+    private int[] mStripChartChannels = new int[0];
+    private int[] mStripChartColors = new int[0];
+    private int mStripChartViewMode = -1;
+    private int mStripChartPinMask = -1;
+    /** Time in ms the strip chart spans, and the cursor used to measure the live window. */
+    private long mStripChartSpan = Constants.Graph.STRIP_CHART_SPAN;
+    private LiveRing mSpanRing;
+    private LiveRing.Cursor mSpanCursor;
+    /** Paint for the nano sensor channels, recolored for each channel. */
+    private final Paint mSensorPaint = new Paint();
+
+    /** Frame time statistics. */
+    private long mFrameTimeNanos = 0;
+    private int mFrameTimeFrames = 0;
+    private int mStaticLayerRebuilds = 0;
 
     private boolean[] mIsPinVisible = new boolean[Constants.Device.NUM_PINS_NANOSENSOR];
 
+    /** The data to plot. Set once the activity is bound to the service. */
+    private volatile SampleStore mSampleStore;
+    /** The live window to plot. */
+    private volatile LiveRing mLiveRing;
+    /** The board whose frames are plotted. */
+    private int mBoard = 0;
+
     private GestureDetector mGestureDetector;
     private ScaleGestureDetector mScaleGestureDetector;
     private boolean[] visiblePins;
@@ -150,6 +210,33 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
         mIsPinVisible = visiblePins;
     }
 
+    public void setSampleStore(SampleStore sampleStore) {
+        mSampleStore = sampleStore;
+    }
+
+    /**
+     * Sets whether the axes, gridlines and labels are cached in a bitmap or drawn every frame.
+     */
+    public void setStaticLayerCached(boolean cached) {
+        mIsStaticLayerCached = cached;
+        mIsStaticLayerStale = true;
+    }
+
+    public void setLiveRing(LiveRing liveRing) {
+        mLiveRing = liveRing;
+    }
+
+    /**
+     * Selects which board's frames are plotted when several boards are connected.
+     */
+    public void setBoard(int board) {
+        mBoard = board;
+    }
+
+    public int getBoard() {
+        return mBoard;
+    }
+
 
 /***************************************************************************************************
  *
@@ -202,179 +289,359 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
     @Override
     protected void onDraw(Canvas canvas) {
         mDrawStart = System.nanoTime();
-        canvas.drawColor(Color.WHITE);
-        drawAxis(canvas);
-        drawLabels(canvas);
-        drawData(canvas);
+        if (mSampleStore == null || mLiveRing == null) {
+            canvas.drawColor(Color.WHITE);
+            drawAxis(canvas);
+            return;
+        }
+        updateWindow();
+        if (mIsStaticLayerCached) {
+            drawStaticLayer(canvas);
+        } else {
+            canvas.drawColor(Color.WHITE);
+            drawAxis(canvas);
+            drawLabels(canvas);
+        }
+        if (mIsZoomExtent) {
+            drawStripChart(canvas);
+        } else {
+            drawData(canvas);
+        }
 //        drawDebug(canvas);
+        recordFrameTime();
     }
 
+    /**
+     * Draws the frames in the time window. The window is located with a binary search over the
+     * frame times so the cost only depends on the number of frames shown.
+     */
     private void drawData(Canvas canvas) {
-        int dataPoints = 0;
+        SampleStore sampleStore = mSampleStore;
+        int size = sampleStore.size();
+        long startTime = (long) (mWindowXMin * 60000);
+        long endTime = (long) Math.ceil(mWindowXMax * 60000);
+        /** Include the frames either side of the window so the lines reach its edges. */
+        int start = Math.max(0, sampleStore.indexOfTime(startTime) - 1);
+        int end = Math.min(size, sampleStore.indexOfTime(endTime + 1) + 1);
+        if (end - start < 2) {
+            return;
+        }
+        /** The frames either side of the window are clipped to the graph. */
+        canvas.save();
+        canvas.clipRect(AXIS_PADDING_HORIZONTAL, 0, getWidth(), getHeight() - AXIS_PADDING_VERTICAL);
         double range = 0;
-        float width = getWidth() - AXIS_PADDING_HORIZONTAL;
-        float height = getHeight() - AXIS_PADDING_VERTICAL;
         switch (mViewMode) {
             case Constants.Graph.VIEW_NANOSENSOR:
                 range = mWindowYMax[Constants.Graph.VIEW_NANOSENSOR] -
                         mWindowYMin[Constants.Graph.VIEW_NANOSENSOR];
-                ArrayList<ArrayList<Data>> sensorArrayData = NanoSenseActivity.mData;
-                Paint sensorPaint = new Paint(Color.RED);
                 for (int i = 0; i < Constants.Device.NUM_PINS_NANOSENSOR; ++i) {
                     if (mIsPinVisible[i]) {
-                        switch (i) {
-                            case 0: sensorPaint.setColor(Color.RED); break;
-                            case 1: sensorPaint.setColor(Color.rgb(128, 0, 0)); break;
-                            case 2: sensorPaint.setColor(Color.GREEN); break;
-                            case 3: sensorPaint.setColor(Color.rgb(0, 128, 0)); break;
-                            case 4: sensorPaint.setColor(Color.BLUE); break;
-                            case 5: sensorPaint.setColor(Color.rgb(0, 0, 128)); break;
-                            case 6: sensorPaint.setColor(Color.CYAN); break;
-                            case 7: sensorPaint.setColor(Color.MAGENTA); break;
-                            case 8: sensorPaint.setColor(Color.YELLOW); break;
-                            case 9: sensorPaint.setColor(Color.BLACK); break;
-                            case 10: sensorPaint.setColor(Color.DKGRAY); break;
-                            case 11: sensorPaint.setColor(Color.LTGRAY); break;
-                            default: sensorPaint.setColor(Color.BLACK); break;
-                        }
-                        ArrayList<Data> sensorData = sensorArrayData.get(i);
-                        int lastIndex = sensorData.size() - 1;
-                        dataPoints = sensorData.size();
-                        if (dataPoints >= 2) {
-                            for (int j = 0; j < sensorData.size() - 1; ++j) {
-                                float startX = (float) j / dataPoints * width + AXIS_PADDING_HORIZONTAL;
-                                float startY = (float) ((mWindowYMax[Constants.Graph.VIEW_NANOSENSOR] -
-                                        sensorData.get(j).mValue) / range * height);
-                                float stopX = (float) (j + 1) / dataPoints * width + AXIS_PADDING_HORIZONTAL;
-                                float stopY = (float) ((mWindowYMax[Constants.Graph.VIEW_NANOSENSOR] -
-                                        sensorData.get(j + 1).mValue) / range * height);
-                                if (startY > height) {
-                                    startY = height;
-                                }
-                                    if (stopY > height) {
-                                        stopY = height;
-                                    }
-                                    canvas.drawLine(startX, startY, stopX, stopY, sensorPaint);
-                                }
-                            }
+                        mSensorPaint.setColor(getSensorColor(i));
+                        drawChannel(canvas, sampleStore.cursor(i, start, end),
+                                mWindowYMax[Constants.Graph.VIEW_NANOSENSOR], range, mSensorPaint);
                     }
                 }
                 break;
             case Constants.Graph.VIEW_NANOSENSOR_DELTA:
                 break;
             case Constants.Graph.VIEW_HUMIDITY:
-                ArrayList<Data> humidityData = NanoSenseActivity.mData
-                        .get(Constants.Humidity.SENSOR_INDEX);
                 range = mWindowYMax[Constants.Graph.VIEW_HUMIDITY] -
                         mWindowYMin[Constants.Graph.VIEW_HUMIDITY];
-                dataPoints = humidityData.size();
-                if (dataPoints >= 2) {
-                    for (int i = 0; i < humidityData.size() - 1; ++i) {
-                        float startX = (float) i / dataPoints * width + AXIS_PADDING_HORIZONTAL;
-                        float startY = (float) ((mWindowYMax[Constants.Graph.VIEW_HUMIDITY] -
-                                humidityData.get(i).mValue) / range * height);
-                        float stopX = (float) (i + 1) / dataPoints * width + AXIS_PADDING_HORIZONTAL;
-                        float stopY = (float) ((mWindowYMax[Constants.Graph.VIEW_HUMIDITY] -
-                                humidityData.get(i + 1).mValue) / range * height);
-                        if (startY > height) {
-                            startY = height;
-                        }
-                        if (stopY > height) {
-                            stopY = height;
-                        }
-                        canvas.drawLine(startX, startY, stopX, stopY, AXIS_PAINT);
-                    }
-                }
+                drawChannel(canvas,
+                        sampleStore.cursor(Constants.Humidity.SENSOR_INDEX, start, end),
+                        mWindowYMax[Constants.Graph.VIEW_HUMIDITY], range, AXIS_PAINT);
                 break;
             case Constants.Graph.VIEW_TEMPERATURE:
-                ArrayList<Data> temperatureData = NanoSenseActivity.mData
-                        .get(Constants.Temperature.SENSOR_INDEX);
                 range = mWindowYMax[Constants.Graph.VIEW_TEMPERATURE] -
                         mWindowYMin[Constants.Graph.VIEW_TEMPERATURE];
-                dataPoints = temperatureData.size();
-                if (dataPoints >= 2) {
-                    for (int i = 0; i < temperatureData.size() - 1; ++i) {
-                        float startX = (float) i / dataPoints * width + AXIS_PADDING_HORIZONTAL;
-                        float startY = (float) ((mWindowYMax[Constants.Graph.VIEW_TEMPERATURE] -
-                                temperatureData.get(i).mValue) / range * height);
-                        float stopX = (float) (i + 1) / dataPoints * width + AXIS_PADDING_HORIZONTAL;
-                        float stopY = (float) ((mWindowYMax[Constants.Graph.VIEW_TEMPERATURE] -
-                                temperatureData.get(i + 1).mValue) / range * height);
-                        if (startY > height) {
-                            startY = height;
-                        }
-                        if (stopY > height) {
-                            stopY = height;
-                        }
-                        canvas.drawLine(startX, startY, stopX, stopY, AXIS_PAINT);
-                    }
-                }
+                drawChannel(canvas,
+                        sampleStore.cursor(Constants.Temperature.SENSOR_INDEX, start, end),
+                        mWindowYMax[Constants.Graph.VIEW_TEMPERATURE], range, AXIS_PAINT);
                 break;
             default:
                 break;
         }
+        canvas.restore();
     }
 
     /**
-     * Draws the axis value labels.
+     * Draws the live window with the newest frame at the right edge. Only the frames that arrived
+     * since the last draw are drawn into the {@link edu.ucr.nanosense.StripChart}.
+     */
+    private void drawStripChart(Canvas canvas) {
+        if (mViewMode == Constants.Graph.VIEW_NANOSENSOR_DELTA) {
+            return;
+        }
+        int pinMask = 0;
+        for (int i = 0; i < Constants.Device.NUM_PINS_NANOSENSOR; ++i) {
+            if (mIsPinVisible[i]) {
+                pinMask |= 1 << i;
+            }
+        }
+        if (mViewMode != mStripChartViewMode || pinMask != mStripChartPinMask) {
+            mStripChartViewMode = mViewMode;
+            mStripChartPinMask = pinMask;
+            switch (mViewMode) {
+                case Constants.Graph.VIEW_NANOSENSOR:
+                    int numVisible = Integer.bitCount(pinMask);
+                    mStripChartChannels = new int[numVisible];
+                    mStripChartColors = new int[numVisible];
+                    for (int i = 0, j = 0; i < Constants.Device.NUM_PINS_NANOSENSOR; ++i) {
+                        if (mIsPinVisible[i]) {
+                            mStripChartChannels[j] = i;
+                            mStripChartColors[j] = getSensorColor(i);
+                            ++j;
+                        }
+                    }
+                    break;
+                case Constants.Graph.VIEW_HUMIDITY:
+                    mStripChartChannels = new int[] {Constants.Humidity.SENSOR_INDEX};
+                    mStripChartColors = new int[] {Color.BLACK};
+                    break;
+                case Constants.Graph.VIEW_TEMPERATURE:
+                    mStripChartChannels = new int[] {Constants.Temperature.SENSOR_INDEX};
+                    mStripChartColors = new int[] {Color.BLACK};
+                    break;
+                default:
+                    break;
+            }
+        }
+        double maxY = mWindowYMax[mViewMode];
+        double range = maxY - mWindowYMin[mViewMode];
+        mStripChart.draw(canvas, mLiveRing, mBoard, mStripChartChannels, mStripChartColors,
+                maxY, range, mStripChartSpan, AXIS_PADDING_HORIZONTAL,
+                getWidth() - AXIS_PADDING_HORIZONTAL, getHeight() - AXIS_PADDING_VERTICAL);
+    }
+
+    /**
+     * @return The color a nano sensor channel is drawn in.
+     */
+    private static int getSensorColor(int i) {
+        switch (i) {
+            case 0: return Color.RED;
+            case 1: return Color.rgb(128, 0, 0);
+            case 2: return Color.GREEN;
+            case 3: return Color.rgb(0, 128, 0);
+            case 4: return Color.BLUE;
+            case 5: return Color.rgb(0, 0, 128);
+            case 6: return Color.CYAN;
+            case 7: return Color.MAGENTA;
+            case 8: return Color.YELLOW;
+            case 9: return Color.BLACK;
+            case 10: return Color.DKGRAY;
+            case 11: return Color.LTGRAY;
+            default: return Color.BLACK;
+        }
+    }
+
+    /**
+     * Draws one channel of the selected board with time on the X axis. Points are connected to
+     * the previous point from the same board unless there was a gap in acquisition.
      *
-     * @param canvas The {@link android.graphics.Canvas} to draw on.
+     * @param cursor A cursor over the frames to draw.
+     * @param maxY The value at the top of the graph.
+     * @param range The range of values shown by the graph.
      */
-    private void drawLabels(Canvas canvas) {
-        Paint textPaint = new Paint(Color.BLACK);
-        textPaint.setTextSize(32);
-        double minY = 0;
-        double maxY = 0;
+    private void drawChannel(Canvas canvas, SampleStore.Cursor cursor, double maxY, double range,
+                             Paint paint) {
+        float width = getWidth() - AXIS_PADDING_HORIZONTAL;
+        float height = getHeight() - AXIS_PADDING_VERTICAL;
+        double minX = mWindowXMin * 60000;
+        double pixelsPerMs = width / ((mWindowXMax - mWindowXMin) * 60000);
+        SampleStore sampleStore = mSampleStore;
+        /** Previous point from the selected board. */
+        boolean hasPrevious = false;
+        float startX = 0;
+        float startY = 0;
+        while (cursor.next()) {
+            if (cursor.getSource() != mBoard) {
+                continue;
+            }
+            float stopX = (float) ((cursor.getTime() - minX) * pixelsPerMs) +
+                    AXIS_PADDING_HORIZONTAL;
+            float stopY = (float) ((maxY - cursor.getValue()) / range * height);
+            if (stopY > height) {
+                stopY = height;
+            }
+            /**
+             * Don't connect the points across a gap in acquisition. Channels that weren't polled
+             * are NaN and aren't drawn.
+             */
+            if (hasPrevious && !sampleStore.isGap(cursor.getIndex()) &&
+                    !Float.isNaN(startY) && !Float.isNaN(stopY)) {
+                canvas.drawLine(startX, startY, stopX, stopY, paint);
+            }
+            startX = stopX;
+            startY = stopY;
+            hasPrevious = true;
+        }
+    }
+
+    /**
+     * Moves the time window to the newest frames while showing the live strip chart, then fits
+     * the value window to the visible frames while auto-scaling.
+     */
+    private void updateWindow() {
+        SampleStore sampleStore = mSampleStore;
+        int size = sampleStore.size();
+        if (size == 0) {
+            return;
+        }
+        if (mIsZoomExtent) {
+            /**
+             * The strip chart shows the frames the live window holds ending at the newest frame,
+             * so the values are also fitted to only those.
+             */
+            mStripChartSpan = getStripChartSpan();
+            mWindowXMax = sampleStore.getLastTime() / 60000.0;
+            mWindowXMin = mWindowXMax - mStripChartSpan / 60000.0;
+        }
+        if (!mIsAutoScaleY) {
+            return;
+        }
+        int start = sampleStore.indexOfTime((long) (mWindowXMin * 60000));
+        int end = sampleStore.indexOfTime((long) Math.ceil(mWindowXMax * 60000) + 1);
+        double[] extents = mExtents;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
         switch (mViewMode) {
             case Constants.Graph.VIEW_NANOSENSOR:
-                double sensorMax = Double.NEGATIVE_INFINITY;
-                double sensorMin = Double.POSITIVE_INFINITY;
                 for (int i = 0; i < mIsPinVisible.length; ++i) {
                     /** Get the min and max resistance for the visible pins. */
-                    if (mIsPinVisible[i] && mIsZoomExtent) {
-                        double channelMax = NanoSenseActivity.mMaxValues.get(i);
-                        double channelMin = NanoSenseActivity.mMinValues.get(i);
-                        if (channelMax > sensorMax) {
-                            sensorMax = channelMax;
-                        }
-                        if (channelMin < sensorMin) {
-                            sensorMin = channelMin;
-                        }
+                    if (mIsPinVisible[i]) {
+                        sampleStore.getExtents(i, start, end, extents);
+                        minY = Math.min(minY, extents[0]);
+                        maxY = Math.max(maxY, extents[1]);
                     }
                 }
-                if (mIsZoomExtent) {
-                    mWindowYMax[Constants.Graph.VIEW_NANOSENSOR] = sensorMax;
-                    mWindowYMin[Constants.Graph.VIEW_NANOSENSOR] = sensorMin;
-                }
-                maxY = mWindowYMax[Constants.Graph.VIEW_NANOSENSOR];
-                minY = mWindowYMin[Constants.Graph.VIEW_NANOSENSOR];
-                break;
-            case Constants.Graph.VIEW_NANOSENSOR_DELTA:
                 break;
             case Constants.Graph.VIEW_HUMIDITY:
-                if (mIsZoomExtent) {
-                    mWindowYMax[Constants.Graph.VIEW_HUMIDITY] =
-                            NanoSenseActivity.mMaxValues.get(Constants.Humidity.SENSOR_INDEX);
-                    mWindowYMin[Constants.Graph.VIEW_HUMIDITY] =
-                            NanoSenseActivity.mMinValues.get(Constants.Humidity.SENSOR_INDEX);
-                }
-                maxY = mWindowYMax[Constants.Graph.VIEW_HUMIDITY];
-                minY = mWindowYMin[Constants.Graph.VIEW_HUMIDITY];
+                sampleStore.getExtents(Constants.Humidity.SENSOR_INDEX, start, end, extents);
+                minY = extents[0];
+                maxY = extents[1];
                 break;
             case Constants.Graph.VIEW_TEMPERATURE:
-                if (mIsZoomExtent) {
-                    mWindowYMax[Constants.Graph.VIEW_TEMPERATURE] =
-                            NanoSenseActivity.mMaxValues.get(Constants.Temperature.SENSOR_INDEX);
-                    mWindowYMin[Constants.Graph.VIEW_TEMPERATURE] =
-                            NanoSenseActivity.mMinValues.get(Constants.Temperature.SENSOR_INDEX);
-                }
-                maxY = mWindowYMax[Constants.Graph.VIEW_TEMPERATURE];
-                minY = mWindowYMin[Constants.Graph.VIEW_TEMPERATURE];
+                sampleStore.getExtents(Constants.Temperature.SENSOR_INDEX, start, end, extents);
+                minY = extents[0];
+                maxY = extents[1];
                 break;
             default:
-                break;
+                return;
+        }
+        /** Keep the last window if there are no frames in this one. */
+        if (minY <= maxY) {
+            setAutoScaleWindow(minY, maxY, sampleStore.getLastTime());
+        }
+    }
+
+    /**
+     * @return {@link Constants.Graph#STRIP_CHART_SPAN} halved until the live window holds it, as
+     * when polling faster than the default rate. The span only changes by halves, and only grows
+     * back once the window holds all of it, so the chart isn't redrawn every frame.
+     */
+    private long getStripChartSpan() {
+        LiveRing ring = mLiveRing;
+        long span = Constants.Graph.STRIP_CHART_SPAN;
+        /** Until the ring wraps, all of the session is in it. */
+        if (ring.getStart() == 0) {
+            return span;
+        }
+        if (mSpanRing != ring) {
+            mSpanRing = ring;
+            mSpanCursor = ring.cursor();
+        }
+        LiveRing.Cursor cursor = mSpanCursor;
+        cursor.reset();
+        if (!cursor.next()) {
+            return span;
+        }
+        long oldestTime = cursor.getTime();
+        if (!cursor.isValid()) {
+            return mStripChartSpan;
+        }
+        cursor.seek(cursor.getEnd() - 1);
+        cursor.next();
+        long held = cursor.getTime() - oldestTime;
+        /** Up to an eighth of the chart may be empty, as the ring is sized for the default rate. */
+        while (held < span - span / 8 && span / 2 >= Constants.Graph.MIN_WINDOW_X_MS) {
+            span /= 2;
+        }
+        if (span > mStripChartSpan && held < span) {
+            return mStripChartSpan;
+        }
+        return span;
+    }
+
+    /**
+     * Fits the value window to the extents, snapped out to grid steps so it only changes when the
+     * values cross a step. While the strip chart is shown the window only grows until the chart
+     * has scrolled a whole span since it last changed, so it isn't redrawn for every new extreme
+     * and only shrinks once the frames it was fitted to are gone.
+     *
+     * @param time The time in ms of the newest frame.
+     */
+    private void setAutoScaleWindow(double minY, double maxY, long time) {
+        double step = getGridStep((maxY - minY) / Constants.Graph.AUTO_SCALE_STEPS, maxY);
+        double snappedMin = Math.floor(minY / step) * step;
+        double snappedMax = Math.ceil(maxY / step) * step;
+        if (snappedMax <= snappedMin) {
+            snappedMax = snappedMin + step;
+        }
+        long changedTime = mAutoScaleTimes[mViewMode];
+        double currentMin = mWindowYMin[mViewMode];
+        double currentMax = mWindowYMax[mViewMode];
+        /** A new session starts the times over. An empty window hasn't been fitted yet. */
+        boolean isFresh = time < changedTime ||
+                time - changedTime >= mStripChartSpan || currentMax <= currentMin;
+        if (mIsZoomExtent && !isFresh) {
+            if (snappedMin >= currentMin && snappedMax <= currentMax) {
+                return;
+            }
+            snappedMin = Math.min(snappedMin, currentMin);
+            snappedMax = Math.max(snappedMax, currentMax);
+        }
+        if (snappedMin != currentMin || snappedMax != currentMax) {
+            mWindowYMin[mViewMode] = snappedMin;
+            mWindowYMax[mViewMode] = snappedMax;
+            mAutoScaleTimes[mViewMode] = time;
+        }
+    }
+
+    /**
+     * @param step The smallest step wanted.
+     * @param value A value in the window, giving the scale of a step for a flat window.
+     * @return The smallest step of 1, 2 or 5 times a power of 10 at least as large.
+     */
+    private static double getGridStep(double step, double value) {
+        if (!(step > 0)) {
+            step = Math.max(Math.abs(value) / 100, 0.01);
+        }
+        double magnitude = Math.pow(10, Math.floor(Math.log10(step)));
+        double residual = step / magnitude;
+        if (residual <= 1) {
+            return magnitude;
+        } else if (residual <= 2) {
+            return 2 * magnitude;
+        } else if (residual <= 5) {
+            return 5 * magnitude;
+        }
+        return 10 * magnitude;
+    }
+
+    /**
+     * Draws the axis value labels.
+     *
+     * @param canvas The {@link android.graphics.Canvas} to draw on.
+     */
+    private void drawLabels(Canvas canvas) {
+        Paint textPaint = LABEL_PAINT;
+        double minY = 0;
+        double maxY = 0;
+        if (mViewMode != Constants.Graph.VIEW_NANOSENSOR_DELTA) {
+            maxY = mWindowYMax[mViewMode];
+            minY = mWindowYMin[mViewMode];
         }
-        DecimalFormat decimalFormat = new DecimalFormat("0.00");
+        DecimalFormat decimalFormat = LABEL_FORMAT;
         /** Y-Label */
         canvas.drawText(decimalFormat.format(minY), 0, getHeight() - AXIS_PADDING_VERTICAL,
                 textPaint);
@@ -385,27 +652,85 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
         /** X-Label */
         canvas.drawText(decimalFormat.format(mWindowXMin), AXIS_PADDING_HORIZONTAL,
                 getHeight(), textPaint);
-        if (mIsZoomExtent) {
-            int lastIndex = NanoSenseActivity.mData.get(0).size() - 1;
-            if (lastIndex >= 0) {
-                Data dataItem = NanoSenseActivity.mData.get(0).get(lastIndex);
-                mWindowXMax = dataItem.mTime / 60000.0;
-            }
-        }
         canvas.drawText(decimalFormat.format(mWindowXMax),
                 getWidth() - AXIS_PADDING_HORIZONTAL, getHeight(), textPaint);
     }
 
+    /**
+     * Draws the cached axes, gridlines and labels. They are only redrawn into the cache when the
+     * surface size, view mode or one of the labels as displayed (2 decimals) changes.
+     *
+     * @param canvas The {@link android.graphics.Canvas} to draw to.
+     */
+    private void drawStaticLayer(Canvas canvas) {
+        int width = getWidth();
+        int height = getHeight();
+        boolean stale = mIsStaticLayerStale;
+        if (mStaticLayer == null || mStaticLayer.getWidth() != width ||
+                mStaticLayer.getHeight() != height) {
+            if (mStaticLayer != null) {
+                mStaticLayer.recycle();
+            }
+            mStaticLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mStaticCanvas = new Canvas(mStaticLayer);
+            stale = true;
+        }
+        double minY = 0;
+        double maxY = 0;
+        if (mViewMode != Constants.Graph.VIEW_NANOSENSOR_DELTA) {
+            maxY = mWindowYMax[mViewMode];
+            minY = mWindowYMin[mViewMode];
+        }
+        long[] labels = mStaticLayerLabels;
+        long labelMinY = Math.round(minY * 100);
+        long labelMaxY = Math.round(maxY * 100);
+        long labelMinX = Math.round(mWindowXMin * 100);
+        long labelMaxX = Math.round(mWindowXMax * 100);
+        if (stale || mStaticLayerViewMode != mViewMode || labels[0] != labelMinY ||
+                labels[1] != labelMaxY || labels[2] != labelMinX || labels[3] != labelMaxX) {
+            mIsStaticLayerStale = false;
+            mStaticLayerViewMode = mViewMode;
+            labels[0] = labelMinY;
+            labels[1] = labelMaxY;
+            labels[2] = labelMinX;
+            labels[3] = labelMaxX;
+            mStaticLayer.eraseColor(Color.WHITE);
+            drawAxis(mStaticCanvas);
+            drawLabels(mStaticCanvas);
+            ++mStaticLayerRebuilds;
+        }
+        canvas.drawBitmap(mStaticLayer, 0, 0, null);
+    }
+
+    /**
+     * Logs the average frame time every {@link Constants.Graph#FRAME_TIME_LOG_INTERVAL} frames so
+     * drawing with and without the static layer cache can be compared.
+     */
+    private void recordFrameTime() {
+        mFrameTimeNanos += System.nanoTime() - mDrawStart;
+        ++mFrameTimeFrames;
+        if (mFrameTimeFrames == Constants.Graph.FRAME_TIME_LOG_INTERVAL) {
+            Log.d(TAG, "Frame time: " + mFrameTimeNanos / mFrameTimeFrames / 1000 +
+                    "us, static layer cached: " + mIsStaticLayerCached + ", rebuilds: " +
+                    mStaticLayerRebuilds + ", strip chart redraws: " +
+                    mStripChart.getFullRedraws() + ", segments: " +
+                    mStripChart.getSegmentsDrawn());
+            mFrameTimeNanos = 0;
+            mFrameTimeFrames = 0;
+            mStaticLayerRebuilds = 0;
+            mStripChart.resetStatistics();
+        }
+    }
+
     /**
      * Draws the last read value of each channel and the time as well as the FPS.
      * @param canvas The {@link android.graphics.Canvas} to draw to.
      */
     private void drawDebug(Canvas canvas) {
-        int lastIndex = -1;
+        int lastIndex = mSampleStore.size() - 1;
         Paint textPaint = new Paint(Color.BLACK);
         textPaint.setTextSize(32);
-        for (int i = 0; i < NanoSenseActivity.mData.size(); ++i) {
-            lastIndex = NanoSenseActivity.mData.get(i).size() - 1;
+        for (int i = 0; i < mSampleStore.getNumChannels(); ++i) {
             if (lastIndex >= 0) {
                 String debugString = "Sensor " + i + " (kOhms) - [";
                 switch (i) {
@@ -422,7 +747,8 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
                         break;
                 }
                 debugString += String.valueOf(lastIndex) + "]: ";
-                debugString += NanoSenseActivity.mData.get(i).get(lastIndex).toString();
+                debugString += new Data(mSampleStore.getTime(lastIndex),
+                        mSampleStore.getValue(i, lastIndex)).toString();
                 canvas.drawText(debugString, AXIS_PADDING_HORIZONTAL, 50 * (i + 1), textPaint);
             }
         }
@@ -432,6 +758,7 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
     }
 
     private void drawAxis(Canvas canvas) {
+        drawGrid(canvas);
         switch (mViewMode) {
             case Constants.Graph.VIEW_NANOSENSOR:
                 canvas.drawLine(AXIS_PADDING_HORIZONTAL, AXIS_PADDING_VERTICAL,
@@ -463,6 +790,20 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
         }
     }
 
+    /**
+     * Draws gridlines at the middle label and at every quarter of the time axis.
+     */
+    private void drawGrid(Canvas canvas) {
+        float width = getWidth() - AXIS_PADDING_HORIZONTAL;
+        float bottom = getHeight() - AXIS_PADDING_VERTICAL;
+        canvas.drawLine(AXIS_PADDING_HORIZONTAL, getHeight() / 2, getWidth(), getHeight() / 2,
+                GRID_PAINT);
+        for (int i = 1; i <= 4; ++i) {
+            float x = AXIS_PADDING_HORIZONTAL + width * i / 4;
+            canvas.drawLine(x, AXIS_PADDING_VERTICAL, x, bottom, GRID_PAINT);
+        }
+    }
+
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         if (mGraphThread.getState() == Thread.State.TERMINATED) {
@@ -474,7 +815,8 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-
+        mIsStaticLayerStale = true;
+        mStripChart.invalidate();
     }
 
     @Override
@@ -535,11 +877,27 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
     @Override
     public boolean onScroll(MotionEvent event1, MotionEvent event2, float distanceX,
                             float distanceY) {
-        // TODO: Implement scrolling X
+        Log.d(TAG, "in onScroll");
         if (mIsZoomExtent) {
+            /** Scrolling along the time axis leaves auto-scale at the current window. */
+            if (Math.abs(distanceX) <= Math.abs(distanceY)) {
+                return false;
+            }
+            mIsZoomExtent = false;
+        }
+        double width = getWidth() - AXIS_PADDING_HORIZONTAL;
+        double rangeX = mWindowXMax - mWindowXMin;
+        double shiftX = rangeX * distanceX / width;
+        if (shiftX < 0 && mWindowXMin + shiftX < 0) {
+            /** Don't scroll back before the start of the session. */
+            shiftX = Math.min(0, -mWindowXMin);
+        }
+        mWindowXMin += shiftX;
+        mWindowXMax += shiftX;
+        if (mIsAutoScaleY) {
+            /** The value window follows the time window until it is pinched. */
             return false;
         }
-        Log.d(TAG, "in onScroll");
         double height = getHeight() - AXIS_PADDING_HORIZONTAL;
         Log.d(TAG, "Scrolled Y: " + distanceY);
         double range = mWindowYMax[mViewMode] - mWindowYMin[mViewMode];
@@ -589,6 +947,9 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
     public boolean onDoubleTapEvent(MotionEvent e) {
         Log.d(TAG, "in onDoubleTapEvent");
         mIsZoomExtent = true;
+        mIsAutoScaleY = true;
+        /** Fit the value window afresh rather than growing the zoomed one. */
+        mAutoScaleTimes[mViewMode] = Long.MAX_VALUE;
         return true;
     }
 
@@ -602,10 +963,27 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
     public boolean onScale(ScaleGestureDetector detector) {
         Log.d(TAG, "in onScale");
         // TODO: Limit scaling so that you can't zoom out if already zoom extent.
-        // TODO: Scale and shift based on where you are pinching/zooming
-        // TODO: Implement X scaling;
         double scaleFactor = detector.getScaleFactor();
         Log.d(TAG, "scaleFactor = " + scaleFactor);
+        if (scaleFactor <= 0) {
+            return false;
+        }
+        if (detector.getCurrentSpanX() > detector.getCurrentSpanY()) {
+            /** Horizontal pinch scales time about the focus. */
+            double width = getWidth() - AXIS_PADDING_HORIZONTAL;
+            double focusRatio = (detector.getFocusX() - AXIS_PADDING_HORIZONTAL) / width;
+            focusRatio = Math.max(0, Math.min(1, focusRatio));
+            double rangeX = mWindowXMax - mWindowXMin;
+            double scaledRangeX = Math.max(rangeX / scaleFactor,
+                    Constants.Graph.MIN_WINDOW_X_MS / 60000.0);
+            double focusX = mWindowXMin + rangeX * focusRatio;
+            double scaledMinX = Math.max(0, focusX - scaledRangeX * focusRatio);
+            mWindowXMin = scaledMinX;
+            mWindowXMax = scaledMinX + scaledRangeX;
+            return true;
+        }
+        // TODO: Scale and shift based on where you are pinching/zooming
+        mIsAutoScaleY = false;
         double range = mWindowYMax[mViewMode] - mWindowYMin[mViewMode];
         double scaledRange = range * scaleFactor;
         double axisChange = scaledRange - range;
@@ -615,7 +993,7 @@ public class GraphView extends SurfaceView implements SurfaceHolder.Callback,
             mWindowYMax[mViewMode] = scaledMax;
             mWindowYMin[mViewMode] = scaledMin;
         }
-        return scaleFactor != 0;
+        return true;
     }
 
     @Override
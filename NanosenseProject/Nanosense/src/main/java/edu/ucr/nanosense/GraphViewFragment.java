@@ -18,7 +18,7 @@ import android.widget.TextView;
  *
  * GraphViewFragment contains the UI component {@link edu.ucr.nanosense.GraphView} that is used
  * to display the graphs. It also handles the current state and what the GraphView should display.
- * The data will be stored in {@link edu.ucr.nanosense.NanoSenseActivity} which will handle it's
+ * The data will be stored in {@link edu.ucr.nanosense.AcquisitionService} which will handle it's
  * state.
  * When the fragment is restored, it will send all the data to {@link edu.ucr.nanosense.GraphView}.
  * Typically GraphViewFragment will receive one data point per channel and
@@ -101,6 +101,25 @@ public class GraphViewFragment extends Fragment implements ViewTreeObserver.OnGl
         mGraphView.setVisiblePins(isPinVisible);
     }
 
+    /**
+     * Sets the {@link edu.ucr.nanosense.SampleStore} from the bound
+     * {@link edu.ucr.nanosense.AcquisitionService} for the graph to display.
+     */
+    public void setSampleStore(SampleStore sampleStore) {
+        if (mGraphView != null) {
+            mGraphView.setSampleStore(sampleStore);
+        }
+    }
+
+    /**
+     * Sets the {@link edu.ucr.nanosense.LiveRing} with the live window for the graph to display.
+     */
+    public void setLiveRing(LiveRing liveRing) {
+        if (mGraphView != null) {
+            mGraphView.setLiveRing(liveRing);
+        }
+    }
+
 /***************************************************************************************************
  *
  * GlobalLayoutListener Callbacks
@@ -0,0 +1,416 @@
+package edu.ucr.nanosense;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LivePublisher streams the live frames to any number of subscribers, each at its own
+ * resolution. Subscribers connect with an HTTP GET on
+ * {@link Constants.Options#LIVE_PUBLISHER_PORT}:
+ *
+ * <pre>
+ * GET /live?channels=0,1,2&amp;interval=1000&amp;step=1
+ * GET /metrics
+ * </pre>
+ *
+ * A subscriber gets every step'th frame from the {@link edu.ucr.nanosense.LiveRing}, and at most
+ * one every interval ms of frame time, as a line of JSON with the time, source, gap flag and the
+ * values of the channels asked for, or all of them. /metrics lists each subscriber's lag and
+ * throughput, also available from {@link #getMetrics()}.
+ *
+ * Each subscriber reads the ring through its own {@link edu.ucr.nanosense.LiveRing.Cursor} on its
+ * own thread, so the Looper never waits on a client and a slow client only holds up itself.
+ * Nothing is queued per subscriber. One that falls more than {@link #MAX_LAG} frames behind, or
+ * behind the oldest frame in the ring, skips ahead to the newest frame and the frames it missed
+ * are counted as skipped.
+ */
+public class LivePublisher extends Thread {
+
+    private static final String TAG = "LivePublisher";
+
+    /**
+     * Most connections served at once, counting subscribers and requests still being read. Others
+     * are turned away before a thread is started for them.
+     */
+    private static final int MAX_SUBSCRIBERS = 8;
+    /** Time in ms between a subscriber checking the ring for new frames. */
+    private static final int POLL_INTERVAL = 20;
+    /** Most frames a subscriber can fall behind before it skips ahead. */
+    private static final int MAX_LAG = 1000;
+    /** Time in ms between logging the metrics and measuring the throughput. */
+    private static final int METRICS_INTERVAL = 10000;
+    private static final int READ_TIMEOUT = 10000;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    /**
+     * Socket send buffer of each subscriber. Kept small so a stalled subscriber blocks its thread,
+     * and skips ahead, rather than the kernel queueing seconds of frames.
+     */
+    private static final int SEND_BUFFER_SIZE = 32768;
+
+    private final ServerSocket mServerSocket;
+    private final LiveRing mLiveRing;
+
+    /** Subscribers being served, guarded by itself. */
+    private final List<Subscriber> mSubscribers = new ArrayList<Subscriber>();
+    /** Connections with a thread, guarded by mSubscribers. */
+    private int mNumConnections = 0;
+
+    /**
+     * A subscriber's resolution, lag and throughput.
+     */
+    public static class Metrics {
+        public String mAddress;
+        public int mStep;
+        public int mInterval;
+        public long mFramesSent;
+        public long mFramesSkipped;
+        public long mBytesSent;
+        /** Frames in the ring not yet read, and the newest frame's time less the last one sent. */
+        public long mLagFrames;
+        public long mLagMillis;
+        /** Over the last {@link #METRICS_INTERVAL}. */
+        public double mFramesPerSecond;
+        public double mBytesPerSecond;
+
+        @Override
+        public String toString() {
+            return "{\"address\":\"" + mAddress + "\",\"step\":" + mStep + ",\"interval\":" +
+                    mInterval + ",\"sent\":" + mFramesSent + ",\"skipped\":" + mFramesSkipped +
+                    ",\"bytes\":" + mBytesSent + ",\"lagFrames\":" + mLagFrames +
+                    ",\"lagMillis\":" + mLagMillis + ",\"framesPerSecond\":" +
+                    mFramesPerSecond + ",\"bytesPerSecond\":" + mBytesPerSecond + "}";
+        }
+    }
+
+    /**
+     * Opens the server socket. Call {@link #start()} to begin serving.
+     *
+     * @param address The address to listen on. The loopback address only serves the device.
+     * @param port The port to listen on, or 0 for any free port.
+     */
+    public LivePublisher(String address, int port, LiveRing liveRing) throws IOException {
+        super(TAG);
+        mServerSocket = new ServerSocket(port, 0, InetAddress.getByName(address));
+        mLiveRing = liveRing;
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting subscribers and disconnects the current ones.
+     */
+    public void cancel() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (mSubscribers) {
+            for (Subscriber subscriber : mSubscribers) {
+                QueryServer.closeQuietly(subscriber.mSocket);
+            }
+        }
+    }
+
+    /**
+     * @return The metrics of each subscriber.
+     */
+    public List<Metrics> getMetrics() {
+        List<Metrics> metrics = new ArrayList<Metrics>();
+        synchronized (mSubscribers) {
+            for (Subscriber subscriber : mSubscribers) {
+                metrics.add(subscriber.getMetrics());
+            }
+        }
+        return metrics;
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "Publishing on " + mServerSocket.getInetAddress() + ":" + getPort());
+        try {
+            while (true) {
+                Socket socket = mServerSocket.accept();
+                boolean accepted;
+                synchronized (mSubscribers) {
+                    accepted = mNumConnections < MAX_SUBSCRIBERS;
+                    if (accepted) {
+                        ++mNumConnections;
+                    }
+                }
+                if (accepted) {
+                    new Subscriber(socket).start();
+                } else {
+                    QueryServer.reject(socket, "Too many subscribers");
+                }
+            }
+        } catch (IOException e) {
+            /** The socket is closed by cancel. */
+            Log.d(TAG, "Publisher stopped: " + e.getMessage());
+        }
+    }
+
+/***************************************************************************************************
+ *
+ * Subscriber
+ *
+ **************************************************************************************************/
+
+    /**
+     * Reads the subscriber's request, then streams the ring to it until it disconnects.
+     */
+    private class Subscriber extends Thread {
+        private final Socket mSocket;
+        private final LiveRing.Cursor mCursor = mLiveRing.cursor();
+
+        private int[] mChannels;
+        private int mStep = 1;
+        private int mInterval = 0;
+
+        /** Metrics, guarded by this. */
+        private long mFramesSent = 0;
+        private long mFramesSkipped = 0;
+        private long mBytesSent = 0;
+        /** The next frame to read and the time of the last frame sent. */
+        private long mNext = 0;
+        private long mLastSentTime = Long.MIN_VALUE;
+        private long mIntervalStart = System.currentTimeMillis();
+        private long mIntervalFrames = 0;
+        private long mIntervalBytes = 0;
+        private double mFramesPerSecond = 0;
+        private double mBytesPerSecond = 0;
+
+        public Subscriber(Socket socket) {
+            super(TAG + " " + socket.getInetAddress());
+            mSocket = socket;
+            setPriority(MIN_PRIORITY);
+        }
+
+        public synchronized Metrics getMetrics() {
+            Metrics metrics = new Metrics();
+            metrics.mAddress = String.valueOf(mSocket.getInetAddress());
+            metrics.mStep = mStep;
+            metrics.mInterval = mInterval;
+            metrics.mFramesSent = mFramesSent;
+            metrics.mFramesSkipped = mFramesSkipped;
+            metrics.mBytesSent = mBytesSent;
+            /** Measured now so a subscriber blocked on a write shows its lag. */
+            metrics.mLagFrames = Math.max(mLiveRing.getEnd() - mNext, 0);
+            long newestTime = getNewestTime();
+            metrics.mLagMillis = mLastSentTime == Long.MIN_VALUE ||
+                    newestTime == Long.MIN_VALUE ? 0 : Math.max(newestTime - mLastSentTime, 0);
+            metrics.mFramesPerSecond = mFramesPerSecond;
+            metrics.mBytesPerSecond = mBytesPerSecond;
+            return metrics;
+        }
+
+        @Override
+        public void run() {
+            boolean subscribed = false;
+            try {
+                mSocket.setSoTimeout(READ_TIMEOUT);
+                mSocket.setSendBufferSize(SEND_BUFFER_SIZE);
+                String target = QueryServer.readGetTarget(mSocket.getInputStream());
+                Writer writer = new BufferedWriter(
+                        new OutputStreamWriter(mSocket.getOutputStream(), "UTF-8"),
+                        WRITE_BUFFER_SIZE);
+                if (target != null && target.equals("/metrics")) {
+                    writer.write("HTTP/1.0 200 OK\r\nContent-Type: application/x-ndjson\r\n\r\n");
+                    for (Metrics metrics : LivePublisher.this.getMetrics()) {
+                        writer.write(metrics + "\n");
+                    }
+                } else if (target != null && target.startsWith("/live")) {
+                    try {
+                        parseRequest(target);
+                        synchronized (mSubscribers) {
+                            mSubscribers.add(this);
+                        }
+                        subscribed = true;
+                        writer.write("HTTP/1.0 200 OK\r\n" +
+                                "Content-Type: application/x-ndjson\r\n\r\n");
+                        stream(writer);
+                    } catch (IllegalArgumentException e) {
+                        QueryServer.writeError(writer, "400 Bad Request", e.getMessage());
+                    }
+                } else {
+                    QueryServer.writeError(writer, "404 Not Found", "Use /live or /metrics");
+                }
+                writer.flush();
+            } catch (IOException e) {
+                /** The subscriber disconnected or the publisher was cancelled. */
+                Log.d(TAG, "Subscriber " + mSocket.getInetAddress() + " closed: " +
+                        e.getMessage());
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Subscriber interrupted");
+            } finally {
+                QueryServer.closeQuietly(mSocket);
+                synchronized (mSubscribers) {
+                    if (subscribed) {
+                        mSubscribers.remove(this);
+                    }
+                    --mNumConnections;
+                }
+                if (subscribed) {
+                    Log.d(TAG, "Unsubscribed " + getMetrics());
+                }
+            }
+        }
+
+        /**
+         * Reads the channels, step and interval. Called before the subscriber is added, so the
+         * metrics never see them change.
+         */
+        private void parseRequest(String target) throws IOException {
+            int queryStart = target.indexOf('?');
+            Map<String, String> parameters = QueryServer.parseParameters(
+                    queryStart < 0 ? "" : target.substring(queryStart + 1));
+            mStep = QueryServer.parseInt(parameters, "step", 1);
+            mInterval = QueryServer.parseInt(parameters, "interval", 0);
+            if (mStep < 1 || mInterval < 0) {
+                throw new IllegalArgumentException("Invalid step or interval");
+            }
+            String channels = parameters.get("channels");
+            int numChannels = mLiveRing.getNumChannels();
+            if (channels == null) {
+                mChannels = new int[numChannels];
+                for (int i = 0; i < numChannels; ++i) {
+                    mChannels[i] = i;
+                }
+            } else {
+                String[] names = channels.split(",");
+                mChannels = new int[names.length];
+                for (int i = 0; i < names.length; ++i) {
+                    try {
+                        mChannels[i] = Integer.parseInt(names[i]);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid channel " + names[i]);
+                    }
+                    if (mChannels[i] < 0 || mChannels[i] >= numChannels) {
+                        throw new IllegalArgumentException("Invalid channel " + names[i]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sends the frames from the newest one on until the subscriber disconnects.
+         */
+        private void stream(Writer writer) throws IOException, InterruptedException {
+            LiveRing.Cursor cursor = mCursor;
+            StringBuilder row = new StringBuilder();
+            /** Start from the newest frame rather than the whole ring. */
+            long next = Math.max(mLiveRing.getEnd() - 1, 0);
+            long frameNumber = 0;
+            long lastSentTime = Long.MIN_VALUE;
+            while (true) {
+                cursor.reset();
+                long end = cursor.getEnd();
+                if (end < next) {
+                    /** The ring was cleared for a new session. */
+                    next = 0;
+                    lastSentTime = Long.MIN_VALUE;
+                }
+                long start = Math.max(0, end - mLiveRing.getCapacity() + 1);
+                if (next < start || end - next > MAX_LAG) {
+                    skip(end - 1 - next);
+                    next = end - 1;
+                }
+                cursor.seek(next);
+                while (cursor.next()) {
+                    long time = cursor.getTime();
+                    boolean send = frameNumber % mStep == 0 &&
+                            (lastSentTime == Long.MIN_VALUE || time - lastSentTime >= mInterval);
+                    if (send) {
+                        row.setLength(0);
+                        row.append("{\"t\":").append(time)
+                                .append(",\"s\":").append(cursor.getSource());
+                        if (cursor.isGap()) {
+                            row.append(",\"g\":true");
+                        }
+                        row.append(",\"v\":[");
+                        for (int i = 0; i < mChannels.length; ++i) {
+                            if (i > 0) {
+                                row.append(',');
+                            }
+                            row.append(QueryServer.toJson(cursor.getValue(mChannels[i])));
+                        }
+                        row.append("]}\n");
+                    }
+                    if (!cursor.isValid()) {
+                        /** Overwritten while reading. Skip ahead on the next pass. */
+                        next = cursor.getIndex();
+                        break;
+                    }
+                    next = cursor.getIndex() + 1;
+                    ++frameNumber;
+                    if (send) {
+                        writer.write(row.toString());
+                        lastSentTime = time;
+                        recordSent(next, time, row.length());
+                    }
+                }
+                writer.flush();
+                recordPass(next);
+                Thread.sleep(POLL_INTERVAL);
+            }
+        }
+
+        private synchronized void skip(long frames) {
+            if (frames > 0) {
+                mFramesSkipped += frames;
+            }
+        }
+
+        private synchronized void recordSent(long next, long time, int bytes) {
+            mNext = next;
+            mLastSentTime = time;
+            ++mFramesSent;
+            mBytesSent += bytes;
+            ++mIntervalFrames;
+            mIntervalBytes += bytes;
+        }
+
+        /**
+         * Records the frames read in a pass over the ring and updates the throughput.
+         */
+        private synchronized void recordPass(long next) {
+            mNext = next;
+            long now = System.currentTimeMillis();
+            long elapsed = now - mIntervalStart;
+            if (elapsed >= METRICS_INTERVAL) {
+                mFramesPerSecond = mIntervalFrames * 1000.0 / elapsed;
+                mBytesPerSecond = mIntervalBytes * 1000.0 / elapsed;
+                mIntervalFrames = 0;
+                mIntervalBytes = 0;
+                mIntervalStart = now;
+                Log.d(TAG, "Subscriber " + getMetrics());
+            }
+        }
+
+        /**
+         * @return The time of the newest frame in the ring, or Long.MIN_VALUE if there is none.
+         */
+        private long getNewestTime() {
+            LiveRing.Cursor cursor = mLiveRing.cursor();
+            cursor.reset();
+            cursor.seek(cursor.getEnd() - 1);
+            if (!cursor.next()) {
+                return Long.MIN_VALUE;
+            }
+            long time = cursor.getTime();
+            return cursor.isValid() ? time : Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package edu.ucr.nanosense;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * LiveRing holds the most recent frames of all channels in a fixed size ring in a direct
+ * {@link java.nio.ByteBuffer}. It is allocated once, appending overwrites the oldest frame, and
+ * none of the frames are on the Java heap, so the live window costs the same no matter how long
+ * the session runs. The full session is kept in the {@link edu.ucr.nanosense.SampleStore}.
+ *
+ * Each slot holds the time, the source board, a gap flag and the values:
+ * [time (long)][source (int)][flags (int)][value (double) * numChannels]
+ *
+ * Frames are numbered from 0 by the order they were appended. There is a single writer and any
+ * number of readers. Readers use a {@link Cursor}, which reads the slots in place. A slot can be
+ * overwritten while it is read so readers check {@link Cursor#isValid()} after reading a frame.
+ */
+public class LiveRing {
+
+    private static final int OFFSET_TIME = 0;
+    private static final int OFFSET_SOURCE = 8;
+    private static final int OFFSET_FLAGS = 12;
+    private static final int OFFSET_VALUES = 16;
+
+    private static final int FLAG_GAP = 1;
+
+    private final int mCapacity;
+    private final int mNumChannels;
+    private final int mSlotSize;
+    private final ByteBuffer mBuffer;
+
+    /** Number of frames appended. Written last so readers always see a complete frame. */
+    private volatile long mCount = 0;
+
+    /** Bit per source set by {@link #markGap(int)} so its next appended frame is flagged. */
+    private long mGapPendingSources = 0;
+
+    /**
+     * @param capacity Number of frames kept.
+     * @param numChannels Number of values in each frame.
+     */
+    public LiveRing(int capacity, int numChannels) {
+        mCapacity = capacity;
+        mNumChannels = numChannels;
+        mSlotSize = OFFSET_VALUES + 8 * numChannels;
+        mBuffer = ByteBuffer.allocateDirect(capacity * mSlotSize).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Appends a frame, overwriting the oldest frame if the ring is full.
+     *
+     * @param source The board the frame was read from.
+     * @param time The time of the frame in ms.
+     * @param frame The values. Channels are read starting at offset.
+     * @param offset The index in frame of the first channel.
+     */
+    public synchronized void append(int source, long time, double[] frame, int offset) {
+        long count = mCount;
+        int position = (int) (count % mCapacity) * mSlotSize;
+        long sourceBit = 1L << source;
+        int flags = 0;
+        if ((mGapPendingSources & sourceBit) != 0) {
+            flags |= FLAG_GAP;
+            mGapPendingSources &= ~sourceBit;
+        }
+        ByteBuffer buffer = mBuffer;
+        buffer.putLong(position + OFFSET_TIME, time);
+        buffer.putInt(position + OFFSET_SOURCE, source);
+        buffer.putInt(position + OFFSET_FLAGS, flags);
+        int valuePosition = position + OFFSET_VALUES;
+        for (int i = 0; i < mNumChannels; ++i) {
+            buffer.putDouble(valuePosition + 8 * i, frame[offset + i]);
+        }
+        mCount = count + 1;
+    }
+
+    /**
+     * Flags the next frame appended from the source as taken after a gap in acquisition.
+     */
+    public synchronized void markGap(int source) {
+        if (mCount > 0) {
+            mGapPendingSources |= 1L << source;
+        }
+    }
+
+    /**
+     * Removes all frames. The buffer is kept.
+     */
+    public synchronized void clear() {
+        mCount = 0;
+        mGapPendingSources = 0;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getNumChannels() {
+        return mNumChannels;
+    }
+
+    /**
+     * @return The number of the frame after the newest one.
+     */
+    public long getEnd() {
+        return mCount;
+    }
+
+    /**
+     * @return The number of the oldest frame that can be read. One slot is kept free for the
+     * writer so every frame from here to {@link #getEnd()} is complete.
+     */
+    public long getStart() {
+        return Math.max(0, mCount - mCapacity + 1);
+    }
+
+    /**
+     * @return A cursor positioned before the oldest frame.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+/***************************************************************************************************
+ *
+ * Cursor
+ *
+ **************************************************************************************************/
+
+    /**
+     * Cursor is a flyweight over one slot of the ring. The getters read the buffer directly so
+     * iterating the ring doesn't allocate.
+     */
+    public class Cursor {
+        private long mIndex;
+        private long mEnd;
+        private int mPosition;
+        /** Written by {@link #isValid()} only for the ordering. */
+        private volatile long mFence;
+
+        private Cursor() {
+            reset();
+        }
+
+        /**
+         * Positions the cursor before the oldest frame and takes the newest frame as the end.
+         */
+        public void reset() {
+            mEnd = mCount;
+            mIndex = Math.max(0, mEnd - mCapacity + 1) - 1;
+        }
+
+        /**
+         * Positions the cursor so the next call to {@link #next()} moves to the frame.
+         *
+         * @param index The frame number, clamped to the frames that can be read.
+         */
+        public void seek(long index) {
+            long start = Math.max(0, mEnd - mCapacity + 1);
+            mIndex = Math.max(index, start) - 1;
+        }
+
+        /**
+         * Moves to the next frame.
+         *
+         * @return False if there are no more frames.
+         */
+        public boolean next() {
+            if (mIndex + 1 >= mEnd) {
+                return false;
+            }
+            ++mIndex;
+            mPosition = (int) (mIndex % mCapacity) * mSlotSize;
+            return true;
+        }
+
+        /**
+         * @return True if the current frame has not been overwritten. Check after reading.
+         */
+        public boolean isValid() {
+            /**
+             * The frame's reads must happen before the count is read, or a slot being overwritten
+             * could pass. A volatile read alone lets earlier reads move after it, but they can't
+             * move after a volatile write, and the volatile read can't move before it.
+             */
+            mFence = mIndex;
+            long count = mCount;
+            return mIndex < count && mIndex > count - mCapacity;
+        }
+
+        public long getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * @return The number of the frame after the last one the cursor will move to.
+         */
+        public long getEnd() {
+            return mEnd;
+        }
+
+        public long getTime() {
+            return mBuffer.getLong(mPosition + OFFSET_TIME);
+        }
+
+        public int getSource() {
+            return mBuffer.getInt(mPosition + OFFSET_SOURCE);
+        }
+
+        /**
+         * @return True if the frame was the first one taken from its source after a gap.
+         */
+        public boolean isGap() {
+            return (mBuffer.getInt(mPosition + OFFSET_FLAGS) & FLAG_GAP) != 0;
+        }
+
+        public double getValue(int channel) {
+            return mBuffer.getDouble(mPosition + OFFSET_VALUES + 8 * channel);
+        }
+    }
+}
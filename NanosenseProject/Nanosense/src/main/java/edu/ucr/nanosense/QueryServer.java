@@ -0,0 +1,624 @@
+package edu.ucr.nanosense;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * QueryServer answers range queries over the stores and the recorded sessions, so data can be
+ * pulled off the device over the network. Requests are HTTP GETs, for example from curl:
+ *
+ * <pre>
+ * GET /stores
+ * GET /query?store=raw&amp;channel=0&amp;start=0&amp;end=60000
+ * GET /query?store=raw&amp;channel=0&amp;mode=decimate&amp;step=10
+ * GET /query?session=session_1386201600000.nss&amp;channel=3&amp;mode=aggregate&amp;bucket=1000
+ * GET /stats?channel=0
+ * GET /archive?channel=7&amp;from=1383264000000&amp;to=1385856000000&amp;above=50
+ * GET /peaks?channel=7&amp;from=1383264000000
+ * </pre>
+ *
+ * start and end are session times in ms, end exclusive, and default to the whole store. Each
+ * frame, every step'th frame, or each bucket of bucket ms from start, is a line of JSON. Buckets
+ * have the count, min, max and mean of the values that aren't NaN. Rows are written as the frames
+ * are decoded, so a large range is never held in memory. /stats has a row for each window of
+ * the {@link edu.ucr.nanosense.RollingStatistics} of the channel, or of every channel.
+ * /archive and /peaks search every recorded session with a
+ * {@link edu.ucr.nanosense.SessionArchive}: from and to are wall clock ms since epoch, and above
+ * and below are thresholds on the values. /archive has a row for each frame that matches and
+ * /peaks for the highest value in each session.
+ *
+ * Each client is served on its own low priority thread, up to {@link #MAX_CLIENTS}. The stores
+ * are read through {@link edu.ucr.nanosense.SampleStore.Cursor}s without taking their locks, so
+ * queries don't hold up acquisition.
+ */
+public class QueryServer extends Thread {
+
+    private static final String TAG = "QueryServer";
+
+    /** Most clients served at once. Others are turned away. */
+    private static final int MAX_CLIENTS = 4;
+    /** Time in ms to wait for a client's request. */
+    private static final int READ_TIMEOUT = 10000;
+    /** Longest request line and header line read. */
+    private static final int MAX_LINE_LENGTH = 2048;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    private static final String MODE_RAW = "raw";
+    private static final String MODE_DECIMATE = "decimate";
+    private static final String MODE_AGGREGATE = "aggregate";
+
+    private final ServerSocket mServerSocket;
+    private final File mSessionDirectory;
+    /** Stores by name, guarded by itself. */
+    private final Map<String, SampleStore> mStores = new LinkedHashMap<String, SampleStore>();
+    /** Statistics served by /stats, or null if there are none. */
+    private volatile RollingStatistics mStatistics;
+    /** Searches the recorded sessions for /archive and /peaks. */
+    private final SessionArchive mArchive;
+
+    /** Number of clients being served, guarded by this. */
+    private int mNumClients = 0;
+
+    /**
+     * Opens the server socket. Call {@link #start()} to begin serving.
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     * @param sessionDirectory The directory recorded sessions are read from.
+     * @param archive Searches the recorded sessions.
+     */
+    public QueryServer(int port, File sessionDirectory, SessionArchive archive)
+            throws IOException {
+        super(TAG);
+        mServerSocket = new ServerSocket(port);
+        mSessionDirectory = sessionDirectory;
+        mArchive = archive;
+    }
+
+    /**
+     * Makes a store available to queries by name.
+     */
+    public void addStore(String name, SampleStore store) {
+        synchronized (mStores) {
+            mStores.put(name, store);
+        }
+    }
+
+    /**
+     * Makes the rolling statistics available to /stats.
+     */
+    public void setStatistics(RollingStatistics statistics) {
+        mStatistics = statistics;
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting clients. Clients being served finish their queries.
+     */
+    public void cancel() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "Serving queries on port " + getPort());
+        try {
+            while (true) {
+                Socket socket = mServerSocket.accept();
+                boolean accepted;
+                synchronized (this) {
+                    accepted = mNumClients < MAX_CLIENTS;
+                    if (accepted) {
+                        ++mNumClients;
+                    }
+                }
+                if (accepted) {
+                    new Connection(socket).start();
+                } else {
+                    reject(socket, "Too many clients");
+                }
+            }
+        } catch (IOException e) {
+            /** The socket is closed by cancel. */
+            Log.d(TAG, "Query server stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers 503 and closes the socket, without starting a thread for it.
+     */
+    static void reject(Socket socket, String message) {
+        try {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            writeError(writer, "503 Service Unavailable", message);
+            writer.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static void writeError(Writer writer, String status, String message)
+            throws IOException {
+        writer.write("HTTP/1.0 " + status + "\r\nContent-Type: text/plain\r\n\r\n" + message +
+                "\n");
+    }
+
+/***************************************************************************************************
+ *
+ * Connection
+ *
+ **************************************************************************************************/
+
+    /**
+     * Serves one request from a client and closes the connection.
+     */
+    private class Connection extends Thread {
+        private final Socket mSocket;
+
+        public Connection(Socket socket) {
+            super(TAG + " " + socket.getInetAddress());
+            mSocket = socket;
+            setPriority(MIN_PRIORITY);
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            long rows = 0;
+            String target = null;
+            try {
+                mSocket.setSoTimeout(READ_TIMEOUT);
+                target = readGetTarget(mSocket.getInputStream());
+                Writer writer = new BufferedWriter(
+                        new OutputStreamWriter(mSocket.getOutputStream(), "UTF-8"),
+                        WRITE_BUFFER_SIZE);
+                if (target == null) {
+                    writeError(writer, "400 Bad Request", "Only GET is supported");
+                } else {
+                    try {
+                        rows = serve(target, writer);
+                    } catch (IllegalArgumentException e) {
+                        writeError(writer, "400 Bad Request", e.getMessage());
+                    }
+                }
+                writer.flush();
+            } catch (IOException e) {
+                /** The client went away or a session couldn't be read. */
+                Log.d(TAG, "Query failed: " + e.getMessage());
+            } finally {
+                closeQuietly(mSocket);
+                synchronized (QueryServer.this) {
+                    --mNumClients;
+                }
+            }
+            Log.d(TAG, "Served " + target + ": " + rows + " rows in " +
+                    (System.nanoTime() - startTime) / 1000000 + "ms");
+        }
+    }
+
+    /**
+     * Reads an HTTP request and skips its headers.
+     *
+     * @return The request target of a GET, or null for anything else.
+     */
+    static String readGetTarget(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        String header;
+        do {
+            header = readLine(in);
+        } while (header != null && header.length() > 0);
+        String[] parts = requestLine == null ? new String[0] : requestLine.split(" ");
+        return parts.length < 2 || !parts[0].equals("GET") ? null : parts[1];
+    }
+
+    /**
+     * @return The line without the line ending, or null at the end of the stream.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r' && line.length() < MAX_LINE_LENGTH) {
+                line.append((char) c);
+            }
+        }
+        return c < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+/***************************************************************************************************
+ *
+ * Queries
+ *
+ **************************************************************************************************/
+
+    /**
+     * Writes the response for a request target.
+     *
+     * @return The number of rows written.
+     * @throws IllegalArgumentException If the request is invalid, before anything is written.
+     */
+    private long serve(String target, Writer writer) throws IOException {
+        int queryStart = target.indexOf('?');
+        String path = queryStart < 0 ? target : target.substring(0, queryStart);
+        Map<String, String> parameters =
+                parseParameters(queryStart < 0 ? "" : target.substring(queryStart + 1));
+        if (path.equals("/stores")) {
+            return serveStores(writer);
+        } else if (path.equals("/query")) {
+            return serveQuery(parameters, writer);
+        } else if (path.equals("/stats")) {
+            return serveStatistics(parameters, writer);
+        } else if (path.equals("/archive") || path.equals("/peaks")) {
+            return serveArchive(path.equals("/peaks"), parameters, writer);
+        }
+        throw new IllegalArgumentException("Unknown path " + path);
+    }
+
+    static Map<String, String> parseParameters(String query)
+            throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static void writeHeader(Writer writer) throws IOException {
+        writer.write("HTTP/1.0 200 OK\r\nContent-Type: application/x-ndjson\r\n\r\n");
+    }
+
+    /**
+     * Lists the stores and the recorded sessions.
+     */
+    private long serveStores(Writer writer) throws IOException {
+        long rows = 0;
+        writeHeader(writer);
+        synchronized (mStores) {
+            for (Map.Entry<String, SampleStore> entry : mStores.entrySet()) {
+                SampleStore store = entry.getValue();
+                writer.write("{\"store\":\"" + entry.getKey() + "\",\"channels\":" +
+                        store.getNumChannels() + ",\"frames\":" + store.size() + "}\n");
+                ++rows;
+            }
+        }
+        File[] files = mSessionDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(Constants.Session.FILE_EXTENSION)) {
+                    writer.write("{\"session\":\"" + file.getName() + "\",\"bytes\":" +
+                            file.length() + "}\n");
+                    ++rows;
+                }
+            }
+        }
+        return rows;
+    }
+
+    private long serveQuery(Map<String, String> parameters, Writer writer) throws IOException {
+        int channel = parseInt(parameters, "channel", 0);
+        long start = parseLong(parameters, "start", Long.MIN_VALUE);
+        long end = parseLong(parameters, "end", Long.MAX_VALUE);
+        String mode = parameters.containsKey("mode") ? parameters.get("mode") : MODE_RAW;
+        RowWriter rowWriter;
+        if (mode.equals(MODE_RAW)) {
+            rowWriter = new RowWriter(writer, 1);
+        } else if (mode.equals(MODE_DECIMATE)) {
+            rowWriter = new RowWriter(writer, parseInt(parameters, "step", 1));
+        } else if (mode.equals(MODE_AGGREGATE)) {
+            rowWriter = new BucketWriter(writer, start, parseLong(parameters, "bucket", 1000));
+        } else {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+
+        String storeName = parameters.get("store");
+        String sessionName = parameters.get("session");
+        if (storeName != null) {
+            SampleStore store;
+            synchronized (mStores) {
+                store = mStores.get(storeName);
+            }
+            if (store == null) {
+                throw new IllegalArgumentException("Unknown store " + storeName);
+            }
+            checkChannel(channel, store.getNumChannels());
+            writeHeader(writer);
+            queryStore(store, channel, start, end, rowWriter);
+        } else if (sessionName != null) {
+            File file = new File(mSessionDirectory, sessionName);
+            /** Only serve files directly in the session directory. */
+            if (sessionName.indexOf('/') >= 0 || !file.isFile()) {
+                throw new IllegalArgumentException("Unknown session " + sessionName);
+            }
+            SessionReader reader;
+            try {
+                reader = new SessionReader(file);
+            } catch (IOException e) {
+                /** Not a session, or cut off before its header. Nothing is written yet. */
+                Log.d(TAG, "Can't read " + sessionName + ": " + e.getMessage());
+                writeError(writer, "500 Internal Server Error",
+                        "Can't read session " + sessionName);
+                return 0;
+            }
+            try {
+                checkChannel(channel, reader.getNumChannels());
+                writeHeader(writer);
+                querySession(reader, channel, start, end, rowWriter);
+            } finally {
+                reader.close();
+            }
+        } else {
+            throw new IllegalArgumentException("Missing store or session");
+        }
+        rowWriter.finish();
+        return rowWriter.mRows;
+    }
+
+    private static void queryStore(SampleStore store, int channel, long start, long end,
+                                   RowWriter rowWriter) throws IOException {
+        int startIndex = start == Long.MIN_VALUE ? 0 : store.indexOfTime(start);
+        int endIndex = end == Long.MAX_VALUE ? store.size() : store.indexOfTime(end);
+        SampleStore.Cursor cursor = store.cursor(channel, startIndex, endIndex);
+        while (cursor.next()) {
+            rowWriter.write(cursor.getTime(), cursor.getSource(), cursor.getValue());
+        }
+    }
+
+    /**
+     * Decodes the session's chunks one at a time, skipping those outside the range.
+     */
+    private static void querySession(SessionReader reader, int channel, long start, long end,
+                                     RowWriter rowWriter) throws IOException {
+        CompressedChunk chunk;
+        while ((chunk = reader.nextChunk()) != null) {
+            if (chunk.getLastTime() < start) {
+                continue;
+            }
+            if (chunk.getFirstTime() >= end) {
+                break;
+            }
+            CompressedChunk.TimeReader timeReader = chunk.newTimeReader();
+            CompressedChunk.SourceReader sourceReader = chunk.newSourceReader();
+            CompressedChunk.ValueReader valueReader = chunk.newValueReader(channel);
+            for (int i = 0; i < chunk.getNumFrames(); ++i) {
+                long time = timeReader.next();
+                int source = sourceReader.next();
+                double value = valueReader.next();
+                if (time >= start && time < end) {
+                    rowWriter.write(time, source, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the statistics of each window for the channel, or every channel if none is given.
+     */
+    private long serveStatistics(Map<String, String> parameters, Writer writer)
+            throws IOException {
+        RollingStatistics statistics = mStatistics;
+        if (statistics == null) {
+            throw new IllegalArgumentException("No statistics");
+        }
+        int first = 0;
+        int last = statistics.getNumChannels() - 1;
+        if (parameters.containsKey("channel")) {
+            first = parseInt(parameters, "channel", 0);
+            checkChannel(first, statistics.getNumChannels());
+            last = first;
+        }
+        writeHeader(writer);
+        long rows = 0;
+        RollingStatistics.Summary summary = new RollingStatistics.Summary();
+        for (int channel = first; channel <= last; ++channel) {
+            for (int window = 0; window < Constants.Statistics.NUM_WINDOWS; ++window) {
+                statistics.get(channel, window, summary);
+                writer.write("{\"channel\":" + channel + ",\"window\":" + window +
+                        ",\"start\":" + summary.mStart + ",\"end\":" + summary.mEnd +
+                        ",\"count\":" + summary.mCount);
+                if (summary.mCount > 0) {
+                    writer.write(",\"mean\":" + toJson(summary.mMean) +
+                            ",\"variance\":" + toJson(summary.mVariance) +
+                            ",\"min\":" + toJson(summary.mMin) +
+                            ",\"max\":" + toJson(summary.mMax) +
+                            ",\"slope\":" + toJson(summary.mSlope));
+                }
+                writer.write("}\n");
+                ++rows;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Searches the recorded sessions, writing each match as it is found.
+     */
+    private long serveArchive(boolean peaks, Map<String, String> parameters,
+                              final Writer writer) throws IOException {
+        SessionArchive.Query query = new SessionArchive.Query();
+        query.mChannel = parseInt(parameters, "channel", 0);
+        query.mFrom = parseLong(parameters, "from", Long.MIN_VALUE);
+        query.mTo = parseLong(parameters, "to", Long.MAX_VALUE);
+        query.mAbove = parseDouble(parameters, "above", Double.NEGATIVE_INFINITY);
+        query.mBelow = parseDouble(parameters, "below", Double.POSITIVE_INFINITY);
+        if (query.mChannel < 0) {
+            throw new IllegalArgumentException("Invalid channel " + query.mChannel);
+        }
+        writeHeader(writer);
+        SessionArchive.OnMatchListener listener = new SessionArchive.OnMatchListener() {
+            @Override
+            public void onMatch(String session, long startTime, long time, int source,
+                                double value) throws IOException {
+                writer.write("{\"session\":\"" + session + "\",\"start\":" + startTime +
+                        ",\"t\":" + time + ",\"s\":" + source + ",\"v\":" + toJson(value) +
+                        "}\n");
+            }
+        };
+        SessionArchive.ScanStatistics statistics = peaks ? mArchive.peaks(query, listener) :
+                mArchive.scan(query, listener);
+        Log.d(TAG, "Archive " + (peaks ? "peaks" : "scan") + ": " + statistics);
+        return statistics.mMatches;
+    }
+
+    private static void checkChannel(int channel, int numChannels) {
+        if (channel < 0 || channel >= numChannels) {
+            throw new IllegalArgumentException("Channel must be from 0 to " + (numChannels - 1));
+        }
+    }
+
+    static int parseInt(Map<String, String> parameters, String name, int defaultValue) {
+        String value = parameters.get(name);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " " + value);
+        }
+    }
+
+    private static long parseLong(Map<String, String> parameters, String name,
+                                  long defaultValue) {
+        String value = parameters.get(name);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " " + value);
+        }
+    }
+
+    private static double parseDouble(Map<String, String> parameters, String name,
+                                      double defaultValue) {
+        String value = parameters.get(name);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " " + value);
+        }
+    }
+
+    /**
+     * @return The value as JSON. NaN and infinite values, which JSON can't hold, are null.
+     */
+    static String toJson(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+    }
+
+    /**
+     * Writes every step'th frame as a row.
+     */
+    private static class RowWriter {
+        protected final Writer mWriter;
+        private final int mStep;
+        private long mFrames = 0;
+        protected long mRows = 0;
+
+        public RowWriter(Writer writer, int step) {
+            if (step < 1) {
+                throw new IllegalArgumentException("Invalid step " + step);
+            }
+            mWriter = writer;
+            mStep = step;
+        }
+
+        public void write(long time, int source, double value) throws IOException {
+            if (mFrames++ % mStep == 0) {
+                mWriter.write("{\"t\":" + time + ",\"s\":" + source + ",\"v\":" + toJson(value) +
+                        "}\n");
+                ++mRows;
+            }
+        }
+
+        public void finish() throws IOException {
+        }
+    }
+
+    /**
+     * Writes a row with the count, min, max and mean of each bucket that has frames.
+     */
+    private static class BucketWriter extends RowWriter {
+        private final long mOrigin;
+        private final long mBucket;
+
+        private boolean mHasBucket = false;
+        private long mBucketStart;
+        private int mCount;
+        private double mMin;
+        private double mMax;
+        private double mSum;
+
+        public BucketWriter(Writer writer, long origin, long bucket) {
+            super(writer, 1);
+            if (bucket < 1) {
+                throw new IllegalArgumentException("Invalid bucket " + bucket);
+            }
+            mOrigin = origin == Long.MIN_VALUE ? 0 : origin;
+            mBucket = bucket;
+        }
+
+        @Override
+        public void write(long time, int source, double value) throws IOException {
+            long offset = time - mOrigin;
+            /** Round down for times before the origin too. */
+            long bucketStart = mOrigin + (offset >= 0 ? offset / mBucket :
+                    (offset - mBucket + 1) / mBucket) * mBucket;
+            if (!mHasBucket || bucketStart != mBucketStart) {
+                finish();
+                mHasBucket = true;
+                mBucketStart = bucketStart;
+                mCount = 0;
+                mMin = Double.POSITIVE_INFINITY;
+                mMax = Double.NEGATIVE_INFINITY;
+                mSum = 0;
+            }
+            if (!Double.isNaN(value)) {
+                ++mCount;
+                mMin = Math.min(mMin, value);
+                mMax = Math.max(mMax, value);
+                mSum += value;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!mHasBucket) {
+                return;
+            }
+            mHasBucket = false;
+            mWriter.write("{\"t\":" + mBucketStart + ",\"n\":" + mCount + ",\"min\":" +
+                    toJson(mMin) + ",\"max\":" + toJson(mMax) + ",\"mean\":" +
+                    toJson(mCount > 0 ? mSum / mCount : Double.NaN) + "}\n");
+            ++mRows;
+        }
+    }
+}
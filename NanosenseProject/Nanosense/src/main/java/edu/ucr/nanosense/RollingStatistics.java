@@ -0,0 +1,230 @@
+package edu.ucr.nanosense;
+
+/**
+ * RollingStatistics keeps the count, mean, variance, min, max and slope of every channel over the
+ * last second, minute and hour of frame time, so the UI, detectors and exporters can read them
+ * without going back over the stores.
+ *
+ * Each window is a ring of {@link Constants.Statistics#NUM_BUCKETS} buckets of equal length. A
+ * bucket keeps the Welford running mean and sum of squared differences of the values and of the
+ * times, and their co-moment, so adding a value is O(1) and no values are kept. The window's
+ * statistics are the buckets merged, which is exact for the buckets in it, so the window slides a
+ * bucket at a time: the last minute is the newest 50 buckets of 1.2 seconds, the newest partly
+ * filled. A bucket is reset when the ring comes back around to it. Frames arriving slightly out
+ * of order, as from several boards, are added to their own bucket as long as it is still in the
+ * window.
+ *
+ * The slope is the least squares fit of the values against time, in units per second.
+ */
+public class RollingStatistics {
+
+    private static final long[] WINDOW_DURATIONS = {
+            Constants.Statistics.SECOND_DURATION,
+            Constants.Statistics.MINUTE_DURATION,
+            Constants.Statistics.HOUR_DURATION
+    };
+    private static final int NUM_WINDOWS = Constants.Statistics.NUM_WINDOWS;
+    private static final int NUM_BUCKETS = Constants.Statistics.NUM_BUCKETS;
+
+    private final int mNumChannels;
+
+    /** Bucket number held in each [window][bucket] slot, or -1 if empty. */
+    private final long[] mBucketNumbers;
+    /** Statistics of each [window][channel][bucket] slot. Times are in seconds. */
+    private final int[] mCounts;
+    private final double[] mMeans;
+    private final double[] mSquares;
+    private final double[] mTimeMeans;
+    private final double[] mTimeSquares;
+    private final double[] mComoments;
+    private final double[] mMins;
+    private final double[] mMaxes;
+
+    /** Newest bucket number of each window, or -1 before the first frame. */
+    private final long[] mNewestBuckets = new long[NUM_WINDOWS];
+
+    /**
+     * Statistics of a channel over a window.
+     */
+    public static class Summary {
+        /** Number of values that aren't NaN. The others are only valid if it is above 0. */
+        public int mCount;
+        public double mMean;
+        /** Sample variance, or 0 for a single value. */
+        public double mVariance;
+        public double mMin;
+        public double mMax;
+        /** Change per second of the least squares fit, or NaN if all values have one time. */
+        public double mSlope;
+        /** Start and end in ms of the buckets merged. */
+        public long mStart;
+        public long mEnd;
+
+        @Override
+        public String toString() {
+            return "count: " + mCount + ", mean: " + mMean + ", variance: " + mVariance +
+                    ", min: " + mMin + ", max: " + mMax + ", slope: " + mSlope + "/s, [" +
+                    mStart + ", " + mEnd + ")";
+        }
+    }
+
+    public RollingStatistics(int numChannels) {
+        mNumChannels = numChannels;
+        int numSlots = NUM_WINDOWS * numChannels * NUM_BUCKETS;
+        mBucketNumbers = new long[NUM_WINDOWS * NUM_BUCKETS];
+        mCounts = new int[numSlots];
+        mMeans = new double[numSlots];
+        mSquares = new double[numSlots];
+        mTimeMeans = new double[numSlots];
+        mTimeSquares = new double[numSlots];
+        mComoments = new double[numSlots];
+        mMins = new double[numSlots];
+        mMaxes = new double[numSlots];
+        clear();
+    }
+
+    public int getNumChannels() {
+        return mNumChannels;
+    }
+
+    /**
+     * Removes all values, as when a new session starts.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mBucketNumbers.length; ++i) {
+            mBucketNumbers[i] = -1;
+        }
+        for (int i = 0; i < NUM_WINDOWS; ++i) {
+            mNewestBuckets[i] = -1;
+        }
+    }
+
+    /**
+     * Adds a frame to every window. NaN values are skipped.
+     *
+     * @param time The time of the frame in ms.
+     * @param frame The values. Channels are read starting at offset.
+     */
+    public synchronized void append(long time, double[] frame, int offset) {
+        if (time < 0) {
+            return;
+        }
+        double seconds = time / 1000.0;
+        for (int window = 0; window < NUM_WINDOWS; ++window) {
+            long bucketNumber = time / getBucketDuration(window);
+            if (bucketNumber > mNewestBuckets[window]) {
+                mNewestBuckets[window] = bucketNumber;
+            } else if (bucketNumber <= mNewestBuckets[window] - NUM_BUCKETS) {
+                /** Too old for the window. */
+                continue;
+            }
+            int bucket = (int) (bucketNumber % NUM_BUCKETS);
+            int bucketSlot = window * NUM_BUCKETS + bucket;
+            if (mBucketNumbers[bucketSlot] != bucketNumber) {
+                mBucketNumbers[bucketSlot] = bucketNumber;
+                for (int channel = 0; channel < mNumChannels; ++channel) {
+                    mCounts[getSlot(window, channel, bucket)] = 0;
+                }
+            }
+            for (int channel = 0; channel < mNumChannels; ++channel) {
+                double value = frame[offset + channel];
+                if (!Double.isNaN(value)) {
+                    add(getSlot(window, channel, bucket), seconds, value);
+                }
+            }
+        }
+    }
+
+    private void add(int slot, double time, double value) {
+        int count = ++mCounts[slot];
+        if (count == 1) {
+            mMeans[slot] = value;
+            mTimeMeans[slot] = time;
+            mSquares[slot] = 0;
+            mTimeSquares[slot] = 0;
+            mComoments[slot] = 0;
+            mMins[slot] = value;
+            mMaxes[slot] = value;
+            return;
+        }
+        double timeDelta = time - mTimeMeans[slot];
+        mTimeMeans[slot] += timeDelta / count;
+        double delta = value - mMeans[slot];
+        mMeans[slot] += delta / count;
+        double newDelta = value - mMeans[slot];
+        mSquares[slot] += delta * newDelta;
+        mTimeSquares[slot] += timeDelta * (time - mTimeMeans[slot]);
+        mComoments[slot] += timeDelta * newDelta;
+        if (value < mMins[slot]) {
+            mMins[slot] = value;
+        }
+        if (value > mMaxes[slot]) {
+            mMaxes[slot] = value;
+        }
+    }
+
+    private static long getBucketDuration(int window) {
+        return WINDOW_DURATIONS[window] / NUM_BUCKETS;
+    }
+
+    private int getSlot(int window, int channel, int bucket) {
+        return (window * mNumChannels + channel) * NUM_BUCKETS + bucket;
+    }
+
+    /**
+     * Merges the buckets of a window ending at the newest frame.
+     *
+     * @param window One of the WINDOW constants in {@link Constants.Statistics}.
+     * @param summary Set to the statistics. Reused by the caller so nothing is allocated.
+     * @return False if the channel has no values in the window.
+     */
+    public synchronized boolean get(int channel, int window, Summary summary) {
+        long newest = mNewestBuckets[window];
+        long bucketDuration = getBucketDuration(window);
+        summary.mCount = 0;
+        summary.mStart = Math.max(newest - NUM_BUCKETS + 1, 0) * bucketDuration;
+        summary.mEnd = (newest + 1) * bucketDuration;
+        if (newest < 0) {
+            return false;
+        }
+        int count = 0;
+        double mean = 0;
+        double squares = 0;
+        double timeMean = 0;
+        double timeSquares = 0;
+        double comoment = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int bucket = 0; bucket < NUM_BUCKETS; ++bucket) {
+            long bucketNumber = mBucketNumbers[window * NUM_BUCKETS + bucket];
+            int slot = getSlot(window, channel, bucket);
+            int bucketCount = mCounts[slot];
+            if (bucketNumber < 0 || bucketNumber <= newest - NUM_BUCKETS || bucketCount == 0) {
+                continue;
+            }
+            /** Chan et al.'s pairwise merge of the running statistics. */
+            int total = count + bucketCount;
+            double weight = (double) count * bucketCount / total;
+            double delta = mMeans[slot] - mean;
+            double timeDelta = mTimeMeans[slot] - timeMean;
+            squares += mSquares[slot] + delta * delta * weight;
+            timeSquares += mTimeSquares[slot] + timeDelta * timeDelta * weight;
+            comoment += mComoments[slot] + timeDelta * delta * weight;
+            mean += delta * bucketCount / total;
+            timeMean += timeDelta * bucketCount / total;
+            count = total;
+            min = Math.min(min, mMins[slot]);
+            max = Math.max(max, mMaxes[slot]);
+        }
+        if (count == 0) {
+            return false;
+        }
+        summary.mCount = count;
+        summary.mMean = mean;
+        summary.mVariance = count > 1 ? squares / (count - 1) : 0;
+        summary.mMin = min;
+        summary.mMax = max;
+        summary.mSlope = timeSquares > 0 ? comoment / timeSquares : Double.NaN;
+        return true;
+    }
+}
@@ -0,0 +1,177 @@
+package edu.ucr.nanosense;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * RoverCommandWriter writes the rover's motor commands to the UART on its own thread so callers,
+ * like the Looper or the accelerometer at SENSOR_DELAY_FASTEST, never block on the 115200 baud
+ * link.
+ *
+ * The queue holds at most one stop and one wheel command. A wheel command replaces any wheel
+ * command that hasn't been sent yet, since only the latest target matters, and isn't sent at all
+ * if it is the same as the last one sent. A stop drops any pending wheel command and is always
+ * sent first. The queue depth when each command is offered and the time from offer to the end of
+ * the write are logged every {@link #LOG_INTERVAL} commands sent.
+ */
+public class RoverCommandWriter extends Thread {
+
+    private static final String TAG = "RoverCommandWriter";
+
+    /** Number of commands sent between logging the statistics. */
+    private static final int LOG_INTERVAL = 100;
+
+    private static final byte[] STOP_COMMAND = {
+            Constants.Rover.COMMAND_LEFT_FORWARD, 0, Constants.Rover.COMMAND_RIGHT_FORWARD, 0};
+
+    private final OutputStream mOut;
+
+    /** Pending commands and the time they were offered, guarded by this. */
+    private boolean mStopPending = false;
+    private long mStopOfferedTime;
+    private final byte[] mPendingWheels = new byte[Constants.Rover.COMMAND_SIZE];
+    private boolean mWheelsPending = false;
+    private long mWheelsOfferedTime;
+    private boolean mRunning = true;
+
+    /** The last wheel command sent. Only used on the writer thread. */
+    private final byte[] mSentWheels = new byte[Constants.Rover.COMMAND_SIZE];
+    private boolean mHasSentWheels = false;
+
+    /** Statistics since the last log, guarded by this. */
+    private int mCommandsOffered = 0;
+    private int mCommandsCoalesced = 0;
+    private int mCommandsSent = 0;
+    private long mQueueDepthSum = 0;
+    private long mLatencySum = 0;
+    private long mLatencyMax = 0;
+
+    /**
+     * @param out The UART's output stream.
+     */
+    public RoverCommandWriter(OutputStream out) {
+        super(TAG);
+        mOut = out;
+    }
+
+    /**
+     * Queues a command to set the speed of each wheel, replacing any that hasn't been sent yet.
+     *
+     * @param leftWheel Speed of the left wheel, negative to reverse.
+     * @param rightWheel Speed of the right wheel, negative to reverse.
+     */
+    public synchronized void setWheels(double leftWheel, double rightWheel) {
+        recordOffer();
+        if (mWheelsPending) {
+            ++mCommandsCoalesced;
+        }
+        mPendingWheels[0] = leftWheel < 0 ? Constants.Rover.COMMAND_LEFT_REVERSE :
+                Constants.Rover.COMMAND_LEFT_FORWARD;
+        mPendingWheels[1] = (byte) Math.abs(leftWheel);
+        mPendingWheels[2] = rightWheel < 0 ? Constants.Rover.COMMAND_RIGHT_REVERSE :
+                Constants.Rover.COMMAND_RIGHT_FORWARD;
+        mPendingWheels[3] = (byte) Math.abs(rightWheel);
+        mWheelsPending = true;
+        mWheelsOfferedTime = SystemClock.elapsedRealtime();
+        notify();
+    }
+
+    /**
+     * Queues a stop ahead of everything else. Any wheel command that hasn't been sent is dropped.
+     */
+    public synchronized void stopMovement() {
+        recordOffer();
+        if (mWheelsPending) {
+            ++mCommandsCoalesced;
+            mWheelsPending = false;
+        }
+        if (mStopPending) {
+            ++mCommandsCoalesced;
+        } else {
+            mStopPending = true;
+            mStopOfferedTime = SystemClock.elapsedRealtime();
+        }
+        notify();
+    }
+
+    private void recordOffer() {
+        ++mCommandsOffered;
+        mQueueDepthSum += (mStopPending ? 1 : 0) + (mWheelsPending ? 1 : 0);
+    }
+
+    /**
+     * Stops the thread. Commands that haven't been sent are dropped.
+     */
+    public synchronized void cancel() {
+        mRunning = false;
+        notify();
+    }
+
+    @Override
+    public void run() {
+        byte[] command = new byte[Constants.Rover.COMMAND_SIZE];
+        try {
+            while (true) {
+                long offeredTime;
+                boolean stop;
+                synchronized (this) {
+                    while (mRunning && !mStopPending && !mWheelsPending) {
+                        wait();
+                    }
+                    if (!mRunning) {
+                        break;
+                    }
+                    stop = mStopPending;
+                    if (stop) {
+                        System.arraycopy(STOP_COMMAND, 0, command, 0, command.length);
+                        offeredTime = mStopOfferedTime;
+                        mStopPending = false;
+                    } else {
+                        System.arraycopy(mPendingWheels, 0, command, 0, command.length);
+                        offeredTime = mWheelsOfferedTime;
+                        mWheelsPending = false;
+                    }
+                }
+                if (stop) {
+                    mHasSentWheels = false;
+                } else if (mHasSentWheels && Arrays.equals(command, mSentWheels)) {
+                    /** The rover is already doing this. */
+                    continue;
+                } else {
+                    System.arraycopy(command, 0, mSentWheels, 0, command.length);
+                    mHasSentWheels = true;
+                }
+                mOut.write(command);
+                recordSent(SystemClock.elapsedRealtime() - offeredTime);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Command writer interrupted");
+        }
+    }
+
+    private synchronized void recordSent(long latency) {
+        ++mCommandsSent;
+        mLatencySum += latency;
+        if (latency > mLatencyMax) {
+            mLatencyMax = latency;
+        }
+        if (mCommandsSent == LOG_INTERVAL) {
+            Log.d(TAG, "Sent " + mCommandsSent + " of " + mCommandsOffered + " commands, " +
+                    "coalesced " + mCommandsCoalesced + ", average queue depth " +
+                    (double) mQueueDepthSum / mCommandsOffered + ", latency average " +
+                    mLatencySum / mCommandsSent + "ms max " + mLatencyMax + "ms");
+            mCommandsOffered = 0;
+            mCommandsCoalesced = 0;
+            mCommandsSent = 0;
+            mQueueDepthSum = 0;
+            mLatencySum = 0;
+            mLatencyMax = 0;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package edu.ucr.nanosense;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * RoverTelemetryReader reads the rover's odometry and status from the UART on its own thread.
+ * Bytes are read into one reusable buffer and frames are parsed in place, so nothing is allocated
+ * per frame and the reader keeps up with the full 115200 baud. See
+ * {@link Constants.Rover#TELEMETRY_SYNC} for the frame format. A bad checksum skips one byte to
+ * find the next sync, so the reader resynchronizes after a dropped or corrupted byte.
+ *
+ * The encoder counts are integrated into the rover's position and heading from where the reader
+ * started. Each frame is passed to the {@link OnTelemetryListener} as a sample with the
+ * TELEMETRY_INDEX channels in {@link Constants.Rover}. The sample is reused for the next frame.
+ */
+public class RoverTelemetryReader extends Thread {
+
+    private static final String TAG = "RoverTelemetryReader";
+
+    /** Number of frames between logging the statistics. */
+    private static final int LOG_INTERVAL = 1000;
+
+    /**
+     * Called from the reader thread with each frame. The sample is only valid during the call.
+     */
+    public interface OnTelemetryListener {
+        public void onTelemetry(int source, double[] sample);
+    }
+
+    private final InputStream mIn;
+    private final int mSource;
+    private final OnTelemetryListener mOnTelemetryListener;
+
+    private final byte[] mBuffer = new byte[Constants.Rover.TELEMETRY_BUFFER_SIZE];
+    private final double[] mSample = new double[Constants.Rover.NUM_TELEMETRY_CHANNELS];
+    private volatile boolean mRunning = true;
+
+    /** Odometry. The last counts are -1 until the first frame. */
+    private int mLastLeftCount = -1;
+    private int mLastRightCount = -1;
+    private double mX = 0;
+    private double mY = 0;
+    private double mHeading = 0;
+
+    /** Statistics since the last log. */
+    private int mFrames = 0;
+    private int mChecksumErrors = 0;
+    private long mBytesRead = 0;
+    private long mBytesSkipped = 0;
+    private long mLogStartTime = SystemClock.elapsedRealtime();
+
+    /**
+     * @param in The UART's input stream.
+     * @param source The board the rover is connected to.
+     */
+    public RoverTelemetryReader(InputStream in, int source,
+                                OnTelemetryListener onTelemetryListener) {
+        super(TAG);
+        mIn = in;
+        mSource = source;
+        mOnTelemetryListener = onTelemetryListener;
+    }
+
+    /**
+     * Stops the thread once the current read returns.
+     */
+    public void cancel() {
+        mRunning = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = mBuffer;
+        int end = 0;
+        try {
+            while (mRunning) {
+                int count = mIn.read(buffer, end, buffer.length - end);
+                if (count < 0) {
+                    break;
+                }
+                mBytesRead += count;
+                end += count;
+                int start = parse(buffer, end);
+                /** Move the partial frame left over to the front. It is shorter than a frame. */
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+            }
+        } catch (IOException e) {
+            /** The UART is closed when the board disconnects. */
+            Log.d(TAG, "Telemetry reader stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses the complete frames in buffer[0, end).
+     *
+     * @return The index of the first byte that wasn't consumed.
+     */
+    private int parse(byte[] buffer, int end) {
+        int position = 0;
+        while (end - position >= Constants.Rover.TELEMETRY_FRAME_SIZE) {
+            if (buffer[position] != Constants.Rover.TELEMETRY_SYNC) {
+                ++position;
+                ++mBytesSkipped;
+                continue;
+            }
+            int checksumIndex = position + Constants.Rover.TELEMETRY_FRAME_SIZE - 1;
+            int sum = 0;
+            for (int i = position; i < checksumIndex; ++i) {
+                sum += buffer[i];
+            }
+            if ((sum & 0x7F) != buffer[checksumIndex]) {
+                /** Not a frame, or a corrupted one. Look for the next sync after this one. */
+                ++position;
+                ++mBytesSkipped;
+                ++mChecksumErrors;
+                continue;
+            }
+            int leftCount = ((buffer[position + 1] & 0xFF) << 8) | (buffer[position + 2] & 0xFF);
+            int rightCount = ((buffer[position + 3] & 0xFF) << 8) | (buffer[position + 4] & 0xFF);
+            int batteryMillivolts =
+                    ((buffer[position + 5] & 0xFF) << 8) | (buffer[position + 6] & 0xFF);
+            int status = buffer[position + 7] & 0xFF;
+            updateOdometry(leftCount, rightCount);
+            mSample[Constants.Rover.TELEMETRY_INDEX_X] = mX;
+            mSample[Constants.Rover.TELEMETRY_INDEX_Y] = mY;
+            mSample[Constants.Rover.TELEMETRY_INDEX_HEADING] = mHeading;
+            mSample[Constants.Rover.TELEMETRY_INDEX_BATTERY] = batteryMillivolts / 1000.0;
+            mSample[Constants.Rover.TELEMETRY_INDEX_STATUS] = status;
+            mOnTelemetryListener.onTelemetry(mSource, mSample);
+            position += Constants.Rover.TELEMETRY_FRAME_SIZE;
+            if (++mFrames == LOG_INTERVAL) {
+                logStatistics();
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Integrates the distance each wheel moved since the last frame into the position and heading.
+     * The counts wrap at 16 bits.
+     */
+    private void updateOdometry(int leftCount, int rightCount) {
+        if (mLastLeftCount >= 0) {
+            /** Sign extend the difference so a wrap reads as a small step. */
+            int leftTicks = (short) (leftCount - mLastLeftCount);
+            int rightTicks = (short) (rightCount - mLastRightCount);
+            double left = leftTicks / Constants.Rover.TICKS_PER_METER;
+            double right = rightTicks / Constants.Rover.TICKS_PER_METER;
+            double distance = (left + right) / 2;
+            double heading = mHeading + (right - left) / Constants.Rover.WHEEL_BASE / 2;
+            /** Move along the heading halfway through the step. */
+            mX += distance * Math.cos(heading);
+            mY += distance * Math.sin(heading);
+            mHeading = heading + (right - left) / Constants.Rover.WHEEL_BASE / 2;
+        }
+        mLastLeftCount = leftCount;
+        mLastRightCount = rightCount;
+    }
+
+    private void logStatistics() {
+        long elapsed = Math.max(SystemClock.elapsedRealtime() - mLogStartTime, 1);
+        Log.d(TAG, "Parsed " + mFrames + " frames from " + mBytesRead + " bytes in " + elapsed +
+                "ms, " + mFrames * 1000 / elapsed + " frames/s, skipped " + mBytesSkipped +
+                " bytes, " + mChecksumErrors + " checksum errors");
+        mFrames = 0;
+        mChecksumErrors = 0;
+        mBytesRead = 0;
+        mBytesSkipped = 0;
+        mLogStartTime = SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,605 @@
+package edu.ucr.nanosense;
+
+/**
+ * SampleStore holds the sensor readings as primitive columns: one timestamp and source board per
+ * frame and one value column per channel. Frames from all boards are stored in time order. It also
+ * tracks the min and max value seen for each channel, and indexes the min and max of each block
+ * of frames so {@link edu.ucr.nanosense.GraphView} can auto-scale any window of the session.
+ *
+ * Frames are appended to an uncompressed head chunk. Once it holds
+ * {@link Constants.Storage#CHUNK_SIZE} frames it is sealed into a
+ * {@link edu.ucr.nanosense.CompressedChunk} and a new head is started, so a long session only
+ * keeps the newest frames as raw doubles. Use a {@link Cursor} to read frames in order, it decodes
+ * the sealed chunks as it goes. {@link #getTime(int)} and {@link #getValue(int, int)} also work on
+ * sealed frames but decode from the start of the chunk.
+ *
+ * There is a single writer (the {@link edu.ucr.nanosense.FrameMerger}) and any number of readers.
+ * Readers should call {@link #size()} first and only read indices below it. Sealed chunks and old
+ * heads are never modified so the readers do not need to lock.
+ */
+public class SampleStore {
+
+    private static final int INITIAL_GAP_CAPACITY = 16;
+
+    private final int mNumChannels;
+
+    /**
+     * The uncompressed chunk being appended to, which holds the sealed chunks before it. Readers
+     * take both from one read so they always match, even across {@link #clear()}.
+     */
+    private volatile Head mHead;
+    /** Number of frames stored. Written last so readers always see a complete frame. */
+    private volatile int mSize = 0;
+
+    /** Sorted indices of the frames that were taken after a gap in acquisition. */
+    private volatile int[] mGapIndices = new int[INITIAL_GAP_CAPACITY];
+    private volatile int mNumGaps = 0;
+    /** Bit per source set by {@link #markGap(int)} so its next appended frame is marked. */
+    private long mGapPendingSources = 0;
+
+    private final double[] mMaxValues;
+    private final double[] mMinValues;
+
+    /** Min and max of each full block of frames. */
+    private final ExtentIndex mExtentIndex;
+    /** Min and max of the block being appended to. */
+    private final double[] mBlockMaxValues;
+    private final double[] mBlockMinValues;
+
+    /** Total size of the sealed chunks in bytes. */
+    private volatile long mCompressedBytes = 0;
+
+    /**
+     * Head is the uncompressed chunk. A new one is allocated when the previous one is sealed so
+     * readers still holding the old one keep reading valid frames.
+     */
+    private static class Head {
+        /** Index of the first frame in the head. */
+        private final int mStart;
+        /** Sealed chunks in order. Chunk i holds the frames starting at i * CHUNK_SIZE. */
+        private final CompressedChunk[] mChunks;
+        /** Time in milliseconds of each frame. */
+        private final long[] mTimes;
+        /** Board each frame was read from. */
+        private final byte[] mSources;
+        /** Values indexed by [channel][frame]. */
+        private final double[][] mValues;
+
+        public Head(int start, int numChannels, CompressedChunk[] chunks) {
+            mStart = start;
+            mChunks = chunks;
+            mTimes = new long[Constants.Storage.CHUNK_SIZE];
+            mSources = new byte[Constants.Storage.CHUNK_SIZE];
+            mValues = new double[numChannels][Constants.Storage.CHUNK_SIZE];
+        }
+    }
+
+    public SampleStore(int numChannels) {
+        mNumChannels = numChannels;
+        mHead = new Head(0, numChannels, new CompressedChunk[0]);
+        mMaxValues = new double[numChannels];
+        mMinValues = new double[numChannels];
+        mExtentIndex = new ExtentIndex(numChannels);
+        mBlockMaxValues = new double[numChannels];
+        mBlockMinValues = new double[numChannels];
+        resetExtents();
+    }
+
+    /**
+     * Appends a frame from board 0 to the store.
+     *
+     * @param time The time of the frame in ms.
+     * @param frame The value of each channel. Only the first {@link #getNumChannels()} are read.
+     */
+    public void append(long time, double[] frame) {
+        append(0, time, frame, 0);
+    }
+
+    /**
+     * Appends a frame to the store.
+     *
+     * @param source The board the frame was read from.
+     * @param time The time of the frame in ms. Must not be before the last appended frame.
+     * @param frame The values. Channels are read starting at offset.
+     * @param offset The index in frame of the first channel.
+     */
+    public synchronized void append(int source, long time, double[] frame, int offset) {
+        int size = mSize;
+        Head head = mHead;
+        if (size - head.mStart == Constants.Storage.CHUNK_SIZE) {
+            head = seal(head);
+        }
+        long sourceBit = 1L << source;
+        if ((mGapPendingSources & sourceBit) != 0) {
+            addGap(size);
+            mGapPendingSources &= ~sourceBit;
+        }
+        int index = size - head.mStart;
+        head.mTimes[index] = time;
+        head.mSources[index] = (byte) source;
+        double[][] values = head.mValues;
+        for (int i = 0; i < mNumChannels; ++i) {
+            double value = frame[offset + i];
+            values[i][index] = value;
+            if (value > mMaxValues[i]) {
+                mMaxValues[i] = value;
+            }
+            if (value < mMinValues[i]) {
+                mMinValues[i] = value;
+            }
+            if (value > mBlockMaxValues[i]) {
+                mBlockMaxValues[i] = value;
+            }
+            if (value < mBlockMinValues[i]) {
+                mBlockMinValues[i] = value;
+            }
+        }
+        if ((size + 1) % Constants.Storage.EXTENT_BLOCK_SIZE == 0) {
+            /** The block is indexed before its last frame is published. */
+            mExtentIndex.append(mBlockMinValues, mBlockMaxValues);
+            resetBlockExtents();
+        }
+        mSize = size + 1;
+    }
+
+    /**
+     * Compresses the full head and starts a new one holding the chunk, so a reader that sees the
+     * new head also sees the chunk.
+     *
+     * @return The new head.
+     */
+    private Head seal(Head head) {
+        CompressedChunk chunk = CompressedChunk.encode(head.mTimes, head.mSources, head.mValues, 0,
+                Constants.Storage.CHUNK_SIZE);
+        CompressedChunk[] chunks = new CompressedChunk[head.mChunks.length + 1];
+        System.arraycopy(head.mChunks, 0, chunks, 0, head.mChunks.length);
+        chunks[head.mChunks.length] = chunk;
+        mCompressedBytes += chunk.getSizeBytes();
+        Head newHead = new Head(head.mStart + Constants.Storage.CHUNK_SIZE, mNumChannels, chunks);
+        mHead = newHead;
+        return newHead;
+    }
+
+    private void addGap(int index) {
+        int numGaps = mNumGaps;
+        if (numGaps == mGapIndices.length) {
+            int[] gapIndices = new int[numGaps * 2];
+            System.arraycopy(mGapIndices, 0, gapIndices, 0, numGaps);
+            mGapIndices = gapIndices;
+        }
+        mGapIndices[numGaps] = index;
+        mNumGaps = numGaps + 1;
+    }
+
+    /**
+     * Marks a gap in acquisition (e.g. the device was disconnected). The next frame appended from
+     * the source is flagged so it isn't treated as continuous with the previous one.
+     *
+     * @param source The board that had the gap.
+     */
+    public synchronized void markGap(int source) {
+        if (mSize > 0) {
+            mGapPendingSources |= 1L << source;
+        }
+    }
+
+    /**
+     * @param index The frame index.
+     * @return True if the frame was the first one taken from its source after a gap.
+     */
+    public boolean isGap(int index) {
+        int[] gapIndices = mGapIndices;
+        int low = 0;
+        int high = Math.min(mNumGaps, gapIndices.length) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (gapIndices[mid] < index) {
+                low = mid + 1;
+            } else if (gapIndices[mid] > index) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getNumGaps() {
+        return mNumGaps;
+    }
+
+    /**
+     * Removes all frames and gaps and resets the min/max. A new head with no chunks is allocated so
+     * readers holding the old one keep reading its chunks.
+     */
+    public synchronized void clear() {
+        mSize = 0;
+        mHead = new Head(0, mNumChannels, new CompressedChunk[0]);
+        mCompressedBytes = 0;
+        mNumGaps = 0;
+        mGapPendingSources = 0;
+        mExtentIndex.clear();
+        resetExtents();
+    }
+
+    private void resetExtents() {
+        for (int i = 0; i < mNumChannels; ++i) {
+            mMaxValues[i] = Double.NEGATIVE_INFINITY;
+            mMinValues[i] = Double.POSITIVE_INFINITY;
+        }
+        resetBlockExtents();
+    }
+
+    private void resetBlockExtents() {
+        for (int i = 0; i < mNumChannels; ++i) {
+            mBlockMaxValues[i] = Double.NEGATIVE_INFINITY;
+            mBlockMinValues[i] = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    public int getNumChannels() {
+        return mNumChannels;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The time of the frame, or 0 if the store was cleared since the index was read.
+     */
+    public long getTime(int index) {
+        Head head = mHead;
+        if (index >= head.mStart + Constants.Storage.CHUNK_SIZE) {
+            return 0;
+        }
+        if (index >= head.mStart) {
+            return head.mTimes[index - head.mStart];
+        }
+        return head.mChunks[index / Constants.Storage.CHUNK_SIZE].getTime(
+                index % Constants.Storage.CHUNK_SIZE);
+    }
+
+    /**
+     * @return The board the frame was read from, or -1 if the store was cleared since the index was
+     * read.
+     */
+    public int getSource(int index) {
+        Head head = mHead;
+        if (index >= head.mStart + Constants.Storage.CHUNK_SIZE) {
+            return -1;
+        }
+        if (index >= head.mStart) {
+            return head.mSources[index - head.mStart];
+        }
+        return head.mChunks[index / Constants.Storage.CHUNK_SIZE].getSource(
+                index % Constants.Storage.CHUNK_SIZE);
+    }
+
+    /**
+     * @return The value, or NaN if the store was cleared since the index was read.
+     */
+    public double getValue(int channel, int index) {
+        Head head = mHead;
+        if (index >= head.mStart + Constants.Storage.CHUNK_SIZE) {
+            return Double.NaN;
+        }
+        if (index >= head.mStart) {
+            return head.mValues[channel][index - head.mStart];
+        }
+        return head.mChunks[index / Constants.Storage.CHUNK_SIZE].getValue(channel,
+                index % Constants.Storage.CHUNK_SIZE);
+    }
+
+    /**
+     * @return The time of the last frame or 0 if there are no frames.
+     */
+    public long getLastTime() {
+        /** The head is read before the size, so the last frame is in the head or its chunks. */
+        Head head = mHead;
+        int size = Math.min(mSize, head.mStart + Constants.Storage.CHUNK_SIZE);
+        if (size <= 0) {
+            return 0;
+        }
+        if (size - 1 >= head.mStart) {
+            return head.mTimes[size - 1 - head.mStart];
+        }
+        return head.mChunks[(size - 1) / Constants.Storage.CHUNK_SIZE].getTime(
+                (size - 1) % Constants.Storage.CHUNK_SIZE);
+    }
+
+    /**
+     * Finds the first frame at or after a time. Frames are stored in time order so the sealed
+     * chunks are binary searched by their first time, then the chunk or head is searched, so the
+     * cost doesn't depend on the length of the session.
+     *
+     * @param time The time in ms.
+     * @return The index of the first frame whose time is not before time, or {@link #size()} if
+     * there is none.
+     */
+    public int indexOfTime(long time) {
+        Head head = mHead;
+        CompressedChunk[] chunks = head.mChunks;
+        int size = Math.min(mSize, head.mStart + Constants.Storage.CHUNK_SIZE);
+        if (size <= head.mStart || head.mTimes[0] > time) {
+            /** Last chunk whose first time is before the time. */
+            int low = 0;
+            int high = Math.min(chunks.length, head.mStart / Constants.Storage.CHUNK_SIZE) - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (chunks[mid].getFirstTime() < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (high < 0) {
+                return 0;
+            }
+            CompressedChunk chunk = chunks[high];
+            if (chunk.getLastTime() < time) {
+                return (high + 1) * Constants.Storage.CHUNK_SIZE;
+            }
+            /** Times are delta encoded so the chunk is scanned, at most one chunk. */
+            CompressedChunk.TimeReader reader = chunk.newTimeReader();
+            int i = 0;
+            while (reader.next() < time) {
+                ++i;
+            }
+            return high * Constants.Storage.CHUNK_SIZE + i;
+        }
+        long[] times = head.mTimes;
+        int low = 0;
+        int high = size - head.mStart;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return head.mStart + low;
+    }
+
+    public synchronized double getMax(int channel) {
+        return mMaxValues[channel];
+    }
+
+    public synchronized double getMin(int channel) {
+        return mMinValues[channel];
+    }
+
+    /**
+     * Finds the min and max of a channel over a range of frames without reading them. The full
+     * blocks in the range come from the {@link edu.ucr.nanosense.ExtentIndex} in logarithmic time.
+     * The frames of partial blocks are scanned if they are in the head. Partial blocks that are
+     * sealed are included whole, so the extents may cover up to
+     * {@link Constants.Storage#EXTENT_BLOCK_SIZE} - 1 frames either side of the range.
+     *
+     * @param start The first frame.
+     * @param end The frame after the last frame, at most {@link #size()}.
+     * @param extents Set to the min and max, or infinity and -infinity if the range is empty.
+     */
+    public void getExtents(int channel, int start, int end, double[] extents) {
+        extents[0] = Double.POSITIVE_INFINITY;
+        extents[1] = Double.NEGATIVE_INFINITY;
+        Head head = mHead;
+        end = Math.min(end, head.mStart + Constants.Storage.CHUNK_SIZE);
+        if (start >= end) {
+            return;
+        }
+        int blockSize = Constants.Storage.EXTENT_BLOCK_SIZE;
+        if (start / blockSize == (end - 1) / blockSize) {
+            /** The range is within one block. */
+            includePartialBlock(head, channel, start, end, extents);
+            return;
+        }
+        int firstBlock = (start + blockSize - 1) / blockSize;
+        int lastBlock = end / blockSize;
+        includePartialBlock(head, channel, start, firstBlock * blockSize, extents);
+        mExtentIndex.include(channel, firstBlock, lastBlock, extents);
+        includePartialBlock(head, channel, lastBlock * blockSize, end, extents);
+    }
+
+    /**
+     * Widens the extents to include the frames [start, end), which are within one block.
+     */
+    private void includePartialBlock(Head head, int channel, int start, int end,
+                                     double[] extents) {
+        if (start >= end) {
+            return;
+        }
+        if (start < head.mStart) {
+            int block = start / Constants.Storage.EXTENT_BLOCK_SIZE;
+            mExtentIndex.include(channel, block, block + 1, extents);
+            return;
+        }
+        double[] values = head.mValues[channel];
+        double min = extents[0];
+        double max = extents[1];
+        for (int i = start - head.mStart; i < end - head.mStart; ++i) {
+            double value = values[i];
+            if (value > max) {
+                max = value;
+            }
+            if (value < min) {
+                min = value;
+            }
+        }
+        extents[0] = min;
+        extents[1] = max;
+    }
+
+    public int getNumChunks() {
+        return mHead.mChunks.length;
+    }
+
+    /**
+     * @return The size in bytes the sealed chunks would take as raw columns.
+     */
+    public long getUncompressedBytes() {
+        long frames = (long) mHead.mChunks.length * Constants.Storage.CHUNK_SIZE;
+        return frames * (8 + 1 + 8 * mNumChannels);
+    }
+
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    /**
+     * @return The uncompressed size over the compressed size of the sealed chunks, or 0 if none
+     * have been sealed.
+     */
+    public double getCompressionRatio() {
+        long compressedBytes = mCompressedBytes;
+        return compressedBytes > 0 ? (double) getUncompressedBytes() / compressedBytes : 0;
+    }
+
+    /**
+     * Decodes every channel of the sealed chunks to measure the decode throughput.
+     *
+     * @return The number of values decoded per second, or 0 if there are no sealed chunks.
+     */
+    public double benchmarkDecode() {
+        CompressedChunk[] chunks = mHead.mChunks;
+        if (chunks.length == 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        long numValues = 0;
+        double sum = 0;
+        for (CompressedChunk chunk : chunks) {
+            for (int channel = 0; channel < mNumChannels; ++channel) {
+                CompressedChunk.ValueReader reader = chunk.newValueReader(channel);
+                for (int i = 0; i < chunk.getNumFrames(); ++i) {
+                    sum += reader.next();
+                }
+                numValues += chunk.getNumFrames();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        /** Use the sum so the decode isn't optimized away. */
+        if (Double.isNaN(sum)) {
+            ++numValues;
+        }
+        return elapsed > 0 ? numValues * 1e9 / elapsed : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param channel The channel to read values from.
+     * @return A cursor over all frames currently in the store.
+     */
+    public Cursor cursor(int channel) {
+        return new Cursor(channel, 0, mSize);
+    }
+
+    /**
+     * @param channel The channel to read values from.
+     * @param start The first frame to read.
+     * @param end The frame after the last frame to read, at most {@link #size()}.
+     * @return A cursor over the frames [start, end).
+     */
+    public Cursor cursor(int channel, int start, int end) {
+        return new Cursor(channel, start, end);
+    }
+
+/***************************************************************************************************
+ *
+ * Cursor
+ *
+ **************************************************************************************************/
+
+    /**
+     * Cursor reads the time, source and value of one channel for a range of frames in order. The
+     * sealed chunks are decoded as a stream rather than copied out, so a whole session can be
+     * drawn or exported without decompressing it.
+     *
+     * Call {@link #next()} before reading the first frame.
+     */
+    public class Cursor {
+        private final int mChannel;
+        private final int mEnd;
+        private final Head mCursorHead;
+        private final CompressedChunk[] mCursorChunks;
+
+        /** Index of the frame to read next. */
+        private int mNext;
+        /** The chunk being decoded and the index in it of the next frame its readers return. */
+        private int mChunkIndex = -1;
+        private int mChunkPosition;
+        private CompressedChunk.TimeReader mTimeReader;
+        private CompressedChunk.SourceReader mSourceReader;
+        private CompressedChunk.ValueReader mValueReader;
+
+        private int mIndex = -1;
+        private long mTime;
+        private int mSource;
+        private double mValue;
+
+        private Cursor(int channel, int start, int end) {
+            mChannel = channel;
+            mCursorHead = mHead;
+            mCursorChunks = mCursorHead.mChunks;
+            /** The store may have been cleared after the caller read the size. */
+            mEnd = Math.min(end, mCursorHead.mStart + Constants.Storage.CHUNK_SIZE);
+            mNext = start;
+        }
+
+        /**
+         * Moves to the next frame.
+         *
+         * @return False if there are no more frames.
+         */
+        public boolean next() {
+            if (mNext >= mEnd) {
+                return false;
+            }
+            int index = mNext++;
+            Head head = mCursorHead;
+            if (index >= head.mStart) {
+                int offset = index - head.mStart;
+                mTime = head.mTimes[offset];
+                mSource = head.mSources[offset];
+                mValue = head.mValues[mChannel][offset];
+            } else {
+                int chunkIndex = index / Constants.Storage.CHUNK_SIZE;
+                int position = index % Constants.Storage.CHUNK_SIZE;
+                if (chunkIndex != mChunkIndex || position < mChunkPosition) {
+                    CompressedChunk chunk = mCursorChunks[chunkIndex];
+                    mTimeReader = chunk.newTimeReader();
+                    mSourceReader = chunk.newSourceReader();
+                    mValueReader = chunk.newValueReader(mChannel);
+                    mChunkIndex = chunkIndex;
+                    mChunkPosition = 0;
+                }
+                int skip = position - mChunkPosition;
+                mTimeReader.skip(skip);
+                mSourceReader.skip(skip);
+                mValueReader.skip(skip);
+                mTime = mTimeReader.next();
+                mSource = mSourceReader.next();
+                mValue = mValueReader.next();
+                mChunkPosition = position + 1;
+            }
+            mIndex = index;
+            return true;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public int getSource() {
+            return mSource;
+        }
+
+        public double getValue() {
+            return mValue;
+        }
+    }
+}
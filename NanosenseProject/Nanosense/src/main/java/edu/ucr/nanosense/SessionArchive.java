@@ -0,0 +1,581 @@
+package edu.ucr.nanosense;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SessionArchive answers queries across all the recorded sessions, such as every reading of a
+ * channel above a threshold last month, or the peak of a channel in each session.
+ *
+ * Each session has an index in {@link Constants.Session#INDEX_DIRECTORY} with the file offset,
+ * first and last time, and min and max of every channel of each of its chunks. The index is built
+ * by reading only the chunk headers, saved, and extended when the session has grown, as while it
+ * is being recorded. Queries use it as a zone map: chunks outside the time range, or whose min and
+ * max can't satisfy the threshold, are skipped without being read, and only the times, sources
+ * and the queried channel of the others are decoded. Peak queries visit the chunks of a session
+ * from the highest max down and stop once no chunk left can beat the peak found.
+ *
+ * Matches are passed to an {@link OnMatchListener} as they are found, so results stream out
+ * without being collected. Each query returns {@link ScanStatistics} with the bytes it covered,
+ * skipped and read, and the scan throughput.
+ */
+public class SessionArchive {
+
+    private static final String TAG = "SessionArchive";
+
+    private final File mSessionDirectory;
+    private final File mIndexDirectory;
+    /** Indexes loaded so far by session file name, guarded by this. */
+    private final Map<String, SessionIndex> mIndexes = new HashMap<String, SessionIndex>();
+
+    /**
+     * Frames of one channel to find. Times are wall clock ms since epoch: the session's start time
+     * plus the frame time.
+     */
+    public static class Query {
+        public int mChannel;
+        public long mFrom = Long.MIN_VALUE;
+        /** Exclusive. */
+        public long mTo = Long.MAX_VALUE;
+        /** Only values at or above mAbove and at or below mBelow match. */
+        public double mAbove = Double.NEGATIVE_INFINITY;
+        public double mBelow = Double.POSITIVE_INFINITY;
+        /** Skip chunks by their min and max. Off only to measure what it saves. */
+        public boolean mUseZoneMaps = true;
+    }
+
+    /**
+     * Called for each match in the order found, on the querying thread.
+     */
+    public interface OnMatchListener {
+        /**
+         * @param session The session file name.
+         * @param startTime The wall clock time the session started.
+         * @param time The session time of the frame in ms.
+         */
+        public void onMatch(String session, long startTime, long time, int source, double value)
+                throws IOException;
+    }
+
+    /**
+     * What a query read and skipped.
+     */
+    public static class ScanStatistics {
+        public int mSessions;
+        public long mChunks;
+        /** Chunks skipped for being outside the time range. */
+        public long mChunksOutOfRange;
+        /** Chunks skipped by their min and max. */
+        public long mChunksPruned;
+        /** Bytes of all chunks in the sessions queried. */
+        public long mBytes;
+        public long mBytesRead;
+        public long mFramesDecoded;
+        public long mMatches;
+        public long mElapsedNanos;
+
+        /**
+         * @return The bytes of the sessions queried per second, in GB/s.
+         */
+        public double getScanThroughput() {
+            return mElapsedNanos > 0 ? (double) mBytes / mElapsedNanos : 0;
+        }
+
+        /**
+         * @return The bytes read from the chunks not skipped per second, in GB/s.
+         */
+        public double getReadThroughput() {
+            return mElapsedNanos > 0 ? (double) mBytesRead / mElapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mSessions + " sessions, " + mChunks + " chunks, " + mChunksOutOfRange +
+                    " out of range, " + mChunksPruned + " pruned, read " + mBytesRead + " of " +
+                    mBytes + " bytes, " + mFramesDecoded + " frames decoded, " + mMatches +
+                    " matches in " + mElapsedNanos / 1000000 + "ms, scan " +
+                    getScanThroughput() + " GB/s, read " + getReadThroughput() + " GB/s";
+        }
+    }
+
+    /**
+     * @param sessionDirectory The directory the sessions are recorded to.
+     * @param indexDirectory The directory to keep the indexes in. Created if needed.
+     */
+    public SessionArchive(File sessionDirectory, File indexDirectory) {
+        mSessionDirectory = sessionDirectory;
+        mIndexDirectory = indexDirectory;
+    }
+
+    /**
+     * Finds the frames of the channel in the time range with values between the thresholds, in
+     * time order within each session and sessions oldest first.
+     */
+    public ScanStatistics scan(Query query, OnMatchListener listener) throws IOException {
+        ScanStatistics statistics = new ScanStatistics();
+        long startTime = System.nanoTime();
+        ChunkLoader loader = new ChunkLoader();
+        try {
+            for (SessionIndex index : getIndexes(query, statistics)) {
+                for (ChunkSummary chunk : index.mChunks) {
+                    if (!isCandidate(index, chunk, query, statistics)) {
+                        continue;
+                    }
+                    CompressedChunk compressedChunk = loader.load(index, chunk, query.mChannel,
+                            statistics);
+                    CompressedChunk.TimeReader times = compressedChunk.newTimeReader();
+                    CompressedChunk.SourceReader sources = compressedChunk.newSourceReader();
+                    CompressedChunk.ValueReader values =
+                            compressedChunk.newValueReader(query.mChannel);
+                    for (int i = 0; i < chunk.mNumFrames; ++i) {
+                        long time = times.next();
+                        int source = sources.next();
+                        double value = values.next();
+                        if (matches(index, time, value, query)) {
+                            listener.onMatch(index.mName, index.mStartTime, time, source, value);
+                            ++statistics.mMatches;
+                        }
+                    }
+                    statistics.mFramesDecoded += chunk.mNumFrames;
+                }
+            }
+        } finally {
+            loader.close();
+        }
+        statistics.mElapsedNanos = System.nanoTime() - startTime;
+        return statistics;
+    }
+
+    /**
+     * Finds the highest value of the channel in the time range and between the thresholds in each
+     * session, oldest session first. Sessions without a match are left out.
+     */
+    public ScanStatistics peaks(Query query, OnMatchListener listener) throws IOException {
+        ScanStatistics statistics = new ScanStatistics();
+        long startTime = System.nanoTime();
+        ChunkLoader loader = new ChunkLoader();
+        final int channel = query.mChannel;
+        try {
+            for (SessionIndex index : getIndexes(query, statistics)) {
+                List<ChunkSummary> candidates = new ArrayList<ChunkSummary>();
+                for (ChunkSummary chunk : index.mChunks) {
+                    if (isCandidate(index, chunk, query, statistics)) {
+                        candidates.add(chunk);
+                    }
+                }
+                /** Highest max first, so the search can stop at the first that can't win. */
+                Collections.sort(candidates, new Comparator<ChunkSummary>() {
+                    @Override
+                    public int compare(ChunkSummary a, ChunkSummary b) {
+                        return Double.compare(b.mMaxValues[channel], a.mMaxValues[channel]);
+                    }
+                });
+                boolean found = false;
+                long peakTime = 0;
+                int peakSource = 0;
+                double peak = Double.NEGATIVE_INFINITY;
+                for (int c = 0; c < candidates.size(); ++c) {
+                    ChunkSummary chunk = candidates.get(c);
+                    if (found && chunk.mMaxValues[channel] <= peak) {
+                        statistics.mChunksPruned += candidates.size() - c;
+                        break;
+                    }
+                    CompressedChunk compressedChunk = loader.load(index, chunk, channel,
+                            statistics);
+                    CompressedChunk.TimeReader times = compressedChunk.newTimeReader();
+                    CompressedChunk.SourceReader sources = compressedChunk.newSourceReader();
+                    CompressedChunk.ValueReader values = compressedChunk.newValueReader(channel);
+                    for (int i = 0; i < chunk.mNumFrames; ++i) {
+                        long time = times.next();
+                        int source = sources.next();
+                        double value = values.next();
+                        if (matches(index, time, value, query) && (!found || value > peak)) {
+                            found = true;
+                            peak = value;
+                            peakTime = time;
+                            peakSource = source;
+                        }
+                    }
+                    statistics.mFramesDecoded += chunk.mNumFrames;
+                }
+                if (found) {
+                    listener.onMatch(index.mName, index.mStartTime, peakTime, peakSource, peak);
+                    ++statistics.mMatches;
+                }
+            }
+        } finally {
+            loader.close();
+        }
+        statistics.mElapsedNanos = System.nanoTime() - startTime;
+        return statistics;
+    }
+
+    /**
+     * @return True if the chunk may hold a match, counting it in the statistics.
+     */
+    private static boolean isCandidate(SessionIndex index, ChunkSummary chunk, Query query,
+                                       ScanStatistics statistics) {
+        ++statistics.mChunks;
+        statistics.mBytes += chunk.mLength;
+        if (index.mStartTime + chunk.mLastTime < query.mFrom ||
+                index.mStartTime + chunk.mFirstTime >= query.mTo) {
+            ++statistics.mChunksOutOfRange;
+            return false;
+        }
+        /** NaN values aren't in the min and max, and a chunk of only NaN has max < min. */
+        if (query.mUseZoneMaps && (chunk.mMaxValues[query.mChannel] < query.mAbove ||
+                chunk.mMinValues[query.mChannel] > query.mBelow)) {
+            ++statistics.mChunksPruned;
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean matches(SessionIndex index, long time, double value, Query query) {
+        long wallTime = index.mStartTime + time;
+        return wallTime >= query.mFrom && wallTime < query.mTo && value >= query.mAbove &&
+                value <= query.mBelow;
+    }
+
+    /**
+     * @return The up to date indexes of the sessions that have the channel and may overlap the
+     * time range, oldest first. Sessions that can't be read are logged and left out.
+     */
+    private synchronized List<SessionIndex> getIndexes(Query query, ScanStatistics statistics) {
+        List<SessionIndex> indexes = new ArrayList<SessionIndex>();
+        File[] files = mSessionDirectory.listFiles();
+        if (files == null) {
+            return indexes;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.getName().endsWith(Constants.Session.FILE_EXTENSION)) {
+                continue;
+            }
+            try {
+                SessionIndex index = getIndex(file);
+                if (query.mChannel < 0 || query.mChannel >= index.mNumChannels) {
+                    continue;
+                }
+                if (index.mStartTime >= query.mTo) {
+                    continue;
+                }
+                indexes.add(index);
+                ++statistics.mSessions;
+            } catch (IOException e) {
+                Log.d(TAG, "Can't index " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Loads the session's index, from memory, the index file or the session, and extends it with
+     * any chunks written since. The index is checked against the length and modified time of the
+     * session. If either changed, the session header and the first and last chunks indexed are
+     * read again, and the index is rebuilt unless they still match, so a session rewritten under
+     * the same name isn't searched with the old index.
+     */
+    private SessionIndex getIndex(File file) throws IOException {
+        String name = file.getName();
+        SessionIndex index = mIndexes.get(name);
+        File indexFile = new File(mIndexDirectory, name + Constants.Session.INDEX_EXTENSION);
+        if (index == null && indexFile.exists()) {
+            try {
+                index = SessionIndex.read(name, indexFile);
+            } catch (IOException e) {
+                Log.d(TAG, "Rebuilding the index of " + name + ": " + e.getMessage());
+            }
+        }
+        long length = file.length();
+        long modified = file.lastModified();
+        boolean changed = index == null || length != index.mFileLength ||
+                modified != index.mModified;
+        if (index != null && changed && !index.isPrefixOf(file)) {
+            /** A different session with the same name, as when it was reprocessed. */
+            Log.d(TAG, "Rebuilding the index of the rewritten " + name);
+            index = null;
+        }
+        if (index == null) {
+            index = SessionIndex.create(name, file);
+        }
+        if (changed) {
+            index.mFileLength = length;
+            index.mModified = modified;
+            index.extend(file);
+            if (!mIndexDirectory.exists()) {
+                mIndexDirectory.mkdirs();
+            }
+            index.write(indexFile);
+        }
+        mIndexes.put(name, index);
+        return index;
+    }
+
+/***************************************************************************************************
+ *
+ * Index
+ *
+ **************************************************************************************************/
+
+    /**
+     * Where a chunk is in its session and its zone map.
+     */
+    private static class ChunkSummary {
+        long mOffset;
+        int mLength;
+        int mNumFrames;
+        long mFirstTime;
+        long mLastTime;
+        double[] mMinValues;
+        double[] mMaxValues;
+
+        ChunkSummary() {
+        }
+
+        ChunkSummary(long offset, CompressedChunk.Header header) {
+            mOffset = offset;
+            mLength = header.mLength;
+            mNumFrames = header.mNumFrames;
+            mFirstTime = header.mFirstTime;
+            mLastTime = header.mLastTime;
+            mMinValues = header.mMinValues;
+            mMaxValues = header.mMaxValues;
+        }
+
+        /**
+         * @return True if the chunk in the session at the offset still has this header.
+         */
+        boolean matches(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                CompressedChunk.skipFully(in, mOffset);
+                CompressedChunk.Header header = CompressedChunk.Header.read(in);
+                return header.mLength == mLength && header.mNumFrames == mNumFrames &&
+                        header.mFirstTime == mFirstTime && header.mLastTime == mLastTime &&
+                        Arrays.equals(header.mMinValues, mMinValues) &&
+                        Arrays.equals(header.mMaxValues, mMaxValues);
+            } catch (EOFException e) {
+                return false;
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * The chunks of one session. Index file layout:
+     * [magic (int)][version (int)][start time (long)][numChannels (int)][indexed length (long)]
+     * [file length (long)][modified (long)][numChunks (int)]
+     * [offset (long)][length (int)][numFrames (int)][first time (long)][last time (long)]
+     * [min (double)][max (double)]*numChannels ... for each chunk
+     */
+    private static class SessionIndex {
+        private static final int SESSION_HEADER_SIZE = 20;
+
+        final String mName;
+        long mStartTime;
+        int mNumChannels;
+        /** The offset in the session after the last whole chunk. */
+        long mIndexedLength;
+        /** Length and modified time of the session when it was last indexed. */
+        long mFileLength = -1;
+        long mModified = -1;
+        /** Replaced rather than changed when extended, so queries can keep reading it. */
+        volatile List<ChunkSummary> mChunks = new ArrayList<ChunkSummary>();
+
+        private SessionIndex(String name) {
+            mName = name;
+        }
+
+        static SessionIndex create(String name, File file) throws IOException {
+            SessionReader reader = new SessionReader(file);
+            SessionIndex index = new SessionIndex(name);
+            index.mStartTime = reader.getStartTime();
+            index.mNumChannels = reader.getNumChannels();
+            index.mIndexedLength = SESSION_HEADER_SIZE;
+            reader.close();
+            return index;
+        }
+
+        /**
+         * Adds the whole chunks after the indexed length, reading only their headers.
+         */
+        void extend(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            List<ChunkSummary> chunks = new ArrayList<ChunkSummary>(mChunks);
+            long indexedLength = mIndexedLength;
+            try {
+                CompressedChunk.skipFully(in, indexedLength);
+                while (true) {
+                    ChunkSummary chunk;
+                    try {
+                        chunk = new ChunkSummary(indexedLength, CompressedChunk.Header.read(in));
+                    } catch (EOFException e) {
+                        /** The rest is a chunk still being written, or cut off. */
+                        break;
+                    }
+                    if (chunk.mMinValues.length != mNumChannels) {
+                        throw new IOException("Chunk at " + chunk.mOffset + " has " +
+                                chunk.mMinValues.length + " channels");
+                    }
+                    chunks.add(chunk);
+                    indexedLength += chunk.mLength;
+                }
+            } finally {
+                in.close();
+            }
+            mChunks = chunks;
+            mIndexedLength = indexedLength;
+        }
+
+        /**
+         * @return True if the session still starts with what was indexed, so the index only
+         * needs extending.
+         */
+        boolean isPrefixOf(File file) {
+            if (file.length() < mIndexedLength) {
+                return false;
+            }
+            try {
+                SessionReader reader = new SessionReader(file);
+                try {
+                    if (reader.getStartTime() != mStartTime ||
+                            reader.getNumChannels() != mNumChannels) {
+                        return false;
+                    }
+                } finally {
+                    reader.close();
+                }
+                List<ChunkSummary> chunks = mChunks;
+                return chunks.isEmpty() || (chunks.get(0).matches(file) &&
+                        chunks.get(chunks.size() - 1).matches(file));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        static SessionIndex read(String name, File indexFile) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != Constants.Session.INDEX_MAGIC ||
+                        in.readInt() != Constants.Session.INDEX_VERSION) {
+                    throw new IOException("Not an index of this version");
+                }
+                SessionIndex index = new SessionIndex(name);
+                index.mStartTime = in.readLong();
+                index.mNumChannels = in.readInt();
+                index.mIndexedLength = in.readLong();
+                index.mFileLength = in.readLong();
+                index.mModified = in.readLong();
+                int numChunks = in.readInt();
+                for (int c = 0; c < numChunks; ++c) {
+                    ChunkSummary chunk = new ChunkSummary();
+                    chunk.mOffset = in.readLong();
+                    chunk.mLength = in.readInt();
+                    chunk.mNumFrames = in.readInt();
+                    chunk.mFirstTime = in.readLong();
+                    chunk.mLastTime = in.readLong();
+                    chunk.mMinValues = new double[index.mNumChannels];
+                    chunk.mMaxValues = new double[index.mNumChannels];
+                    for (int i = 0; i < index.mNumChannels; ++i) {
+                        chunk.mMinValues[i] = in.readDouble();
+                        chunk.mMaxValues[i] = in.readDouble();
+                    }
+                    index.mChunks.add(chunk);
+                }
+                return index;
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Saves the index, replacing the old one only once it is completely written.
+         */
+        void write(File indexFile) throws IOException {
+            File temp = new File(indexFile.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            try {
+                out.writeInt(Constants.Session.INDEX_MAGIC);
+                out.writeInt(Constants.Session.INDEX_VERSION);
+                out.writeLong(mStartTime);
+                out.writeInt(mNumChannels);
+                out.writeLong(mIndexedLength);
+                out.writeLong(mFileLength);
+                out.writeLong(mModified);
+                out.writeInt(mChunks.size());
+                for (ChunkSummary chunk : mChunks) {
+                    out.writeLong(chunk.mOffset);
+                    out.writeInt(chunk.mLength);
+                    out.writeInt(chunk.mNumFrames);
+                    out.writeLong(chunk.mFirstTime);
+                    out.writeLong(chunk.mLastTime);
+                    for (int i = 0; i < mNumChannels; ++i) {
+                        out.writeDouble(chunk.mMinValues[i]);
+                        out.writeDouble(chunk.mMaxValues[i]);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(indexFile)) {
+                throw new IOException("Can't save " + indexFile.getName());
+            }
+        }
+    }
+
+    /**
+     * Reads chunks from the session files into a reused buffer, keeping the current session open.
+     */
+    private class ChunkLoader {
+        private RandomAccessFile mFile;
+        private String mName;
+        private byte[] mBuffer = new byte[65536];
+
+        CompressedChunk load(SessionIndex index, ChunkSummary chunk, int channel,
+                             ScanStatistics statistics) throws IOException {
+            if (!index.mName.equals(mName)) {
+                close();
+                mFile = new RandomAccessFile(new File(mSessionDirectory, index.mName), "r");
+                mName = index.mName;
+            }
+            if (mBuffer.length < chunk.mLength) {
+                mBuffer = new byte[chunk.mLength];
+            }
+            mFile.seek(chunk.mOffset);
+            mFile.readFully(mBuffer, 0, chunk.mLength);
+            statistics.mBytesRead += chunk.mLength;
+            return CompressedChunk.readChannel(mBuffer, 0, chunk.mLength, channel);
+        }
+
+        void close() throws IOException {
+            if (mFile != null) {
+                mFile.close();
+                mFile = null;
+                mName = null;
+            }
+        }
+    }
+}
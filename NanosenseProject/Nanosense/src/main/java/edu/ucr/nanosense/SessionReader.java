@@ -0,0 +1,73 @@
+package edu.ucr.nanosense;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * SessionReader reads the chunks of a session recorded by a
+ * {@link edu.ucr.nanosense.SessionWriter} in order.
+ */
+public class SessionReader {
+
+    private final DataInputStream mIn;
+    private final int mNumChannels;
+    private final long mStartTime;
+
+    /**
+     * Opens the file and reads the header.
+     *
+     * @throws IOException If the file can't be read or isn't a session.
+     */
+    public SessionReader(File file) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (mIn.readInt() != Constants.Session.MAGIC) {
+                throw new IOException("Not a session file: " + file.getAbsolutePath());
+            }
+            int version = mIn.readInt();
+            if (version != Constants.Session.VERSION) {
+                throw new IOException("Unsupported session version: " + version);
+            }
+            mNumChannels = mIn.readInt();
+            mStartTime = mIn.readLong();
+        } catch (IOException e) {
+            mIn.close();
+            throw e;
+        }
+    }
+
+    public int getNumChannels() {
+        return mNumChannels;
+    }
+
+    /**
+     * @return The wall clock time in ms since epoch that the session was started.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return The next chunk or null at the end of the session. A chunk cut off by the app being
+     * killed while recording is treated as the end.
+     * @throws IOException If the file can't be read or the chunk is corrupt.
+     */
+    public CompressedChunk nextChunk() throws IOException {
+        try {
+            return CompressedChunk.readFrom(mIn);
+        } catch (EOFException e) {
+            return null;
+        } catch (RuntimeException e) {
+            /** A corrupt chunk, as with a negative length. */
+            throw new IOException("Corrupt chunk", e);
+        }
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
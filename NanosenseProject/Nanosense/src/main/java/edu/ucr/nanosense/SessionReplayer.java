@@ -0,0 +1,99 @@
+package edu.ucr.nanosense;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * SessionReplayer reads a recorded session and passes its frames to the same
+ * {@link edu.ucr.nanosense.FrameMerger.OnMergedFrameListener} the IOIO boards feed, so the stores,
+ * the live window and the graph see the frames as if they were being acquired.
+ *
+ * Frames are paced by their recorded times divided by the speed. A speed of
+ * {@link Constants.Session#REPLAY_SPEED_MAX} replays them as fast as they can be read, which
+ * measures the throughput of everything after acquisition.
+ */
+public class SessionReplayer extends FrameSource {
+
+    private static final String TAG = "SessionReplayer";
+
+    private final File mFile;
+    private final double mSpeed;
+
+    /**
+     * @param file The recorded session.
+     * @param speed Multiple of real time to replay at, or
+     * {@link Constants.Session#REPLAY_SPEED_MAX}.
+     * @param onMergedFrameListener Receives the frames.
+     * @param onFrameSourceFinishedListener Called on the replay thread when the replay ends.
+     */
+    public SessionReplayer(File file, double speed,
+                           FrameMerger.OnMergedFrameListener onMergedFrameListener,
+                           OnFrameSourceFinishedListener onFrameSourceFinishedListener) {
+        super(TAG, onMergedFrameListener, onFrameSourceFinishedListener);
+        mFile = file;
+        mSpeed = speed;
+    }
+
+    @Override
+    public void run() {
+        long framesReplayed = 0;
+        long startNanos = System.nanoTime();
+        SessionReader reader = null;
+        try {
+            reader = new SessionReader(mFile);
+            double[] frame = new double[reader.getNumChannels()];
+            long firstTime = 0;
+            long startTime = SystemClock.elapsedRealtime();
+            CompressedChunk chunk;
+            while (isRunning() && (chunk = reader.nextChunk()) != null) {
+                int numChannels = chunk.getNumChannels();
+                CompressedChunk.TimeReader timeReader = chunk.newTimeReader();
+                CompressedChunk.SourceReader sourceReader = chunk.newSourceReader();
+                CompressedChunk.ValueReader[] valueReaders =
+                        new CompressedChunk.ValueReader[numChannels];
+                for (int i = 0; i < numChannels; ++i) {
+                    valueReaders[i] = chunk.newValueReader(i);
+                }
+                for (int j = 0; j < chunk.getNumFrames() && isRunning(); ++j) {
+                    long time = timeReader.next();
+                    int source = sourceReader.next();
+                    for (int i = 0; i < numChannels; ++i) {
+                        frame[i] = valueReaders[i].next();
+                    }
+                    if (framesReplayed == 0) {
+                        firstTime = time;
+                    }
+                    if (mSpeed != Constants.Session.REPLAY_SPEED_MAX) {
+                        long dueTime = startTime + (long) ((time - firstTime) / mSpeed);
+                        long delay = dueTime - SystemClock.elapsedRealtime();
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                    }
+                    mOnMergedFrameListener.onMergedFrame(source, time, frame);
+                    ++framesReplayed;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Replay cancelled");
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        double framesPerSecond = elapsedNanos > 0 ? framesReplayed * 1e9 / elapsedNanos : 0;
+        Log.d(TAG, "Replayed " + framesReplayed + " frames at " + mSpeed + "x, " +
+                framesPerSecond + " frames/s");
+        notifyFinished(framesReplayed, framesPerSecond);
+    }
+}
@@ -0,0 +1,147 @@
+package edu.ucr.nanosense;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * SessionWriter records the frames of a session to a file so it can be replayed with a
+ * {@link edu.ucr.nanosense.SessionReplayer}. Frames are buffered and written in blocks of
+ * {@link Constants.Storage#CHUNK_SIZE} frames compressed as
+ * {@link edu.ucr.nanosense.CompressedChunk}s.
+ *
+ * File layout:
+ * [magic (int)][version (int)][numChannels (int)][start time (long, ms since epoch)]
+ * [chunk]*
+ */
+public class SessionWriter {
+
+    private final File mFile;
+    private final int mNumChannels;
+    private final DataOutputStream mOut;
+    private final long mStartTime;
+
+    /** Journal the chunks are also appended to for uploading. Null if not uploading. */
+    private UploadJournal mUploadJournal;
+
+    /** Frames buffered for the next chunk. */
+    private final long[] mTimes = new long[Constants.Storage.CHUNK_SIZE];
+    private final byte[] mSources = new byte[Constants.Storage.CHUNK_SIZE];
+    private final double[][] mValues;
+    private int mNumBuffered = 0;
+
+    private long mFramesWritten = 0;
+
+    /**
+     * Creates the file and writes the header.
+     *
+     * @param file The file to record to. Its directory is created if needed.
+     * @param numChannels The number of values in each frame.
+     */
+    public SessionWriter(File file, int numChannels) throws IOException {
+        this(file, numChannels, System.currentTimeMillis());
+    }
+
+    /**
+     * Creates the file and writes the header with the given start time, as when rewriting a
+     * recorded session.
+     *
+     * @param startTime The wall clock time in ms since epoch the session started.
+     */
+    public SessionWriter(File file, int numChannels, long startTime) throws IOException {
+        mFile = file;
+        mNumChannels = numChannels;
+        mValues = new double[numChannels][Constants.Storage.CHUNK_SIZE];
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists()) {
+            directory.mkdirs();
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        mOut.writeInt(Constants.Session.MAGIC);
+        mOut.writeInt(Constants.Session.VERSION);
+        mOut.writeInt(numChannels);
+        mStartTime = startTime;
+        mOut.writeLong(mStartTime);
+    }
+
+    /**
+     * Appends each chunk to the journal as well as the file, so it is uploaded. Uploading stops if
+     * the journal can't be written, but recording continues.
+     */
+    public void setUploadJournal(UploadJournal journal) {
+        mUploadJournal = journal;
+    }
+
+    /**
+     * Buffers a frame and writes a chunk once {@link Constants.Storage#CHUNK_SIZE} frames are
+     * buffered.
+     *
+     * @param source The board the frame was read from.
+     * @param time The time of the frame in ms.
+     * @param frame The values. Channels are read starting at offset.
+     * @param offset The index in frame of the first channel.
+     */
+    public void append(int source, long time, double[] frame, int offset) throws IOException {
+        mTimes[mNumBuffered] = time;
+        mSources[mNumBuffered] = (byte) source;
+        for (int i = 0; i < mNumChannels; ++i) {
+            mValues[i][mNumBuffered] = frame[offset + i];
+        }
+        ++mNumBuffered;
+        if (mNumBuffered == Constants.Storage.CHUNK_SIZE) {
+            writeChunk();
+        }
+    }
+
+    /**
+     * Writes a chunk encoded elsewhere, after any buffered frames.
+     */
+    public void appendChunk(CompressedChunk chunk) throws IOException {
+        writeChunk();
+        write(chunk);
+        mFramesWritten += chunk.getNumFrames();
+    }
+
+    private void writeChunk() throws IOException {
+        if (mNumBuffered == 0) {
+            return;
+        }
+        write(CompressedChunk.encode(mTimes, mSources, mValues, 0, mNumBuffered));
+        mFramesWritten += mNumBuffered;
+        mNumBuffered = 0;
+    }
+
+    private void write(CompressedChunk chunk) throws IOException {
+        chunk.writeTo(mOut);
+        if (mUploadJournal != null) {
+            try {
+                mUploadJournal.append(mStartTime, chunk);
+            } catch (IOException e) {
+                /** Stop uploading, but keep recording. */
+                e.printStackTrace();
+                mUploadJournal = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered frames and closes the file.
+     */
+    public void close() throws IOException {
+        try {
+            writeChunk();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten + mNumBuffered;
+    }
+}
@@ -16,6 +16,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.RadioButton;
@@ -36,11 +37,17 @@ public class SettingsActivity extends ActionBarActivity {
     public static final String EXTRA_POLLING_RATE = "polling_rate";
     public static final String EXTRA_SERVER_IP = "server_ip";
     public static final String EXTRA_SERVER_PORT = "server_port";
+    public static final String EXTRA_ADAPTIVE_POLLING = "adaptive_polling";
+    public static final String EXTRA_QUERY_SERVER = "query_server";
+    public static final String EXTRA_UPLOAD = "upload";
 
     public static final String EXTRA_DEVICE_TYPE = "device_type";
 
     /** Extras for pump. **/
     public static final String EXTRA_PUMP_BASELINE = "pump_baseline";
+    public static final String EXTRA_PUMP_EXPOSURE = "pump_exposure";
+    public static final String EXTRA_PUMP_PURGE = "pump_purge";
+    public static final String EXTRA_PUMP_CYCLES = "pump_cycles";
 
     /** Extras for rover. **/
     public static final String EXTRA_ACCEL_X = "accel_x";
@@ -92,9 +99,9 @@ public class SettingsActivity extends ActionBarActivity {
         private static final String serverIpRegex = "^\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}$";
 
         /** Constants for the type of device **/
-        private static final int DEVICE_STANDARD = 0;
-        private static final int DEVICE_PUMP = 1;
-        private static final int DEVICE_ROVER = 2;
+        static final int DEVICE_STANDARD = 0;
+        static final int DEVICE_PUMP = 1;
+        static final int DEVICE_ROVER = 2;
 
         private SensorManager mSensorManager;
 
@@ -116,9 +123,15 @@ public class SettingsActivity extends ActionBarActivity {
         private EditText mPollingRateEditText;
         private EditText mServerIpEditText;
         private EditText mServerPortEditText;
+        private CheckBox mAdaptivePollingCheckBox;
+        private CheckBox mQueryServerCheckBox;
+        private CheckBox mUploadCheckBox;
 
-        /** EditText for pump baseline duration **/
+        /** EditTexts for pump cycle durations and number of cycles **/
         private EditText mBaselineDurationEditText;
+        private EditText mExposureDurationEditText;
+        private EditText mPurgeDurationEditText;
+        private EditText mPumpCyclesEditText;
 
         /** Buttons for rover options **/
         private Button mCalibrateAccelButton;
@@ -159,10 +172,19 @@ public class SettingsActivity extends ActionBarActivity {
             mPollingRateEditText = (EditText) rootView.findViewById(R.id.edit_text_polling_rate);
             mServerIpEditText = (EditText) rootView.findViewById(R.id.edit_text_server_ip);
             mServerPortEditText = (EditText) rootView.findViewById(R.id.edit_text_server_port);
+            mAdaptivePollingCheckBox =
+                    (CheckBox) rootView.findViewById(R.id.check_box_adaptive_polling);
+            mQueryServerCheckBox = (CheckBox) rootView.findViewById(R.id.check_box_query_server);
+            mUploadCheckBox = (CheckBox) rootView.findViewById(R.id.check_box_upload);
 
-            /** Initialize EditText for pump baseline duration **/
+            /** Initialize EditTexts for pump cycle options **/
             mBaselineDurationEditText =
                     (EditText) rootView.findViewById(R.id.edit_text_baseline_duration);
+            mExposureDurationEditText =
+                    (EditText) rootView.findViewById(R.id.edit_text_exposure_duration);
+            mPurgeDurationEditText =
+                    (EditText) rootView.findViewById(R.id.edit_text_purge_duration);
+            mPumpCyclesEditText = (EditText) rootView.findViewById(R.id.edit_text_pump_cycles);
 
             /** Initialize buttons for rover accelerometer control options **/
             mCalibrateAccelButton =
@@ -239,6 +261,9 @@ public class SettingsActivity extends ActionBarActivity {
                 String serverIp = Constants.Options.DEFAULT_SERVER_IP;
                 int serverPort = Constants.Options.DEFAULT_SERVER_PORT;
                 int baselineDuration = Constants.Options.DEFAULT_BASELINE_DURATION;
+                int exposureDuration = Constants.Options.DEFAULT_EXPOSURE_DURATION;
+                int purgeDuration = Constants.Options.DEFAULT_PURGE_DURATION;
+                int pumpCycles = Constants.Options.DEFAULT_CYCLES;
 
                 String statusString = "";
 
@@ -285,6 +310,9 @@ public class SettingsActivity extends ActionBarActivity {
                 intent.putExtra(EXTRA_POLLING_RATE, pollingRate);
                 intent.putExtra(EXTRA_SERVER_IP, serverIp);
                 intent.putExtra(EXTRA_SERVER_PORT, serverPort);
+                intent.putExtra(EXTRA_ADAPTIVE_POLLING, mAdaptivePollingCheckBox.isChecked());
+                intent.putExtra(EXTRA_QUERY_SERVER, mQueryServerCheckBox.isChecked());
+                intent.putExtra(EXTRA_UPLOAD, mUploadCheckBox.isChecked());
                 intent.putExtra(EXTRA_ACCEL_X, mNeutralX);
                 intent.putExtra(EXTRA_ACCEL_Y, mNeutralY);
                 intent.putExtra(EXTRA_ACCEL_Z, mNeutralZ);
@@ -292,16 +320,43 @@ public class SettingsActivity extends ActionBarActivity {
                     intent.putExtra(EXTRA_DEVICE_TYPE, DEVICE_STANDARD);
                 } else if (mPumpRadioButton.isChecked()) {
                     intent.putExtra(EXTRA_DEVICE_TYPE, DEVICE_PUMP);
-                    /** Parse pump baseline duration and store value if device selected is pump. **/
+                    /** Parse pump cycle options and store values if device selected is pump. **/
                     Editable baselineDurationText = mBaselineDurationEditText.getText();
                     try {
                         baselineDuration = Integer.parseInt(baselineDurationText.toString());
-                        intent.putExtra(EXTRA_PUMP_BASELINE, baselineDuration);
                     } catch (NumberFormatException e) {
                         e.printStackTrace();
                         statusString += "\n" + res.getString(R.string.error_baseline_duration) +
                                 baselineDuration + "\n";
                     }
+                    intent.putExtra(EXTRA_PUMP_BASELINE, baselineDuration);
+                    Editable exposureDurationText = mExposureDurationEditText.getText();
+                    try {
+                        exposureDuration = Integer.parseInt(exposureDurationText.toString());
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                        statusString += "\n" + res.getString(R.string.error_exposure_duration) +
+                                exposureDuration + "\n";
+                    }
+                    intent.putExtra(EXTRA_PUMP_EXPOSURE, exposureDuration);
+                    Editable purgeDurationText = mPurgeDurationEditText.getText();
+                    try {
+                        purgeDuration = Integer.parseInt(purgeDurationText.toString());
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                        statusString += "\n" + res.getString(R.string.error_purge_duration) +
+                                purgeDuration + "\n";
+                    }
+                    intent.putExtra(EXTRA_PUMP_PURGE, purgeDuration);
+                    Editable pumpCyclesText = mPumpCyclesEditText.getText();
+                    try {
+                        pumpCycles = Integer.parseInt(pumpCyclesText.toString());
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                        statusString += "\n" + res.getString(R.string.error_pump_cycles) +
+                                pumpCycles + "\n";
+                    }
+                    intent.putExtra(EXTRA_PUMP_CYCLES, pumpCycles);
                 } else if (mRoverRadioButton.isChecked()) {
                     /** Pass back the "zeroed" location of the accelerometer and device type **/
                     intent.putExtra(EXTRA_DEVICE_TYPE, DEVICE_ROVER);
@@ -0,0 +1,233 @@
+package edu.ucr.nanosense;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import java.util.Arrays;
+
+/**
+ * StripChart draws the live window of a {@link edu.ucr.nanosense.LiveRing} into an offscreen
+ * bitmap incrementally. The newest frame is at the right edge and the chart spans a fixed time.
+ * Each frame only the segments for newly arrived frames are drawn and the bitmap is shifted left
+ * by the whole pixels the right edge moved, so the cost is proportional to the new frames.
+ * Everything is redrawn only when the Y range, the channels, the board or the size change.
+ *
+ * Only used from the graph thread.
+ */
+public class StripChart {
+
+    /** Two bitmaps so the chart can be shifted by drawing one into the other. */
+    private Bitmap mFront;
+    private Bitmap mBack;
+    private Canvas mFrontCanvas;
+    private Canvas mBackCanvas;
+    private final Paint mPaint = new Paint();
+
+    /** The settings the bitmap was drawn with. A change requires a full redraw. */
+    private int[] mChannels = new int[0];
+    private int[] mColors = new int[0];
+    private int mBoard = -1;
+    private double mMaxY;
+    private double mRange;
+    private long mSpan;
+    private boolean mIsStale = true;
+
+    /** Time at the right edge of the bitmap. Only moves by whole pixels. */
+    private double mEndTime;
+    /** Number of the last frame of the ring that was drawn. */
+    private long mLastIndex = -1;
+    /** Last point drawn for each channel, to connect the next segment to. */
+    private long mPreviousTime;
+    private double[] mPreviousValues = new double[0];
+    private double[] mValues = new double[0];
+    private boolean mHasPrevious = false;
+
+    /** Statistics since the last {@link #resetStatistics()}. */
+    private int mFullRedraws = 0;
+    private long mSegmentsDrawn = 0;
+
+    /**
+     * Forces a full redraw on the next {@link #draw}.
+     */
+    public void invalidate() {
+        mIsStale = true;
+    }
+
+    /**
+     * Draws the chart to the canvas with its top left corner at (left, 0).
+     *
+     * @param ring The live window.
+     * @param board The board whose frames are drawn.
+     * @param channels The channels to draw.
+     * @param colors The color of each channel.
+     * @param maxY The value at the top of the chart.
+     * @param range The range of values shown.
+     * @param span The time in ms the chart spans.
+     */
+    public void draw(Canvas canvas, LiveRing ring, int board, int[] channels, int[] colors,
+                     double maxY, double range, long span, float left, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (mFront == null || mFront.getWidth() != width || mFront.getHeight() != height) {
+            if (mFront != null) {
+                mFront.recycle();
+                mBack.recycle();
+            }
+            mFront = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mBack = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mFrontCanvas = new Canvas(mFront);
+            mBackCanvas = new Canvas(mBack);
+            mIsStale = true;
+        }
+        if (board != mBoard || maxY != mMaxY || range != mRange || span != mSpan ||
+                !Arrays.equals(channels, mChannels) || !Arrays.equals(colors, mColors)) {
+            mBoard = board;
+            mMaxY = maxY;
+            mRange = range;
+            mSpan = span;
+            mChannels = channels.clone();
+            mColors = colors.clone();
+            mPreviousValues = new double[channels.length];
+            mValues = new double[channels.length];
+            mIsStale = true;
+        }
+
+        LiveRing.Cursor cursor = ring.cursor();
+        long end = cursor.getEnd();
+        if (end > 0) {
+            cursor.seek(end - 1);
+            cursor.next();
+            long newestTime = cursor.getTime();
+            /** The ring was cleared or overwrote frames that weren't drawn yet. */
+            if (end - 1 < mLastIndex || mLastIndex + 1 < ring.getStart() ||
+                    newestTime < mEndTime) {
+                mIsStale = true;
+            }
+            if (mIsStale) {
+                redraw(ring, newestTime, width, height);
+            } else {
+                shift(newestTime, width);
+                if (!mIsStale) {
+                    cursor.seek(mLastIndex + 1);
+                    drawSegments(cursor, width, height);
+                } else {
+                    redraw(ring, newestTime, width, height);
+                }
+            }
+        } else if (mIsStale) {
+            mFront.eraseColor(Color.TRANSPARENT);
+            mLastIndex = -1;
+            mHasPrevious = false;
+            mIsStale = false;
+        }
+        canvas.drawBitmap(mFront, left, 0, null);
+    }
+
+    /**
+     * @return The time in ms at the right edge of the chart.
+     */
+    public long getEndTime() {
+        return (long) mEndTime;
+    }
+
+    private void redraw(LiveRing ring, long newestTime, int width, int height) {
+        mFront.eraseColor(Color.TRANSPARENT);
+        mEndTime = newestTime;
+        mHasPrevious = false;
+        LiveRing.Cursor cursor = ring.cursor();
+        drawSegments(cursor, width, height);
+        mIsStale = false;
+        ++mFullRedraws;
+    }
+
+    /**
+     * Shifts the bitmap left by the whole pixels between the right edge and the newest time.
+     */
+    private void shift(long newestTime, int width) {
+        double msPerPixel = (double) mSpan / width;
+        int pixels = (int) ((newestTime - mEndTime) / msPerPixel);
+        if (pixels <= 0) {
+            return;
+        }
+        if (pixels >= width) {
+            mIsStale = true;
+            return;
+        }
+        mBack.eraseColor(Color.TRANSPARENT);
+        mBackCanvas.drawBitmap(mFront, -pixels, 0, null);
+        Bitmap bitmap = mFront;
+        mFront = mBack;
+        mBack = bitmap;
+        Canvas canvas = mFrontCanvas;
+        mFrontCanvas = mBackCanvas;
+        mBackCanvas = canvas;
+        mEndTime += pixels * msPerPixel;
+    }
+
+    /**
+     * Draws the segments from the previous point to each frame the cursor moves to.
+     */
+    private void drawSegments(LiveRing.Cursor cursor, int width, int height) {
+        double pixelsPerMs = width / (double) mSpan;
+        Paint paint = mPaint;
+        while (cursor.next()) {
+            mLastIndex = cursor.getIndex();
+            if (cursor.getSource() != mBoard) {
+                continue;
+            }
+            long time = cursor.getTime();
+            boolean gap = cursor.isGap();
+            double[] values = mValues;
+            for (int i = 0; i < mChannels.length; ++i) {
+                values[i] = cursor.getValue(mChannels[i]);
+            }
+            if (!cursor.isValid()) {
+                /** Overwritten while it was read, start again from the next frame. */
+                mHasPrevious = false;
+                continue;
+            }
+            /** Don't connect the points across a gap in acquisition. */
+            if (mHasPrevious && !gap) {
+                float startX = (float) (width - (mEndTime - mPreviousTime) * pixelsPerMs);
+                float stopX = (float) (width - (mEndTime - time) * pixelsPerMs);
+                for (int i = 0; i < mChannels.length; ++i) {
+                    /** Channels that weren't polled are NaN. */
+                    if (Double.isNaN(mPreviousValues[i]) || Double.isNaN(values[i])) {
+                        continue;
+                    }
+                    float startY = (float) ((mMaxY - mPreviousValues[i]) / mRange * height);
+                    float stopY = (float) ((mMaxY - values[i]) / mRange * height);
+                    if (startY > height) {
+                        startY = height;
+                    }
+                    if (stopY > height) {
+                        stopY = height;
+                    }
+                    paint.setColor(mColors[i]);
+                    mFrontCanvas.drawLine(startX, startY, stopX, stopY, paint);
+                }
+                mSegmentsDrawn += mChannels.length;
+            }
+            mValues = mPreviousValues;
+            mPreviousValues = values;
+            mPreviousTime = time;
+            mHasPrevious = true;
+        }
+    }
+
+    public int getFullRedraws() {
+        return mFullRedraws;
+    }
+
+    public long getSegmentsDrawn() {
+        return mSegmentsDrawn;
+    }
+
+    public void resetStatistics() {
+        mFullRedraws = 0;
+        mSegmentsDrawn = 0;
+    }
+}
@@ -0,0 +1,147 @@
+package edu.ucr.nanosense;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * SyntheticGenerator produces frames at a fixed rate without a board so the pipeline after
+ * acquisition can be stress tested faster than the boards can be polled. Each channel is a
+ * baseline with a slow random walk and gaussian noise. Events, like a gas exposure, are injected
+ * at random times as an exponential rise and decay on a random set of channels.
+ *
+ * Frames are scheduled at fixed intervals from the start. If the pipeline falls more than one
+ * frame behind the schedule the frames that are due are dropped, as they would be by a board that
+ * can't be polled in time. When the generator stops it logs the sustained rate, the number of
+ * dropped frames and the heap growth.
+ */
+public class SyntheticGenerator extends FrameSource {
+
+    private static final String TAG = "SyntheticGenerator";
+
+    /** Baseline resistance of each channel before the random walk. */
+    private static final double BASELINE = Constants.Device.RHEOSTAT_RESISTANCE_MAX / 2;
+    /** Step size of the random walk relative to the noise. */
+    private static final double DRIFT_SCALE = 0.01;
+    /** Time constants of an event's rise and decay in frames. */
+    private static final double EVENT_RISE_FRAMES = 20;
+    private static final double EVENT_DECAY_FRAMES = 200;
+
+    private final int mNumChannels;
+    private final int mRate;
+    private final double mNoise;
+    private final double mEventProbability;
+    private final double mEventAmplitude;
+    private final long mNumFrames;
+
+    private final Random mRandom = new Random();
+
+    private long mFramesProduced = 0;
+    private long mFramesDropped = 0;
+    private long mEventsInjected = 0;
+
+    /**
+     * @param numChannels Number of values in each frame.
+     * @param rate Frames per second.
+     * @param noise Standard deviation of the noise on each value.
+     * @param eventProbability Probability that an event starts on any frame.
+     * @param eventAmplitude Peak change of the channels in an event.
+     * @param durationSeconds How long to run for.
+     * @param onMergedFrameListener Receives the frames.
+     * @param onFrameSourceFinishedListener Called on the generator thread when it stops.
+     */
+    public SyntheticGenerator(int numChannels, int rate, double noise, double eventProbability,
+                              double eventAmplitude, int durationSeconds,
+                              FrameMerger.OnMergedFrameListener onMergedFrameListener,
+                              OnFrameSourceFinishedListener onFrameSourceFinishedListener) {
+        super(TAG, onMergedFrameListener, onFrameSourceFinishedListener);
+        mNumChannels = numChannels;
+        mRate = rate;
+        mNoise = noise;
+        mEventProbability = eventProbability;
+        mEventAmplitude = eventAmplitude;
+        mNumFrames = (long) rate * durationSeconds;
+    }
+
+    @Override
+    public void run() {
+        double[] frame = new double[mNumChannels];
+        double[] baselines = new double[mNumChannels];
+        /** Amplitude of the current event on each channel, 0 if not in the event. */
+        double[] eventAmplitudes = new double[mNumChannels];
+        for (int i = 0; i < mNumChannels; ++i) {
+            baselines[i] = BASELINE;
+        }
+        long eventStart = -1;
+
+        Runtime runtime = Runtime.getRuntime();
+        long startHeap = runtime.totalMemory() - runtime.freeMemory();
+        long intervalNanos = 1000000000L / mRate;
+        long startNanos = System.nanoTime();
+        try {
+            long frameIndex = 0;
+            while (frameIndex < mNumFrames && isRunning()) {
+                long dueNanos = startNanos + frameIndex * intervalNanos;
+                long lateNanos = System.nanoTime() - dueNanos;
+                if (lateNanos <= -1000000) {
+                    /**
+                     * Sleep is only accurate to a millisecond so at high rates frames are produced
+                     * in bursts up to a millisecond early.
+                     */
+                    Thread.sleep(-lateNanos / 1000000);
+                } else if (lateNanos > intervalNanos) {
+                    /** Drop the frames that were missed, keeping the most recent one. */
+                    long missed = Math.min(lateNanos / intervalNanos, mNumFrames - frameIndex - 1);
+                    mFramesDropped += missed;
+                    frameIndex += missed;
+                }
+
+                if (eventStart < 0 && mRandom.nextDouble() < mEventProbability) {
+                    eventStart = frameIndex;
+                    for (int i = 0; i < mNumChannels; ++i) {
+                        eventAmplitudes[i] = mRandom.nextBoolean() ?
+                                mEventAmplitude * (0.5 + mRandom.nextDouble()) : 0;
+                    }
+                    ++mEventsInjected;
+                }
+                double event = 0;
+                if (eventStart >= 0) {
+                    double t = frameIndex - eventStart;
+                    event = (1 - Math.exp(-t / EVENT_RISE_FRAMES)) *
+                            Math.exp(-t / EVENT_DECAY_FRAMES);
+                    if (t > 10 * EVENT_DECAY_FRAMES) {
+                        eventStart = -1;
+                    }
+                }
+
+                for (int i = 0; i < mNumChannels; ++i) {
+                    baselines[i] += mRandom.nextGaussian() * mNoise * DRIFT_SCALE;
+                    frame[i] = baselines[i] + event * eventAmplitudes[i] +
+                            mRandom.nextGaussian() * mNoise;
+                }
+                long time = frameIndex * 1000 / mRate;
+                mOnMergedFrameListener.onMergedFrame(0, time, frame);
+                ++mFramesProduced;
+                ++frameIndex;
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Generator cancelled");
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        double framesPerSecond = elapsedNanos > 0 ? mFramesProduced * 1e9 / elapsedNanos : 0;
+        long heapGrowth = runtime.totalMemory() - runtime.freeMemory() - startHeap;
+        Log.d(TAG, "Generated " + mFramesProduced + " frames of " + mNumChannels +
+                " channels at " + framesPerSecond + " frames/s (target " + mRate + "), dropped " +
+                mFramesDropped + ", events " + mEventsInjected + ", heap growth " +
+                heapGrowth / 1024 + " kB");
+        notifyFinished(mFramesProduced, framesPerSecond);
+    }
+
+    public long getFramesProduced() {
+        return mFramesProduced;
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+}
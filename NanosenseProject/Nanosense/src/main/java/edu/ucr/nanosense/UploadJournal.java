@@ -0,0 +1,456 @@
+package edu.ucr.nanosense;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * UploadJournal keeps the sealed chunks of the recorded sessions on disk until the
+ * {@link edu.ucr.nanosense.Uploader} has sent them, so nothing is lost while the device is offline.
+ *
+ * The journal is an append-only log of records split into segment files of about
+ * {@link Constants.Upload#SEGMENT_SIZE} bytes, each named by the journal offset of its first
+ * byte. A record is:
+ * [length (int)][session start time (long, ms since epoch)][chunk]
+ * where the length counts the bytes after it and the chunk is written by
+ * {@link edu.ucr.nanosense.CompressedChunk#writeTo(java.io.DataOutputStream)}.
+ *
+ * The offset the server has acknowledged is saved in the journal directory, so uploads resume
+ * from it after a restart. Segments wholly before it are deleted. If the journal grows past
+ * {@link Constants.Upload#MAX_JOURNAL_BYTES} the oldest segments are dropped even if they haven't
+ * been sent, and the bytes dropped are logged.
+ *
+ * {@link #append(long, CompressedChunk)} is called while recording, so it only queues the record
+ * for the journal's writer thread and never touches the files or waits for the uploader. Up to
+ * {@link Constants.Upload#QUEUE_SIZE} records are queued. Past that, records are dropped and
+ * counted, so a slow flash write never stalls acquisition. There is one uploader reading.
+ */
+public class UploadJournal {
+
+    private static final String TAG = "UploadJournal";
+
+    private static final String ACK_FILE = "ack";
+    private static final String ACK_TEMP_FILE = "ack.tmp";
+    private static final int HEADER_SIZE = 4;
+
+    private final File mDirectory;
+    /** Offset of the first byte of each segment, oldest first. */
+    private final List<Long> mSegments = new ArrayList<Long>();
+    /** Read without the lock. Only changed with it held. */
+    private volatile long mEnd;
+    private volatile long mAcknowledged;
+    private volatile long mBytesDropped = 0;
+
+    /** The newest segment, open for appending. Null until the first append. */
+    private FileOutputStream mOut;
+
+    /** Records waiting to be written, and the thread writing them. */
+    private final BlockingQueue<byte[]> mQueue =
+            new LinkedBlockingQueue<byte[]>(Constants.Upload.QUEUE_SIZE);
+    private final Writer mWriter = new Writer();
+    /** Queued after the last record by close. */
+    private static final byte[] END_OF_QUEUE = new byte[0];
+    /** Set once the journal is closed or can't be written, after which appends fail. */
+    private volatile IOException mFailure;
+
+    /**
+     * Opens the journal, creating the directory if needed. A record cut off by the app being
+     * killed while writing is removed.
+     */
+    public UploadJournal(File directory) throws IOException {
+        mDirectory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory.getAbsolutePath());
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(Constants.Upload.SEGMENT_EXTENSION)) {
+                    mSegments.add(Long.parseLong(name.substring(0,
+                            name.length() - Constants.Upload.SEGMENT_EXTENSION.length())));
+                }
+            }
+        }
+        Long[] segments = mSegments.toArray(new Long[mSegments.size()]);
+        Arrays.sort(segments);
+        mSegments.clear();
+        mSegments.addAll(Arrays.asList(segments));
+        mAcknowledged = readAcknowledged();
+        if (mSegments.isEmpty()) {
+            mEnd = mAcknowledged;
+        } else {
+            long last = mSegments.get(mSegments.size() - 1);
+            mEnd = last + truncatePartialRecord(getSegmentFile(last));
+            /** Keep the offset within the segments in case the files were changed. */
+            mAcknowledged = Math.min(Math.max(mAcknowledged, mSegments.get(0)), mEnd);
+        }
+        Log.d(TAG, "Journal has " + getPendingBytes() + " bytes to upload in " +
+                mSegments.size() + " segments");
+        mWriter.start();
+    }
+
+    private File getSegmentFile(long start) {
+        return new File(mDirectory, String.format("%020d", start) +
+                Constants.Upload.SEGMENT_EXTENSION);
+    }
+
+    /**
+     * @return The length of the complete records in the segment, after truncating any partial
+     * record at the end.
+     */
+    private static long truncatePartialRecord(File file) throws IOException {
+        RandomAccessFile segment = new RandomAccessFile(file, "rw");
+        try {
+            long length = segment.length();
+            long position = 0;
+            while (position + HEADER_SIZE <= length) {
+                segment.seek(position);
+                long next = position + HEADER_SIZE + segment.readInt();
+                if (next > length) {
+                    break;
+                }
+                position = next;
+            }
+            if (position < length) {
+                Log.d(TAG, "Truncating " + (length - position) + " bytes of a partial record");
+                segment.setLength(position);
+            }
+            return position;
+        } finally {
+            segment.close();
+        }
+    }
+
+    private long readAcknowledged() {
+        File file = new File(mDirectory, ACK_FILE);
+        if (!file.exists()) {
+            return mSegments.isEmpty() ? 0 : mSegments.get(0);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return mSegments.isEmpty() ? 0 : mSegments.get(0);
+        }
+    }
+
+    /**
+     * Queues a chunk to be appended. The uploader is woken once it is written.
+     *
+     * @param sessionStartTime The start time of the chunk's session, from its header.
+     * @throws IOException If the journal is closed or can't be written.
+     */
+    public void append(long sessionStartTime, CompressedChunk chunk) throws IOException {
+        if (mFailure != null) {
+            throw mFailure;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.getSizeBytes() + 64);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeInt(0);
+        record.writeLong(sessionStartTime);
+        chunk.writeTo(record);
+        record.flush();
+        byte[] buffer = bytes.toByteArray();
+        int length = buffer.length - HEADER_SIZE;
+        buffer[0] = (byte) (length >>> 24);
+        buffer[1] = (byte) (length >>> 16);
+        buffer[2] = (byte) (length >>> 8);
+        buffer[3] = (byte) length;
+        if (!mQueue.offer(buffer)) {
+            synchronized (mQueue) {
+                mBytesDropped += buffer.length;
+            }
+            Log.d(TAG, "Journal writer behind, dropped a chunk of " + buffer.length + " bytes");
+        }
+    }
+
+    /**
+     * Writes the queued records to the newest segment until closed.
+     */
+    private class Writer extends Thread {
+
+        Writer() {
+            super("UploadJournalWriter");
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] record;
+                while ((record = mQueue.take()) != END_OF_QUEUE) {
+                    write(record);
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Journal writer interrupted");
+            } catch (IOException e) {
+                e.printStackTrace();
+                mFailure = e;
+                mQueue.clear();
+            }
+        }
+    }
+
+    private synchronized void write(byte[] record) throws IOException {
+        long segmentStart = mSegments.isEmpty() ? -1 : mSegments.get(mSegments.size() - 1);
+        if (segmentStart < 0 || mEnd - segmentStart >= Constants.Upload.SEGMENT_SIZE) {
+            startSegment();
+        } else if (mOut == null) {
+            mOut = new FileOutputStream(getSegmentFile(segmentStart), true);
+        }
+        mOut.write(record);
+        mOut.flush();
+        mEnd += record.length;
+        enforceRetention();
+        notifyAll();
+    }
+
+    private void startSegment() throws IOException {
+        if (mOut != null) {
+            /** The finished segment is made durable before the next one starts. */
+            mOut.getFD().sync();
+            mOut.close();
+        }
+        mSegments.add(mEnd);
+        mOut = new FileOutputStream(getSegmentFile(mEnd));
+    }
+
+    /**
+     * Drops the oldest segments until the journal is under its size limit. The newest segment is
+     * always kept.
+     */
+    private void enforceRetention() throws IOException {
+        while (mSegments.size() > 1 &&
+                mEnd - mSegments.get(0) > Constants.Upload.MAX_JOURNAL_BYTES) {
+            long next = mSegments.get(1);
+            if (mAcknowledged < next) {
+                long dropped = next - mAcknowledged;
+                synchronized (mQueue) {
+                    mBytesDropped += dropped;
+                }
+                Log.d(TAG, "Journal full, dropped " + dropped + " bytes that weren't uploaded");
+                setAcknowledged(next);
+            } else {
+                deleteOldestSegment();
+            }
+        }
+    }
+
+    private void deleteOldestSegment() {
+        File file = getSegmentFile(mSegments.remove(0));
+        if (!file.delete()) {
+            Log.d(TAG, "Can't delete " + file.getName());
+        }
+    }
+
+    /**
+     * Records that the server has everything before the offset, and deletes the segments wholly
+     * before it.
+     */
+    public synchronized void acknowledge(long offset) throws IOException {
+        if (offset > mAcknowledged && offset <= mEnd) {
+            setAcknowledged(offset);
+        }
+    }
+
+    private void setAcknowledged(long offset) throws IOException {
+        File temp = new File(mDirectory, ACK_TEMP_FILE);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeLong(offset);
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(mDirectory, ACK_FILE))) {
+            throw new IOException("Can't save the acknowledged offset");
+        }
+        mAcknowledged = offset;
+        while (mSegments.size() > 1 && mSegments.get(1) <= offset) {
+            deleteOldestSegment();
+        }
+    }
+
+    public long getAcknowledged() {
+        return mAcknowledged;
+    }
+
+    /**
+     * Renumbers the journal so the acknowledged offset becomes the server's, as when the server
+     * has stored more than the journal ever held because the journal was recreated. The records
+     * not yet uploaded are then sent from the new offset.
+     */
+    public synchronized void rebase(long offset) throws IOException {
+        long shift = offset - mAcknowledged;
+        if (shift <= 0) {
+            return;
+        }
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+        /** Newest first, so no segment is renamed onto one not yet moved. */
+        for (int i = mSegments.size() - 1; i >= 0; --i) {
+            long start = mSegments.get(i);
+            if (!getSegmentFile(start).renameTo(getSegmentFile(start + shift))) {
+                throw new IOException("Can't renumber segment " + start);
+            }
+            mSegments.set(i, start + shift);
+        }
+        mEnd += shift;
+        setAcknowledged(offset);
+    }
+
+    public long getEnd() {
+        return mEnd;
+    }
+
+    public long getPendingBytes() {
+        return mEnd - mAcknowledged;
+    }
+
+    /**
+     * @return The bytes dropped because the journal was full or its writer was behind.
+     */
+    public long getBytesDropped() {
+        return mBytesDropped;
+    }
+
+    /**
+     * Waits until there are bytes after the acknowledged offset.
+     *
+     * @param timeout The longest time to wait in ms.
+     * @return True if there are bytes to upload.
+     */
+    public synchronized boolean awaitPending(long timeout) throws InterruptedException {
+        if (mEnd == mAcknowledged) {
+            wait(timeout);
+        }
+        return mEnd > mAcknowledged;
+    }
+
+    /**
+     * Finds the whole records from the acknowledged offset that fit in a batch. At least one
+     * record is taken even if it is larger.
+     *
+     * @return The offset after the last record, or the acknowledged offset if there are none.
+     */
+    public long getBatchEnd(int maxBytes) throws IOException {
+        long start;
+        long journalEnd;
+        synchronized (this) {
+            start = mAcknowledged;
+            journalEnd = mEnd;
+        }
+        /** The records are read without the lock so the writer is never held up. */
+        long end = start;
+        while (end < journalEnd) {
+            long segmentStart;
+            synchronized (this) {
+                segmentStart = getSegmentStart(end);
+            }
+            RandomAccessFile segment = new RandomAccessFile(getSegmentFile(segmentStart), "r");
+            try {
+                long segmentLength = segment.length();
+                while (end < journalEnd && end - segmentStart < segmentLength) {
+                    segment.seek(end - segmentStart);
+                    long next = end + HEADER_SIZE + segment.readInt();
+                    if (next - start > maxBytes && end > start) {
+                        return end;
+                    }
+                    end = next;
+                }
+            } finally {
+                segment.close();
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Copies the journal bytes [start, end) to the stream without holding them all in memory.
+     */
+    public void copy(long start, long end, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        long position = start;
+        while (position < end) {
+            long segmentStart;
+            synchronized (this) {
+                segmentStart = getSegmentStart(position);
+            }
+            RandomAccessFile segment = new RandomAccessFile(getSegmentFile(segmentStart), "r");
+            try {
+                segment.seek(position - segmentStart);
+                long segmentEnd = Math.min(end, segmentStart + segment.length());
+                while (position < segmentEnd) {
+                    int count = segment.read(buffer, 0,
+                            (int) Math.min(buffer.length, segmentEnd - position));
+                    if (count < 0) {
+                        throw new EOFException("Journal segment ended early");
+                    }
+                    out.write(buffer, 0, count);
+                    position += count;
+                }
+            } finally {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * @return The start of the segment holding the offset.
+     */
+    private long getSegmentStart(long offset) throws IOException {
+        for (int i = mSegments.size() - 1; i >= 0; --i) {
+            if (mSegments.get(i) <= offset) {
+                return mSegments.get(i);
+            }
+        }
+        throw new IOException("Offset " + offset + " is no longer in the journal");
+    }
+
+    /**
+     * Writes the queued records and closes the journal. Appends fail from then on.
+     */
+    public void close() throws IOException {
+        if (mFailure == null) {
+            mFailure = new IOException("Journal closed");
+        }
+        try {
+            if (mWriter.isAlive()) {
+                mQueue.put(END_OF_QUEUE);
+                mWriter.join();
+            }
+        } catch (InterruptedException e) {
+            mWriter.interrupt();
+        }
+        synchronized (this) {
+            if (mOut != null) {
+                mOut.getFD().sync();
+                mOut.close();
+                mOut = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package edu.ucr.nanosense;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Uploader sends the {@link edu.ucr.nanosense.UploadJournal} to the server on its own thread.
+ * Each request is an HTTP POST to /upload of up to {@link Constants.Upload#BATCH_SIZE} bytes of
+ * whole journal records, which hold chunks that are already compressed:
+ *
+ * <pre>
+ * POST /upload HTTP/1.0
+ * X-Journal-Offset: [journal offset of the first byte]
+ * Content-Length: [bytes]
+ * </pre>
+ *
+ * The server replies 200 with an X-Journal-Acknowledged header holding the offset it has stored
+ * everything before. The journal is acknowledged up to it and the next batch starts there, so an
+ * interrupted transfer resumes from the last acknowledged offset, even across restarts. A server
+ * that already has the batch, for example because an acknowledgement was lost, can reply with its
+ * offset without storing it again.
+ *
+ * A reply that doesn't move the acknowledged offset forward is a failure, so a server that is
+ * behind the journal isn't asked again in a tight loop. A server ahead of the end of the journal,
+ * as when the journal was lost and recreated, has the journal renumbered to continue from its
+ * offset.
+ *
+ * While the server can't be reached the uploader retries with a delay that doubles from
+ * {@link Constants.Upload#RETRY_MIN_DELAY} up to {@link Constants.Upload#RETRY_MAX_DELAY}. The
+ * throughput of each sync, from the first successful batch until the journal is caught up, is
+ * logged.
+ */
+public class Uploader extends Thread {
+
+    private static final String TAG = "Uploader";
+
+    private static final String HEADER_OFFSET = "X-Journal-Offset";
+    private static final String HEADER_ACKNOWLEDGED = "X-Journal-Acknowledged";
+    private static final int SEND_BUFFER_SIZE = 65536;
+
+    private final UploadJournal mJournal;
+    private final String mHost;
+    private final int mPort;
+    private volatile boolean mRunning = true;
+
+    /** The current sync. The start time is -1 when caught up or after a failure. */
+    private long mSyncStartTime = -1;
+    private long mSyncBytes;
+    private int mSyncBatches;
+
+    public Uploader(UploadJournal journal, String host, int port) {
+        super(TAG);
+        mJournal = journal;
+        mHost = host;
+        mPort = port;
+        setPriority(MIN_PRIORITY);
+    }
+
+    /**
+     * Stops the thread. The batch being sent is sent again by the next uploader.
+     */
+    public void cancel() {
+        mRunning = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        int retryDelay = Constants.Upload.RETRY_MIN_DELAY;
+        try {
+            while (mRunning) {
+                if (!mJournal.awaitPending(Constants.Upload.RETRY_MAX_DELAY)) {
+                    continue;
+                }
+                try {
+                    uploadBatch();
+                    retryDelay = Constants.Upload.RETRY_MIN_DELAY;
+                } catch (IOException e) {
+                    Log.d(TAG, "Upload to " + mHost + ":" + mPort + " failed, retrying in " +
+                            retryDelay + "ms: " + e.getMessage());
+                    mSyncStartTime = -1;
+                    Thread.sleep(retryDelay);
+                    retryDelay = Math.min(retryDelay * 2, Constants.Upload.RETRY_MAX_DELAY);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Uploader stopped");
+        }
+    }
+
+    private void uploadBatch() throws IOException {
+        long start = mJournal.getAcknowledged();
+        long end = mJournal.getBatchEnd(Constants.Upload.BATCH_SIZE);
+        if (mSyncStartTime < 0) {
+            mSyncStartTime = SystemClock.elapsedRealtime();
+            mSyncBytes = 0;
+            mSyncBatches = 0;
+        }
+        long acknowledged = send(start, end);
+        if (acknowledged > mJournal.getEnd()) {
+            /** The server has more than the journal ever held, as when the journal was recreated. */
+            Log.d(TAG, "Server is ahead of the journal end " + mJournal.getEnd() + " at " +
+                    acknowledged + ", resyncing from it");
+            mJournal.rebase(acknowledged);
+            mSyncStartTime = -1;
+            return;
+        }
+        if (acknowledged <= start) {
+            /** The segments before the journal's offset may be gone, so retry later. */
+            throw new IOException("Server acknowledged " + acknowledged +
+                    ", no progress from " + start);
+        }
+        mJournal.acknowledge(acknowledged);
+        mSyncBytes += acknowledged - start;
+        ++mSyncBatches;
+        if (mJournal.getPendingBytes() == 0) {
+            long elapsed = Math.max(SystemClock.elapsedRealtime() - mSyncStartTime, 1);
+            Log.d(TAG, "Synced " + mSyncBytes + " bytes in " + mSyncBatches + " batches in " +
+                    elapsed + "ms, " + mSyncBytes / elapsed + " KB/s");
+            mSyncStartTime = -1;
+        }
+    }
+
+    /**
+     * Posts the journal bytes [start, end).
+     *
+     * @return The offset the server acknowledged.
+     */
+    private long send(long start, long end) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(mHost, mPort), Constants.Upload.CONNECT_TIMEOUT);
+            socket.setSoTimeout(Constants.Upload.READ_TIMEOUT);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(),
+                    SEND_BUFFER_SIZE);
+            String header = "POST /upload HTTP/1.0\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    HEADER_OFFSET + ": " + start + "\r\n" +
+                    "Content-Length: " + (end - start) + "\r\n\r\n";
+            out.write(header.getBytes("US-ASCII"));
+            mJournal.copy(start, end, out);
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            String statusLine = QueryServer.readLine(in);
+            if (statusLine == null || !statusLine.startsWith("HTTP/") ||
+                    statusLine.indexOf(" 200") < 0) {
+                throw new IOException("Server replied " + statusLine);
+            }
+            long acknowledged = -1;
+            String line;
+            while ((line = QueryServer.readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim()
+                        .equalsIgnoreCase(HEADER_ACKNOWLEDGED)) {
+                    try {
+                        acknowledged = Long.parseLong(line.substring(colon + 1).trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid acknowledgement " + line);
+                    }
+                }
+            }
+            if (acknowledged < 0) {
+                throw new IOException("Server didn't acknowledge the batch");
+            }
+            return acknowledged;
+        } finally {
+            QueryServer.closeQuietly(socket);
+        }
+    }
+}
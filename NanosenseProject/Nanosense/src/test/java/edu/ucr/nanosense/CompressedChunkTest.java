@@ -0,0 +1,219 @@
+package edu.ucr.nanosense;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips frames through {@link edu.ucr.nanosense.CompressedChunk}, which must return every
+ * time, source and value bit for bit.
+ */
+public class CompressedChunkTest {
+
+    private static final int NUM_FRAMES = 1000;
+    private static final int NUM_CHANNELS = 5;
+
+    private final long[] mTimes = new long[NUM_FRAMES + 10];
+    private final byte[] mSources = new byte[NUM_FRAMES + 10];
+    private final double[][] mValues = new double[NUM_CHANNELS][NUM_FRAMES + 10];
+
+    /**
+     * Fills the frames with the cases the encoders special-case: regular and jittered polling,
+     * large and negative time steps, repeated and changing sources, slowly changing and random
+     * values, NaN, infinities, -0 and extremes.
+     */
+    private void fill(long seed) {
+        Random random = new Random(seed);
+        long time = -5000;
+        double walk = 40;
+        for (int i = 0; i < mTimes.length; ++i) {
+            if (i % 100 == 99) {
+                time += random.nextInt(2000000) - 1000000;
+            } else {
+                time += 100 + (random.nextInt(5) == 0 ? random.nextInt(21) - 10 : 0);
+            }
+            mTimes[i] = time;
+            mSources[i] = (byte) (random.nextInt(10) == 0 ? random.nextInt(256) : i / 300);
+            walk += random.nextGaussian() * 0.01;
+            mValues[0][i] = walk;
+            mValues[1][i] = random.nextDouble() * 1e6 - 5e5;
+            mValues[2][i] = i % 50 < 10 ? Double.NaN : walk;
+            mValues[3][i] = 25.0;
+        }
+        double[] special = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -0.0, 0.0,
+                Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.NaN};
+        for (int i = 0; i < mTimes.length; ++i) {
+            mValues[4][i] = special[i % special.length];
+        }
+    }
+
+    @Test
+    public void encodeRoundTrips() {
+        for (long seed = 0; seed < 5; ++seed) {
+            fill(seed);
+            CompressedChunk chunk = CompressedChunk.encode(mTimes, mSources, mValues, 10,
+                    NUM_FRAMES);
+            assertFrames(chunk, 10, NUM_CHANNELS);
+        }
+    }
+
+    @Test
+    public void singleFrameRoundTrips() {
+        fill(1);
+        CompressedChunk chunk = CompressedChunk.encode(mTimes, mSources, mValues, 3, 1);
+        assertFrames(chunk, 3, NUM_CHANNELS);
+        assertEquals(mTimes[3], chunk.getLastTime());
+    }
+
+    @Test
+    public void headerHasRangeAndExtents() {
+        fill(2);
+        CompressedChunk chunk = CompressedChunk.encode(mTimes, mSources, mValues, 0, NUM_FRAMES);
+        assertEquals(mTimes[0], chunk.getFirstTime());
+        assertEquals(mTimes[NUM_FRAMES - 1], chunk.getLastTime());
+        for (int channel = 0; channel < 3; ++channel) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < NUM_FRAMES; ++i) {
+                /** NaN never counts. */
+                if (mValues[channel][i] < min) {
+                    min = mValues[channel][i];
+                }
+                if (mValues[channel][i] > max) {
+                    max = mValues[channel][i];
+                }
+            }
+            assertEquals(min, chunk.getMin(channel), 0);
+            assertEquals(max, chunk.getMax(channel), 0);
+        }
+        assertEquals(25.0, chunk.getMin(3), 0);
+        assertEquals(25.0, chunk.getMax(3), 0);
+    }
+
+    @Test
+    public void slowlyChangingValuesCompress() {
+        fill(3);
+        CompressedChunk chunk = CompressedChunk.encode(mTimes, mSources, mValues, 0, NUM_FRAMES);
+        /** A constant takes about a bit a frame, where raw doubles take 64. */
+        CompressedChunk constant = CompressedChunk.encode(mTimes, mSources,
+                new double[][]{mValues[3]}, 0, NUM_FRAMES);
+        assertTrue(constant.getSizeBytes() < chunk.getSizeBytes() / NUM_CHANNELS);
+    }
+
+    @Test
+    public void writeToReadFromRoundTrips() throws IOException {
+        fill(4);
+        CompressedChunk chunk = CompressedChunk.encode(mTimes, mSources, mValues, 10, NUM_FRAMES);
+        byte[] bytes = write(chunk);
+        CompressedChunk read = CompressedChunk.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes)));
+        assertFrames(read, 10, NUM_CHANNELS);
+        assertEquals(chunk.getSizeBytes(), read.getSizeBytes());
+    }
+
+    @Test
+    public void readChannelDecodesOnlyTheChannel() {
+        fill(5);
+        CompressedChunk chunk = CompressedChunk.encode(mTimes, mSources, mValues, 0, NUM_FRAMES);
+        byte[] bytes = write(chunk);
+        byte[] padded = new byte[bytes.length + 7];
+        System.arraycopy(bytes, 0, padded, 3, bytes.length);
+        for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+            CompressedChunk read = CompressedChunk.readChannel(padded, 3, bytes.length, channel);
+            CompressedChunk.ValueReader reader = read.newValueReader(channel);
+            for (int i = 0; i < NUM_FRAMES; ++i) {
+                assertEquals(mTimes[i], read.getTime(i));
+                assertBits(mValues[channel][i], reader.next());
+            }
+            assertEquals(chunk.getMax(channel), read.getMax(channel), 0);
+        }
+    }
+
+    @Test
+    public void headerReadSkipsTheStreams() throws IOException {
+        fill(6);
+        CompressedChunk first = CompressedChunk.encode(mTimes, mSources, mValues, 0, 400);
+        CompressedChunk second = CompressedChunk.encode(mTimes, mSources, mValues, 400, 600);
+        byte[] firstBytes = write(first);
+        byte[] secondBytes = write(second);
+        byte[] bytes = new byte[firstBytes.length + secondBytes.length];
+        System.arraycopy(firstBytes, 0, bytes, 0, firstBytes.length);
+        System.arraycopy(secondBytes, 0, bytes, firstBytes.length, secondBytes.length);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        CompressedChunk.Header header = CompressedChunk.Header.read(in);
+        assertEquals(firstBytes.length, header.mLength);
+        assertEquals(400, header.mNumFrames);
+        assertEquals(NUM_CHANNELS, header.mNumChannels);
+        assertEquals(mTimes[399], header.mLastTime);
+        header = CompressedChunk.Header.read(in);
+        assertEquals(secondBytes.length, header.mLength);
+        assertEquals(mTimes[400], header.mFirstTime);
+        assertEquals(second.getMin(1), header.mMinValues[1], 0);
+        try {
+            CompressedChunk.Header.read(in);
+            fail();
+        } catch (EOFException e) {
+            /** Expected at the end. */
+        }
+    }
+
+    @Test
+    public void randomAccessMatchesSequential() {
+        fill(7);
+        CompressedChunk chunk = CompressedChunk.encode(mTimes, mSources, mValues, 0, NUM_FRAMES);
+        CompressedChunk.TimeReader reader = chunk.newTimeReader();
+        reader.skip(500);
+        assertEquals(mTimes[500], reader.next());
+        assertEquals(mSources[999] & 0xFF, chunk.getSource(999));
+        assertBits(mValues[4][7], chunk.getValue(4, 7));
+        assertNotEquals(chunk.getTime(1), chunk.getTime(2));
+    }
+
+    private void assertFrames(CompressedChunk chunk, int start, int numChannels) {
+        assertEquals(numChannels, chunk.getNumChannels());
+        int numFrames = chunk.getNumFrames();
+        CompressedChunk.TimeReader timeReader = chunk.newTimeReader();
+        CompressedChunk.SourceReader sourceReader = chunk.newSourceReader();
+        for (int i = 0; i < numFrames; ++i) {
+            assertEquals(mTimes[start + i], timeReader.next());
+            assertEquals(mSources[start + i] & 0xFF, sourceReader.next());
+        }
+        for (int channel = 0; channel < numChannels; ++channel) {
+            CompressedChunk.ValueReader valueReader = chunk.newValueReader(channel);
+            for (int i = 0; i < numFrames; ++i) {
+                assertBits(mValues[channel][start + i], valueReader.next());
+            }
+        }
+    }
+
+    /**
+     * Compares the bits, so -0 and NaN must come back exactly.
+     */
+    private static void assertBits(double expected, double actual) {
+        assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+    }
+
+    private static byte[] write(CompressedChunk chunk) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            chunk.writeTo(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
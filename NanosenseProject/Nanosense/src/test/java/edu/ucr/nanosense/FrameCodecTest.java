@@ -0,0 +1,175 @@
+package edu.ucr.nanosense;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips frames through the {@link edu.ucr.nanosense.FrameCodec} encoder and decoder.
+ */
+public class FrameCodecTest {
+
+    private static final int NUM_CHANNELS = FrameCodec.NUM_CHANNELS;
+    private static final double TOLERANCE = 0.5 / Constants.Wire.FIXED_POINT_SCALE;
+
+    private final Random mRandom = new Random(1);
+
+    /**
+     * Frames of slowly changing readings with missing and out of range channels.
+     */
+    private double[][] makeFrames(int numFrames) {
+        double[][] frames = new double[numFrames][NUM_CHANNELS];
+        double[] walk = new double[NUM_CHANNELS];
+        for (int i = 0; i < NUM_CHANNELS; ++i) {
+            walk[i] = mRandom.nextDouble() * 2e5 - 1e5;
+        }
+        for (int f = 0; f < numFrames; ++f) {
+            for (int i = 0; i < NUM_CHANNELS; ++i) {
+                walk[i] += mRandom.nextGaussian();
+                frames[f][i] = mRandom.nextInt(20) == 0 ? Double.NaN : walk[i];
+            }
+            if (f % 7 == 0) {
+                frames[f][f % NUM_CHANNELS] = 1e15;
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Encodes the frames, followed by their times and sources, into one stream.
+     */
+    private int encode(double[][] frames, long[] times, byte[] buffer) {
+        FrameCodec.Encoder encoder = new FrameCodec.Encoder();
+        int position = FrameCodec.writeHeader(buffer, 0);
+        for (int f = 0; f < frames.length; ++f) {
+            position = encoder.encode(f % 3, times[f], f % 100 == 50, frames[f], 0, buffer,
+                    position);
+        }
+        return position;
+    }
+
+    private long[] makeTimes(int numFrames) {
+        long[] times = new long[numFrames];
+        long time = 1400000000000L;
+        for (int f = 0; f < numFrames; ++f) {
+            time += f % 100 == 50 ? -30000 : 100 + mRandom.nextInt(5);
+            times[f] = time;
+        }
+        return times;
+    }
+
+    private static void assertFrame(double[] expected, double[] actual, int offset) {
+        for (int i = 0; i < NUM_CHANNELS; ++i) {
+            if (Double.isNaN(expected[i]) || Math.abs(expected[i]) > 1e12) {
+                assertTrue(Double.isNaN(actual[offset + i]));
+            } else {
+                assertEquals(expected[i], actual[offset + i], TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsAcrossKeyFrames() throws IOException {
+        int numFrames = Constants.Wire.KEY_FRAME_INTERVAL * 3 + 10;
+        double[][] frames = makeFrames(numFrames);
+        long[] times = makeTimes(numFrames);
+        byte[] buffer = new byte[FrameCodec.HEADER_SIZE + numFrames * FrameCodec.MAX_FRAME_SIZE];
+        int end = encode(frames, times, buffer);
+
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+        int position = FrameCodec.readHeader(buffer, 0);
+        double[] frame = new double[NUM_CHANNELS + 2];
+        for (int f = 0; f < numFrames; ++f) {
+            int next = decoder.decode(buffer, position, end, frame, 2);
+            assertTrue(next > position);
+            position = next;
+            assertTrue(decoder.hasFrame());
+            assertEquals(times[f], decoder.getTime());
+            assertEquals(f % 3, decoder.getSource());
+            assertEquals(f % 100 == 50, decoder.isGap());
+            assertFrame(frames[f], frame, 2);
+        }
+        assertEquals(end, position);
+        assertEquals(-1, decoder.decode(buffer, position, end, frame, 0));
+    }
+
+    @Test
+    public void deltaFramesAreSmall() {
+        int numFrames = Constants.Wire.KEY_FRAME_INTERVAL;
+        double[][] frames = makeFrames(numFrames);
+        byte[] buffer = new byte[FrameCodec.HEADER_SIZE + numFrames * FrameCodec.MAX_FRAME_SIZE];
+        int end = encode(frames, makeTimes(numFrames), buffer);
+        /** Changes of about 1000 fixed point steps take 2 bytes, against 14 or more as CSV. */
+        assertTrue(end - FrameCodec.HEADER_SIZE < numFrames * (4 + 3 * NUM_CHANNELS));
+    }
+
+    @Test
+    public void partialFrameReadsNothing() throws IOException {
+        double[][] frames = makeFrames(3);
+        long[] times = makeTimes(3);
+        byte[] buffer = new byte[FrameCodec.HEADER_SIZE + 3 * FrameCodec.MAX_FRAME_SIZE];
+        int end = encode(frames, times, buffer);
+
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+        double[] frame = new double[NUM_CHANNELS];
+        int first = decoder.decode(buffer, FrameCodec.HEADER_SIZE, end, frame, 0);
+        int second = decoder.decode(buffer, first, end, frame, 0);
+        for (int limit = second; limit < end; ++limit) {
+            assertEquals(-1, decoder.decode(buffer, second, limit, frame, 0));
+            /** The previous frame is kept. */
+            assertEquals(times[1], decoder.getTime());
+        }
+        assertEquals(end, decoder.decode(buffer, second, end, frame, 0));
+        assertEquals(times[2], decoder.getTime());
+        assertFrame(frames[2], frame, 0);
+    }
+
+    @Test
+    public void joiningSkipsToKeyFrame() throws IOException {
+        int numFrames = Constants.Wire.KEY_FRAME_INTERVAL + 5;
+        double[][] frames = makeFrames(numFrames);
+        long[] times = makeTimes(numFrames);
+        byte[] buffer = new byte[FrameCodec.HEADER_SIZE + numFrames * FrameCodec.MAX_FRAME_SIZE];
+        int end = encode(frames, times, buffer);
+
+        /** Find the start of frame 1, then decode from there as if joining late. */
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+        double[] frame = new double[NUM_CHANNELS];
+        int position = decoder.decode(buffer, FrameCodec.HEADER_SIZE, end, frame, 0);
+        decoder = new FrameCodec.Decoder();
+        for (int f = 1; f < Constants.Wire.KEY_FRAME_INTERVAL; ++f) {
+            position = decoder.decode(buffer, position, end, frame, 0);
+            assertFalse(decoder.hasFrame());
+        }
+        position = decoder.decode(buffer, position, end, frame, 0);
+        assertTrue(decoder.hasFrame());
+        assertEquals(times[Constants.Wire.KEY_FRAME_INTERVAL], decoder.getTime());
+        assertFrame(frames[Constants.Wire.KEY_FRAME_INTERVAL], frame, 0);
+    }
+
+    @Test
+    public void headerIsChecked() throws IOException {
+        byte[] buffer = new byte[FrameCodec.HEADER_SIZE + 1];
+        assertEquals(FrameCodec.HEADER_SIZE + 1, FrameCodec.writeHeader(buffer, 1));
+        assertEquals(FrameCodec.HEADER_SIZE + 1, FrameCodec.readHeader(buffer, 1));
+        buffer[5] = 2;
+        try {
+            FrameCodec.readHeader(buffer, 1);
+            fail();
+        } catch (IOException e) {
+            /** Expected for another version. */
+        }
+        try {
+            FrameCodec.readHeader(new byte[FrameCodec.HEADER_SIZE], 0);
+            fail();
+        } catch (IOException e) {
+            /** Expected without the magic. */
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package edu.ucr.nanosense;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the request parsing of {@link edu.ucr.nanosense.QueryServer}, and its queries over a
+ * store and a session through a local client.
+ */
+public class QueryServerTest {
+
+    private static final int NUM_FRAMES = 3000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSessionDirectory;
+    private QueryServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mSessionDirectory = mFolder.newFolder("sessions");
+        mServer = new QueryServer(0, mSessionDirectory,
+                new SessionArchive(mSessionDirectory, mFolder.newFolder("index")));
+        /** Frames from -1000 ms, with channel 1 NaN for the whole of [0, 100). */
+        SampleStore store = new SampleStore(2);
+        double[] frame = new double[2];
+        for (int i = 0; i < NUM_FRAMES; ++i) {
+            long time = i - 1000;
+            frame[0] = i;
+            frame[1] = time >= 0 && time < 100 ? Double.NaN : -i;
+            store.append(i % 2, time, frame, 0);
+        }
+        mServer.addStore("raw", store);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mServer.cancel();
+        mServer.join();
+    }
+
+/***************************************************************************************************
+ *
+ * Parsing
+ *
+ **************************************************************************************************/
+
+    @Test
+    public void parseParametersDecodesAndSkipsInvalid() throws IOException {
+        Map<String, String> parameters =
+                QueryServer.parseParameters("session=a%20b.nss&channel=3&flag&=x&start=-5");
+        assertEquals("a b.nss", parameters.get("session"));
+        assertEquals("3", parameters.get("channel"));
+        assertEquals("-5", parameters.get("start"));
+        assertEquals(3, parameters.size());
+    }
+
+    @Test
+    public void readGetTargetSkipsHeaders() throws IOException {
+        InputStream in = stream("GET /query?channel=1 HTTP/1.0\r\nHost: x\r\n\r\nrest");
+        assertEquals("/query?channel=1", QueryServer.readGetTarget(in));
+        assertEquals('r', in.read());
+    }
+
+    @Test
+    public void readGetTargetRejectsOtherRequests() throws IOException {
+        assertNull(QueryServer.readGetTarget(stream("POST /upload HTTP/1.0\r\n\r\n")));
+        assertNull(QueryServer.readGetTarget(stream("GET\r\n\r\n")));
+        assertNull(QueryServer.readGetTarget(stream("")));
+    }
+
+    @Test
+    public void readLineCapsLongLines() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 5000; ++i) {
+            line.append('a');
+        }
+        InputStream in = stream(line + "\nnext\n");
+        assertEquals(2048, QueryServer.readLine(in).length());
+        assertEquals("next", QueryServer.readLine(in));
+        assertNull(QueryServer.readLine(in));
+    }
+
+    @Test
+    public void parseIntRejectsInvalidNumbers() throws IOException {
+        Map<String, String> parameters = QueryServer.parseParameters("channel=x");
+        assertEquals(7, QueryServer.parseInt(parameters, "step", 7));
+        try {
+            QueryServer.parseInt(parameters, "channel", 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid channel x", e.getMessage());
+        }
+    }
+
+    @Test
+    public void toJsonWritesNullForNonFinite() {
+        assertEquals("null", QueryServer.toJson(Double.NaN));
+        assertEquals("null", QueryServer.toJson(Double.NEGATIVE_INFINITY));
+        assertEquals("1.5", QueryServer.toJson(1.5));
+    }
+
+/***************************************************************************************************
+ *
+ * Queries
+ *
+ **************************************************************************************************/
+
+    @Test
+    public void queryStreamsStoreRange() throws IOException {
+        List<String> rows = get("/query?store=raw&channel=0&start=-10&end=20");
+        assertEquals("HTTP/1.0 200 OK", rows.get(0));
+        rows = body(rows);
+        assertEquals(30, rows.size());
+        assertEquals("{\"t\":-10,\"s\":0,\"v\":990.0}", rows.get(0));
+        assertEquals("{\"t\":19,\"s\":1,\"v\":1019.0}", rows.get(29));
+    }
+
+    @Test
+    public void queryDecimates() throws IOException {
+        List<String> rows = body(get("/query?store=raw&channel=0&mode=decimate&step=1000"));
+        assertEquals(3, rows.size());
+        assertEquals("{\"t\":0,\"s\":0,\"v\":1000.0}", rows.get(1));
+    }
+
+    @Test
+    public void aggregateBucketsBeforeTheOrigin() throws IOException {
+        /** No start, so buckets are from time 0 and the frames before it round down. */
+        List<String> rows = body(get("/query?store=raw&channel=0&mode=aggregate&bucket=400"));
+        assertEquals(8, rows.size());
+        assertEquals("{\"t\":-1200,\"n\":200,\"min\":0.0,\"max\":199.0,\"mean\":99.5}",
+                rows.get(0));
+        assertEquals("{\"t\":-400,\"n\":400,\"min\":600.0,\"max\":999.0,\"mean\":799.5}",
+                rows.get(2));
+        assertEquals("{\"t\":0,\"n\":400,\"min\":1000.0,\"max\":1399.0,\"mean\":1199.5}",
+                rows.get(3));
+    }
+
+    @Test
+    public void aggregateSkipsNaN() throws IOException {
+        List<String> rows = body(get(
+                "/query?store=raw&channel=1&mode=aggregate&start=-50&end=150&bucket=50"));
+        assertEquals(4, rows.size());
+        assertEquals("{\"t\":-50,\"n\":50,\"min\":-999.0,\"max\":-950.0,\"mean\":-974.5}",
+                rows.get(0));
+        assertEquals("{\"t\":0,\"n\":0,\"min\":null,\"max\":null,\"mean\":null}", rows.get(1));
+        assertEquals("{\"t\":100,\"n\":50,\"min\":-1149.0,\"max\":-1100.0,\"mean\":-1124.5}",
+                rows.get(3));
+    }
+
+    @Test
+    public void queryStreamsSession() throws IOException {
+        SessionWriter writer = new SessionWriter(new File(mSessionDirectory, "s.nss"), 2, 1000);
+        double[] frame = new double[2];
+        for (int i = 0; i < NUM_FRAMES; ++i) {
+            frame[0] = i * 0.5;
+            frame[1] = i;
+            writer.append(0, i * 10L, frame, 0);
+        }
+        writer.close();
+        List<String> rows = body(get("/query?session=s.nss&channel=1&start=15000&end=15030"));
+        assertEquals(3, rows.size());
+        assertEquals("{\"t\":15000,\"s\":0,\"v\":1500.0}", rows.get(0));
+        assertEquals("{\"t\":15020,\"s\":0,\"v\":1502.0}", rows.get(2));
+
+        rows = body(get("/stores"));
+        assertEquals("{\"store\":\"raw\",\"channels\":2,\"frames\":" + NUM_FRAMES + "}",
+                rows.get(0));
+        assertTrue(rows.get(1).startsWith("{\"session\":\"s.nss\""));
+    }
+
+    @Test
+    public void invalidRequestsAreRejected() throws IOException {
+        assertEquals("HTTP/1.0 400 Bad Request", get("/nothing").get(0));
+        assertEquals("HTTP/1.0 400 Bad Request", get("/query?store=raw&channel=2").get(0));
+        assertEquals("HTTP/1.0 400 Bad Request", get("/query?session=../s.nss").get(0));
+        assertEquals("HTTP/1.0 400 Bad Request",
+                get("/query?store=raw&mode=aggregate&bucket=0").get(0));
+    }
+
+    @Test
+    public void unreadableSessionIsAnError() throws IOException {
+        OutputStream out = new FileOutputStream(new File(mSessionDirectory, "bad.nss"));
+        out.write("not a session".getBytes("US-ASCII"));
+        out.close();
+        assertTrue(new File(mSessionDirectory, "empty.nss").createNewFile());
+        assertEquals("HTTP/1.0 500 Internal Server Error",
+                get("/query?session=bad.nss&channel=0").get(0));
+        assertEquals("HTTP/1.0 500 Internal Server Error",
+                get("/query?session=empty.nss&channel=0").get(0));
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes());
+    }
+
+    /**
+     * @return The status line, headers and rows of the response.
+     */
+    private List<String> get(String target) throws IOException {
+        Socket socket = new Socket("127.0.0.1", mServer.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + target + " HTTP/1.0\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static List<String> body(List<String> response) {
+        assertEquals("HTTP/1.0 200 OK", response.get(0));
+        return response.subList(response.indexOf("") + 1, response.size());
+    }
+}
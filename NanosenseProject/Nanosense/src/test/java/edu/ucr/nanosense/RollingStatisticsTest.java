@@ -0,0 +1,160 @@
+package edu.ucr.nanosense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link edu.ucr.nanosense.RollingStatistics} against the statistics computed directly
+ * from every value in the window.
+ */
+public class RollingStatisticsTest {
+
+    private static final int NUM_CHANNELS = 3;
+
+    private final List<Long> mTimes = new ArrayList<Long>();
+    private final List<double[]> mFrames = new ArrayList<double[]>();
+    private final RollingStatistics mStatistics = new RollingStatistics(NUM_CHANNELS);
+    private final RollingStatistics.Summary mSummary = new RollingStatistics.Summary();
+
+    private void append(long time, double[] frame) {
+        mTimes.add(time);
+        mFrames.add(frame);
+        mStatistics.append(time, frame, 0);
+    }
+
+    /**
+     * Computes the statistics of the values in [start, end) in two passes and compares them.
+     */
+    private void assertMatches(int channel, long start, long end) {
+        int count = 0;
+        double mean = 0;
+        double timeMean = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < mFrames.size(); ++i) {
+            long time = mTimes.get(i);
+            double value = mFrames.get(i)[channel];
+            if (time >= start && time < end && !Double.isNaN(value)) {
+                ++count;
+                mean += value;
+                timeMean += time / 1000.0;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        assertEquals(count, mSummary.mCount);
+        if (count == 0) {
+            return;
+        }
+        mean /= count;
+        timeMean /= count;
+        double squares = 0;
+        double timeSquares = 0;
+        double comoment = 0;
+        for (int i = 0; i < mFrames.size(); ++i) {
+            long time = mTimes.get(i);
+            double value = mFrames.get(i)[channel];
+            if (time >= start && time < end && !Double.isNaN(value)) {
+                double timeDelta = time / 1000.0 - timeMean;
+                squares += (value - mean) * (value - mean);
+                timeSquares += timeDelta * timeDelta;
+                comoment += timeDelta * (value - mean);
+            }
+        }
+        double variance = count > 1 ? squares / (count - 1) : 0;
+        assertEquals(mean, mSummary.mMean, 1e-9 * Math.max(1, Math.abs(mean)));
+        assertEquals(variance, mSummary.mVariance, 1e-9 * Math.max(1, variance));
+        assertEquals(min, mSummary.mMin, 0);
+        assertEquals(max, mSummary.mMax, 0);
+        if (timeSquares > 0) {
+            double slope = comoment / timeSquares;
+            assertEquals(slope, mSummary.mSlope, 1e-6 * Math.max(1, Math.abs(slope)));
+        } else {
+            assertTrue(Double.isNaN(mSummary.mSlope));
+        }
+    }
+
+    private void assertWindows() {
+        for (int window = 0; window < Constants.Statistics.NUM_WINDOWS; ++window) {
+            for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+                mStatistics.get(channel, window, mSummary);
+                assertMatches(channel, mSummary.mStart, mSummary.mEnd);
+            }
+        }
+    }
+
+    @Test
+    public void matchesBruteForce() {
+        Random random = new Random(1);
+        long time = 0;
+        double level = 1e5;
+        for (int i = 0; i < 20000; ++i) {
+            /** Mostly 10 Hz, with gaps longer than a window and frames slightly out of order. */
+            int step = random.nextInt(100);
+            if (step == 0) {
+                time += random.nextInt(120000);
+            } else if (step < 10) {
+                time = Math.max(time - random.nextInt(300), 0);
+            } else {
+                time += 100;
+            }
+            level += random.nextGaussian() * 10;
+            append(time, new double[]{
+                    level,
+                    random.nextInt(3) == 0 ? Double.NaN : random.nextDouble(),
+                    42
+            });
+            if (i % 97 == 0) {
+                assertWindows();
+            }
+        }
+        assertWindows();
+    }
+
+    @Test
+    public void slopeOfLine() {
+        for (long time = 0; time < 120000; time += 100) {
+            append(time, new double[]{3 + 2.5 * time / 1000, Double.NaN, 7});
+        }
+        assertTrue(mStatistics.get(0, Constants.Statistics.WINDOW_MINUTE, mSummary));
+        assertEquals(2.5, mSummary.mSlope, 1e-9);
+        assertEquals(60000, mSummary.mEnd - mSummary.mStart);
+        assertEquals(600, mSummary.mCount);
+        assertTrue(mStatistics.get(2, Constants.Statistics.WINDOW_SECOND, mSummary));
+        assertEquals(0, mSummary.mSlope, 0);
+        assertEquals(0, mSummary.mVariance, 0);
+        assertFalse(mStatistics.get(1, Constants.Statistics.WINDOW_HOUR, mSummary));
+    }
+
+    @Test
+    public void singleValueHasNoSlope() {
+        append(5000, new double[]{1, 2, 3});
+        assertTrue(mStatistics.get(0, Constants.Statistics.WINDOW_SECOND, mSummary));
+        assertEquals(1, mSummary.mCount);
+        assertEquals(0, mSummary.mVariance, 0);
+        assertTrue(Double.isNaN(mSummary.mSlope));
+    }
+
+    @Test
+    public void clearRemovesValues() {
+        append(5000, new double[]{1, 2, 3});
+        mStatistics.clear();
+        assertFalse(mStatistics.get(0, Constants.Statistics.WINDOW_SECOND, mSummary));
+        append(100, new double[]{4, 5, 6});
+        assertTrue(mStatistics.get(0, Constants.Statistics.WINDOW_SECOND, mSummary));
+        assertEquals(4, mSummary.mMean, 0);
+    }
+
+    @Test
+    public void negativeTimesAreSkipped() {
+        mStatistics.append(-1, new double[]{1, 2, 3}, 0);
+        assertFalse(mStatistics.get(0, Constants.Statistics.WINDOW_HOUR, mSummary));
+    }
+}
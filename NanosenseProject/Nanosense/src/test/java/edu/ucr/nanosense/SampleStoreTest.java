@@ -0,0 +1,54 @@
+package edu.ucr.nanosense;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link edu.ucr.nanosense.SampleStore} reads across sealed chunks and across a clear.
+ */
+public class SampleStoreTest {
+
+    private static final int NUM_FRAMES = Constants.Storage.CHUNK_SIZE * 5 + 10;
+
+    private static SampleStore makeStore() {
+        SampleStore store = new SampleStore(2);
+        double[] frame = new double[2];
+        for (int i = 0; i < NUM_FRAMES; ++i) {
+            frame[0] = i;
+            frame[1] = -i;
+            store.append(i % 3, i * 10L, frame, 0);
+        }
+        return store;
+    }
+
+    @Test
+    public void readsHeadAndChunks() {
+        SampleStore store = makeStore();
+        assertEquals(NUM_FRAMES, store.size());
+        assertEquals(5, store.getNumChunks());
+        for (int i = 0; i < NUM_FRAMES; i += 97) {
+            assertEquals(i * 10L, store.getTime(i));
+            assertEquals(i % 3, store.getSource(i));
+            assertEquals(-i, store.getValue(1, i), 0);
+        }
+        assertEquals((NUM_FRAMES - 1) * 10L, store.getLastTime());
+    }
+
+    @Test
+    public void staleIndexAfterClear() {
+        SampleStore store = makeStore();
+        int stale = store.size() - 1;
+        store.clear();
+        assertEquals(0, store.getLastTime());
+        /** The new head starts at 0, so an index read before the clear is past it. */
+        assertEquals(0, store.getTime(stale));
+        assertEquals(-1, store.getSource(stale));
+        assertTrue(Double.isNaN(store.getValue(0, stale)));
+
+        store.append(0, 5, new double[]{1, 2}, 0);
+        assertEquals(5, store.getLastTime());
+        assertEquals(2, store.getValue(1, 0), 0);
+    }
+}
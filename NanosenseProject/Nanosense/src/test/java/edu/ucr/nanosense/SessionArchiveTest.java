@@ -0,0 +1,406 @@
+package edu.ucr.nanosense;
+
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the scans and peak queries of {@link edu.ucr.nanosense.SessionArchive}, with and without
+ * its zone maps, against reading every frame of the sessions with a SessionReader.
+ */
+public class SessionArchiveTest {
+
+    private static final String TAG = "SessionArchiveTest";
+    private static final int NUM_CHANNELS = 3;
+    private static final int NUM_SESSIONS = 4;
+    /** Not a whole number of chunks, so each session ends with a short one. */
+    private static final int NUM_FRAMES = 5 * Constants.Storage.CHUNK_SIZE + 300;
+    private static final long SESSION_SPACING = 1000000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(1);
+    private File mSessionDirectory;
+    private File mIndexDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mSessionDirectory = mFolder.newFolder("sessions");
+        mIndexDirectory = mFolder.newFolder("index");
+    }
+
+/***************************************************************************************************
+ *
+ * Scans
+ *
+ **************************************************************************************************/
+
+    @Test
+    public void scanMatchesBruteForce() throws IOException {
+        writeSessions(NUM_SESSIONS, NUM_FRAMES, 0);
+        SessionArchive archive = new SessionArchive(mSessionDirectory, mIndexDirectory);
+        for (int q = 0; q < 50; ++q) {
+            SessionArchive.Query query = randomQuery();
+            List<String> expected = bruteForceScan(query);
+            query.mUseZoneMaps = true;
+            Collector pruned = new Collector();
+            SessionArchive.ScanStatistics statistics = archive.scan(query, pruned);
+            query.mUseZoneMaps = false;
+            Collector full = new Collector();
+            SessionArchive.ScanStatistics fullStatistics = archive.scan(query, full);
+            assertEquals(expected, pruned.mMatches);
+            assertEquals(expected, full.mMatches);
+            assertEquals(expected.size(), statistics.mMatches);
+            assertEquals(0, fullStatistics.mChunksPruned);
+            assertEquals(fullStatistics.mBytes, statistics.mBytes);
+            assertTrue(statistics.mBytesRead <= fullStatistics.mBytesRead);
+        }
+    }
+
+    @Test
+    public void scanPrunesChunksOutsideThresholds() throws IOException {
+        writeSessions(NUM_SESSIONS, NUM_FRAMES, 0);
+        SessionArchive archive = new SessionArchive(mSessionDirectory, mIndexDirectory);
+        /** Channel 2 ramps up through each session, so only its last chunks reach the top. */
+        SessionArchive.Query query = new SessionArchive.Query();
+        query.mChannel = 2;
+        query.mAbove = NUM_FRAMES - 100;
+        Collector collector = new Collector();
+        SessionArchive.ScanStatistics statistics = archive.scan(query, collector);
+        assertEquals(bruteForceScan(query), collector.mMatches);
+        assertEquals(NUM_SESSIONS * 100, statistics.mMatches);
+        assertEquals(NUM_SESSIONS * 5, statistics.mChunksPruned);
+        assertEquals(NUM_SESSIONS * 300, statistics.mFramesDecoded);
+    }
+
+    @Test
+    public void scanSkipsOtherFiles() throws IOException {
+        writeSessions(2, NUM_FRAMES, 0);
+        assertTrue(new File(mSessionDirectory, "notes.txt").createNewFile());
+        File corrupt = new File(mSessionDirectory, "corrupt.nss");
+        assertTrue(corrupt.createNewFile());
+        SessionArchive archive = new SessionArchive(mSessionDirectory, mIndexDirectory);
+        SessionArchive.Query query = new SessionArchive.Query();
+        Collector collector = new Collector();
+        SessionArchive.ScanStatistics statistics = archive.scan(query, collector);
+        assertEquals(2, statistics.mSessions);
+        assertEquals(bruteForceScan(query), collector.mMatches);
+    }
+
+/***************************************************************************************************
+ *
+ * Peaks
+ *
+ **************************************************************************************************/
+
+    @Test
+    public void peaksMatchBruteForce() throws IOException {
+        writeSessions(NUM_SESSIONS, NUM_FRAMES, 0);
+        SessionArchive archive = new SessionArchive(mSessionDirectory, mIndexDirectory);
+        for (int q = 0; q < 50; ++q) {
+            SessionArchive.Query query = randomQuery();
+            List<String> expected = bruteForcePeaks(query);
+            query.mUseZoneMaps = true;
+            Collector pruned = new Collector();
+            archive.peaks(query, pruned);
+            query.mUseZoneMaps = false;
+            Collector full = new Collector();
+            archive.peaks(query, full);
+            assertEquals(expected, pruned.mMatches);
+            assertEquals(expected, full.mMatches);
+        }
+    }
+
+    @Test
+    public void peaksStopAtTheFirstChunkThatCantWin() throws IOException {
+        writeSessions(NUM_SESSIONS, NUM_FRAMES, 0);
+        SessionArchive archive = new SessionArchive(mSessionDirectory, mIndexDirectory);
+        SessionArchive.Query query = new SessionArchive.Query();
+        query.mChannel = 2;
+        Collector collector = new Collector();
+        SessionArchive.ScanStatistics statistics = archive.peaks(query, collector);
+        assertEquals(bruteForcePeaks(query), collector.mMatches);
+        /** The ramp peaks in the last chunk, which rules out all the others. */
+        assertEquals(NUM_SESSIONS * 5, statistics.mChunksPruned);
+        assertEquals(NUM_SESSIONS * 300, statistics.mFramesDecoded);
+    }
+
+/***************************************************************************************************
+ *
+ * Index
+ *
+ **************************************************************************************************/
+
+    @Test
+    public void indexIsRebuiltWhenSessionIsRewritten() throws IOException {
+        writeSessions(NUM_SESSIONS, NUM_FRAMES, 0);
+        SessionArchive archive = new SessionArchive(mSessionDirectory, mIndexDirectory);
+        SessionArchive.Query query = new SessionArchive.Query();
+        query.mChannel = 0;
+        archive.scan(query, new Collector());
+        assertEquals(NUM_SESSIONS, mIndexDirectory.list().length);
+
+        /** Rewrite one session with other values and fewer frames under the same name. */
+        File file = sessionFile(1);
+        long modified = file.lastModified();
+        writeSession(file, 1, 3 * Constants.Storage.CHUNK_SIZE, 1000);
+        assertTrue(file.setLastModified(modified + 2000));
+        List<String> expected = bruteForceScan(query);
+        Collector collector = new Collector();
+        archive.scan(query, collector);
+        assertEquals(expected, collector.mMatches);
+        assertEquals(bruteForcePeaks(query), peaks(archive, query));
+
+        /** A new archive loads the rewritten index from its file. */
+        SessionArchive reloaded = new SessionArchive(mSessionDirectory, mIndexDirectory);
+        collector = new Collector();
+        reloaded.scan(query, collector);
+        assertEquals(expected, collector.mMatches);
+
+        /** Rewritten again with more frames, which the old index is not a prefix of either. */
+        modified = file.lastModified();
+        writeSession(file, 1, NUM_FRAMES + Constants.Storage.CHUNK_SIZE, 2000);
+        assertTrue(file.setLastModified(modified + 2000));
+        expected = bruteForceScan(query);
+        collector = new Collector();
+        reloaded.scan(query, collector);
+        assertEquals(expected, collector.mMatches);
+        collector = new Collector();
+        archive.scan(query, collector);
+        assertEquals(expected, collector.mMatches);
+    }
+
+/***************************************************************************************************
+ *
+ * Throughput
+ *
+ **************************************************************************************************/
+
+    /**
+     * Logs the statistics of a selective scan and a peak query of a larger archive with and without
+     * the zone maps, as a rough throughput figure. Only what they read is checked.
+     */
+    @Test
+    public void reportScanStatistics() throws IOException {
+        writeSessions(8, 40 * Constants.Storage.CHUNK_SIZE, 0);
+        SessionArchive archive = new SessionArchive(mSessionDirectory, mIndexDirectory);
+        SessionArchive.Query query = new SessionArchive.Query();
+        query.mChannel = 2;
+        query.mAbove = 35 * Constants.Storage.CHUNK_SIZE;
+        /** Build the indexes first so they aren't in the timings. */
+        archive.scan(query, new Collector());
+
+        SessionArchive.ScanStatistics[] statistics = new SessionArchive.ScanStatistics[2];
+        for (int i = 0; i < 2; ++i) {
+            query.mUseZoneMaps = i == 0;
+            statistics[i] = archive.scan(query, new Collector());
+            Log.d(TAG, "Scan " + (query.mUseZoneMaps ? "with" : "without") + " zone maps: " +
+                    statistics[i]);
+            Log.d(TAG, "Peaks " + (query.mUseZoneMaps ? "with" : "without") + " zone maps: " +
+                    archive.peaks(query, new Collector()));
+        }
+        assertEquals(statistics[1].mBytes, statistics[0].mBytes);
+        assertEquals(statistics[1].mMatches, statistics[0].mMatches);
+        assertTrue(statistics[0].mBytesRead < statistics[1].mBytesRead / 4);
+        assertTrue(statistics[1].getScanThroughput() > 0);
+        assertFalse(Double.isNaN(statistics[0].getReadThroughput()));
+    }
+
+/***************************************************************************************************
+ *
+ * Helpers
+ *
+ **************************************************************************************************/
+
+    /**
+     * Records each match as one string so lists of them compare exactly.
+     */
+    private static class Collector implements SessionArchive.OnMatchListener {
+        final List<String> mMatches = new ArrayList<String>();
+
+        @Override
+        public void onMatch(String session, long startTime, long time, int source, double value) {
+            mMatches.add(match(session, startTime, time, source, value));
+        }
+    }
+
+    private static String match(String session, long startTime, long time, int source,
+                                double value) {
+        return session + " " + startTime + " " + time + " " + source + " " +
+                Double.doubleToLongBits(value);
+    }
+
+    private File sessionFile(int session) {
+        return new File(mSessionDirectory, "session" + session + Constants.Session.FILE_EXTENSION);
+    }
+
+    private void writeSessions(int numSessions, int numFrames, double offset) throws IOException {
+        for (int s = 0; s < numSessions; ++s) {
+            writeSession(sessionFile(s), s, numFrames, offset);
+        }
+    }
+
+    /**
+     * Writes frames 10 ms apart from two boards. Channel 0 is a random walk around a level that
+     * differs by session, channel 1 a random walk with runs of NaN, some a whole chunk long, and
+     * channel 2 the frame number.
+     */
+    private void writeSession(File file, int session, int numFrames, double offset)
+            throws IOException {
+        SessionWriter writer = new SessionWriter(file, NUM_CHANNELS, session * SESSION_SPACING);
+        double[] frame = new double[NUM_CHANNELS];
+        double walk0 = offset + session * 50;
+        double walk1 = offset;
+        for (int i = 0; i < numFrames; ++i) {
+            walk0 += mRandom.nextGaussian();
+            walk1 += mRandom.nextGaussian();
+            frame[0] = walk0;
+            int block = i / Constants.Storage.CHUNK_SIZE;
+            boolean isNaN = block == 2 || (i / 50) % 7 == 3;
+            frame[1] = isNaN ? Double.NaN : walk1;
+            frame[2] = i;
+            writer.append(i % 2, i * 10L + mRandom.nextInt(3), frame, 0);
+        }
+        writer.close();
+    }
+
+    /**
+     * @return A query of a random channel, often limited to a time range or thresholds that some
+     * of the chunks fall outside of.
+     */
+    private SessionArchive.Query randomQuery() {
+        SessionArchive.Query query = new SessionArchive.Query();
+        query.mChannel = mRandom.nextInt(NUM_CHANNELS);
+        if (mRandom.nextBoolean()) {
+            /** From within a session to within it or a later one. */
+            query.mFrom = mRandom.nextInt(NUM_SESSIONS) * SESSION_SPACING +
+                    mRandom.nextInt(NUM_FRAMES * 10);
+            query.mTo = query.mFrom + (long) (mRandom.nextDouble() * 2 * SESSION_SPACING);
+        }
+        double center = query.mChannel == 2 ? mRandom.nextInt(NUM_FRAMES) :
+                mRandom.nextGaussian() * 80;
+        double width = query.mChannel == 2 ? mRandom.nextInt(NUM_FRAMES) :
+                mRandom.nextDouble() * 40;
+        switch (mRandom.nextInt(4)) {
+            case 0:
+                query.mAbove = center;
+                break;
+            case 1:
+                query.mBelow = center;
+                break;
+            case 2:
+                query.mAbove = center - width;
+                query.mBelow = center + width;
+                break;
+            default:
+                break;
+        }
+        return query;
+    }
+
+    /**
+     * @return Every frame of the sessions that matches the query, read without the archive.
+     */
+    private List<String> bruteForceScan(SessionArchive.Query query) throws IOException {
+        List<String> matches = new ArrayList<String>();
+        for (File file : sessionFiles()) {
+            SessionReader reader = new SessionReader(file);
+            try {
+                if (query.mChannel >= reader.getNumChannels()) {
+                    continue;
+                }
+                long startTime = reader.getStartTime();
+                CompressedChunk chunk;
+                while ((chunk = reader.nextChunk()) != null) {
+                    for (int i = 0; i < chunk.getNumFrames(); ++i) {
+                        long time = chunk.getTime(i);
+                        double value = chunk.getValue(query.mChannel, i);
+                        if (matches(query, startTime + time, value)) {
+                            matches.add(match(file.getName(), startTime, time,
+                                    chunk.getSource(i), value));
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return The first frame with the highest matching value in each session.
+     */
+    private List<String> bruteForcePeaks(SessionArchive.Query query) throws IOException {
+        List<String> peaks = new ArrayList<String>();
+        for (File file : sessionFiles()) {
+            SessionReader reader = new SessionReader(file);
+            try {
+                long startTime = reader.getStartTime();
+                String peak = null;
+                double peakValue = Double.NEGATIVE_INFINITY;
+                CompressedChunk chunk;
+                while ((chunk = reader.nextChunk()) != null) {
+                    for (int i = 0; i < chunk.getNumFrames(); ++i) {
+                        long time = chunk.getTime(i);
+                        double value = chunk.getValue(query.mChannel, i);
+                        if (matches(query, startTime + time, value) &&
+                                (peak == null || value > peakValue)) {
+                            peakValue = value;
+                            peak = match(file.getName(), startTime, time, chunk.getSource(i),
+                                    value);
+                        }
+                    }
+                }
+                if (peak != null) {
+                    peaks.add(peak);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return peaks;
+    }
+
+    private static List<String> peaks(SessionArchive archive, SessionArchive.Query query)
+            throws IOException {
+        Collector collector = new Collector();
+        archive.peaks(query, collector);
+        return collector.mMatches;
+    }
+
+    private static boolean matches(SessionArchive.Query query, long wallTime, double value) {
+        return wallTime >= query.mFrom && wallTime < query.mTo && value >= query.mAbove &&
+                value <= query.mBelow;
+    }
+
+    /**
+     * @return The session files in the order the archive visits them.
+     */
+    private File[] sessionFiles() {
+        File[] files = mSessionDirectory.listFiles();
+        List<File> sessions = new ArrayList<File>();
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().startsWith("session")) {
+                sessions.add(file);
+            }
+        }
+        return sessions.toArray(new File[sessions.size()]);
+    }
+}
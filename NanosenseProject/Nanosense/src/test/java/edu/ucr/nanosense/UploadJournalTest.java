@@ -0,0 +1,216 @@
+package edu.ucr.nanosense;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link edu.ucr.nanosense.UploadJournal} across reopening, as after the app is killed.
+ * Appends are written by the journal's thread, so the journal is closed before the files are
+ * checked.
+ */
+public class UploadJournalTest {
+
+    private static final long SESSION_START = 1400000000000L;
+    private static final int NUM_FRAMES = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static CompressedChunk makeChunk(int first) {
+        long[] times = new long[NUM_FRAMES];
+        byte[] sources = new byte[NUM_FRAMES];
+        double[][] values = new double[2][NUM_FRAMES];
+        for (int i = 0; i < NUM_FRAMES; ++i) {
+            times[i] = (first + i) * 100L;
+            values[0][i] = first + i;
+            values[1][i] = Math.sin(first + i);
+        }
+        return CompressedChunk.encode(times, sources, values, 0, NUM_FRAMES);
+    }
+
+    private static File getSegmentFile(File directory, long start) {
+        return new File(directory, String.format("%020d", start) +
+                Constants.Upload.SEGMENT_EXTENSION);
+    }
+
+    /**
+     * Appends the chunks starting at frames 0, 100, ... and closes the journal.
+     */
+    private File writeJournal(int numChunks) throws IOException {
+        File directory = new File(mFolder.getRoot(), Constants.Upload.DIRECTORY);
+        UploadJournal journal = new UploadJournal(directory);
+        for (int i = 0; i < numChunks; ++i) {
+            journal.append(SESSION_START + i, makeChunk(i * NUM_FRAMES));
+        }
+        journal.close();
+        return directory;
+    }
+
+    /**
+     * Reads back the records in [start, end) and checks they are the chunks from the first.
+     */
+    private static void assertRecords(UploadJournal journal, long start, long end, int first)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        journal.copy(start, end, bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        int chunk = first;
+        while (in.available() > 0) {
+            int length = in.readInt();
+            int available = in.available();
+            assertEquals(SESSION_START + chunk, in.readLong());
+            CompressedChunk read = CompressedChunk.readFrom(in);
+            assertEquals(length, available - in.available());
+            assertEquals(chunk * NUM_FRAMES * 100L, read.getFirstTime());
+            assertEquals(chunk * NUM_FRAMES + NUM_FRAMES - 1, read.getValue(0, NUM_FRAMES - 1), 0);
+            ++chunk;
+        }
+    }
+
+    @Test
+    public void recordsSurviveReopening() throws IOException {
+        File directory = writeJournal(5);
+        UploadJournal journal = new UploadJournal(directory);
+        assertEquals(0, journal.getAcknowledged());
+        assertTrue(journal.getEnd() > 0);
+        assertEquals(journal.getEnd(), journal.getPendingBytes());
+        assertEquals(journal.getEnd(), journal.getBatchEnd(Constants.Upload.BATCH_SIZE));
+        assertRecords(journal, 0, journal.getEnd(), 0);
+        journal.close();
+    }
+
+    @Test
+    public void batchHoldsWholeRecords() throws IOException {
+        File directory = writeJournal(5);
+        UploadJournal journal = new UploadJournal(directory);
+        /** A batch too small for a record still takes one. */
+        long first = journal.getBatchEnd(1);
+        assertTrue(first > 0);
+        assertRecords(journal, 0, first, 0);
+        long three = journal.getBatchEnd((int) (first * 3 + 1));
+        assertRecords(journal, 0, three, 0);
+        assertTrue(three < journal.getEnd());
+        journal.close();
+    }
+
+    @Test
+    public void partialRecordIsTruncated() throws IOException {
+        File directory = writeJournal(3);
+        File segment = getSegmentFile(directory, 0);
+        long length = segment.length();
+        /** A record cut off after its header, as if the app was killed while writing it. */
+        FileOutputStream out = new FileOutputStream(segment, true);
+        out.write(new byte[]{0, 0, 1, 0, 1, 2, 3});
+        out.close();
+
+        UploadJournal journal = new UploadJournal(directory);
+        assertEquals(length, journal.getEnd());
+        assertEquals(length, segment.length());
+        journal.append(SESSION_START + 3, makeChunk(3 * NUM_FRAMES));
+        journal.close();
+
+        journal = new UploadJournal(directory);
+        assertRecords(journal, 0, journal.getEnd(), 0);
+        journal.close();
+    }
+
+    @Test
+    public void acknowledgedOffsetIsSaved() throws IOException, InterruptedException {
+        File directory = writeJournal(4);
+        UploadJournal journal = new UploadJournal(directory);
+        long end = journal.getEnd();
+        long batch = journal.getBatchEnd(1);
+        journal.acknowledge(batch);
+        /** Offsets outside the journal or before the acknowledged one are ignored. */
+        journal.acknowledge(end + 1);
+        journal.acknowledge(batch - 1);
+        assertEquals(batch, journal.getAcknowledged());
+        journal.close();
+
+        journal = new UploadJournal(directory);
+        assertEquals(batch, journal.getAcknowledged());
+        assertEquals(end - batch, journal.getPendingBytes());
+        assertRecords(journal, batch, journal.getBatchEnd(Constants.Upload.BATCH_SIZE), 1);
+        journal.acknowledge(end);
+        assertFalse(journal.awaitPending(1));
+        journal.close();
+    }
+
+    @Test
+    public void rebaseRenumbersPendingRecords() throws IOException {
+        File directory = writeJournal(3);
+        UploadJournal journal = new UploadJournal(directory);
+        long end = journal.getEnd();
+        long batch = journal.getBatchEnd(1);
+        journal.acknowledge(batch);
+        long offset = 10 * end;
+        journal.rebase(offset);
+        assertEquals(offset, journal.getAcknowledged());
+        assertEquals(offset + end - batch, journal.getEnd());
+        assertRecords(journal, offset, journal.getEnd(), 1);
+        journal.append(SESSION_START + 3, makeChunk(3 * NUM_FRAMES));
+        journal.close();
+
+        journal = new UploadJournal(directory);
+        assertEquals(offset, journal.getAcknowledged());
+        assertRecords(journal, offset, journal.getEnd(), 1);
+        journal.close();
+    }
+
+    @Test
+    public void oldestSegmentsAreDroppedWhenFull() throws IOException {
+        File directory = mFolder.newFolder(Constants.Upload.DIRECTORY);
+        long segmentSize = Constants.Upload.SEGMENT_SIZE;
+        int numSegments = (int) (Constants.Upload.MAX_JOURNAL_BYTES / segmentSize) + 1;
+        /** Full segments that were never uploaded, left sparse so the test doesn't write them. */
+        for (int i = 0; i < numSegments; ++i) {
+            RandomAccessFile segment =
+                    new RandomAccessFile(getSegmentFile(directory, i * segmentSize), "rw");
+            segment.setLength(segmentSize);
+            segment.close();
+        }
+        long last = numSegments * segmentSize;
+        assertTrue(getSegmentFile(directory, last).createNewFile());
+
+        UploadJournal journal = new UploadJournal(directory);
+        assertEquals(last, journal.getEnd());
+        journal.append(SESSION_START, makeChunk(0));
+        journal.close();
+
+        /** Two segments go to bring the journal back under its limit. */
+        assertEquals(2 * segmentSize, journal.getBytesDropped());
+        assertEquals(2 * segmentSize, journal.getAcknowledged());
+        assertFalse(getSegmentFile(directory, 0).exists());
+        assertFalse(getSegmentFile(directory, segmentSize).exists());
+        assertTrue(getSegmentFile(directory, 2 * segmentSize).exists());
+        assertTrue(journal.getEnd() - journal.getAcknowledged() <=
+                Constants.Upload.MAX_JOURNAL_BYTES);
+        assertRecords(journal, last, journal.getEnd(), 0);
+    }
+
+    @Test
+    public void appendAfterCloseFails() throws IOException {
+        UploadJournal journal = new UploadJournal(mFolder.newFolder(Constants.Upload.DIRECTORY));
+        journal.close();
+        try {
+            journal.append(SESSION_START, makeChunk(0));
+            fail();
+        } catch (IOException e) {
+            /** Expected once closed. */
+        }
+    }
+}